@@ -8,6 +8,7 @@ import java.awt.image.BufferedImage;
 import com.jogamp.opengl.GL3;
 
 import k7system.gpuobjects.BillboardMaterial;
+import k7system.gpuobjects.GLStateCache;
 import k7system.gpuobjects.TextureK7;
 import k7system.gpuobjects.VertexArrayObject;
 
@@ -219,6 +220,22 @@ public class Billboard extends Object3D{
             // 座標変換行列を計算
             mvp=VectorManager.multMatrix4(this.getEngine().getPVMatrix(),this.getWorldMatrix());
         }
+        this.drawObject(gl, mvp, this.getPositionByArray());
+    }
+
+    /** レンダーリストの要素を利用してビルボードの描画処理を行います */
+    @Override
+    public void drawObject(GL3 gl, RenderItem item) {
+        float[] mvp=Node3D.UNIT_MAT4;
+        if (this.getEngine()!=null){
+            mvp=item.getMvpMatrix();
+        }
+        float[] world=item.getWorldMatrix();
+        this.drawObject(gl, mvp, new float[]{world[12],world[13],world[14]});
+    }
+
+    /** 与えられたMVP行列と座標でビルボードの描画処理を行います */
+    private void drawObject(GL3 gl, float[] mvp, float[] position) {
 
         // 拡大率を仕込む
         this.mat.setScale(this.scale);
@@ -227,18 +244,19 @@ public class Billboard extends Object3D{
         this.mat.setMvpMatrix(mvp);
 
         // スクリーン座標を設定
-        this.mat.setScreenCoord(this.getPositionByArray());
+        this.mat.setScreenCoord(position);
 
         // Y軸反転フラグを設定
         this.mat.setMirrorY(this.mirrorY);
 
         // 半透明情報を設定
+        GLStateCache cache=GLStateCache.get(this.getEngine());
         if (this.getTransparent()!=BlendType.NOT){
-            gl.glEnable(GL3.GL_BLEND);
+            cache.setBlend(gl, true);
             if (this.getTransparent()==BlendType.BLEND){
-                gl.glBlendFunc(GL3.GL_SRC_ALPHA, GL3.GL_ONE_MINUS_SRC_ALPHA);
+                cache.blendFunc(gl, GL3.GL_SRC_ALPHA, GL3.GL_ONE_MINUS_SRC_ALPHA);
             }else if (this.getTransparent()==BlendType.ADDING){
-                gl.glBlendFunc(GL3.GL_SRC_ALPHA,GL3.GL_ONE);
+                cache.blendFunc(gl, GL3.GL_SRC_ALPHA,GL3.GL_ONE);
             }
         }
 
@@ -264,7 +282,7 @@ public class Billboard extends Object3D{
             }
         }
         if (this.getTransparent()!=BlendType.NOT){
-            gl.glDisable(GL3.GL_BLEND);
+            cache.setBlend(gl, false);
         }
     }
 
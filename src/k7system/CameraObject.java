@@ -1,11 +1,14 @@
 package k7system;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
 import k7system.gpuobjects.DepthMaterial;
+import k7system.gpuobjects.FloatTextureK7;
+import k7system.gpuobjects.GLStateCache;
 import k7system.gpuobjects.FrameBufferObject;
 import k7system.gpuobjects.VertexArrayObject;
 import k7system.gpuobjects.VertexPackage;
@@ -40,13 +43,19 @@ public class CameraObject{
         DEFAULT_DEPTH_MATERIAL.setName("Depth for Camera");
     }
     private DepthMaterial depthMat=DEFAULT_DEPTH_MATERIAL;
+    private float[] clearColor=new float[4]; // 深度バッファの描画前の背景色
+    private float[] depthMvp=new float[16]; // 深度バッファ描画用のMVP行列(使いまわします)
+    private Frustum depthFrustum=new Frustum(); // 深度バッファ描画用の視錐台
+    private List<Object3D> depthCasters=new ArrayList<Object3D>(); // 深度バッファに描画する候補
 
     private GraphicEngine engine;
 
     /** コンストラクタでエンジンを指定します */
     public CameraObject(GraphicEngine engine) {
         this.engine=engine;
-        this.depthFbo=new FrameBufferObject(Params.DEFAULT_SHADOW_BUFFER_SIZE, Params.DEFAULT_SHADOW_BUFFER_SIZE);
+        FloatTextureK7 depthTexture=new FloatTextureK7(Params.DEFAULT_SHADOW_BUFFER_SIZE, Params.DEFAULT_SHADOW_BUFFER_SIZE, 1); // 深度を精度を落とさずに保持します
+        depthTexture.setSamplerConfig(GL3.GL_CLAMP_TO_EDGE, GL3.GL_CLAMP_TO_EDGE, GL3.GL_NEAREST, GL3.GL_NEAREST);
+        this.depthFbo=new FrameBufferObject(depthTexture);
     }
 
     /** 視点の位置を取得します<br>
@@ -308,9 +317,82 @@ public class CameraObject{
         return this.depthFbo;
     }
 
-    /** このライトオブジェクトの視点によるシャドウバッファを描画します<br>
-     * 影生成属性が付いていなければ何も処理が行われません */
+    /** このカメラの視点による深度バッファを描画します<br>
+     * 影生成属性が付いている，表示中の不透明なモデルが対象です．
+     * 各画素には正規化デバイス座標の深度(-1～1)が書き込まれ，何も無い画素は最も奥の1になります */
     public void drawDepthBuffer(GL3 gl){
+        this.drawDepthBuffer(gl, this.pvMatrix);
+    }
+
+    /** 指定した透視ビュー行列で深度バッファを描画します<br>
+     * 視錐台に掛かるモデルをエンジンの空間インデックス(利用していなければシーングラフ)から求め，現在の状態で描画します．スナップショット描画の描画スレッドからは，
+     * 収集時点の状態だけを参照するdrawDepthBuffer(GL3, RenderList)を利用してください */
+    public void drawDepthBuffer(GL3 gl, float[] pvMatrix){
+        this.beginDepthBuffer(gl);
+
+        this.depthMat.bindProgram(gl);
+        this.depthFrustum.setMatrix(pvMatrix);
+        this.depthCasters.clear();
+        this.engine.queryFrustum(this.depthFrustum, this.depthCasters); // 視錐台に掛かる物体だけを候補にします
+        for (int m=0;m<this.depthCasters.size();m++){
+            Object3D model=this.depthCasters.get(m);
+            if (model instanceof Model3D && model.isShadowable() && model.isVisible() && model.getTransparent()==BlendType.NOT){ // モデルが影の対象か
+                Model3D m3d=(Model3D)model;
+                VectorManager.multMatrix4(pvMatrix, m3d.getWorldMatrix(), this.depthMvp);
+                List<VertexPackage> pkgs=m3d.getVertexPackages(m3d.getAllVertexPackages().size()-1);
+                boolean bound=false;
+                for (int i=0;i<pkgs.size();i++){
+                    VertexPackage p=pkgs.get(i);
+                    if (!p.isInSight(this.depthMvp)){ // 視錐台の外は描画しません
+                        continue;
+                    }
+                    if (!bound){
+                        this.depthMat.setMvpMatrix(this.depthMvp); // マテリアルに行列を設定しまして
+                        this.depthMat.bindUniforms(gl);
+                        bound=true;
+                    }
+                    VertexArrayObject vao=p.getVao(); // 形状データを読み込みまして
+                    if (!vao.isUploaded()){
+                        vao.init(gl, this.engine);
+                    }
+                    vao.draw(gl);
+                }
+            }
+        }
+        this.depthMat.unbind(gl);
+        this.depthCasters.clear();
+        this.endDepthBuffer(gl);
+    }
+
+    /** レンダーリストに収集された物体で深度バッファを描画します<br>
+     * 収集時点の行列と，収集時に記録された遮蔽物用の頂点パッケージ(影生成属性が付いた不透明なモデルの最も粗いLoD)だけを利用するため，
+     * 描画スレッドからシーンを参照しません．視錐台カリング済みの物体だけが描画されます */
+    public void drawDepthBuffer(GL3 gl, RenderList list){
+        this.beginDepthBuffer(gl);
+        this.depthMat.bindProgram(gl);
+        for (int i=0;i<list.size();i++){
+            RenderItem item=list.get(i);
+            List<VertexPackage> pkgs=item.getOccluderPackages();
+            if (pkgs.isEmpty()){
+                continue;
+            }
+            this.depthMat.setMvpMatrix(item.getMvpMatrix());
+            this.depthMat.bindUniforms(gl);
+            for (int j=0;j<pkgs.size();j++){
+                VertexArrayObject vao=pkgs.get(j).getVao();
+                if (!vao.isUploaded()){
+                    vao.init(gl, this.engine);
+                }
+                vao.draw(gl);
+            }
+        }
+        this.depthMat.unbind(gl);
+        this.endDepthBuffer(gl);
+    }
+
+    /** 深度バッファの描画を始めます<br>
+     * FBOを割り当てて消去し，合成を無効にします */
+    private void beginDepthBuffer(GL3 gl){
         if (!this.depthMat.isUploaded()){
             this.depthMat.init(gl, this.engine);
         }
@@ -319,27 +401,21 @@ public class CameraObject{
         }
 
         this.depthFbo.bind(gl);
-        gl.glClearColor(0, 0, 0, 0);
+        gl.glGetFloatv(GL.GL_COLOR_CLEAR_VALUE, this.clearColor, 0);
+        gl.glClearColor(1, 1, 1, 1); // 何も無い画素は最も奥にします
         gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
-        gl.glEnable(GL.GL_CULL_FACE);              // 裏返ったポリゴンを描画しません
+        GLStateCache cache=this.engine.getStateCache();
+        cache.setCullFace(gl, true);              // 裏返ったポリゴンを描画しません
+        cache.setBlend(gl, false);                // 深度が合成されないようにします
+    }
 
-        List<Object3D> models=this.engine.getModels();
-        for (Object3D model:models){
-            if (model instanceof Model3D && model.isShadowable()){ // モデルが影の対象か
-                Model3D m3d=(Model3D)model;
-                List<VertexPackage> pkgs=m3d.getVertexPackages(m3d.getAllVertexPackages().size()-1);
-                for (VertexPackage p:pkgs){
-                    float[] mvp=VectorManager.multMatrix4(this.pvMatrix, m3d.getWorldMatrix());
-                    VertexArrayObject vao=p.getVao(); // 形状データを読み込みまして
-                    this.depthMat.setMvpMatrix(mvp); // マテリアルに行列を設定しまして
-                    this.depthMat.bind(gl);
-                    vao.draw(gl);
-                    this.depthMat.unbind(gl);
-                }
-            }
-        }
+    /** 深度バッファの描画を終え，変更した状態を戻します */
+    private void endDepthBuffer(GL3 gl){
+        GLStateCache cache=this.engine.getStateCache();
         this.depthFbo.unbind(gl);
-        gl.glViewport(0, 0, this.engine.getScreenWidth(), this.engine.getScreenHeight()); // ビューポートを戻しておく
+        cache.setBlend(gl, true);
+        gl.glClearColor(this.clearColor[0], this.clearColor[1], this.clearColor[2], this.clearColor[3]); // 背景色を戻しておく
+        cache.viewport(gl, 0, 0, this.engine.getScreenWidth(), this.engine.getScreenHeight()); // ビューポートを戻しておく
     }
 
 
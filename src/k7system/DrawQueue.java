@@ -0,0 +1,582 @@
+package k7system;
+
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL3;
+
+import k7system.gpuobjects.BasicMaterial;
+import k7system.gpuobjects.BatchedVertexArrayObject;
+import k7system.gpuobjects.DepthMaterial;
+import k7system.gpuobjects.GLStateCache;
+import k7system.gpuobjects.InstanceBuffer;
+import k7system.gpuobjects.VertexArrayObject;
+import k7system.gpuobjects.VertexPackage;
+
+/** 描画要素を状態ソートして描画するキューです<br>
+ * レンダーリストの要素を頂点パッケージ単位に展開し，64bitのソートキーで並べ替えてから描画します．
+ * キーは上位から，パス(不透明/半透明)，合成方法，シェーダープログラム，テクスチャ，VAO，深度の順に詰め込まれています．
+ * 不透明パスでは状態が同じ要素が連続し，同じ状態の中では手前から奥の順になります．
+ * 半透明パスでは正しく合成するために深度を状態より上位に置き，奥から手前の順になります．<br>
+ * 描画時にはシェーダープログラム，テクスチャ，合成方法が直前の要素と異なる場合にだけ切り替えます．<br>
+ * 不透明パスで同じVAOとマテリアルを使う要素が連続した場合は，インスタンスバッファに行列を詰めて1回のインスタンス描画にまとめます．
+ * OpenGL 4.3以上では，同じマテリアルを使う要素が連続した場合に，VAOが異なっていても1回の間接描画にまとめます．<br>
+ * 深度プリパスを有効にすると，不透明な要素の深度をDepthMaterialで先に描画し，陰影付けは最も手前の面の画素に対して1回だけ行います．
+ * 配列はフレーム間で使いまわされます． */
+public class DrawQueue {
+    private static final int DEFAULT_CAPACITY=256;
+
+    private static final int PASS_SHIFT=62;
+    private static final int FIELD_MASK=0xFFF; // プログラム，テクスチャ，VAOはそれぞれ12bitに切り詰めます
+    private static final int DEPTH_MASK=0xFFFFFF; // 深度は24bitです
+    private static final int UNKNOWN=-1;
+
+    private long[] keys=new long[DEFAULT_CAPACITY];
+    private long[] sortKeys=new long[DEFAULT_CAPACITY];
+    private int[] order=new int[DEFAULT_CAPACITY];
+    private int[] sortOrder=new int[DEFAULT_CAPACITY];
+    private int[] counts=new int[256];
+    private RenderItem[] items=new RenderItem[DEFAULT_CAPACITY];
+    private VertexPackage[] packages=new VertexPackage[DEFAULT_CAPACITY]; // nullの場合はオブジェクト独自の描画です
+    private int size=0;
+
+    // 間接描画で描画する範囲(深度プリパスと陰影付けで同じコマンドバッファを使います)
+    private int[] runStarts=new int[64];
+    private int[] runLengths=new int[64];
+    private int[] runSlots=new int[64];
+    private int runCount=0;
+    private MultiDrawIndirect preparedMultiDraw=null; // このフレームで準備を始めた間接描画のバックエンド
+
+    // 統計情報
+    private int programChangeCount=0;
+    private int textureChangeCount=0;
+    private int blendChangeCount=0;
+    private int drawCallCount=0;
+    private int instancedCount=0;
+    private boolean useInstancing=true;
+    private boolean depthPrePass=false;
+
+    /** キューを空にします */
+    public void clear(){
+        for (int i=0;i<this.size;i++){
+            this.items[i]=null;
+            this.packages[i]=null;
+        }
+        this.size=0;
+        this.programChangeCount=0;
+        this.textureChangeCount=0;
+        this.blendChangeCount=0;
+        this.drawCallCount=0;
+        this.instancedCount=0;
+    }
+
+    /** 登録された描画要素の数を取得します */
+    public int size(){
+        return this.size;
+    }
+
+    /** 直近の描画でシェーダープログラムを切り替えた回数を取得します */
+    public int getProgramChangeCount(){
+        return this.programChangeCount;
+    }
+
+    /** 直近の描画でテクスチャを切り替えた回数を取得します */
+    public int getTextureChangeCount(){
+        return this.textureChangeCount;
+    }
+
+    /** 直近の描画で合成方法を切り替えた回数を取得します */
+    public int getBlendChangeCount(){
+        return this.blendChangeCount;
+    }
+
+    /** 直近の描画で発行した描画命令の数を取得します<br>
+     * オブジェクト独自の描画は1回として数えます */
+    public int getDrawCallCount(){
+        return this.drawCallCount;
+    }
+
+    /** 直近の描画でインスタンス描画にまとめられた要素の数を取得します */
+    public int getInstancedCount(){
+        return this.instancedCount;
+    }
+
+    /** インスタンス描画を利用するかどうかを設定します */
+    public void setInstancing(boolean useInstancing){
+        this.useInstancing=useInstancing;
+    }
+
+    /** インスタンス描画を利用するかどうかを取得します */
+    public boolean isInstancing(){
+        return this.useInstancing;
+    }
+
+    /** 深度プリパスを行うかどうかを設定します<br>
+     * 通常はGraphicEngine.setDepthPrePass()の設定が描画のたびに反映されます */
+    public void setDepthPrePass(boolean depthPrePass){
+        this.depthPrePass=depthPrePass;
+    }
+
+    /** 深度プリパスを行うかどうかを取得します */
+    public boolean isDepthPrePass(){
+        return this.depthPrePass;
+    }
+
+    /** 頂点パッケージの描画要素を登録します<br>
+     * 描画時には頂点パッケージのマテリアルにアイテムの行列が設定されます */
+    public void addPackage(RenderItem item, VertexPackage vp){
+        BasicMaterial mat=vp.getMaterial();
+        int program=mat.getShader().getProgramHandle();
+        long textureKey=mat.getTextureKey();
+        int texture=(int)(textureKey^(textureKey>>>32)); // 並べ替えにだけ使うので，畳み込んで衝突しても構いません
+        texture^=texture>>>16;
+        VertexArrayObject vao=vp.getVao();
+        this.add(item, vp, this.createKey(item, program, texture, vao.getVaoId()));
+    }
+
+    /** オブジェクト独自の描画要素を登録します<br>
+     * 描画時にはdrawObject(GL3, RenderItem)が呼び出されます．状態の切り替えはオブジェクトに任されます */
+    public void addObject(RenderItem item){
+        this.add(item, null, this.createKey(item, 0, 0, 0));
+    }
+
+    /** ソートキーを作成します */
+    private long createKey(RenderItem item, int program, int texture, int vao){
+        BlendType blend=item.getTransparent();
+        long state=((long)blend.ordinal()<<36) | ((long)(program & FIELD_MASK)<<24) | ((long)(texture & FIELD_MASK)<<12) | (vao & FIELD_MASK);
+
+        // 視点からの距離を正のfloatのビット列として量子化します(正のfloatはビット列の大小と値の大小が一致します)
+        float distance=-item.getMvMatrix()[14];
+        if (!(distance>0)){
+            distance=0;
+        }
+        long depth=Float.floatToIntBits(distance)>>>7;
+
+        if (blend==BlendType.NOT){
+            return (state<<24) | depth; // 状態の中で手前から奥
+        }
+        return (1L<<PASS_SHIFT) | ((~depth & DEPTH_MASK)<<38) | state; // 奥から手前
+    }
+
+    private void add(RenderItem item, VertexPackage vp, long key){
+        if (this.size==this.keys.length){
+            int capacity=this.size*2;
+            this.keys=Arrays.copyOf(this.keys, capacity);
+            this.sortKeys=new long[capacity];
+            this.order=new int[capacity];
+            this.sortOrder=new int[capacity];
+            this.items=Arrays.copyOf(this.items, capacity);
+            this.packages=Arrays.copyOf(this.packages, capacity);
+        }
+        this.keys[this.size]=key;
+        this.items[this.size]=item;
+        this.packages[this.size]=vp;
+        this.size++;
+    }
+
+    /** キーの下位から8bitずつ基数ソートします<br>
+     * 安定ソートなので，キーが等しい要素は登録順に描画されます */
+    private void sort(){
+        int n=this.size;
+        long[] srcKeys=this.keys;
+        long[] dstKeys=this.sortKeys;
+        int[] srcOrder=this.order;
+        int[] dstOrder=this.sortOrder;
+        for (int i=0;i<n;i++){
+            srcOrder[i]=i;
+        }
+        for (int shift=0;shift<64 && 1<n;shift+=8){
+            Arrays.fill(this.counts, 0);
+            for (int i=0;i<n;i++){
+                this.counts[(int)(srcKeys[i]>>>shift) & 0xFF]++;
+            }
+            if (this.counts[(int)(srcKeys[0]>>>shift) & 0xFF]==n){
+                continue; // 全要素でこの桁が同じ
+            }
+            int sum=0;
+            for (int i=0;i<256;i++){
+                int c=this.counts[i];
+                this.counts[i]=sum;
+                sum+=c;
+            }
+            for (int i=0;i<n;i++){
+                int digit=(int)(srcKeys[i]>>>shift) & 0xFF;
+                int dst=this.counts[digit]++;
+                dstKeys[dst]=srcKeys[i];
+                dstOrder[dst]=srcOrder[i];
+            }
+            long[] tmpKeys=srcKeys;
+            srcKeys=dstKeys;
+            dstKeys=tmpKeys;
+            int[] tmpOrder=srcOrder;
+            srcOrder=dstOrder;
+            dstOrder=tmpOrder;
+        }
+        this.keys=srcKeys;
+        this.sortKeys=dstKeys;
+        this.order=srcOrder;
+        this.sortOrder=dstOrder;
+    }
+
+    /** 登録された描画要素をソートして描画します<br>
+     * 深度プリパスが有効な場合は，先に不透明な要素の深度だけを描画し，その要素は深度が一致する画素だけを陰影付けします．<br>
+     * 描画後はシェーダープログラムを解除し，合成を無効にした状態に戻します */
+    public void draw(GL3 gl, GLStateCache cache){
+        this.sort();
+        this.prepareIndirectRuns(gl);
+        boolean prePass=this.depthPrePass && this.drawDepthPrePass(gl, cache);
+        int lastProgram=UNKNOWN;
+        long lastTexture=UNKNOWN;
+        BlendType lastBlend=null;
+        for (int i=0;i<this.size;i++){
+            int index=this.order[i];
+            RenderItem item=this.items[index];
+            VertexPackage vp=this.packages[index];
+            if (vp==null){
+                // オブジェクト独自の描画は状態を変更するため，以降は全て設定し直します
+                if (prePass){
+                    this.applyDepthTest(gl, cache, false);
+                }
+                item.getObject().drawObject(gl, item);
+                this.drawCallCount++;
+                lastProgram=UNKNOWN;
+                lastTexture=UNKNOWN;
+                lastBlend=null;
+                continue;
+            }
+
+            Model3D model=(Model3D)item.getObject();
+            BasicMaterial mat=vp.getMaterial();
+            VertexArrayObject vao=vp.getVao();
+            if (!mat.isUploaded()){
+                mat.init(gl, vp.getEngine());
+            }
+            if (!vao.isUploaded()){
+                vao.init(gl, vp.getEngine());
+            }
+
+            MultiDrawIndirect multiDraw=this.getMultiDraw(vp);
+            int run=this.countRun(i, vp, item, multiDraw);
+            boolean indirect=this.isIndirect(multiDraw, run, vp, item);
+            int slot=-1;
+            if (indirect || 1<run){
+                if (indirect){
+                    slot=this.findRun(i, run);
+                    if (slot<0){
+                        slot=this.addIndirectRun(gl, i, run, multiDraw);
+                        lastProgram=UNKNOWN; // 視界判定のコンピュートシェーダーに切り替わっている場合があります
+                    }
+                }else{
+                    this.fillInstances(gl, i, run, vp);
+                }
+                mat.setUseLights(item.isUseLight());
+                mat.setInstanced(true);
+            }else{
+                model.prepareDraw(vp, item);
+            }
+
+            if (prePass){
+                this.applyDepthTest(gl, cache, this.isPrePassed(vp, item));
+            }
+            BlendType blend=item.getTransparent();
+            if (blend!=lastBlend){
+                this.applyBlend(gl, cache, blend);
+                lastBlend=blend;
+                this.blendChangeCount++;
+            }
+            int program=mat.getShader().getProgramHandle();
+            if (program!=lastProgram){
+                mat.bindProgram(gl);
+                lastProgram=program;
+                this.programChangeCount++;
+            }
+            mat.bindUniforms(gl);
+            long texture=mat.getTextureKey(); // バインドを省略するかどうかは畳み込まない識別値で判定します
+            if (texture==UNKNOWN || texture!=lastTexture){
+                mat.bindTextures(gl);
+                lastTexture=mat.getTextureKey();
+                this.textureChangeCount++;
+            }
+            if (indirect){
+                multiDraw.draw(gl, slot);
+                mat.setInstanced(false);
+                this.instancedCount+=run;
+                i+=run-1;
+            }else if (1<run){
+                vao.drawInstanced(gl, vp.getEngine().getInstanceBuffer());
+                mat.setInstanced(false);
+                this.instancedCount+=run;
+                i+=run-1;
+            }else{
+                vao.draw(gl);
+            }
+            this.drawCallCount++;
+        }
+        if (prePass){
+            this.applyDepthTest(gl, cache, false);
+        }
+        if (lastProgram!=UNKNOWN){
+            cache.useProgram(gl, 0);
+        }
+        if (lastBlend!=null && lastBlend!=BlendType.NOT){
+            cache.setBlend(gl, false);
+        }
+    }
+
+    /** 深度プリパスの対象になる要素の深度だけを描画します<br>
+     * 陰影付けと同じ範囲でインスタンス描画や間接描画にまとめ，同じ行列のバッファから描画するため，深度は陰影付けの時と一致します．
+     * 間接描画は陰影付けと同じ視界判定済みのコマンドバッファを使います．
+     * 返り値は深度を描画したかどうかです */
+    private boolean drawDepthPrePass(GL3 gl, GLStateCache cache){
+        DepthMaterial depthMat=null;
+        for (int i=0;i<this.size;i++){
+            if ((this.keys[i]>>>PASS_SHIFT)!=0){
+                break; // ここからは半透明パスです
+            }
+            int index=this.order[i];
+            RenderItem item=this.items[index];
+            VertexPackage vp=this.packages[index];
+            if (vp==null || !this.isPrePassed(vp, item)){
+                continue;
+            }
+            VertexArrayObject vao=vp.getVao();
+            if (!vao.isUploaded()){
+                vao.init(gl, vp.getEngine());
+            }
+            if (depthMat==null){
+                depthMat=vp.getEngine().getDepthPrePassMaterial();
+                if (!depthMat.isUploaded()){
+                    depthMat.init(gl, vp.getEngine());
+                }
+                this.applyDepthTest(gl, cache, false);
+                cache.setBlend(gl, false);
+                gl.glColorMask(false, false, false, false); // 色は書き込みません
+                depthMat.bindProgram(gl);
+                this.programChangeCount++;
+            }
+
+            MultiDrawIndirect multiDraw=this.getMultiDraw(vp);
+            int run=this.countRun(i, vp, item, multiDraw);
+            boolean indirect=this.isIndirect(multiDraw, run, vp, item);
+            if (indirect || 1<run){
+                int slot=-1;
+                if (indirect){
+                    slot=this.findRun(i, run);
+                    if (slot<0){
+                        slot=this.addIndirectRun(gl, i, run, multiDraw);
+                        depthMat.bindProgram(gl); // 視界判定のコンピュートシェーダーから戻します
+                        this.programChangeCount++;
+                    }
+                }else{
+                    this.fillInstances(gl, i, run, vp);
+                }
+                depthMat.setInstanced(true);
+                depthMat.bindUniforms(gl);
+                if (indirect){
+                    multiDraw.draw(gl, slot);
+                }else{
+                    vao.drawInstanced(gl, vp.getEngine().getInstanceBuffer());
+                }
+                depthMat.setInstanced(false);
+                i+=run-1;
+            }else{
+                depthMat.setMvpMatrix(item.getMvpMatrix());
+                depthMat.bindUniforms(gl);
+                vao.draw(gl);
+            }
+            this.drawCallCount++;
+        }
+        if (depthMat==null){
+            return false;
+        }
+        gl.glColorMask(true, true, true, true);
+        return true;
+    }
+
+    /** i番目から，まとめて描画する要素の数を数えます<br>
+     * 間接描画が使えれば同じマテリアルが続く範囲を，使えなければ同じVAOとマテリアルが続く範囲を探します */
+    private int countRun(int index, VertexPackage vp, RenderItem item, MultiDrawIndirect multiDraw){
+        return (multiDraw!=null) ? this.countInstances(index, vp, item, false) : this.countInstances(index, vp, item, true);
+    }
+
+    /** まとめて描画する範囲を間接描画で描画するかどうかを判定します<br>
+     * GPUで視界判定する場合，CPUで判定していない要素は1つでも間接描画で描画します */
+    private boolean isIndirect(MultiDrawIndirect multiDraw, int run, VertexPackage vp, RenderItem item){
+        return multiDraw!=null && (1<run || (multiDraw.isGpuCulling() && this.isBatchable(vp, item, false)));
+    }
+
+    /** 間接描画で描画する範囲を陰影付けと同じ区切り方で集め，まとめてVRAMに転送します<br>
+     * 転送とGPUによる視界判定は範囲ごとに1回だけ行われ，深度プリパスと陰影付けはここで準備したコマンドバッファを共有します．
+     * 視界判定でシェーダープログラムが切り替わるため，プログラムを設定する前に呼び出してください */
+    private void prepareIndirectRuns(GL3 gl){
+        this.runCount=0;
+        this.preparedMultiDraw=null;
+        for (int i=0;i<this.size;i++){
+            int index=this.order[i];
+            RenderItem item=this.items[index];
+            VertexPackage vp=this.packages[index];
+            if (vp==null){
+                continue;
+            }
+            MultiDrawIndirect multiDraw=this.getMultiDraw(vp);
+            int run=this.countRun(i, vp, item, multiDraw);
+            if (this.isIndirect(multiDraw, run, vp, item)){
+                this.fillIndirectRun(gl, i, run, multiDraw);
+            }
+            i+=run-1;
+        }
+        if (this.preparedMultiDraw!=null){
+            this.preparedMultiDraw.prepare(gl);
+        }
+    }
+
+    /** start番目から始まる準備済みの間接描画の範囲を探します<br>
+     * 見つかればバックエンドでの描画単位の番号を，見つからなければ-1を返します */
+    private int findRun(int start, int run){
+        int k=Arrays.binarySearch(this.runStarts, 0, this.runCount, start);
+        return (0<=k && this.runLengths[k]==run) ? this.runSlots[k] : -1;
+    }
+
+    /** 準備されていない範囲を間接描画のバックエンドに追加して転送します<br>
+     * 返り値はバックエンドでの描画単位の番号です．視界判定でシェーダープログラムが切り替わっている場合があります */
+    private int addIndirectRun(GL3 gl, int start, int run, MultiDrawIndirect multiDraw){
+        int slot=this.fillIndirectRun(gl, start, run, multiDraw);
+        multiDraw.prepare(gl);
+        return slot;
+    }
+
+    /** まとめて描画する範囲の行列と形状を間接描画のバックエンドに詰め，範囲を登録します<br>
+     * 返り値はバックエンドでの描画単位の番号です */
+    private int fillIndirectRun(GL3 gl, int start, int run, MultiDrawIndirect multiDraw){
+        if (this.preparedMultiDraw!=multiDraw){
+            multiDraw.begin();
+            this.preparedMultiDraw=multiDraw;
+        }
+        int slot=multiDraw.beginRun();
+        for (int j=start;j<start+run;j++){
+            VertexPackage instanceVp=this.packages[this.order[j]];
+            RenderItem instance=this.items[this.order[j]];
+            VertexArrayObject instanceVao=instanceVp.getVao();
+            if (!instanceVao.isUploaded()){ // 未初期化のVAOはMeshArenaの詰め直しで削除済みと判定されるため，ここで初期化します
+                instanceVao.init(gl, instanceVp.getEngine());
+            }
+            multiDraw.add(instanceVao, instance.getMvMatrix(), instance.getRotationMatrix(), instanceVp.getBoundingBox());
+        }
+
+        // 開始位置の昇順に登録します(後から追加される範囲は探索の対象にしません)
+        if (this.runCount==0 || this.runStarts[this.runCount-1]<start){
+            if (this.runStarts.length<=this.runCount){
+                this.runStarts=Arrays.copyOf(this.runStarts, this.runCount*2);
+                this.runLengths=Arrays.copyOf(this.runLengths, this.runCount*2);
+                this.runSlots=Arrays.copyOf(this.runSlots, this.runCount*2);
+            }
+            this.runStarts[this.runCount]=start;
+            this.runLengths[this.runCount]=run;
+            this.runSlots[this.runCount]=slot;
+            this.runCount++;
+        }
+        return slot;
+    }
+
+    /** まとめて描画する範囲の行列をインスタンスバッファに詰めて転送します */
+    private void fillInstances(GL3 gl, int start, int run, VertexPackage vp){
+        InstanceBuffer instances=vp.getEngine().getInstanceBuffer();
+        instances.clear();
+        for (int j=start;j<start+run;j++){
+            RenderItem instance=this.items[this.order[j]];
+            instances.add(instance.getMvMatrix(), instance.getRotationMatrix());
+        }
+        instances.upload(gl);
+    }
+
+    /** 頂点パッケージが深度プリパスの対象かどうかを判定します<br>
+     * 深度が一致するように，組み込みシェーダーを使う不透明な要素だけが対象です */
+    private boolean isPrePassed(VertexPackage vp, RenderItem item){
+        return item.getTransparent()==BlendType.NOT && vp.getEngine()!=null && vp.getMaterial().isInstancingSupported();
+    }
+
+    /** 深度テストを設定します<br>
+     * 深度プリパスで深度を描画済みの要素は，深度が一致する画素だけを書き込みを行わずに描画します */
+    private void applyDepthTest(GL3 gl, GLStateCache cache, boolean prePassed){
+        cache.depthFunc(gl, prePassed ? GL3.GL_EQUAL : GL3.GL_LESS);
+        cache.depthMask(gl, !prePassed);
+    }
+
+    /** 間接描画のバックエンドを取得します<br>
+     * インスタンス描画を使わない設定の場合や，コンテキストが対応していない場合はnullを返します */
+    private MultiDrawIndirect getMultiDraw(VertexPackage vp){
+        if (!this.useInstancing || vp.getEngine()==null){
+            return null;
+        }
+        return vp.getEngine().getMultiDrawIndirect();
+    }
+
+    /** index番目から，まとめて描画できる要素の数を数えます<br>
+     * 不透明パスで，組み込みシェーダーを使い，ライティングの設定が同じ要素だけをまとめます．
+     * sameVaoがtrueの場合はVAOも同じ要素だけを，falseの場合は一部の部品が非表示のVAOを除いてまとめます */
+    private int countInstances(int index, VertexPackage vp, RenderItem item, boolean sameVao){
+        if (!this.isBatchable(vp, item, sameVao)){
+            return 1;
+        }
+        BasicMaterial mat=vp.getMaterial();
+        VertexArrayObject vao=vp.getVao();
+        boolean useLight=item.isUseLight();
+        int end=index+1;
+        while (end<this.size){
+            int next=this.order[end];
+            VertexPackage nextVp=this.packages[next];
+            if (nextVp==null || nextVp.getMaterial()!=mat){
+                break;
+            }
+            if (sameVao ? nextVp.getVao()!=vao : isPartiallyHidden(nextVp.getVao())){
+                break;
+            }
+            RenderItem nextItem=this.items[next];
+            if (nextItem.getTransparent()!=BlendType.NOT || nextItem.isUseLight()!=useLight){
+                break;
+            }
+            end++;
+        }
+        return end-index;
+    }
+
+    /** 頂点パッケージをインスタンス描画や間接描画でまとめられるかどうかを判定します<br>
+     * 不透明パスで，組み込みシェーダーを使う要素だけがまとめられます．
+     * sameVaoがfalseの場合(間接描画)は，一部の部品が非表示のVAOもまとめられません */
+    private boolean isBatchable(VertexPackage vp, RenderItem item, boolean sameVao){
+        if (!this.useInstancing || item.getTransparent()!=BlendType.NOT || vp.getEngine()==null){
+            return false;
+        }
+        if (!vp.getMaterial().isInstancingSupported()){
+            return false;
+        }
+        return sameVao || !isPartiallyHidden(vp.getVao());
+    }
+
+    /** 頂点パッケージの視界判定をGPUに任せるかどうかを判定します<br>
+     * 間接描画とGPUによる視界判定が有効で，間接描画で描画される要素であればtrueを返します．
+     * この場合，描画キューへの登録時にCPUで視界判定を行う必要はありません */
+    public boolean isGpuCulled(VertexPackage vp, RenderItem item){
+        MultiDrawIndirect multiDraw=this.getMultiDraw(vp);
+        return multiDraw!=null && multiDraw.isGpuCulling() && this.isBatchable(vp, item, false);
+    }
+
+    /** 一部の部品が非表示になっている結合済みのVAOかどうかを判定します<br>
+     * 間接描画ではVAO全体を描画するため，このようなVAOはまとめられません */
+    private static boolean isPartiallyHidden(VertexArrayObject vao){
+        return (vao instanceof BatchedVertexArrayObject) && ((BatchedVertexArrayObject)vao).hasHiddenParts();
+    }
+
+    /** 合成方法を設定します */
+    private void applyBlend(GL3 gl, GLStateCache cache, BlendType blend){
+        if (blend==BlendType.NOT){
+            cache.setBlend(gl, false);
+            return;
+        }
+        cache.setBlend(gl, true);
+        if (blend==BlendType.BLEND){
+            cache.blendFunc(gl, GL3.GL_SRC_ALPHA, GL3.GL_ONE_MINUS_SRC_ALPHA);
+        }else if (blend==BlendType.ADDING){
+            cache.blendFunc(gl, GL3.GL_SRC_ALPHA, GL3.GL_ONE);
+        }
+    }
+}
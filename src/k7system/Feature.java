@@ -4,4 +4,5 @@
 public enum Feature {
     SHADER,
     VERTEX_BUFFER_OBJECT,
+    MULTI_DRAW_INDIRECT,
 }
@@ -0,0 +1,118 @@
+package k7system;
+
+/** 視錐台を6枚の平面で表すクラスです<br>
+ * 平面はプロジェクション×ビュー行列から直接取り出すため，フレームごとに1回setMatrix()を呼ぶだけで済みます．
+ * 判定は平面ごとの内積だけで行い，配列の確保は行いません．<br>
+ * 平面の係数は{a,b,c,d}の順に6枚分連続して格納されており，ax+by+cz+d&gt;=0が内側です． */
+public class Frustum {
+    public static final int OUTSIDE=0; // 完全に外側
+    public static final int INTERSECT=1; // 境界をまたいでいる
+    public static final int INSIDE=2; // 完全に内側
+
+    private static final int NUM_OF_PLANES=6;
+
+    private float[] planes=new float[NUM_OF_PLANES*4]; // 左，右，下，上，手前，奥の順です
+
+    /** プロジェクション×ビュー行列から平面を取り出します<br>
+     * MVP行列を渡した場合，平面はモデル座標系で表されます */
+    public void setMatrix(float[] mat){
+        extractPlanes(mat, this.planes);
+        for (int i=0;i<NUM_OF_PLANES;i++){
+            int p=i*4;
+            float length=(float)Math.sqrt(this.planes[p]*this.planes[p]+this.planes[p+1]*this.planes[p+1]+this.planes[p+2]*this.planes[p+2]);
+            if (0<length){
+                this.planes[p]/=length;
+                this.planes[p+1]/=length;
+                this.planes[p+2]/=length;
+                this.planes[p+3]/=length;
+            }
+        }
+    }
+
+    /** 平面の係数を格納した配列を取得します<br>
+     * 内容を変更しないでください */
+    public float[] getPlanes(){
+        return this.planes;
+    }
+
+    /** 球と視錐台の位置関係を判定します<br>
+     * 引数は{centerX, centerY, centerZ, radius}です */
+    public int testSphere(float[] sphere){
+        int result=INSIDE;
+        float[] pl=this.planes;
+        for (int p=0;p<NUM_OF_PLANES*4;p+=4){
+            float dist=pl[p]*sphere[0]+pl[p+1]*sphere[1]+pl[p+2]*sphere[2]+pl[p+3];
+            if (dist<-sphere[3]){
+                return OUTSIDE;
+            }
+            if (dist<sphere[3]){
+                result=INTERSECT;
+            }
+        }
+        return result;
+    }
+
+    /** AABBと視錐台の位置関係を判定します<br>
+     * 引数は{minX, minY, minZ, maxX, maxY, maxZ}です */
+    public int testBound(float[] aabb){
+        return testBound(this.planes, aabb[0], aabb[1], aabb[2], aabb[3], aabb[4], aabb[5]);
+    }
+
+    /** モデル座標系のAABBがMVP行列で表される視錐台に掛かっているかを判定します<br>
+     * 平面は正規化せずに使うため，符号だけを見る判定にしか使えません．配列の確保は行いません */
+    public static boolean isBoundInSight(float[] mvp, float[] min, float[] max){
+        float cx=(min[0]+max[0])*0.5f;
+        float cy=(min[1]+max[1])*0.5f;
+        float cz=(min[2]+max[2])*0.5f;
+        float ex=(max[0]-min[0])*0.5f;
+        float ey=(max[1]-min[1])*0.5f;
+        float ez=(max[2]-min[2])*0.5f;
+        for (int i=0;i<NUM_OF_PLANES;i++){
+            int row=i>>1;
+            float sign=((i&0x1)==0) ? 1 : -1;
+            float a=mvp[3]+sign*mvp[row];
+            float b=mvp[7]+sign*mvp[4+row];
+            float c=mvp[11]+sign*mvp[8+row];
+            float d=mvp[15]+sign*mvp[12+row];
+            if (a*cx+b*cy+c*cz+d+Math.abs(a)*ex+Math.abs(b)*ey+Math.abs(c)*ez<0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** 平面とAABBの位置関係を判定します */
+    private static int testBound(float[] pl, float minX, float minY, float minZ, float maxX, float maxY, float maxZ){
+        float cx=(minX+maxX)*0.5f;
+        float cy=(minY+maxY)*0.5f;
+        float cz=(minZ+maxZ)*0.5f;
+        float ex=(maxX-minX)*0.5f;
+        float ey=(maxY-minY)*0.5f;
+        float ez=(maxZ-minZ)*0.5f;
+        int result=INSIDE;
+        for (int p=0;p<NUM_OF_PLANES*4;p+=4){
+            float dist=pl[p]*cx+pl[p+1]*cy+pl[p+2]*cz+pl[p+3];
+            float radius=Math.abs(pl[p])*ex+Math.abs(pl[p+1])*ey+Math.abs(pl[p+2])*ez;
+            if (dist+radius<0){
+                return OUTSIDE;
+            }
+            if (dist-radius<0){
+                result=INTERSECT;
+            }
+        }
+        return result;
+    }
+
+    /** 行列から6枚の平面を取り出します<br>
+     * 行列は列優先で，クリップ座標で-w&lt;=x,y,z&lt;=wとなる範囲を内側とします */
+    private static void extractPlanes(float[] m, float[] planes){
+        for (int i=0;i<NUM_OF_PLANES;i++){
+            int row=i>>1;
+            float sign=((i&0x1)==0) ? 1 : -1;
+            planes[i*4]=m[3]+sign*m[row];
+            planes[i*4+1]=m[7]+sign*m[4+row];
+            planes[i*4+2]=m[11]+sign*m[8+row];
+            planes[i*4+3]=m[15]+sign*m[12+row];
+        }
+    }
+}
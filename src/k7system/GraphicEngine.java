@@ -14,7 +14,13 @@ import java.util.logging.Logger;
 import javax.swing.JFrame;
 
 import k7system.gpuobjects.BasicMaterial;
+import k7system.gpuobjects.DepthMaterial;
+import k7system.gpuobjects.FrameUniformBuffer;
+import k7system.gpuobjects.GLStateCache;
 import k7system.gpuobjects.GPUResource;
+import k7system.gpuobjects.InstanceBuffer;
+import k7system.gpuobjects.VertexArrayObject;
+import k7system.gpuobjects.VertexPackage;
 
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
@@ -57,11 +63,39 @@ public class GraphicEngine implements GLEventListener{
     private float[] bgColor=new float[]{0,0,0,0};// 背景色です
     private boolean isChangeBg=true;
 
-    // 透明物体オブジェクト
-    private List<Object3D> transModels=new ArrayList<Object3D>();
+    // 描画対象の収集結果
+    private RenderList renderList=new RenderList();
+    private boolean frustumCulling=true; // 収集時に視錐台カリングを行うかどうか
+
+    // シーングラフの構成変更要求
+    private SceneMutationQueue mutationQueue=new SceneMutationQueue();
+
+    // ゲームスレッドとの受け渡し用の三重バッファ(利用しない場合はnull)
+    private volatile RenderListBuffer renderBuffer=null;
+
+    // 空間インデックス(利用しない場合はnull)
+    private LooseOctree spatialIndex=null;
+
+    // 変換行列アリーナ(利用しない場合はnull)
+    private TransformArena transformArena=null;
+
+    // 並列更新用(利用しない場合はnull)
+    private TransformUpdater transformUpdater=null;
+
+    // GPUによる物体選択
+    private IdPicker idPicker;
+    private GLStateCache stateCache=new GLStateCache(); // 冗長なGL呼び出しを省略するための状態キャッシュ
+    private FrameUniformBuffer frameData=new FrameUniformBuffer(); // 全マテリアルで共有するフレーム単位のユニフォーム
+    private InstanceBuffer instanceBuffer=new InstanceBuffer(); // インスタンス描画の属性バッファ
+    private MultiDrawIndirect multiDraw=new MultiDrawIndirect(this); // 間接描画のバックエンド
+    private boolean useMultiDraw=true; // 対応している場合に間接描画を利用するかどうか
+    private OcclusionCuller occlusionCuller; // 奥行きピラミッドによる遮蔽カリング
+    private DepthMaterial prePassMaterial=new DepthMaterial(); // 深度プリパスで利用するマテリアル
+    private boolean depthPrePass=false; // 深度プリパスを行うかどうか
 
     // エンジンが管理しているオブジェクト一覧
-    private List<Object3D> managedModels=new ArrayList<Object3D>();
+    private List<Model3D> managedModels=new ArrayList<Model3D>();
+    private long vramGeneration=0; // VRAMが初期化されるたびに増えます
 
     // 親がいなくなって参照されなくなったリソース一覧
     private Set<GPUResource> garbage=new HashSet<GPUResource>();
@@ -80,6 +114,10 @@ public class GraphicEngine implements GLEventListener{
         gla.addGLEventListener(this);
 
         this.camera=new CameraObject(this);
+        this.idPicker=new IdPicker(this);
+        this.occlusionCuller=new OcclusionCuller(this);
+        this.prePassMaterial.addParent(this); // 使いまわすので抹消されないようにする
+        this.prePassMaterial.setName("Depth Pre-pass");
 
         this.rootNode.setEngine(this);
         this.rootNode.setVisible(true);
@@ -246,19 +284,21 @@ public class GraphicEngine implements GLEventListener{
         rootNode.detach(model);
     }
 
-    /** すべてのノードを削除します */
+    /** すべてのノードを削除します<br>
+     * 切り離しは構成変更キューに登録され，次のフレームの収集前にまとめて反映されます */
     public void removeAllNodes(){
-        List<Node3D> removed=rootNode.getChildObjects();
-        for (Node3D node:removed){
-            this.rootNode.detach(node);
+        List<Node3D> removed=new ArrayList<Node3D>(this.rootNode.getChildObjects());
+        for (int i=0;i<removed.size();i++){
+            this.mutationQueue.detach(removed.get(i));
         }
     }
 
     /** すべてのノードを破棄します。<br>
-     *  モデルは破壊され、再利用もできなくなります。 */
+     *  モデルは破壊され、再利用もできなくなります。破棄は構成変更キューに登録され，次のフレームの収集前にまとめて反映されます */
     public void destroyAllNodes(){
-        for(Node3D model:rootNode.getChildObjects()){
-            model.setDestroyFlag(true);
+        List<Node3D> destroyed=new ArrayList<Node3D>(this.rootNode.getChildObjects());
+        for (int i=0;i<destroyed.size();i++){
+            this.mutationQueue.destroy(destroyed.get(i));
         }
     }
 
@@ -272,12 +312,6 @@ public class GraphicEngine implements GLEventListener{
         }
     }
 
-    /** 後で描画するために半透明モデルを追加します<br>
-     * ここでセットされた値は恒久的なものではなく，描画のたびにリフレッシュされます． */
-    protected void addTransModel(Object3D model){
-        this.transModels.add(model);
-    }
-
     /** ライティング使用設定を確認します
      * ライティングを行わない場合，マテリアルの色が100%表示されます． */
     public boolean useLighting(){
@@ -308,6 +342,389 @@ public class GraphicEngine implements GLEventListener{
         lightList.remove(light); // ライトを削除
     }
 
+    /** 変換行列アリーナを利用するかどうかを設定します<br>
+     * 利用する場合，全ノードの変換行列が連続した配列にまとめられ，ワールド同次行列の更新が1回の線形走査になります．
+     * ノード数が非常に多いシーン向けです */
+    public void setUseTransformArena(boolean flag){
+        if (flag && this.transformArena==null){
+            this.transformArena=new TransformArena(this.rootNode);
+        }else if (!flag && this.transformArena!=null){
+            this.transformArena.releaseAll();
+            this.transformArena=null;
+        }
+    }
+
+    /** 変換行列アリーナを取得します<br>
+     * 利用していない場合はnullが返ります */
+    public TransformArena getTransformArena(){
+        return this.transformArena;
+    }
+
+    /** 空間インデックス(ルーズ八分木)を利用するかどうかを設定します<br>
+     * 利用する場合，描画対象の収集はシーングラフの走査ではなく八分木の視錐台検索で行われます．
+     * 広い範囲に大量の物体が散らばっているシーン向けです．範囲は中心と一辺の半分の長さで指定し，範囲外の物体も扱えます */
+    public void setUseSpatialIndex(boolean flag, float centerX, float centerY, float centerZ, float halfSize){
+        if (flag){
+            LooseOctree index=new LooseOctree(centerX, centerY, centerZ, halfSize);
+            index.rebuild(this.rootNode);
+            this.spatialIndex=index;
+        }else{
+            this.spatialIndex=null;
+        }
+    }
+
+    /** 空間インデックス(ルーズ八分木)を利用するかどうかを設定します<br>
+     * 範囲は原点を中心とした一辺2048の立方体になります */
+    public void setUseSpatialIndex(boolean flag){
+        this.setUseSpatialIndex(flag, 0, 0, 0, 1024);
+    }
+
+    /** 空間インデックスを取得します<br>
+     * 利用していない場合はnullが返ります */
+    public LooseOctree getSpatialIndex(){
+        return this.spatialIndex;
+    }
+
+    /** AABBと交差する物体を検索します<br>
+     * 引数は{minX, minY, minZ, maxX, maxY, maxZ}です．空間インデックスを利用していない場合は，部分木の境界を使ってシーングラフをたどります．
+     * 境界の分からない物体は含まれません．シーンを更新するスレッドから呼び出してください */
+    public List<Object3D> queryBox(float[] aabb){
+        List<Object3D> result=new ArrayList<Object3D>();
+        if (this.spatialIndex!=null){
+            this.spatialIndex.queryBox(aabb, result);
+        }else{
+            this.queryBox(this.rootNode, aabb, result);
+        }
+        return result;
+    }
+
+    /** 球と交差する物体を検索します<br>
+     * 空間インデックスを利用していない場合は，部分木の境界を使ってシーングラフをたどります．
+     * 境界の分からない物体は含まれません．シーンを更新するスレッドから呼び出してください */
+    public List<Object3D> querySphere(float x, float y, float z, float radius){
+        List<Object3D> result=new ArrayList<Object3D>();
+        if (this.spatialIndex!=null){
+            this.spatialIndex.querySphere(x, y, z, radius, result);
+        }else{
+            this.querySphere(this.rootNode, x, y, z, radius, result);
+        }
+        return result;
+    }
+
+    /** 視錐台と交差する可能性のある物体を検索します<br>
+     * 結果は第2引数のリストに追加されます．空間インデックスを利用していない場合は，部分木の境界を使ってシーングラフをたどります．
+     * 境界の分からない物体は常に含まれます．シーンを更新するスレッドから呼び出してください */
+    public List<Object3D> queryFrustum(Frustum frustum, List<Object3D> result){
+        if (this.spatialIndex!=null){
+            this.spatialIndex.queryFrustum(frustum, result);
+        }else{
+            this.queryFrustum(this.rootNode, frustum, result);
+        }
+        return result;
+    }
+
+    /** レイと交差する最も近いモデルの三角形を求めます<br>
+     * 空間インデックス(利用していない場合は部分木の境界)で候補のモデルを絞り込み，
+     * 候補ごとにレイをモデル座標系へ変換して頂点配列オブジェクトのBVHで判定します．判定にはLoD0の頂点パッケージを使います．<br>
+     * 方向ベクトルは正規化されていなくても構いません．交差しなければnullを返します．シーンを更新するスレッドから呼び出してください */
+    public RayHit raycast(float[] origin, float[] direction, float maxDistance){
+        float len=(float)Math.sqrt(direction[0]*direction[0]+direction[1]*direction[1]+direction[2]*direction[2]);
+        if (len==0){
+            return null;
+        }
+        float ox=origin[0], oy=origin[1], oz=origin[2];
+        float dx=direction[0]/len, dy=direction[1]/len, dz=direction[2]/len;
+        float ix=1/dx, iy=1/dy, iz=1/dz;
+
+        List<Object3D> candidates=new ArrayList<Object3D>();
+        if (this.spatialIndex!=null){
+            this.spatialIndex.queryRay(ox, oy, oz, dx, dy, dz, maxDistance, candidates);
+        }else{
+            this.queryRay(this.rootNode, ox, oy, oz, ix, iy, iz, maxDistance, candidates);
+        }
+
+        RayHit result=null;
+        float best=maxDistance;
+        float[] work=new float[3];
+        for (Object3D obj:candidates){
+            if (!(obj instanceof Model3D) || obj.isDestroyFlag()){
+                continue;
+            }
+            float[] own=obj.getOwnBound();
+            if (own!=null && LooseOctree.rayDistance(own, ox, oy, oz, ix, iy, iz, best)<0){
+                continue; // より近い交点が見つかっている
+            }
+            Model3D model=(Model3D)obj;
+            float[] inv=VectorManager.getInverse4(model.getWorldMatrix());
+            if (inv==null){
+                continue;
+            }
+            // 方向ベクトルは正規化せずに変換するので，モデル座標系でのtはワールド座標系の距離と一致する
+            float lox=inv[0]*ox+inv[4]*oy+inv[8]*oz+inv[12];
+            float loy=inv[1]*ox+inv[5]*oy+inv[9]*oz+inv[13];
+            float loz=inv[2]*ox+inv[6]*oy+inv[10]*oz+inv[14];
+            float ldx=inv[0]*dx+inv[4]*dy+inv[8]*dz;
+            float ldy=inv[1]*dx+inv[5]*dy+inv[9]*dz;
+            float ldz=inv[2]*dx+inv[6]*dy+inv[10]*dz;
+            for (VertexPackage pack:model.getVertexPackages()){
+                VertexArrayObject vao=pack.getVao();
+                if (vao==null || vao.getVertices()==null){
+                    continue;
+                }
+                int triangle=vao.getBvh().intersect(lox, loy, loz, ldx, ldy, ldz, best, work);
+                if (0<=triangle){
+                    best=work[0];
+                    float[] point=new float[]{ox+dx*best, oy+dy*best, oz+dz*best};
+                    result=new RayHit(model, pack, triangle, best, point, work[1], work[2]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** 画面上の位置にあるモデルの三角形を求めます<br>
+     * 座標は描画領域の左上を原点としたピクセル単位です．直前のフレームのカメラ行列を使い，近クリップ面から遠クリップ面までのレイで判定します．
+     * 何も無ければnullを返します */
+    public RayHit pick(int screenX, int screenY){
+        float[] inv=VectorManager.getInverse4(this.camera.getPVMatrix());
+        if (inv==null){
+            return null;
+        }
+        float x=2.0f*screenX/this.screenWidth-1;
+        float y=1-2.0f*screenY/this.screenHeight;
+        float[] near=VectorManager.multMatrixVec4(inv, new float[]{x, y, -1, 1});
+        float[] far=VectorManager.multMatrixVec4(inv, new float[]{x, y, 1, 1});
+        for (int i=0;i<3;i++){
+            near[i]/=near[3];
+            far[i]/=far[3];
+        }
+        float[] direction=new float[]{far[0]-near[0], far[1]-near[1], far[2]-near[2]};
+        float length=(float)Math.sqrt(direction[0]*direction[0]+direction[1]*direction[1]+direction[2]*direction[2]);
+        return this.raycast(near, direction, length);
+    }
+
+    /** GPUによる物体選択の機能を取得します<br>
+     * 描画スレッドでIDバッファを描画して非同期に読み戻すため，シーンの規模によらず一定のコストで画面上の物体を選択できます．
+     * CPUでのレイ判定(pick())と違い，結果は1～2フレーム遅れて届きます */
+    public IdPicker getIdPicker(){
+        return this.idPicker;
+    }
+
+    /** 奥行きピラミッドによる遮蔽カリングの機能を取得します<br>
+     * 初期状態では無効です．有効にすると，カメラの深度バッファから作った奥行きピラミッドで，遮蔽物の陰に隠れた頂点パッケージを描画しなくなります */
+    public OcclusionCuller getOcclusionCuller(){
+        return this.occlusionCuller;
+    }
+
+    /** 深度プリパスを行うかどうかを取得します */
+    public boolean isDepthPrePass(){
+        return this.depthPrePass;
+    }
+
+    /** 深度プリパスを行うかどうかを設定します<br>
+     * 有効にすると，不透明な物体の深度だけを先に描画し，陰影付けは最も手前の面の画素に対してだけ行います．
+     * 重なりが多く，光源の多いシーンで断片シェーダーの負荷が下がります．頂点の処理と描画命令は2倍になります．<br>
+     * 描画中でも切り替えられ，次のフレームから反映されます */
+    public void setDepthPrePass(boolean depthPrePass){
+        this.depthPrePass=depthPrePass;
+    }
+
+    /** 深度プリパスで利用するマテリアルを取得します */
+    DepthMaterial getDepthPrePassMaterial(){
+        return this.prePassMaterial;
+    }
+
+    /** 描画に利用するGL状態キャッシュを取得します<br>
+     * コールバックの外で直接GLの状態を変更した場合は，invalidate()を呼び出してください */
+    public GLStateCache getStateCache(){
+        return this.stateCache;
+    }
+
+    /** フレーム単位で共有するユニフォームバッファを取得します<br>
+     * ビュー行列，プロジェクション行列，PV行列と光源の情報が，描画のたびに1回だけ転送されます */
+    public FrameUniformBuffer getFrameUniformBuffer(){
+        return this.frameData;
+    }
+
+    /** インスタンス描画で利用する属性バッファを取得します */
+    public InstanceBuffer getInstanceBuffer(){
+        return this.instanceBuffer;
+    }
+
+    /** シーングラフをたどってレイと交差する物体を検索します */
+    private void queryRay(Node3D node, float ox, float oy, float oz, float ix, float iy, float iz, float maxDistance, List<Object3D> result){
+        if (node.isCullable() && LooseOctree.rayDistance(node.getSubtreeBound(), ox, oy, oz, ix, iy, iz, maxDistance)<0){
+            return;
+        }
+        float[] own=node.getOwnBound();
+        if (own!=null && node instanceof Object3D && 0<=LooseOctree.rayDistance(own, ox, oy, oz, ix, iy, iz, maxDistance)){
+            result.add((Object3D)node);
+        }
+        for (Node3D child:node.getChildObjects()){
+            this.queryRay(child, ox, oy, oz, ix, iy, iz, maxDistance, result);
+        }
+    }
+
+    /** シーングラフをたどってAABBと交差する物体を検索します */
+    private void queryBox(Node3D node, float[] aabb, List<Object3D> result){
+        if (node.isCullable() && !LooseOctree.intersectsBox(node.getSubtreeBound(), aabb)){
+            return;
+        }
+        float[] own=node.getOwnBound();
+        if (own!=null && node instanceof Object3D && LooseOctree.intersectsBox(own, aabb)){
+            result.add((Object3D)node);
+        }
+        for (Node3D child:node.getChildObjects()){
+            this.queryBox(child, aabb, result);
+        }
+    }
+
+    /** シーングラフをたどって視錐台と交差する物体を検索します */
+    private void queryFrustum(Node3D node, Frustum frustum, List<Object3D> result){
+        if (node.isCullable() && frustum.testBound(node.getSubtreeBound())==Frustum.OUTSIDE){
+            return;
+        }
+        if (node instanceof Object3D){
+            float[] own=node.getOwnBound();
+            if (own==null || frustum.testBound(own)!=Frustum.OUTSIDE){
+                result.add((Object3D)node);
+            }
+        }
+        List<Node3D> children=node.getChildObjects();
+        for (int i=0;i<children.size();i++){
+            this.queryFrustum(children.get(i), frustum, result);
+        }
+    }
+
+    /** シーングラフをたどって球と交差する物体を検索します */
+    private void querySphere(Node3D node, float x, float y, float z, float radius, List<Object3D> result){
+        if (node.isCullable() && radius*radius<LooseOctree.sphereDistance2(node.getSubtreeBound(), x, y, z)){
+            return;
+        }
+        float[] own=node.getOwnBound();
+        if (own!=null && node instanceof Object3D && LooseOctree.sphereDistance2(own, x, y, z)<=radius*radius){
+            result.add((Object3D)node);
+        }
+        for (Node3D child:node.getChildObjects()){
+            this.querySphere(child, x, y, z, radius, result);
+        }
+    }
+
+    /** ワールド同次行列の更新を並列に行うかどうかを設定します<br>
+     * 独立して動くノードが大量にあるシーン向けです．部分木のノード数の合計がthreshold未満の区間は分割されません．
+     * 変換行列アリーナを利用している場合はそちらが優先されます */
+    public void setUseParallelUpdate(boolean flag, int threshold){
+        if (flag){
+            if (this.transformUpdater==null){
+                this.transformUpdater=new TransformUpdater();
+            }
+            this.transformUpdater.setThreshold(threshold);
+        }else if (this.transformUpdater!=null){
+            this.transformUpdater.shutdown();
+            this.transformUpdater=null;
+        }
+    }
+
+    /** ワールド同次行列の更新を並列に行うかどうかを設定します<br>
+     * 閾値にはTransformUpdater.DEFAULT_THRESHOLDが利用されます */
+    public void setUseParallelUpdate(boolean flag){
+        this.setUseParallelUpdate(flag, TransformUpdater.DEFAULT_THRESHOLD);
+    }
+
+    /** 直近のフレームで描画されたレンダーリストを取得します<br>
+     * 内容は描画のたびに書き換えられます */
+    public RenderList getRenderList(){
+        return this.renderList;
+    }
+
+    /** 収集時に部分木単位の視錐台カリングを行うかどうかを設定します<br>
+     * 標準では有効です．カリングの結果はgetRenderList()のgetCulledCount()などで確認できます */
+    public void setFrustumCulling(boolean flag){
+        this.frustumCulling=flag;
+    }
+
+    /** 収集時に部分木単位の視錐台カリングを行うかどうかを取得します */
+    public boolean isFrustumCulling(){
+        return this.frustumCulling;
+    }
+
+    /** シーングラフの構成変更キューを取得します<br>
+     * 登録した変更は次のフレームの収集前にまとめて反映されます．スナップショット描画ではcommitFrame()を呼んだスレッドで反映されます */
+    public SceneMutationQueue getMutationQueue(){
+        return this.mutationQueue;
+    }
+
+    /** シーンのスナップショットを利用した描画を行うかどうかを設定します<br>
+     * 有効にすると，描画スレッドはシーングラフを走査せず，ゲームスレッドがcommitFrame()で公開した最新のレンダーリストだけを描画します．
+     * ゲームスレッドはシーンを更新した後，フレームごとにcommitFrame()を呼び出してください．<br>
+     * 描画とシーンの更新が並行して進んでも，描画されるのは常にどこかの時点で確定した行列です． */
+    public void setDoubleBuffered(boolean flag){
+        if (flag){
+            if (this.renderBuffer==null){
+                this.renderBuffer=new RenderListBuffer();
+            }
+        }else{
+            this.renderBuffer=null;
+        }
+    }
+
+    /** シーンのスナップショットを利用した描画を行っているかどうかを取得します */
+    public boolean isDoubleBuffered(){
+        return this.renderBuffer!=null;
+    }
+
+    /** 現在のシーンを収集して描画スレッドに公開します<br>
+     * ワールド同次行列の更新と描画対象の収集はこのメソッドを呼び出したスレッドで行われます．
+     * スナップショット描画が無効な場合は何もしません．<br>
+     * シーンを更新するスレッドと同じスレッドから呼び出してください． */
+    public void commitFrame(){
+        RenderListBuffer buffer=this.renderBuffer;
+        if (buffer==null){
+            return;
+        }
+        this.prepareRenderList(buffer.getBackList());
+        buffer.publish();
+    }
+
+    /** 構成変更を反映してワールド同次行列を更新し，シーングラフを走査してレンダーリストに描画対象を収集します */
+    private void prepareRenderList(RenderList list){
+        // 溜まっている構成変更をまとめて反映
+        this.mutationQueue.apply(list);
+
+        // 変換行列を計算
+        float[] pvMatrix=VectorManager.multMatrix4(this.getPerspectiveMatrix(), this.getViewMatrix());
+        this.camera.setPVMatrix(pvMatrix);
+
+        // ワールド同次行列と境界を描画とは別に更新(アリーナならまとめて，並列更新なら部分木ごとに)
+        if (this.transformArena!=null){
+            this.transformArena.update();
+        }else if (this.transformUpdater!=null){
+            this.transformUpdater.update(this.rootNode);
+        }else{
+            TransformUpdater.updateSubtree(this.rootNode);
+        }
+
+        // 描画対象を収集(破棄対象の登録は残る)
+        list.clear();
+        list.setCameraMatrices(this.getViewMatrix(), this.getPerspectiveMatrix(), pvMatrix);
+        list.setLights(this.lightList);
+        list.setFrustumCulling(this.frustumCulling);
+        LooseOctree index=this.spatialIndex;
+        if (index!=null){
+            // 境界の変わった物体を八分木に反映し，見つかった破棄対象を切り離す
+            index.applyPending();
+            for (Node3D node:index.getDestroyedNodes()){
+                node.removeFromParent();
+                list.addDestroyedNode(node);
+            }
+            index.clearDestroyedNodes();
+            list.collectFrom(index);
+        }else{
+            // シーングラフを走査
+            this.rootNode.collectRenderItems(list);
+        }
+    }
+
     /** ビュー変換行列を取得します<br>
      * この行列をワールド座標の左側に掛けるとカメラ座標系になります */
     public float[] getViewMatrix(){
@@ -354,6 +771,21 @@ public class GraphicEngine implements GLEventListener{
         return version;
     }
 
+    /** 間接描画のバックエンドを取得します<br>
+     * コンテキストがOpenGL 4.3未満の場合や，setMultiDrawIndirect(false)で無効にした場合はnullが返ります */
+    public MultiDrawIndirect getMultiDrawIndirect(){
+        if (!this.useMultiDraw || this.version==null || !this.version.isAvailable(Feature.MULTI_DRAW_INDIRECT)){
+            return null;
+        }
+        return this.multiDraw;
+    }
+
+    /** 間接描画(glMultiDrawElementsIndirect)を利用するかどうかを設定します<br>
+     * OpenGL 4.3未満のコンテキストでは設定に関わらず利用されません */
+    public void setMultiDrawIndirect(boolean useMultiDraw){
+        this.useMultiDraw=useMultiDraw;
+    }
+
     /** このエンジンが管理するモデル一覧を取得します<br>
      * 返り値のリストオブジェクト自体はクローンなので、変更してもかまいません．
      * ただし、リストの内容は本物を渡しているので、内容を変更した場合には本体に影響します． */
@@ -361,14 +793,35 @@ public class GraphicEngine implements GLEventListener{
         return new ArrayList<Object3D>(this.managedModels);
     }
 
-    /** このエンジンが管理するモデルを追加します */
+    /** このエンジンが管理するモデルを追加します<br>
+     * 既に登録されているモデルは無視されます．
+     * 外されている間にVRAMが初期化されていた場合は，モデルにVRAMの初期化を通知します */
     protected void addModel(Model3D model){
+        if (0<=model.engineIndex){
+            return;
+        }
+        if (0<=model.removedGeneration && model.removedGeneration!=this.vramGeneration){
+            model.vramFlushed();
+        }
+        model.removedGeneration=-1;
+        model.engineIndex=this.managedModels.size();
         this.managedModels.add(model);
     }
 
-    /** このエンジンが管理するモデルを削除します */
+    /** このエンジンが管理するモデルを削除します<br>
+     * 末尾のモデルを空いた位置に移すため，順序は保たれません */
     protected void removeModel(Model3D model){
-        this.managedModels.remove(model);
+        int index=model.engineIndex;
+        if (index<0 || this.managedModels.size()<=index || this.managedModels.get(index)!=model){
+            return;
+        }
+        Model3D last=this.managedModels.remove(this.managedModels.size()-1);
+        if (last!=model){
+            this.managedModels.set(index, last);
+            last.engineIndex=index;
+        }
+        model.engineIndex=-1;
+        model.removedGeneration=this.vramGeneration;
     }
 
     /** 描画領域の幅を取得します */
@@ -442,22 +895,44 @@ public class GraphicEngine implements GLEventListener{
             gl.glClearColor(bgColor[0],bgColor[1],bgColor[2],bgColor[3]); // 背景色
         }
 
+        // コールバックで状態が変更されている可能性があるため，記憶している状態を破棄
+        this.stateCache.invalidate();
+
         // 影の生成
         // まだTBD
 
         gl.glClear(GL.GL_COLOR_BUFFER_BIT|GL.GL_DEPTH_BUFFER_BIT); // 画面クリア
-        gl.glEnable(GL.GL_CULL_FACE);              // 裏返ったポリゴンを描画しません
+        this.stateCache.setCullFace(gl, true);              // 裏返ったポリゴンを描画しません
+
+        // 描画対象を取得(スナップショット描画ならゲームスレッドが公開した最新のもの)
+        RenderListBuffer buffer=this.renderBuffer;
+        RenderList list;
+        if (buffer!=null){
+            list=buffer.acquire();
+        }else{
+            list=this.renderList;
+            this.prepareRenderList(list);
+        }
+        this.renderList=list;
 
-        // 変換行列を計算
-        float[] pvMatrix=VectorManager.multMatrix4(this.getPerspectiveMatrix(), this.getViewMatrix());
-        this.camera.setPVMatrix(pvMatrix);
+        // 収集中に見つかった破棄対象ノードを処理
+        for (Node3D node:list.getDestroyedNodes()){
+            node.dispose(gl);
+        }
+        list.clearDestroyedNodes();
+
+        // 遮蔽カリングが有効なら，このフレームの深度から奥行きピラミッドを作成
+        this.occlusionCuller.render(gl, list);
+
+        // カメラと光源の情報をフレームごとに1回だけ転送
+        this.frameData.update(gl, list.getViewMatrix(), list.getProjectionMatrix(), list.getPVMatrix(), list.getLightParameters(), list.getLightCount());
 
-        // モデルオブジェクトを描画
-        this.rootNode.draw(gl);
+        // 収集した描画対象を描画(半透明オブジェクトは最後にZソートして描画)
+        list.getDrawQueue().setDepthPrePass(this.depthPrePass);
+        list.submit(gl, this.stateCache);
 
-        // 半透明オブジェクトを描画
-        this.drawModelsByZ(this.transModels, gl);
-        this.transModels.clear();
+        // 物体選択の要求があればIDバッファを描画し，完了した読み戻しを取り込む
+        this.idPicker.render(gl, list);
 
         // 描画後のコールバック
         if (this.callBack!=null) {
@@ -495,15 +970,25 @@ public class GraphicEngine implements GLEventListener{
         extensions=gl.glGetString(GL.GL_EXTENSIONS);
         System.out.println("info:extensions :"+extensions);
 
+        this.stateCache.invalidate(); // コンテキストが作り直された可能性があります
         gl.glEnable(GL.GL_DEPTH_TEST);     //Zバッファを有効にします
-        gl.glEnable(GL.GL_BLEND); // 半透明を有効にします
+        this.stateCache.setBlend(gl, true); // 半透明を有効にします
 
         gl.glClearColor(bgColor[0],bgColor[1],bgColor[2],bgColor[3]); // 背景色
 
         // 管理下のモデルにVRAMが破壊されていることを通知します
-        for (Object3D model:this.managedModels){
+        this.vramGeneration++;
+        for (Model3D model:this.managedModels){
             model.vramFlushed();
         }
+        this.idPicker.vramFlushed();
+        this.occlusionCuller.vramFlushed();
+        this.frameData.vramFlushed();
+        this.frameData.init(gl, this);
+        this.instanceBuffer.vramFlushed();
+        this.instanceBuffer.init(gl, this);
+        this.multiDraw.vramFlushed();
+        this.prePassMaterial.vramFlushed();
 
         // オブジェクトを初期化します
         this.rootNode.init(gl, this);
@@ -531,7 +1016,7 @@ public class GraphicEngine implements GLEventListener{
 
         GL3 gl=(GL3)glad.getGL();
 
-        gl.glViewport(0, 0, width, height);        // 描画領域を指定します
+        this.stateCache.viewport(gl, 0, 0, width, height);        // 描画領域を指定します
         this.screenWidth=width;
         this.screenHeight=height;
 
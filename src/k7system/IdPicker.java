@@ -0,0 +1,363 @@
+package k7system;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.List;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import k7system.gpuobjects.FrameBufferObject;
+import k7system.gpuobjects.GLStateCache;
+import k7system.gpuobjects.IdMaterial;
+import k7system.gpuobjects.IntegerTextureK7;
+import k7system.gpuobjects.VertexPackage;
+
+/** GPUでオブジェクトIDを描画して物体を選択するクラスです<br>
+ * 描画リストのn番目の物体をID n+1 として整数バッファに描画し，その結果をピクセルバッファオブジェクト(PBO)経由で非同期に読み戻します．
+ * 読み戻しはフェンスで完了を確認してから行うため，描画スレッドがGPUを待つことはありません．結果は1～2フレーム遅れて届きます．<br>
+ * カーソル位置の選択では，カーソルの周囲だけを拡大する射影行列で小さなFBOに描画するので，読み戻す量はシーンの規模によりません．
+ * 画面全体の選択は要求があったときだけ，画面と同じ大きさのFBOに描画します．<br>
+ * 要求と結果の取得はどのスレッドからでも行えます．現在はModel3Dだけが対象です */
+public class IdPicker {
+    public static final int DEFAULT_REGION_SIZE=8;
+    private static final int SLOTS=3; // 同時に読み戻し中にできる数
+
+    private GraphicEngine engine;
+    private IdMaterial material=new IdMaterial();
+    private int regionSize=DEFAULT_REGION_SIZE;
+    private FrameBufferObject regionFbo=null;
+    private FrameBufferObject fullFbo=null;
+    private Readback[] slots=new Readback[SLOTS];
+    private float[] pickMatrix=VectorManager.createIdentityMatrix(4);
+    private float[] mvpMatrix=new float[16];
+    private int[] clearIds=new int[4]; // 何も無いことを表すID 0
+
+    // 要求
+    private boolean pickRequested=false;
+    private int requestX;
+    private int requestY;
+    private volatile boolean fullRequested=false;
+
+    // 結果
+    private volatile Object3D pickedObject=null;
+    private volatile int pickCount=0;
+    private volatile FullResult fullResult=null;
+
+    /** コンストラクタでエンジンを指定します */
+    public IdPicker(GraphicEngine engine) {
+        this.engine=engine;
+        this.material.addParent(this); // 使いまわすので抹消されないようにする
+        this.material.setName("ID Picker");
+        for (int i=0;i<SLOTS;i++){
+            this.slots[i]=new Readback();
+        }
+    }
+
+    /** カーソル周囲の描画範囲(ピクセル)を取得します */
+    public int getRegionSize(){
+        return this.regionSize;
+    }
+
+    /** カーソル周囲の描画範囲(ピクセル)を設定します<br>
+     * 中心のピクセルに何も無い場合は，この範囲で最も近い物体が選ばれます．描画前に設定してください */
+    public void setRegionSize(int size){
+        this.regionSize=Math.max(1, size);
+    }
+
+    /** 画面上の位置の物体の選択を要求します<br>
+     * 座標は描画領域の左上を原点としたピクセル単位です．未処理の要求があれば上書きされます */
+    public synchronized void requestPick(int screenX, int screenY){
+        this.requestX=screenX;
+        this.requestY=screenY;
+        this.pickRequested=true;
+    }
+
+    /** 画面全体のIDバッファの読み戻しを要求します<br>
+     * 完了後はgetObjectAt()で任意の位置の物体を取得できます */
+    public void requestFullPick(){
+        this.fullRequested=true;
+    }
+
+    /** 最後に完了した選択の結果を取得します<br>
+     * 何も無ければnullを返します */
+    public Object3D getPickedObject(){
+        return this.pickedObject;
+    }
+
+    /** 完了した選択の回数を取得します<br>
+     * 値が変わっていれば新しい結果が届いています */
+    public int getPickCount(){
+        return this.pickCount;
+    }
+
+    /** 最後に読み戻した画面全体のIDバッファから，画面上の位置の物体を取得します<br>
+     * 読み戻しが完了していない場合や，何も無い場合はnullを返します */
+    public Object3D getObjectAt(int screenX, int screenY){
+        FullResult result=this.fullResult;
+        if (result==null || screenX<0 || screenY<0 || result.width<=screenX || result.height<=screenY){
+            return null;
+        }
+        int id=result.ids[(result.height-1-screenY)*result.width+screenX];
+        if (id<=0 || result.objects.length<id){
+            return null;
+        }
+        return result.objects[id-1];
+    }
+
+    /** VRAMが初期化されたことを通知します<br>
+     * 読み戻し中の結果は破棄されます */
+    public void vramFlushed(){
+        this.material.vramFlushed();
+        this.regionFbo=null;
+        this.fullFbo=null;
+        for (Readback slot:this.slots){
+            slot.pbo=-1;
+            slot.capacity=0;
+            slot.sync=0;
+            slot.busy=false;
+        }
+    }
+
+    /** 読み戻しの完了を確認し，要求があればIDバッファを描画します<br>
+     * 描画スレッドで，描画リストを描画した後に呼び出します */
+    void render(GL3 gl, RenderList list){
+        this.poll(gl);
+        boolean pick;
+        int x, y;
+        synchronized(this){
+            pick=this.pickRequested;
+            x=this.requestX;
+            y=this.requestY;
+        }
+        if (!pick && !this.fullRequested){
+            return;
+        }
+        if (!this.material.isUploaded()){
+            this.material.init(gl, this.engine);
+        }
+        int width=this.engine.getScreenWidth();
+        int height=this.engine.getScreenHeight();
+        if (pick){
+            Readback slot=this.freeSlot();
+            if (slot!=null){
+                synchronized(this){
+                    this.pickRequested=false;
+                }
+                this.renderRegion(gl, list, slot, x, height-1-y, width, height);
+            }
+        }
+        if (this.fullRequested){
+            Readback slot=this.freeSlot();
+            if (slot!=null){
+                this.fullRequested=false;
+                this.renderFull(gl, list, slot, width, height);
+            }
+        }
+        this.engine.getStateCache().viewport(gl, 0, 0, width, height); // ビューポートを戻しておく
+    }
+
+    /** カーソル周囲だけを拡大してIDを描画します<br>
+     * 座標はOpenGLのウィンドウ座標(左下が原点)です */
+    private void renderRegion(GL3 gl, RenderList list, Readback slot, int x, int y, int width, int height){
+        int size=this.regionSize;
+        if (this.regionFbo==null || this.regionFbo.getTexture().getImageWidth()!=size){
+            this.regionFbo=this.createFbo(gl, this.regionFbo, size, size);
+        }
+        // 範囲[x-size/2, x-size/2+size)を正規化デバイス座標の全体に写す
+        float x0=x-size/2;
+        float y0=y-size/2;
+        float[] m=this.pickMatrix;
+        m[0]=(float)width/size;
+        m[5]=(float)height/size;
+        m[12]=-(2*x0+size-width)/size;
+        m[13]=-(2*y0+size-height)/size;
+
+        this.drawIds(gl, list, this.regionFbo, m, slot);
+        slot.full=false;
+        slot.width=size;
+        slot.height=size;
+        this.startReadback(gl, slot);
+    }
+
+    /** 画面全体のIDを描画します */
+    private void renderFull(GL3 gl, RenderList list, Readback slot, int width, int height){
+        if (this.fullFbo==null || this.fullFbo.getTexture().getImageWidth()!=width || this.fullFbo.getTexture().getImageHeight()!=height){
+            this.fullFbo=this.createFbo(gl, this.fullFbo, width, height);
+        }
+        this.drawIds(gl, list, this.fullFbo, null, slot);
+        slot.full=true;
+        slot.width=width;
+        slot.height=height;
+        this.startReadback(gl, slot);
+    }
+
+    /** 描画リストの物体をIDとして描画します<br>
+     * 物体の一覧は読み戻しの完了まで読み戻し枠に保持します */
+    private void drawIds(GL3 gl, RenderList list, FrameBufferObject fbo, float[] pick, Readback slot){
+        fbo.bind(gl);
+        gl.glClearBufferuiv(GL3.GL_COLOR, 0, this.clearIds, 0);
+        gl.glClear(GL.GL_DEPTH_BUFFER_BIT);
+        GLStateCache cache=this.engine.getStateCache();
+        cache.setBlend(gl, false);
+
+        int size=list.size();
+        if (slot.objects.length<size){
+            slot.objects=new Object3D[Math.max(size, slot.objects.length*2)];
+        }
+        slot.objectCount=size;
+        for (int i=0;i<size;i++){
+            RenderItem item=list.get(i);
+            Object3D obj=item.getObject();
+            slot.objects[i]=obj;
+            if (!(obj instanceof Model3D)){
+                continue;
+            }
+            float[] mvp=item.getMvpMatrix();
+            if (pick!=null){
+                mvp=VectorManager.multMatrix4(pick, mvp, this.mvpMatrix);
+            }
+            this.material.setMvpMatrix(mvp);
+            this.material.setObjectId(i+1);
+            this.material.bind(gl);
+            List<VertexPackage> packs=item.getPackages(); // 収集時点のLoD
+            for (int j=0;j<packs.size();j++){
+                packs.get(j).getVao().draw(gl);
+            }
+            this.material.unbind(gl);
+        }
+        cache.setBlend(gl, true);
+        fbo.unbind(gl);
+    }
+
+    /** FBOの内容をPBOへ読み出し，フェンスを置きます */
+    private void startReadback(GL3 gl, Readback slot){
+        int bytes=slot.width*slot.height*4;
+        if (slot.pbo==-1){
+            int[] id=new int[1];
+            gl.glGenBuffers(1, id, 0);
+            slot.pbo=id[0];
+        }
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slot.pbo);
+        if (slot.capacity<bytes){
+            gl.glBufferData(GL3.GL_PIXEL_PACK_BUFFER, bytes, null, GL3.GL_STREAM_READ);
+            slot.capacity=bytes;
+        }
+        FrameBufferObject fbo=slot.full ? this.fullFbo : this.regionFbo;
+        fbo.bind(gl);
+        gl.glReadPixels(0, 0, slot.width, slot.height, GL3.GL_RED_INTEGER, GL3.GL_UNSIGNED_INT, 0L);
+        fbo.unbind(gl);
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+        slot.sync=gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.busy=true;
+    }
+
+    /** 完了した読み戻しを取り込みます */
+    private void poll(GL3 gl){
+        for (Readback slot:this.slots){
+            if (!slot.busy){
+                continue;
+            }
+            int status=gl.glClientWaitSync(slot.sync, 0, 0); // 待たずに状態だけ確認する
+            if (status!=GL3.GL_ALREADY_SIGNALED && status!=GL3.GL_CONDITION_SATISFIED){
+                continue;
+            }
+            gl.glDeleteSync(slot.sync);
+            slot.sync=0;
+            int count=slot.width*slot.height;
+            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slot.pbo);
+            ByteBuffer mapped=gl.glMapBufferRange(GL3.GL_PIXEL_PACK_BUFFER, 0, count*4, GL3.GL_MAP_READ_BIT);
+            if (mapped!=null){
+                IntBuffer ids=mapped.order(ByteOrder.nativeOrder()).asIntBuffer();
+                if (slot.full){
+                    this.storeFull(slot, ids, count);
+                }else{
+                    this.storePick(slot, ids);
+                }
+                gl.glUnmapBuffer(GL3.GL_PIXEL_PACK_BUFFER);
+            }
+            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+            for (int i=0;i<slot.objectCount;i++){
+                slot.objects[i]=null; // 破棄された物体を保持し続けないようにする
+            }
+            slot.busy=false;
+        }
+    }
+
+    /** カーソル周囲の結果から，中心に最も近い物体を選びます */
+    private void storePick(Readback slot, IntBuffer ids){
+        int size=slot.width;
+        int center=size/2;
+        int bestId=0;
+        int bestDistance=Integer.MAX_VALUE;
+        for (int y=0;y<slot.height;y++){
+            for (int x=0;x<size;x++){
+                int id=ids.get(y*size+x);
+                if (id<=0 || slot.objectCount<id){
+                    continue;
+                }
+                int distance=(x-center)*(x-center)+(y-center)*(y-center);
+                if (distance<bestDistance){
+                    bestDistance=distance;
+                    bestId=id;
+                }
+            }
+        }
+        this.pickedObject=(bestId==0) ? null : slot.objects[bestId-1];
+        this.pickCount++;
+    }
+
+    /** 画面全体の結果を保存します */
+    private void storeFull(Readback slot, IntBuffer ids, int count){
+        FullResult result=new FullResult();
+        result.width=slot.width;
+        result.height=slot.height;
+        result.ids=new int[count];
+        ids.get(result.ids);
+        result.objects=new Object3D[slot.objectCount];
+        System.arraycopy(slot.objects, 0, result.objects, 0, slot.objectCount);
+        this.fullResult=result;
+    }
+
+    private Readback freeSlot(){
+        for (Readback slot:this.slots){
+            if (!slot.busy){
+                return slot;
+            }
+        }
+        return null; // 読み戻し待ちが詰まっている場合は次のフレームに回す
+    }
+
+    /** 整数テクスチャを持つFBOを作り直します */
+    private FrameBufferObject createFbo(GL3 gl, FrameBufferObject old, int width, int height){
+        if (old!=null){
+            old.dispose(gl);
+            old.getTexture().dispose(gl);
+        }
+        FrameBufferObject fbo=new FrameBufferObject(new IntegerTextureK7(width, height));
+        fbo.init(gl, this.engine);
+        return fbo;
+    }
+
+    /** 読み戻し1回分の情報です */
+    private static class Readback{
+        private int pbo=-1;
+        private int capacity=0;
+        private long sync=0;
+        private boolean busy=false;
+        private boolean full=false;
+        private int width;
+        private int height;
+        private Object3D[] objects=new Object3D[16]; // 描画時のIDと物体の対応
+        private int objectCount=0;
+    }
+
+    /** 画面全体の読み戻し結果です */
+    private static class FullResult{
+        private int width;
+        private int height;
+        private int[] ids;
+        private Object3D[] objects;
+    }
+}
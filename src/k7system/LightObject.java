@@ -1,15 +1,16 @@
 ﻿package k7system;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
 
 
-import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
 import k7system.gpuobjects.FloatTextureK7;
 import k7system.gpuobjects.FrameBufferObject;
+import k7system.gpuobjects.GLStateCache;
 import k7system.gpuobjects.GPUResource;
 import k7system.gpuobjects.DepthMaterial;
 import k7system.gpuobjects.TextureK7;
@@ -35,6 +36,9 @@ public class LightObject extends GPUResource{
     private float[] parameters=new float[6]; // このライトを視点とした時のカメラパラメーター(left, right, bottom, top, near, far)
     private FrameBufferObject shadowFbo=null;
     private DepthMaterial shadowMaterial=null;
+    private float[] shadowMvp=new float[16]; // シャドウバッファ描画用のMVP行列(使いまわします)
+    private Frustum shadowFrustum=new Frustum(); // シャドウバッファ描画用のライトの視錐台
+    private List<Object3D> shadowCasters=new ArrayList<Object3D>(); // シャドウバッファに描画する候補
 
     private GraphicEngine gEngine=null;
 
@@ -85,25 +89,32 @@ public class LightObject extends GPUResource{
             this.shadowFbo.bind(gl);
             gl.glClearColor(0, 0, 0, 0);
             gl.glClear(GL3.GL_COLOR_BUFFER_BIT | GL3.GL_DEPTH_BUFFER_BIT);
-            gl.glEnable(GL.GL_CULL_FACE);              // 裏返ったポリゴンを描画しません
-
-            List<Object3D> models=this.getEngine().getModels();
-            for (Object3D model:models){
+            GLStateCache cache=this.getStateCache();
+            cache.setCullFace(gl, true);              // 裏返ったポリゴンを描画しません
+
+            float[] lightPv=this.createLightPVMatrix();
+            this.shadowFrustum.setMatrix(lightPv);
+            this.shadowCasters.clear();
+            this.getEngine().queryFrustum(this.shadowFrustum, this.shadowCasters); // ライトの視錐台に掛かる物体だけを候補にします
+            this.shadowMaterial.bindProgram(gl);
+            for (int m=0;m<this.shadowCasters.size();m++){
+                Object3D model=this.shadowCasters.get(m);
                 if (model instanceof Model3D && model.isShadowable()){ // モデルが影の対象か
                     Model3D m3d=(Model3D)model;
+                    VectorManager.multMatrix4(lightPv, m3d.getWorldMatrix(), this.shadowMvp);
+                    this.shadowMaterial.setMvpMatrix(this.shadowMvp); // マテリアルに行列を設定しまして
+                    this.shadowMaterial.bindUniforms(gl);
                     List<VertexPackage> pkgs=m3d.getVertexPackages(m3d.getAllVertexPackages().size()-1);
-                    for (VertexPackage p:pkgs){
-                        float[] mvp=VectorManager.multMatrix4(this.createLightPVMatrix(), m3d.getWorldMatrix());
-                        VertexArrayObject vao=p.getVao(); // 形状データを読み込みまして
-                        this.shadowMaterial.setMvpMatrix(mvp); // マテリアルに行列を設定しまして
-                        this.shadowMaterial.bind(gl);
+                    for (int i=0;i<pkgs.size();i++){
+                        VertexArrayObject vao=pkgs.get(i).getVao(); // 形状データを読み込みまして
                         vao.draw(gl);
-                        this.shadowMaterial.unbind(gl);
                     }
                 }
             }
+            this.shadowMaterial.unbind(gl);
+            this.shadowCasters.clear();
             this.shadowFbo.unbind(gl);
-            gl.glViewport(0, 0, this.getEngine().getScreenWidth(), this.getEngine().getScreenHeight()); // ビューポートを戻しておく
+            cache.viewport(gl, 0, 0, this.getEngine().getScreenWidth(), this.getEngine().getScreenHeight()); // ビューポートを戻しておく
         }
     }
 
@@ -231,16 +242,25 @@ public class LightObject extends GPUResource{
      * 位置ベクトルの4番目の要素が1なら位置，0ならベクトルとして解釈されます．<br>
      * 光源がdisableだった場合，空行列が返ります． */
     public float[] getLightParameters(){
-        float[] result=new float[16];
+        return this.getLightParameters(new float[16], 0);
+    }
+
+    /** 光源パラメータを与えられた配列のoffset番目から16要素に書き込みます<br>
+     * 内容はgetLightParameters()と同じです．毎フレーム呼び出す場合に利用します */
+    public float[] getLightParameters(float[] dst, int offset){
         if (this.lighting){
-            result=new float[]{
-                    this.position[0],this.position[1],this.position[2],this.position[3],
-                    this.power[0],this.power[1],this.power[2],this.power[3],
-                    this.ambient[0],this.ambient[1],this.ambient[2],this.ambient[3],
-                    0,0,0,0
-            };
+            System.arraycopy(this.position, 0, dst, offset, 4);
+            System.arraycopy(this.power, 0, dst, offset+4, 4);
+            System.arraycopy(this.ambient, 0, dst, offset+8, 4);
+            for (int i=12;i<16;i++){
+                dst[offset+i]=0;
+            }
+        }else{
+            for (int i=0;i<16;i++){
+                dst[offset+i]=0;
+            }
         }
-        return result;
+        return dst;
     }
 
     /** 光源パラメータを行列の形で設定します<br>
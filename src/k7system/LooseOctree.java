@@ -0,0 +1,447 @@
+package k7system;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** 物体をワールド座標系の境界で分類するルーズ八分木です<br>
+ * 各セルは自分の大きさの2倍の範囲(ルーズ境界)に収まる物体を保持するため，物体はその大きさだけで深さが決まり，
+ * 少し動いただけではセルを移りません．<br>
+ * GraphicEngine.setUseSpatialIndex()で有効にすると，ワールド境界の更新に合わせてエンジンが内容を更新し，
+ * 描画対象の収集はシーングラフを走査する代わりに視錐台による検索で行われます．<br>
+ * 境界の分からない物体(ビルボードなど)は八分木の外で保持し，検索では常に候補として返します． */
+public class LooseOctree {
+    public static final int DEFAULT_MAX_DEPTH=8;
+    private static final float LOOSENESS=2.0f;
+
+    private Cell root;
+    private int maxDepth;
+
+    private Map<Node3D, Entry> entries=new HashMap<Node3D, Entry>(); // 登録されている物体
+    private List<Object3D> boundlessObjects=new ArrayList<Object3D>(); // 境界の分からない物体
+    private ConcurrentLinkedQueue<Node3D> pending=new ConcurrentLinkedQueue<Node3D>(); // 更新待ちのノード
+    private List<Node3D> destroyedNodes=new ArrayList<Node3D>(); // 更新時に見つかった破棄対象のノード
+    private Set<Node3D> destroyedSet=Collections.newSetFromMap(new IdentityHashMap<Node3D, Boolean>()); // 重複登録の判定用
+
+    /** 中心と一辺の半分の長さで全体の範囲を指定するコンストラクタです<br>
+     * 範囲外の物体はルートセルに保持されます */
+    public LooseOctree(float centerX, float centerY, float centerZ, float halfSize, int maxDepth) {
+        this.root=new Cell(centerX, centerY, centerZ, halfSize, 0);
+        this.maxDepth=maxDepth;
+    }
+
+    /** 中心と一辺の半分の長さで全体の範囲を指定するコンストラクタです */
+    public LooseOctree(float centerX, float centerY, float centerZ, float halfSize) {
+        this(centerX, centerY, centerZ, halfSize, DEFAULT_MAX_DEPTH);
+    }
+
+    /** 登録されている物体の数を取得します<br>
+     * 境界の分からない物体も含みます */
+    public int size(){
+        return this.entries.size();
+    }
+
+    /** ノードの境界が更新されたことを通知します<br>
+     * どのスレッドからでも呼び出せます．実際の反映はapplyPending()で行われます */
+    public void requestUpdate(Node3D node){
+        this.pending.add(node);
+    }
+
+    /** 溜まっている更新通知を反映します<br>
+     * 破棄フラグの立ったノードは取り除かれ，getDestroyedNodes()に登録されます */
+    public void applyPending(){
+        Node3D node;
+        while((node=this.pending.poll())!=null){
+            if (node.isDestroyFlag()){
+                this.removeSubtree(node);
+                if (node.isAttached() && this.destroyedSet.add(node)){
+                    this.destroyedNodes.add(node);
+                }
+            }else if (node instanceof Object3D && node.isAttached()){
+                this.update((Object3D)node);
+            }
+        }
+    }
+
+    /** 更新時に見つかった破棄対象のノードを取得します<br>
+     * 取得した側でシーングラフから切り離し，clearDestroyedNodes()で空にしてください */
+    public List<Node3D> getDestroyedNodes(){
+        return this.destroyedNodes;
+    }
+
+    /** 破棄対象のノードの登録を消去します */
+    public void clearDestroyedNodes(){
+        this.destroyedNodes.clear();
+        this.destroyedSet.clear();
+    }
+
+    /** 物体を登録するか，登録済みであれば位置を更新します<br>
+     * 物体の境界は直前の境界更新で計算されたものが使われます */
+    public void update(Object3D obj){
+        Entry entry=this.entries.get(obj);
+        float[] bound=obj.getOwnBound();
+        if (bound==null){
+            if (entry==null){
+                this.entries.put(obj, new Entry(obj));
+                this.boundlessObjects.add(obj);
+            }else if (entry.cell!=null){
+                entry.cell.remove(entry);
+                this.boundlessObjects.add(obj);
+            }
+            return;
+        }
+
+        if (entry==null){
+            entry=new Entry(obj);
+            this.entries.put(obj, entry);
+        }else if (entry.cell==null){
+            this.boundlessObjects.remove(obj);
+        }
+        System.arraycopy(bound, 0, entry.bound, 0, 6);
+
+        // 今のセルに収まっていれば移動しない
+        Cell target=this.findCell(entry.bound);
+        if (entry.cell!=target){
+            if (entry.cell!=null){
+                entry.cell.remove(entry);
+            }
+            target.add(entry);
+        }
+    }
+
+    /** ノードとその子孫を取り除きます */
+    public void removeSubtree(Node3D node){
+        this.remove(node);
+        List<Node3D> children=node.getChildObjects();
+        for (int i=0;i<children.size();i++){
+            this.removeSubtree(children.get(i));
+        }
+    }
+
+    /** ノードを取り除きます */
+    public void remove(Node3D node){
+        Entry entry=this.entries.remove(node);
+        if (entry!=null){
+            if (entry.cell!=null){
+                entry.cell.remove(entry);
+            }else{
+                this.boundlessObjects.remove(entry.object);
+            }
+        }
+    }
+
+    /** 全ての登録を消去し，指定したノード以下の物体を登録し直します */
+    public void rebuild(Node3D rootNode){
+        this.entries.clear();
+        this.boundlessObjects.clear();
+        this.pending.clear();
+        this.root=new Cell(this.root.cx, this.root.cy, this.root.cz, this.root.half, 0);
+        this.insertSubtree(rootNode);
+    }
+
+    /** AABBと交差する物体を検索します<br>
+     * 引数は{minX, minY, minZ, maxX, maxY, maxZ}です．結果は第2引数のリストに追加されます */
+    public List<Object3D> queryBox(float[] aabb, List<Object3D> result){
+        this.queryBox(this.root, aabb, result);
+        return result;
+    }
+
+    /** 球と交差する物体を検索します<br>
+     * 結果は第5引数のリストに追加されます */
+    public List<Object3D> querySphere(float x, float y, float z, float radius, List<Object3D> result){
+        this.querySphere(this.root, x, y, z, radius, result);
+        return result;
+    }
+
+    /** レイと境界が交差する物体を検索します<br>
+     * レイはorigin+direction*t(0&lt;=t&lt;=maxDistance)で表されます．結果は第8引数のリストに追加されます */
+    public List<Object3D> queryRay(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, List<Object3D> result){
+        this.queryRay(this.root, ox, oy, oz, 1/dx, 1/dy, 1/dz, maxDistance, result);
+        return result;
+    }
+
+    /** 視錐台と交差する可能性のある物体を検索します<br>
+     * 境界の分からない物体は常に含まれます．結果は第2引数のリストに追加され，返り値は判定を省略せずに除外したセルの数です */
+    public int queryFrustum(Frustum frustum, List<Object3D> result){
+        result.addAll(this.boundlessObjects);
+        return this.queryFrustum(this.root, frustum, false, result);
+    }
+
+    /** 登録されている全ての物体を取得します<br>
+     * 結果は引数のリストに追加されます */
+    public List<Object3D> getAll(List<Object3D> result){
+        for (Entry entry:this.entries.values()){
+            result.add(entry.object);
+        }
+        return result;
+    }
+
+    /** 物体の境界から，格納するセルを決めます */
+    private Cell findCell(float[] bound){
+        float extent=Math.max(bound[3]-bound[0], Math.max(bound[4]-bound[1], bound[5]-bound[2]))*0.5f;
+        float x=(bound[0]+bound[3])*0.5f;
+        float y=(bound[1]+bound[4])*0.5f;
+        float z=(bound[2]+bound[5])*0.5f;
+        Cell cell=this.root;
+        if (!cell.contains(x, y, z)){
+            return cell; // 範囲外はルートに置く
+        }
+        // 子セルのルーズ境界(子の大きさの2倍)に収まる限り降りる
+        while(cell.depth<this.maxDepth && extent<=cell.half*0.5f*(LOOSENESS-1)){
+            cell=cell.getChild(x, y, z);
+        }
+        return cell;
+    }
+
+    /** 部分木の物体を登録します */
+    private void insertSubtree(Node3D node){
+        if (node instanceof Object3D && !node.isDestroyFlag()){
+            this.update((Object3D)node);
+        }
+        List<Node3D> children=node.getChildObjects();
+        for (int i=0;i<children.size();i++){
+            this.insertSubtree(children.get(i));
+        }
+    }
+
+    private void queryBox(Cell cell, float[] aabb, List<Object3D> result){
+        if (!cell.overlapsBox(aabb)){
+            return;
+        }
+        for (int i=0;i<cell.entries.size();i++){
+            Entry entry=cell.entries.get(i);
+            if (intersectsBox(entry.bound, aabb)){
+                result.add(entry.object);
+            }
+        }
+        if (cell.children!=null){
+            for (Cell child:cell.children){
+                if (child!=null && 0<child.total){
+                    this.queryBox(child, aabb, result);
+                }
+            }
+        }
+    }
+
+    private void querySphere(Cell cell, float x, float y, float z, float radius, List<Object3D> result){
+        if (!cell.overlapsSphere(x, y, z, radius)){
+            return;
+        }
+        for (int i=0;i<cell.entries.size();i++){
+            Entry entry=cell.entries.get(i);
+            if (sphereDistance2(entry.bound, x, y, z)<=radius*radius){
+                result.add(entry.object);
+            }
+        }
+        if (cell.children!=null){
+            for (Cell child:cell.children){
+                if (child!=null && 0<child.total){
+                    this.querySphere(child, x, y, z, radius, result);
+                }
+            }
+        }
+    }
+
+    private void queryRay(Cell cell, float ox, float oy, float oz, float ix, float iy, float iz, float maxDistance, List<Object3D> result){
+        if (cell.parent!=null && rayDistance(cell.getLooseBound(), ox, oy, oz, ix, iy, iz, maxDistance)<0){
+            return;
+        }
+        for (int i=0;i<cell.entries.size();i++){
+            Entry entry=cell.entries.get(i);
+            if (0<=rayDistance(entry.bound, ox, oy, oz, ix, iy, iz, maxDistance)){
+                result.add(entry.object);
+            }
+        }
+        if (cell.children!=null){
+            for (Cell child:cell.children){
+                if (child!=null && 0<child.total){
+                    this.queryRay(child, ox, oy, oz, ix, iy, iz, maxDistance, result);
+                }
+            }
+        }
+    }
+
+    private int queryFrustum(Cell cell, Frustum frustum, boolean inside, List<Object3D> result){
+        if (!inside && cell.parent!=null){ // ルートは範囲外の物体も持つので判定しない
+            int test=frustum.testBound(cell.getLooseBound());
+            if (test==Frustum.OUTSIDE){
+                return 1;
+            }
+            inside=(test==Frustum.INSIDE);
+        }
+        int culled=0;
+        for (int i=0;i<cell.entries.size();i++){
+            Entry entry=cell.entries.get(i);
+            if (inside || frustum.testBound(entry.bound)!=Frustum.OUTSIDE){
+                result.add(entry.object);
+            }
+        }
+        if (cell.children!=null){
+            for (Cell child:cell.children){
+                if (child!=null && 0<child.total){
+                    culled+=this.queryFrustum(child, frustum, inside, result);
+                }
+            }
+        }
+        return culled;
+    }
+
+    /** 2つのAABBが交差しているかどうかを判定します */
+    static boolean intersectsBox(float[] b1, float[] b2){
+        return b1[0]<=b2[3] && b2[0]<=b1[3] && b1[1]<=b2[4] && b2[1]<=b1[4] && b1[2]<=b2[5] && b2[2]<=b1[5];
+    }
+
+    /** AABBと点の距離の2乗です */
+    static float sphereDistance2(float[] b, float x, float y, float z){
+        float dx=Math.max(b[0]-x, Math.max(0, x-b[3]));
+        float dy=Math.max(b[1]-y, Math.max(0, y-b[4]));
+        float dz=Math.max(b[2]-z, Math.max(0, z-b[5]));
+        return dx*dx+dy*dy+dz*dz;
+    }
+
+    /** レイとAABBの交差判定です(スラブ法)<br>
+     * 方向ベクトルの逆数を受け取ります．交差すればレイに入る位置のtを返し，交差しなければ-1を返します．
+     * 方向の成分が0の軸(逆数が無限大)は，始点がその軸の範囲内にあるかどうかだけで判定します */
+    static float rayDistance(float[] b, float ox, float oy, float oz, float ix, float iy, float iz, float maxDistance){
+        float tMin=0;
+        float tMax=maxDistance;
+        if (Float.isInfinite(ix)){
+            if (ox<b[0] || b[3]<ox){
+                return -1;
+            }
+        }else{
+            float t1=(b[0]-ox)*ix;
+            float t2=(b[3]-ox)*ix;
+            tMin=Math.max(tMin, Math.min(t1, t2));
+            tMax=Math.min(tMax, Math.max(t1, t2));
+        }
+        if (Float.isInfinite(iy)){
+            if (oy<b[1] || b[4]<oy){
+                return -1;
+            }
+        }else{
+            float t1=(b[1]-oy)*iy;
+            float t2=(b[4]-oy)*iy;
+            tMin=Math.max(tMin, Math.min(t1, t2));
+            tMax=Math.min(tMax, Math.max(t1, t2));
+        }
+        if (Float.isInfinite(iz)){
+            if (oz<b[2] || b[5]<oz){
+                return -1;
+            }
+        }else{
+            float t1=(b[2]-oz)*iz;
+            float t2=(b[5]-oz)*iz;
+            tMin=Math.max(tMin, Math.min(t1, t2));
+            tMax=Math.min(tMax, Math.max(t1, t2));
+        }
+        if (tMin!=tMin || tMax!=tMax || tMax<tMin){
+            return -1; // 非数が混ざった場合も交差しないとみなします
+        }
+        return tMin;
+    }
+
+    /** 登録されている物体1つ分の情報です */
+    private static class Entry{
+        private Object3D object;
+        private float[] bound=new float[6];
+        private Cell cell=null; // nullなら境界の分からない物体
+        private int slot=-1; // セル内での位置
+
+        Entry(Object3D object) {
+            this.object=object;
+        }
+    }
+
+    /** 八分木のセルです */
+    private static class Cell{
+        private float cx,cy,cz; // 中心
+        private float half; // 一辺の半分の長さ
+        private int depth;
+        private Cell parent=null;
+        private Cell[] children=null;
+        private List<Entry> entries=new ArrayList<Entry>();
+        private int total=0; // 子孫も含めた物体の数
+        private float[] looseBound=null;
+
+        Cell(float cx, float cy, float cz, float half, int depth) {
+            this.cx=cx;
+            this.cy=cy;
+            this.cz=cz;
+            this.half=half;
+            this.depth=depth;
+        }
+
+        /** 点がこのセルの本来の範囲に含まれるかどうかです */
+        boolean contains(float x, float y, float z){
+            return Math.abs(x-this.cx)<=this.half && Math.abs(y-this.cy)<=this.half && Math.abs(z-this.cz)<=this.half;
+        }
+
+        /** 点を含む子セルを取得します．無ければ作ります */
+        Cell getChild(float x, float y, float z){
+            int index=(x<this.cx ? 0 : 1)|(y<this.cy ? 0 : 2)|(z<this.cz ? 0 : 4);
+            if (this.children==null){
+                this.children=new Cell[8];
+            }
+            Cell child=this.children[index];
+            if (child==null){
+                float h=this.half*0.5f;
+                child=new Cell(this.cx+((index&1)==0 ? -h : h), this.cy+((index&2)==0 ? -h : h), this.cz+((index&4)==0 ? -h : h), h, this.depth+1);
+                child.parent=this;
+                this.children[index]=child;
+            }
+            return child;
+        }
+
+        /** ルーズ境界(本来の2倍の範囲)を取得します */
+        float[] getLooseBound(){
+            if (this.looseBound==null){
+                float h=this.half*LOOSENESS;
+                this.looseBound=new float[]{this.cx-h, this.cy-h, this.cz-h, this.cx+h, this.cy+h, this.cz+h};
+            }
+            return this.looseBound;
+        }
+
+        boolean overlapsBox(float[] aabb){
+            if (this.parent==null){
+                return true; // ルートは範囲外の物体も持つ
+            }
+            return intersectsBox(this.getLooseBound(), aabb);
+        }
+
+        boolean overlapsSphere(float x, float y, float z, float radius){
+            if (this.parent==null){
+                return true;
+            }
+            return sphereDistance2(this.getLooseBound(), x, y, z)<=radius*radius;
+        }
+
+        void add(Entry entry){
+            entry.cell=this;
+            entry.slot=this.entries.size();
+            this.entries.add(entry);
+            for (Cell c=this;c!=null;c=c.parent){
+                c.total++;
+            }
+        }
+
+        /** 末尾の要素を空いた位置に移して取り除きます */
+        void remove(Entry entry){
+            Entry last=this.entries.remove(this.entries.size()-1);
+            if (last!=entry){
+                this.entries.set(entry.slot, last);
+                last.slot=entry.slot;
+            }
+            entry.cell=null;
+            entry.slot=-1;
+            for (Cell c=this;c!=null;c=c.parent){
+                c.total--;
+            }
+        }
+    }
+}
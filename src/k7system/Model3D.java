@@ -10,6 +10,7 @@ import com.jogamp.opengl.GL3;
 import k7system.collision.CollisionElement;
 import k7system.collision.CollisionObject;
 import k7system.gpuobjects.BasicMaterial;
+import k7system.gpuobjects.GLStateCache;
 import k7system.gpuobjects.VertexPackage;
 
 
@@ -27,6 +28,12 @@ public class Model3D extends Object3D implements CollisionObject{
 
     private float[] viewPos=new float[4]; // 視点座標系での座標です
 
+    private float[] localBound=null; // 全LoDの頂点パッケージを包むモデル座標系の境界です
+    private boolean localBoundDirty=true;
+
+    int engineIndex=-1; // エンジンが管理するモデル一覧での位置です(未登録なら-1)
+    long removedGeneration=-1; // エンジンから外された時点のVRAM世代です
+
 
     /** コンストラクタです */
     public Model3D() {
@@ -36,7 +43,11 @@ public class Model3D extends Object3D implements CollisionObject{
     /** 呼び出し元のグラフィックエンジンを設定します */
     @Override
     public void setEngine(GraphicEngine ge) {
+        GraphicEngine old=this.getEngine();
         super.setEngine(ge);
+        if (old!=null && old!=ge){
+            old.removeModel(this); // 切り離されたモデルは管理対象から外します
+        }
         if (ge!=null){
             ge.addModel(this);
         }
@@ -52,6 +63,7 @@ public class Model3D extends Object3D implements CollisionObject{
      * 特に指定がなければ0番に登録されます */
     public void setVertexPackages(List<VertexPackage> packs){
         this.vPacksList.set(0, packs);
+        this.vertexPackagesChanged();
     }
 
     /** 頂点パッケージ群を取得します<br>
@@ -82,6 +94,7 @@ public class Model3D extends Object3D implements CollisionObject{
      * 特に指定がなければ0番に登録されます */
     public void addVertexPackage(VertexPackage pack){
         this.vPacksList.get(0).add(pack);
+        this.vertexPackagesChanged();
     }
 
     /** 頂点パッケージを指定したLoDに追加します */
@@ -95,6 +108,7 @@ public class Model3D extends Object3D implements CollisionObject{
             target=this.vPacksList.get(lod);
         }
         target.add(pack);
+        this.vertexPackagesChanged();
     }
 
     /** 現在のLoDレベルを取得するメソッドです*/
@@ -125,43 +139,64 @@ public class Model3D extends Object3D implements CollisionObject{
     }
 
     /** このモデルのバウンディング境界をモデル座標系で取得します<br>
-     * 返り値は、minX,minY,minZ,maxX,maxY,maxZの順で値が収められた配列です */
+     * 返り値は、minX,minY,minZ,maxX,maxY,maxZの順で値が収められた配列です．
+     * 頂点パッケージが無い場合はすべて0の配列を返します */
     public double[] getLocalBoundByArray(){
-        double minX=Double.MAX_VALUE;
-        double minY=Double.MAX_VALUE;
-        double minZ=Double.MAX_VALUE;
-        double maxX=Double.MIN_VALUE;
-        double maxY=Double.MIN_VALUE;
-        double maxZ=Double.MIN_VALUE;
-        for(VertexPackage pack:this.getVertexPackages()){
-            float[] aabb=pack.getBoundingBoxFlat();
-            if (aabb[0]<minX){
-                minX=aabb[0];
-            }
-            if (aabb[1]<minY){
-                minY=aabb[1];
-            }
-            if (aabb[2]<minZ){
-                minZ=aabb[2];
-            }
-            if (aabb[3]>maxX){
-                maxX=aabb[3];
-            }
-            if (aabb[4]>maxY){
-                maxY=aabb[4];
-            }
-            if (aabb[5]>maxZ){
-                maxZ=aabb[5];
+        float[] bound=this.getLocalBound();
+        if (bound==null){
+            return new double[6];
+        }
+        return new double[]{bound[0],bound[1],bound[2],bound[3],bound[4],bound[5]};
+    }
+
+    /** このモデルの形状の境界をモデル座標系で取得します<br>
+     * 全てのLoDの頂点パッケージを包む境界で，頂点パッケージが変更されるまでキャッシュされます */
+    @Override
+    protected float[] getLocalBound(){
+        if (this.localBoundDirty){
+            this.localBoundDirty=false;
+            float[] bound=new float[]{Float.MAX_VALUE,Float.MAX_VALUE,Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE};
+            boolean found=false;
+            for (List<VertexPackage> packs:this.vPacksList){
+                if (packs==null){
+                    continue;
+                }
+                for(VertexPackage pack:packs){
+                    float[][] aabb=pack.getBoundingBox();
+                    for (int i=0;i<3;i++){
+                        if (aabb[0][i]<bound[i]){
+                            bound[i]=aabb[0][i];
+                        }
+                        if (bound[i+3]<aabb[1][i]){
+                            bound[i+3]=aabb[1][i];
+                        }
+                    }
+                    found=true;
+                }
             }
+            this.localBound=found ? bound : null;
         }
-        return new double[]{minX,minY,minZ,maxX,maxY,maxZ};
+        return this.localBound;
+    }
+
+    /** 頂点パッケージの構成が変わったことを通知します<br>
+     * 頂点パッケージのリストを直接操作した場合に呼び出してください．境界が再計算されます */
+    public void vertexPackagesChanged(){
+        this.localBoundDirty=true;
+        this.markBoundDirty();
     }
 
     /** このモデルのバウンディング境界をワールド座標系で取得します <br>
-     * 返り値は、minX,minY,minZ,maxX,maxY,maxZの順で値が収められた配列です */
+     * 返り値は、minX,minY,minZ,maxX,maxY,maxZの順で値が収められた配列です．子ノードは含みません．
+     * 頂点パッケージが無い場合はモデルの座標だけを含む境界を返します */
     @Override
     public float[] getBoundByArray(){
-        return null;
+        float[] local=this.getLocalBound();
+        if (local==null){
+            float[] pos=this.getPositionByArray();
+            return new float[]{pos[0],pos[1],pos[2],pos[0],pos[1],pos[2]};
+        }
+        return VectorManager.transformBound(local, this.getWorldMatrix(), new float[6]);
     }
 
     /** このモデルに属するコリジョンエレメントを取得します */
@@ -211,63 +246,103 @@ public class Model3D extends Object3D implements CollisionObject{
         }
     }
 
-    /** 切り離される場合の処理 */
-    @Override
-    protected void detachInternal() {
-        super.detachInternal();
-        /* エンジンからRemoveしてしまうとVRAM破壊が認識できなくなる
-        GraphicEngine engine=this.getGE();
-        if (engine!=null){
-            engine.removeModel(this);
-            this.setGE(null);
-        }
-        */
-    }
-
     /** モデルの描画処理を行います */
     public void drawObject(GL3 gl){
-        float[] mvp;
-        float[] viewMatrix;
-        float[] rotation;
-        float[] mvMatrix;
         GraphicEngine engine=this.getEngine();
-        List<LightObject> lights=null;
-
         if (engine==null){
-            mvp=Node3D.UNIT_MAT4;
-            viewMatrix=Node3D.UNIT_MAT4;
-            mvMatrix=Node3D.UNIT_MAT4;
-            rotation=Node3D.UNIT_MAT3;
+            this.drawObject(gl, Node3D.UNIT_MAT4, Node3D.UNIT_MAT4, Node3D.UNIT_MAT3);
         }else{
             // モデルビュー行列を取得します
-            viewMatrix=this.getEngine().getViewMatrix();
-            mvMatrix=VectorManager.multMatrix4(viewMatrix, this.getWorldMatrix());
+            float[] viewMatrix=engine.getViewMatrix();
+            float[] mvMatrix=VectorManager.multMatrix4(viewMatrix, this.getWorldMatrix());
             this.setPositionByView(new float[]{mvMatrix[12],mvMatrix[13],mvMatrix[14]}); // 視点座標系での座標を設定
 
             // 回転行列を計算します
-            rotation=new float[9];
-            rotation[0]=mvMatrix[0];
-            rotation[1]=mvMatrix[1];
-            rotation[2]=mvMatrix[2];
-            rotation[3]=mvMatrix[4];
-            rotation[4]=mvMatrix[5];
-            rotation[5]=mvMatrix[6];
-            rotation[6]=mvMatrix[8];
-            rotation[7]=mvMatrix[9];
-            rotation[8]=mvMatrix[10];
-            rotation=VectorManager.getInverse3(rotation);
-            rotation=VectorManager.getTransposed(rotation);
+            // ビュー行列の回転部分は正規直交なので，(VW)の逆転置はVとWの逆転置(キャッシュ済み)の積になります
+            float[] rotation=VectorManager.multMatrix4x3(viewMatrix, this.getWorldNormalMatrix(), new float[9]);
 
             // 座標変換行列を計算
-            mvp=VectorManager.multMatrix4(this.getEngine().getPVMatrix(),this.getWorldMatrix());
-            // ライト情報を取得
-            lights=this.getEngine().getLightObjects();
+            float[] mvp=VectorManager.multMatrix4(engine.getPVMatrix(),this.getWorldMatrix());
+            this.drawObject(gl, mvp, mvMatrix, rotation);
         }
+    }
 
+    /** レンダーリストの要素を利用してモデルの描画処理を行います<br>
+     * 収集時に計算された行列が利用されるため，描画時には行列計算を行いません */
+    @Override
+    public void drawObject(GL3 gl, RenderItem item){
+        GraphicEngine engine=this.getEngine();
+        if (engine==null){
+            this.drawObject(gl, Node3D.UNIT_MAT4, Node3D.UNIT_MAT4, Node3D.UNIT_MAT3);
+        }else{
+            float[] mvMatrix=item.getMvMatrix();
+            this.setPositionByView(new float[]{mvMatrix[12],mvMatrix[13],mvMatrix[14]}); // 視点座標系での座標を設定
+            this.drawObject(gl, item.getMvpMatrix(), mvMatrix, item.getRotationMatrix());
+        }
+    }
+
+    /** 収集時点のLoDを選び，その頂点パッケージをアイテムに記録します<br>
+     * 収集したスレッドで呼び出されるため，LoDの切り替えは描画スレッドではなくシーンを更新するスレッドで行われます．
+     * 影生成属性が付いた不透明なモデルは，遮蔽物として最も粗いLoDの頂点パッケージも記録します */
+    @Override
+    void snapshot(RenderItem item){
+        float[] mvMatrix=item.getMvMatrix();
+        this.viewPos[0]=mvMatrix[12];
+        this.viewPos[1]=mvMatrix[13];
+        this.viewPos[2]=mvMatrix[14];
+        item.setPackages(this.getVertexPackages(this.checkCurrentLod(Math.abs(mvMatrix[14]))));
+        if (item.isShadowable() && item.getTransparent()==BlendType.NOT){
+            item.setOccluderPackages(this.getVertexPackages(this.vPacksList.size()-1));
+        }
+    }
+
+    /** 収集時点のLoDの頂点パッケージを描画キューに登録します<br>
+     * 視界外の頂点パッケージと，遮蔽カリングで隠れていると判定された頂点パッケージは登録しません．
+     * GPUで視界判定される頂点パッケージは判定せずに登録します */
+    @Override
+    public void enqueueDraws(DrawQueue queue, RenderItem item){
+        float[] mvMatrix=item.getMvMatrix();
+        List<VertexPackage> vPacks=item.getPackages();
+        GraphicEngine engine=this.getEngine();
+        OcclusionCuller occlusion=(engine!=null) ? engine.getOcclusionCuller() : null;
+        for(int i=0;i<vPacks.size();i++){
+            VertexPackage vp=vPacks.get(i);
+            if (queue.isGpuCulled(vp, item)
+                    || (vp.isInSight(item.getMvpMatrix()) && (occlusion==null || !occlusion.isOccluded(vp.getBoundingBox(), mvMatrix)))){
+                queue.addPackage(item, vp);
+            }
+        }
+    }
+
+    /** 描画キューから描画する頂点パッケージのユニフォーム変数を設定します<br>
+     * 行列は収集時に計算されたものを利用します．光源はフレームデータのユニフォームブロックで共有されます */
+    void prepareDraw(VertexPackage vp, RenderItem item){
+        vp.setMvpMatrix(item.getMvpMatrix());
+        vp.setMvMatrix(item.getMvMatrix());
+        vp.setRotationMatrix(item.getRotationMatrix());
+        BasicMaterial mat=vp.getMaterial();
+        mat.setUseLights(item.isUseLight());
+    }
+
+    /** 与えられた行列でモデルの描画処理を行います<br>
+     * 光源はGraphicEngineがフレームごとに転送したものが利用されます */
+    private void drawObject(GL3 gl, float[] mvp, float[] mvMatrix, float[] rotation){
         // 現在のLoDレベルを計算して取得します(引数は視点座標系でのZ座標の絶対値)
         int currentLod=this.checkCurrentLod(Math.abs(this.viewPos[2]));
         List<VertexPackage> vPacks=this.getVertexPackages(currentLod);
 
+        // 半透明情報を設定(全ての頂点パッケージで共通なので，ループの外で一度だけ設定します)
+        GLStateCache cache=GLStateCache.get(this.getEngine());
+        BlendType blend=this.getTransparent();
+        if (blend!=BlendType.NOT){
+            cache.setBlend(gl, true);
+            if (blend==BlendType.BLEND){
+                cache.blendFunc(gl, GL3.GL_SRC_ALPHA, GL3.GL_ONE_MINUS_SRC_ALPHA);
+            }else if (blend==BlendType.ADDING){
+                cache.blendFunc(gl, GL3.GL_SRC_ALPHA,GL3.GL_ONE);
+            }
+        }
+
         for(VertexPackage vp:vPacks){
             vp.setMvpMatrix(mvp);
             vp.setMvMatrix(mvMatrix);
@@ -275,25 +350,15 @@ public class Model3D extends Object3D implements CollisionObject{
             // マテリアルにライトを使用するかどうかを設定
             BasicMaterial mat=vp.getMaterial();
             mat.setUseLights(this.isUseLight());
-            // マテリアルにシステムが持っているライト情報を設定
-            mat.refleshLights(lights,viewMatrix);
-
-            // 半透明情報を設定
-            if (this.getTransparent()!=BlendType.NOT){
-                gl.glEnable(GL3.GL_BLEND);
-                if (this.getTransparent()==BlendType.BLEND){
-                    gl.glBlendFunc(GL3.GL_SRC_ALPHA, GL3.GL_ONE_MINUS_SRC_ALPHA);
-                }else if (this.getTransparent()==BlendType.ADDING){
-                    gl.glBlendFunc(GL3.GL_SRC_ALPHA,GL3.GL_ONE);
-                }
-            }
+
             // 実際の描画
             if (this.isVisible()){
                 vp.draw(gl);
             }
-            if (this.getTransparent()!=BlendType.NOT){
-                gl.glDisable(GL3.GL_BLEND);
-            }
+        }
+
+        if (blend!=BlendType.NOT){
+            cache.setBlend(gl, false);
         }
     }
 
@@ -0,0 +1,230 @@
+package k7system;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL3;
+
+import k7system.gpuobjects.CullingShader;
+import k7system.gpuobjects.InstanceBuffer;
+import k7system.gpuobjects.MeshArena;
+import k7system.gpuobjects.VertexArrayObject;
+
+/** 間接描画(glMultiDrawElementsIndirect)による描画バックエンドです<br>
+ * OpenGL 4.3以上のコンテキストで利用できます．
+ * メッシュは共有のMeshArenaに格納され，同じマテリアルを使う描画要素の集まりを1回の描画命令で描画します．
+ * 描画ごとの行列はインスタンス属性として書き込み，DrawElementsIndirectCommandのbaseInstanceで参照します．<br>
+ * 同じメッシュが連続した場合は1つのコマンドのinstanceCountにまとめます．<br>
+ * GPUによる視界判定を有効にすると，コンピュートシェーダーが視錐台と奥行きピラミッドで描画ごとに判定し，
+ * 視界外のコマンドのinstanceCountを0に書き換えます．この場合，判定を個別に行うためインスタンスはまとめません．<br>
+ * 1フレーム分の描画要素はbeginRun()で区切った描画単位ごとに別のコマンドバッファへ転送されます．
+ * 転送と視界判定は描画単位ごとに1回だけ行われ，深度プリパスと陰影付けで同じコマンドバッファを使いまわせます．
+ * 描画スレッドからのみ利用されることを想定しています． */
+public class MultiDrawIndirect {
+    private static final int COMMAND_SIZE=5; // count, instanceCount, firstIndex, baseVertex, baseInstance
+    private static final int DEFAULT_CAPACITY=64;
+
+    private InstanceBuffer drawData=new InstanceBuffer();
+    private MeshArena arena=new MeshArena(this.drawData);
+    private int[] commands=new int[DEFAULT_CAPACITY*COMMAND_SIZE];
+    private int commandCount=0;
+    private VertexArrayObject lastMesh=null;
+    private int[] runStarts=new int[DEFAULT_CAPACITY+1]; // 描画単位ごとの先頭のコマンド
+    private int[] runBufferIds=new int[DEFAULT_CAPACITY]; // 描画単位ごとのコマンドバッファ(フレーム間で使いまわします)
+    private int runBufferCount=0;
+    private int runCount=0;
+    private int preparedRuns=0; // 転送済みの描画単位の数
+    private int uploadedInstances=0; // 転送済みのインスタンスの数
+    private float[] bounds=new float[DEFAULT_CAPACITY*8]; // コマンドごとの境界ボックス(最小点と最大点をvec4で)
+    private int boundsBufferId=-1;
+
+    // GPUによる視界判定
+    private CullingShader culler=new CullingShader();
+    private boolean gpuCulling=false;
+    private int pyramidTexture=0;
+    private int pyramidWidth;
+    private int pyramidHeight;
+    private int pyramidLevels;
+    private float[] pyramidMatrix=new float[16];
+    private GraphicEngine engine;
+
+    /** エンジンを指定して作成します */
+    public MultiDrawIndirect(GraphicEngine engine){
+        this.engine=engine;
+    }
+
+    /** メッシュを格納している共有バッファを取得します */
+    public MeshArena getArena(){
+        return this.arena;
+    }
+
+    /** GPUによる視界判定を行うかどうかを取得します */
+    public boolean isGpuCulling(){
+        return this.gpuCulling;
+    }
+
+    /** GPUによる視界判定を行うかどうかを設定します<br>
+     * 有効にすると，間接描画で描画される要素はCPUでの視界判定を行わずに描画キューに登録されます */
+    public void setGpuCulling(boolean gpuCulling){
+        this.gpuCulling=gpuCulling;
+    }
+
+    /** 遮蔽判定に利用する奥行きピラミッドを設定します<br>
+     * textureは各画素が範囲内の最も奥の深度を持つミップマップ付きテクスチャで，levelsはミップマップの段数です．
+     * matrixはビュー座標系から，ピラミッドを作った時点のクリップ座標への変換行列です．
+     * textureに0を指定すると遮蔽判定を行いません */
+    public void setOcclusionPyramid(int texture, int width, int height, int levels, float[] matrix){
+        this.pyramidTexture=texture;
+        this.pyramidWidth=width;
+        this.pyramidHeight=height;
+        this.pyramidLevels=levels;
+        if (matrix!=null){
+            System.arraycopy(matrix, 0, this.pyramidMatrix, 0, 16);
+        }
+    }
+
+    /** 登録中のコマンドの数を取得します */
+    public int size(){
+        return this.commandCount;
+    }
+
+    /** 登録中のコマンドを破棄し，新しいフレームの描画命令の準備をします */
+    public void begin(){
+        this.commandCount=0;
+        this.runCount=0;
+        this.preparedRuns=0;
+        this.uploadedInstances=0;
+        this.drawData.clear();
+        this.lastMesh=null;
+        this.arena.compact();
+    }
+
+    /** 新しい描画単位を始めます<br>
+     * 以降にadd()した描画要素は，返り値の番号を指定したdraw()で1回の間接描画命令として描画されます */
+    public int beginRun(){
+        if (this.runBufferIds.length<=this.runCount){
+            this.runBufferIds=Arrays.copyOf(this.runBufferIds, this.runBufferIds.length*2);
+            this.runStarts=Arrays.copyOf(this.runStarts, this.runBufferIds.length+1);
+        }
+        this.runStarts[this.runCount]=this.commandCount;
+        this.lastMesh=null;
+        return this.runCount++;
+    }
+
+    /** 描画要素を追加します<br>
+     * mvはモデルビュー行列，rotationは法線の回転行列(3x3)，boundはモデル座標系の境界ボックス({最小点, 最大点})です */
+    public void add(VertexArrayObject vao, float[] mv, float[] rotation, float[][] bound){
+        int instance=this.drawData.size();
+        this.drawData.add(mv, rotation);
+        if (vao==this.lastMesh && !this.gpuCulling){
+            this.commands[(this.commandCount-1)*COMMAND_SIZE+1]++; // 同じメッシュならインスタンス数を増やす
+            return;
+        }
+        int[] entry=this.arena.register(vao);
+        if (this.commands.length<(this.commandCount+1)*COMMAND_SIZE){
+            this.commands=Arrays.copyOf(this.commands, this.commands.length*2);
+            this.bounds=Arrays.copyOf(this.bounds, this.bounds.length*2);
+        }
+        int b=this.commandCount*8;
+        this.bounds[b]=bound[0][0];
+        this.bounds[b+1]=bound[0][1];
+        this.bounds[b+2]=bound[0][2];
+        this.bounds[b+4]=bound[1][0];
+        this.bounds[b+5]=bound[1][1];
+        this.bounds[b+6]=bound[1][2];
+        int o=this.commandCount*COMMAND_SIZE;
+        this.commands[o]=entry[2];     // count
+        this.commands[o+1]=1;          // instanceCount
+        this.commands[o+2]=entry[1];   // firstIndex
+        this.commands[o+3]=entry[0];   // baseVertex
+        this.commands[o+4]=instance;   // baseInstance
+        this.commandCount++;
+        this.lastMesh=vao;
+    }
+
+    /** まだ転送していない描画単位をVRAMに転送し，GPUによる視界判定が有効なら判定を実行します<br>
+     * 判定でシェーダープログラムが切り替わるため，マテリアルを設定する前に呼び出してください．
+     * 返り値はシェーダープログラムを切り替えたかどうかです */
+    public boolean prepare(GL3 gl){
+        if (this.preparedRuns==this.runCount){
+            return false;
+        }
+        if (!this.drawData.isUploaded()){
+            this.drawData.init(gl, this.engine);
+        }
+        if (!this.arena.isUploaded()){
+            this.arena.init(gl, this.engine);
+        }
+        if (this.boundsBufferId==-1){
+            int[] id=new int[1];
+            gl.glGenBuffers(1, id, 0);
+            this.boundsBufferId=id[0];
+        }
+        if (this.runBufferCount<this.runCount){
+            gl.glGenBuffers(this.runCount-this.runBufferCount, this.runBufferIds, this.runBufferCount);
+            this.runBufferCount=this.runCount;
+        }
+        if (this.uploadedInstances!=this.drawData.size()){
+            this.drawData.upload(gl);
+            this.uploadedInstances=this.drawData.size();
+        }
+
+        this.runStarts[this.runCount]=this.commandCount;
+        boolean culled=false;
+        for (int r=this.preparedRuns;r<this.runCount;r++){
+            int start=this.runStarts[r];
+            int count=this.runStarts[r+1]-start;
+            if (count==0){
+                continue;
+            }
+            gl.glBindBuffer(GL3.GL_DRAW_INDIRECT_BUFFER, this.runBufferIds[r]);
+            gl.glBufferData(GL3.GL_DRAW_INDIRECT_BUFFER, count*COMMAND_SIZE*Integer.SIZE/8,
+                    IntBuffer.wrap(this.commands, start*COMMAND_SIZE, count*COMMAND_SIZE), GL3.GL_STREAM_DRAW);
+            gl.glBindBuffer(GL3.GL_DRAW_INDIRECT_BUFFER, 0);
+            if (!this.gpuCulling){
+                continue;
+            }
+
+            // 境界ボックスを転送し，コンピュートシェーダーでinstanceCountを書き換える
+            gl.glBindBuffer(GL3.GL_SHADER_STORAGE_BUFFER, this.boundsBufferId);
+            gl.glBufferData(GL3.GL_SHADER_STORAGE_BUFFER, count*8*Float.SIZE/8, FloatBuffer.wrap(this.bounds, start*8, count*8), GL3.GL_STREAM_DRAW);
+            gl.glBindBuffer(GL3.GL_SHADER_STORAGE_BUFFER, 0);
+            if (!this.culler.isUploaded()){
+                this.culler.init(gl, this.engine);
+            }
+            this.culler.dispatch(gl, this.runBufferIds[r], this.drawData.getBufferId(), this.boundsBufferId, count,
+                    this.pyramidTexture, this.pyramidWidth, this.pyramidHeight, this.pyramidLevels, this.pyramidMatrix);
+            culled=true;
+        }
+        this.preparedRuns=this.runCount;
+        return culled;
+    }
+
+    /** 準備された描画単位を1回の間接描画命令で描画します<br>
+     * prepare()の後に，シェーダープログラム，ユニフォーム変数，テクスチャを設定してから呼び出してください．
+     * 同じフレームの間は何度でも描画できます */
+    public void draw(GL3 gl, int run){
+        int start=this.runStarts[run];
+        int count=(run+1<this.runCount ? this.runStarts[run+1] : this.commandCount)-start;
+        if (count==0){
+            return;
+        }
+        this.arena.bind(gl);
+        gl.glBindBuffer(GL3.GL_DRAW_INDIRECT_BUFFER, this.runBufferIds[run]);
+        gl.glMultiDrawElementsIndirect(GL3.GL_TRIANGLES, GL3.GL_UNSIGNED_INT, null, count, 0); // バインド中のバッファの先頭から読み込みます
+        gl.glBindBuffer(GL3.GL_DRAW_INDIRECT_BUFFER, 0);
+    }
+
+    /** VRAMが初期化されたことを通知します */
+    public void vramFlushed(){
+        this.drawData.vramFlushed();
+        this.arena.vramFlushed();
+        this.culler.vramFlushed();
+        this.runBufferCount=0;
+        this.preparedRuns=0;
+        this.uploadedInstances=0;
+        this.boundsBufferId=-1;
+        this.pyramidTexture=0;
+    }
+}
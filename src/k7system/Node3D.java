@@ -16,14 +16,40 @@ public class Node3D {
 
     private float[] worldMatrix=VectorManager.createIdentityMatrix(4); // このモデルのワールド座標系での同次行列です
 
+    // 変換行列のキャッシュ
+    private float[] scaledMatrix=VectorManager.createIdentityMatrix(4); // scaleを反映した同次行列です
+    private float[] normalMatrix=VectorManager.createIdentityMatrix(3); // ワールド同次行列の回転部分の逆転置行列です
+    private boolean localDirty=true; // 同次行列またはscaleが変更されたかのフラグです
+    private boolean scaledDirty=true; // scaledMatrixの再計算が必要かのフラグです
+    private long worldVersion=0; // ワールド同次行列が再計算されるたびに増える番号です
+    private long parentWorldVersion=-1; // 最後に再計算した時点での親のworldVersionです
+    private long normalVersion=-1; // 法線行列を計算した時点でのworldVersionです
+    private boolean subtreeDirty=true; // このノードか子孫に更新が必要なものがあるかのフラグです
+
+    // 変換行列アリーナ
+    private TransformArena arena=null; // 登録されている場合，ワールド同次行列はアリーナ側が管理します
+    private int arenaIndex=-1;
+    private long arenaCopiedVersion=-1; // worldMatrixにアリーナの値をコピーした時点のバージョンです
+
     private String name="noName";
     private boolean destroyFlag=false;
     private Node3D parentModel=null;
     private ArrayList<Node3D> childNodes=new ArrayList<Node3D>();
-
-    private ArrayList<Node3D> destroyedModelList=new ArrayList<Node3D>(); // そのサイクルで破棄されたモデルリストです
+    private int childIndex=-1; // 親のchildNodes内での位置です
+    private int subtreeSize=1; // 自分を含む部分木のノード数です
+
+    // 部分木全体の境界(ワールド座標系)
+    private float[] subtreeBound=new float[6]; // minX,minY,minZ,maxX,maxY,maxZの順です
+    private float[] subtreeSphere=new float[4]; // 中心のx,y,zと半径の順です
+    private float[] ownBound=new float[6]; // このノード自身の形状のAABBです
+    private boolean hasOwnBound=false;
+    private boolean hasBound=false; // 部分木に形状があるかどうかです
+    private boolean boundless=false; // 部分木に境界の分からない物体があるかどうかです
+    private boolean boundDirty=true; // 境界の再計算が必要かどうかのフラグです
+    private long boundVersion=0; // 境界が再計算されるたびに増える番号です
 
     private boolean isVisible=true; //基本は可視
+    private boolean isStatic=false; // 静的(動かない)ノードかどうかです
     private float scale=1.0f; // 大きさ変更用
 
     /** 呼び出し元のグラフィックエンジンを取得します */
@@ -60,9 +86,26 @@ public class Node3D {
         isVisible=visibleFlag;
     }
 
+    /** 静的なノードかどうかを取得します */
+    public boolean isStatic(){
+        return this.isStatic;
+    }
+
+    /** 静的な(動かない)ノードかどうかを設定します<br>
+     * 静的なノードとその子孫のモデルは，StaticBatch.build()で1つにまとめる対象になります */
+    public void setStatic(boolean staticFlag){
+        this.isStatic=staticFlag;
+    }
+
+    /** 親オブジェクトを取得します */
+    public Node3D getParentObject(){
+        return parentModel;
+    }
+
     /** 親オブジェクトを設定します */
     public void setParentObject(Node3D parent){
         parentModel=parent;
+        this.markLocalDirty(); // 親が変わればワールド同次行列は必ず変わる
     }
 
     /** 子オブジェクトのリストを取得します */
@@ -71,20 +114,33 @@ public class Node3D {
     }
 
     /** 子オブジェクトを追加します<br>
-     * 同じオブジェクトを重複して登録することはできません */
+     * 同じオブジェクトを重複して登録することはできません．他のノードの子であった場合は，そちらから切り離してから追加します */
     public void attach(Node3D child){
-        if (!this.childNodes.contains(child)){ // 重複チェック
-            child.setParentObject(this); // 子供の親を自分に設定
-            child.setEngine(this.gEngine);
-            childNodes.add(child);
+        if (child.parentModel==this && child.childIndex>=0){ // 重複チェック
+            return;
+        }
+        if (child.parentModel!=null){
+            child.parentModel.detach(child); // 付け替え
+        }
+        child.setParentObject(this); // 子供の親を自分に設定(新しい祖先にも更新が必要なことが伝わる)
+        child.setEngine(this.gEngine);
+        child.childIndex=childNodes.size();
+        childNodes.add(child);
+        this.addSubtreeSize(child.subtreeSize);
+        child.markBoundDirty();
+        if (this.arena!=null){
+            this.arena.markStructureChanged();
         }
     }
 
     /** 子オブジェクトを切り離します<br>
-     * 切り離された子オブジェクトは消滅するわけではないため，リソースを削除するためには改めてdispose()を呼ぶ必要があります．*/
+     * 切り離された子オブジェクトは消滅するわけではないため，リソースを削除するためには改めてdispose()を呼ぶ必要があります．<br>
+     * 末尾の子オブジェクトを空いた位置に移すため，子オブジェクトの並び順は保存されません．*/
     public void detach(Node3D child){
+        if (child.parentModel==this && child.childIndex>=0){
+            this.removeChildAt(child.childIndex);
+        }
         child.detachInternal(); // 分離処理を呼ぶ
-        childNodes.remove(child);
     }
 
     /** 親オブジェクトから離脱します<br>
@@ -96,8 +152,53 @@ public class Node3D {
         }
     }
 
+    /** 指定した位置の子オブジェクトをリストから取り除きます<br>
+     * 末尾の要素を空いた位置に移すので，定数時間で終わります */
+    private Node3D removeChildAt(int index){
+        Node3D child=this.childNodes.get(index);
+        Node3D last=this.childNodes.remove(this.childNodes.size()-1);
+        if (last!=child){
+            this.childNodes.set(index, last);
+            last.childIndex=index;
+        }
+        child.childIndex=-1;
+        this.addSubtreeSize(-child.subtreeSize);
+        this.markBoundDirty();
+        if (this.gEngine!=null && this.gEngine.getSpatialIndex()!=null){
+            this.gEngine.getSpatialIndex().removeSubtree(child);
+        }
+        if (this.arena!=null){
+            this.arena.markStructureChanged();
+        }
+        return child;
+    }
+
+    /** このノードと祖先の部分木のノード数を増減します */
+    private void addSubtreeSize(int delta){
+        for (Node3D node=this;node!=null;node=node.parentModel){
+            node.subtreeSize+=delta;
+        }
+    }
+
+    /** 自分を含む部分木のノード数を取得します<br>
+     * 子オブジェクトの追加や切り離しのたびに更新されます */
+    public int getSubtreeSize(){
+        return this.subtreeSize;
+    }
+
+    /** 親のリストから自分を取り除きます<br>
+     * 破棄処理用なので，dispose()でエンジンから登録を消せるようにグラフィックエンジンへの参照は残します */
+    void removeFromParent(){
+        if (this.parentModel!=null && this.childIndex>=0){
+            this.parentModel.removeChildAt(this.childIndex);
+        }
+    }
+
     /** 内部的なデタッチ処理です */
     protected void detachInternal(){
+        if (this.arena!=null){
+            this.arena.release(this);
+        }
         if (this.parentModel!=null){
             this.parentModel=null;
         }
@@ -108,43 +209,130 @@ public class Node3D {
      * 同次行列自体に反映されるため，このノードの子オブジェクト全てが影響を受けます */
     public void setScale(float zoom){
         this.scale=zoom;
+        this.markLocalDirty();
     }
 
     /** 同次行列を取得します<br>
-     * scaleが設定されていた場合，それを反映した同次行列となります */
+     * scaleが設定されていた場合，それを反映した同次行列となります．返り値はクローンです */
     public float[] getMatrix(){
-        float[] mat=this.matrix.clone();
-        mat[0]*=this.scale;
-        mat[1]*=this.scale;
-        mat[2]*=this.scale;
-        mat[4]*=this.scale;
-        mat[5]*=this.scale;
-        mat[6]*=this.scale;
-        mat[8]*=this.scale;
-        mat[9]*=this.scale;
-        mat[10]*=this.scale;
-        return mat;
-    }
-
-    /** 同次行列を設定します */
+        return this.getScaledMatrix().clone();
+    }
+
+    /** 同次行列を設定します<br>
+     * 値はコピーされるため，設定後に引数の配列を変更しても反映されません．変更した場合は再度このメソッドを呼んでください */
     public void setMatrix(float[] mat){
-        this.matrix=mat;
+        System.arraycopy(mat, 0, this.matrix, 0, 16);
+        this.markLocalDirty();
+    }
+
+    /** 同次行列が変更されたことを通知します<br>
+     * このノード以下のワールド同次行列は次の更新時に再計算されます */
+    protected void markLocalDirty(){
+        this.localDirty=true;
+        this.scaledDirty=true;
+        this.markSubtreeDirty();
+        if (this.arena!=null){
+            this.arena.markDirty(this.arenaIndex);
+        }
+    }
+
+    /** scaleを反映した同次行列を取得します<br>
+     * キャッシュを直接返すため，内容を変更しないでください */
+    protected float[] getScaledMatrix(){
+        if (this.scaledDirty){
+            this.scaledDirty=false;
+            float[] mat=this.scaledMatrix;
+            System.arraycopy(this.matrix, 0, mat, 0, 16);
+            mat[0]*=this.scale;
+            mat[1]*=this.scale;
+            mat[2]*=this.scale;
+            mat[4]*=this.scale;
+            mat[5]*=this.scale;
+            mat[6]*=this.scale;
+            mat[8]*=this.scale;
+            mat[9]*=this.scale;
+            mat[10]*=this.scale;
+        }
+        return this.scaledMatrix;
     }
 
-    /** このノードのワールド座標での同次行列を取得します */
+    /** このノードのワールド座標での同次行列を取得します<br>
+     * 配列は再計算のたびに上書きされます */
     public float[] getWorldMatrix(){
+        if (this.arena!=null){
+            long version=this.arena.getVersion(this.arenaIndex);
+            if (version!=this.arenaCopiedVersion){
+                this.arena.copyWorldMatrix(this.arenaIndex, this.worldMatrix);
+                this.arenaCopiedVersion=version;
+            }
+        }
         return this.worldMatrix;
     }
 
+    /** ワールド同次行列が再計算されるたびに増える番号を取得します<br>
+     * この値が変わっていなければ，ワールド同次行列とそこから導かれる値は再利用できます */
+    public long getWorldVersion(){
+        if (this.arena!=null){
+            return this.arena.getVersion(this.arenaIndex);
+        }
+        return this.worldVersion;
+    }
+
+    /** このノードが登録されている変換行列アリーナを取得します<br>
+     * 登録されていなければnullが返ります */
+    public TransformArena getTransformArena(){
+        return this.arena;
+    }
+
+    /** 変換行列アリーナでのこのノードの番号を取得します */
+    public int getTransformArenaIndex(){
+        return this.arenaIndex;
+    }
+
+    /** 変換行列アリーナに登録します<br>
+     * アリーナから呼び出されます */
+    void bindTransformArena(TransformArena arena, int index){
+        this.arena=arena;
+        this.arenaIndex=index;
+        this.arenaCopiedVersion=-1;
+    }
+
+    /** 変換行列アリーナから解放します<br>
+     * アリーナが持っていたワールド同次行列を引き継ぎます */
+    void unbindTransformArena(){
+        if (this.arena!=null){
+            this.getWorldMatrix(); // 最新の値を取り込む
+            this.worldVersion=this.arena.getVersion(this.arenaIndex);
+            this.arena=null;
+            this.arenaIndex=-1;
+            this.localDirty=true;
+            this.markSubtreeDirty();
+        }
+    }
+
+    /** ワールド同次行列の回転部分の逆転置行列(3x3)を取得します<br>
+     * 法線ベクトルをワールド座標系に変換するために利用します．ワールド同次行列が変わるまではキャッシュが返ります．
+     * 配列は再計算のたびに上書きされます */
+    public float[] getWorldNormalMatrix(){
+        long version=this.getWorldVersion();
+        if (this.normalVersion!=version){
+            VectorManager.getNormalMatrix(this.getWorldMatrix(), this.normalMatrix);
+            this.normalVersion=version;
+        }
+        return this.normalMatrix;
+    }
+
     /** ノードのワールド座標を取得します<br>
      * 3次元ベクトルです．*/
     public float[] getWorldPosition(){
-        return new float[]{this.worldMatrix[12],this.worldMatrix[13],this.worldMatrix[14]};
+        float[] world=this.getWorldMatrix();
+        return new float[]{world[12],world[13],world[14]};
     }
 
     /** モデルのワールド座標を取得します */
     public float[] getPositionByArray(){
-        return new float[]{this.worldMatrix[12],this.worldMatrix[13],this.worldMatrix[14]};
+        float[] world=this.getWorldMatrix();
+        return new float[]{world[12],world[13],world[14]};
     }
 
     /** ノードの座標を設定します<br>
@@ -153,6 +341,7 @@ public class Node3D {
         matrix[12]=x;
         matrix[13]=y;
         matrix[14]=z;
+        this.markLocalDirty();
     }
 
     /** モデルを移動させます<br>
@@ -161,6 +350,7 @@ public class Node3D {
         matrix[12]+=x;
         matrix[13]+=y;
         matrix[14]+=z;
+        this.markLocalDirty();
     }
 
     /** モデルの回転角を指定します<br>
@@ -175,6 +365,7 @@ public class Node3D {
             x*z*(1-cosAngle)+y*sinAngle,y*z*(1-cosAngle)-x*sinAngle,z*z*(1-cosAngle)+cosAngle,0,
             matrix[12],matrix[13],matrix[14],1
         };
+        this.markLocalDirty();
     }
 
     /** モデルを回転させます<br>
@@ -198,6 +389,7 @@ public class Node3D {
         matrix[12]=nowX;
         matrix[13]=nowY;
         matrix[14]=nowZ;
+        this.markLocalDirty();
     }
 
     /** 破棄フラグを取得します */
@@ -208,6 +400,7 @@ public class Node3D {
     /** 破棄フラグを設定します */
     public void setDestroyFlag(boolean flag) {
         destroyFlag=flag;
+        this.markBoundDirty(); // 祖先がカリングされないようにする
     }
 
     /** このノードにVRAMフラッシュを通知します */
@@ -224,33 +417,232 @@ public class Node3D {
     }
 
     /** モデル描画用のメソッドです。<br>
-     *  グラフィックエンジンから呼び出されます。 */
-    public void draw(GL3 gli){
-        GL3 gl=(GL3)gli;
+     *  このノード以下をその場で収集して描画します．グラフィックエンジンに登録したノードはエンジン側で描画されるため，呼び出す必要はありません． */
+    public void draw(GL3 gl){
+        RenderList list=new RenderList();
+        if (this.gEngine!=null){
+            list.setCameraMatrices(this.gEngine.getViewMatrix(), this.gEngine.getPerspectiveMatrix(), this.gEngine.getPVMatrix());
+            list.setLights(this.gEngine.getLightObjects());
+        }
+        TransformUpdater.updateSubtree(this); // 行列と境界を更新
+        this.collectRenderItems(list);
+        for (Node3D node:list.getDestroyedNodes()){
+            node.dispose(gl);
+        }
+        list.submit(gl);
+    }
 
-        // 親階層のワールド同次行列を取得
-        float[] worldMatrixOfParentNode;
-        if (this.parentModel!=null){
-            worldMatrixOfParentNode=this.parentModel.getWorldMatrix();
-        }else{
-            worldMatrixOfParentNode=VectorManager.createIdentityMatrix(4);
+    /** このノード以下の描画対象をレンダーリストに収集します<br>
+     * ワールド同次行列の更新も同時に行います．描画そのものは行いません．<br>
+     * 視錐台カリングが有効な場合，部分木の境界が視錐台の外側にあれば子孫も含めて収集しません． */
+    public void collectRenderItems(RenderList list){
+        this.updateWorldMatrix();
+        int state=list.enterNode(this);
+        if (state==RenderList.NODE_CULLED){
+            return;
         }
-        float[] worldMatrix=VectorManager.multMatrix4(worldMatrixOfParentNode,this.getMatrix()); // 自分のワールド同次行列を計算
-        this.worldMatrix=worldMatrix; // ワールド同次行列を更新
+        this.collectChildRenderItems(list);
+        list.leaveNode(state);
+    }
 
-        for(Node3D child:childNodes){// 子オブジェクトの描画を行います
+    /** 子ノードの描画対象をレンダーリストに収集します<br>
+     * 破棄フラグの立っている子ノードはここで切り離され，レンダーリストに破棄対象として登録されます */
+    protected void collectChildRenderItems(RenderList list){
+        int i=0;
+        while (i<this.childNodes.size()){
+            Node3D child=this.childNodes.get(i);
             if(child.isDestroyFlag()){ // 削除フラグが立っていた場合
-                child.dispose(gl);
-                destroyedModelList.add(child);
+                // 末尾の子が位置iに移ってくるので，iは進めない
+                this.removeChildAt(i);
+                list.addDestroyedNode(child);
             }else{
-                child.draw(gl);
+                child.collectRenderItems(list);
+                i++;
             }
         }
+    }
+
+    /** 親ノードのワールド同次行列からこのノードのワールド同次行列を計算します<br>
+     * 自分の同次行列が変更されておらず，親のワールド同次行列も前回から変わっていなければ何もしません．
+     * 親が先に更新されていることが前提です．返り値は再計算を行ったかどうかです<br>
+     * 変換行列アリーナに登録されている場合は，アリーナ側でまとめて更新されるため何もしません */
+    protected boolean updateWorldMatrix(){
+        if (this.arena!=null){
+            return false;
+        }
+        long parentVersion=0;
+        if (this.parentModel!=null){
+            parentVersion=this.parentModel.getWorldVersion();
+        }
+        if (!this.localDirty && parentVersion==this.parentWorldVersion){
+            return false;
+        }
+
+        float[] local=this.getScaledMatrix();
+        if (this.parentModel!=null){
+            VectorManager.multMatrix4(this.parentModel.getWorldMatrix(), local, this.worldMatrix); // 自分のワールド同次行列を計算
+        }else{
+            System.arraycopy(local, 0, this.worldMatrix, 0, 16); // 親がいなければ同次行列そのもの
+        }
+        this.localDirty=false;
+        this.parentWorldVersion=parentVersion;
+        this.worldVersion++;
+        this.boundDirty=true;
+        return true;
+    }
+
+    /** このノード自身の形状の境界をモデル座標系で取得します<br>
+     * 返り値は{minX, minY, minZ, maxX, maxY, maxZ}です．形状を持たない場合はnullを返します．
+     * 形状を持つ派生クラスはオーバーライドし，形状が変わった際にはmarkBoundDirty()を呼んでください */
+    protected float[] getLocalBound(){
+        return null;
+    }
+
+    /** 境界を持たない物体かどうかを取得します<br>
+     * trueの場合，このノードを含む部分木はカリングされません．破棄フラグの立ったノードは，次の収集で確実に切り離されるようにtrueを返します */
+    protected boolean isBoundless(){
+        return this.destroyFlag;
+    }
+
+    /** 部分木をカリングの対象にできるかどうかを取得します<br>
+     * 部分木に形状があり，境界の分からない物体を含まない場合にtrueになります */
+    public boolean isCullable(){
+        return this.hasBound && !this.boundless;
+    }
+
+    /** 境界の再計算が必要であることを通知します<br>
+     * 次の更新時にこのノードと祖先の境界が再計算されます */
+    protected void markBoundDirty(){
+        this.boundDirty=true;
+        this.markSubtreeDirty();
+        if (this.arena!=null){
+            this.arena.markBoundDirty(this.arenaIndex);
+        }
+    }
+
+    /** このノードと祖先に，部分木の更新が必要であることを記録します<br>
+     * 既に記録されている祖先まで来たら，それより上は記録済みなので止めます */
+    private void markSubtreeDirty(){
+        this.subtreeDirty=true;
+        Node3D node=this.parentModel;
+        while (node!=null && !node.subtreeDirty){
+            node.subtreeDirty=true;
+            node=node.parentModel;
+        }
+    }
+
+    /** 部分木に更新が必要なノードがあるかどうかを取得し，記録を消去します<br>
+     * 更新処理が部分木を訪れる際に呼び出します．falseであれば部分木を走査する必要はありません */
+    boolean clearSubtreeDirty(){
+        boolean dirty=this.subtreeDirty;
+        this.subtreeDirty=false;
+        return dirty;
+    }
 
-        // 破棄済みモデルをリストから削除します
-        for(Node3D node:destroyedModelList){
-            childNodes.remove(node);
+    /** 部分木全体の境界を再計算します<br>
+     * 子ノードの境界が先に更新されていることが前提です．再計算が必要なければ何もしません．
+     * 再計算した場合は親にも再計算が必要であることを通知します．返り値は再計算を行ったかどうかです */
+    protected boolean updateBound(){
+        if (!this.boundDirty){
+            return false;
+        }
+        this.boundDirty=false;
+
+        float[] bound=this.subtreeBound;
+        float[] sphere=this.subtreeSphere;
+        boolean found=false;
+        float[] local=this.getLocalBound();
+        if (local!=null){
+            float[] world=this.getWorldMatrix();
+            VectorManager.transformBound(local, world, this.ownBound);
+            System.arraycopy(this.ownBound, 0, bound, 0, 6);
+            VectorManager.transformSphere(local, world, sphere);
+            found=true;
+        }
+        this.hasOwnBound=found;
+        for (int i=0;i<this.childNodes.size();i++){
+            Node3D child=this.childNodes.get(i);
+            if (!child.hasBound){
+                continue;
+            }
+            float[] childBound=child.subtreeBound;
+            if (found){
+                for (int j=0;j<3;j++){
+                    bound[j]=Math.min(bound[j], childBound[j]);
+                    bound[j+3]=Math.max(bound[j+3], childBound[j+3]);
+                }
+                VectorManager.mergeSphere(sphere, child.subtreeSphere);
+            }else{
+                System.arraycopy(childBound, 0, bound, 0, 6);
+                System.arraycopy(child.subtreeSphere, 0, sphere, 0, 4);
+                found=true;
+            }
+        }
+        boolean unknown=this.isBoundless();
+        for (int i=0;i<this.childNodes.size() && !unknown;i++){
+            unknown=this.childNodes.get(i).boundless;
         }
+        this.hasBound=found;
+        this.boundless=unknown;
+        this.boundVersion++;
+
+        // 空間インデックスに自分の境界が変わったことを通知
+        if (this.hasOwnBound || this.isBoundless()){
+            GraphicEngine engine=this.gEngine;
+            if (engine!=null && engine.getSpatialIndex()!=null){
+                engine.getSpatialIndex().requestUpdate(this);
+            }
+        }
+        if (this.parentModel!=null){
+            this.parentModel.boundDirty=true;
+        }
+        return true;
+    }
+
+    /** 部分木に境界を持つ形状が含まれているかどうかを取得します */
+    public boolean hasBound(){
+        return this.hasBound;
+    }
+
+    /** 境界のバージョンを取得します<br>
+     * 部分木の境界が再計算されるたびに増えます */
+    public long getBoundVersion(){
+        return this.boundVersion;
+    }
+
+    /** このノード以下の部分木全体を包むAABBをワールド座標系で取得します<br>
+     * 返り値は{minX, minY, minZ, maxX, maxY, maxZ}のクローンです．hasBound()がfalseの場合，内容は不定です */
+    public float[] getSubtreeBoundByArray(){
+        return this.subtreeBound.clone();
+    }
+
+    /** このノード以下の部分木全体を包む球をワールド座標系で取得します<br>
+     * 返り値は{centerX, centerY, centerZ, radius}のクローンです．hasBound()がfalseの場合，内容は不定です */
+    public float[] getSubtreeSphereByArray(){
+        return this.subtreeSphere.clone();
+    }
+
+    /** このノード自身の形状のAABBをワールド座標系で取得します<br>
+     * 直前の境界更新で計算された値です．形状を持たない場合はnullを返します．内容を変更しないでください */
+    float[] getOwnBound(){
+        return this.hasOwnBound ? this.ownBound : null;
+    }
+
+    /** 親ノードの子として登録されているかどうかを取得します */
+    boolean isAttached(){
+        return this.parentModel!=null && 0<=this.childIndex;
+    }
+
+    /** 部分木のAABBを格納している配列を取得します<br>
+     * 内容を変更しないでください */
+    float[] getSubtreeBound(){
+        return this.subtreeBound;
+    }
+
+    /** 部分木の境界球を格納している配列を取得します<br>
+     * 内容を変更しないでください */
+    float[] getSubtreeSphere(){
+        return this.subtreeSphere;
     }
 
     /** 現在確保している資源をすべて破棄します<br>
@@ -40,17 +40,46 @@ public abstract class Object3D extends Node3D{
         this.shadowTarget=shadowFlag;
     }
 
-    /** ノードの描画処理です<br>
-     * 不透明なモデルに関しては，この時点で描画してしまいます． */
+    /** 描画対象をレンダーリストに収集します<br>
+     * 部分木が視錐台の外側であれば何もしません．可視であれば自分を登録した後，子ノードを収集します．描画はレンダーリスト側でまとめて行われます． */
     @Override
-    public void draw(GL3 gl){
-        super.draw(gl);
-        if (this.transparentType==BlendType.NOT){
-            this.drawObject(gl);
-        }else{
-            this.getEngine().addTransModel(this);
+    public void collectRenderItems(RenderList list){
+        this.updateWorldMatrix();
+        int state=list.enterNode(this);
+        if (state==RenderList.NODE_CULLED){
+            return;
         }
-        super.draw(gl); // 子モデルの描画
+        if (this.isVisible()){
+            list.add(this, this.getWorldMatrix(), this.getWorldNormalMatrix());
+        }
+        this.collectChildRenderItems(list);
+        list.leaveNode(state);
+    }
+
+    /** 境界を持たない物体かどうかを取得します<br>
+     * 形状の境界が分からない物体は常に描画対象になり，その祖先もカリングされません */
+    @Override
+    protected boolean isBoundless(){
+        return super.isBoundless() || this.getLocalBound()==null;
+    }
+
+    /** レンダーリストの要素を利用して描画します<br>
+     * 標準ではdrawObject(GL3)を呼び出します．収集時に計算した行列を利用する場合はオーバーライドしてください． */
+    public void drawObject(GL3 gl, RenderItem item){
+        this.drawObject(gl);
+    }
+
+    /** レンダーリストに収集された時点の状態をアイテムに記録します<br>
+     * 収集したスレッドで呼び出されます．描画スレッドがシーンを参照せずに描画できるように，
+     * 描画に必要な状態を持つ派生クラスはオーバーライドしてください．標準では何もしません */
+    void snapshot(RenderItem item){
+    }
+
+    /** 描画キューにこのオブジェクトの描画要素を登録します<br>
+     * 標準では状態ソートの対象にならない要素を1つ登録し，描画時にはdrawObject(GL3, RenderItem)が呼び出されます．
+     * 頂点パッケージ単位で描画できるオブジェクトはオーバーライドしてください． */
+    public void enqueueDraws(DrawQueue queue, RenderItem item){
+        queue.addObject(item);
     }
 
     public abstract void drawObject(GL3 gl);
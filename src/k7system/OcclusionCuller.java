@@ -0,0 +1,294 @@
+package k7system;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.jogamp.opengl.GL3;
+
+import k7system.gpuobjects.DepthPyramid;
+
+/** 奥行きピラミッド(Hi-Z)による遮蔽カリングを行うクラスです<br>
+ * 描画の前にレンダーリストの遮蔽物でカメラの深度バッファ(CameraObject.drawDepthBuffer)を描画し，そこから奥行きピラミッドを作ります．
+ * 境界ボックスが画面上で覆う範囲の最も奥の深度より，境界ボックスの最も手前の深度が奥にあれば，その頂点パッケージは描画されません．<br>
+ * 間接描画でGPUによる視界判定を行う場合は，このフレームの奥行きピラミッドをコンピュートシェーダーに渡して判定します．
+ * それ以外の描画は，縮小したレベルをピクセルバッファオブジェクト(PBO)経由で非同期に読み戻し，CPUで判定します．
+ * 読み戻しは1～2フレーム遅れるため，読み戻した時点の行列で境界ボックスを投影し，その時点の画面からはみ出すものは判定しません．
+ * 物陰から現れた物体は，読み戻しが追いつくまでの1～2フレームの間描画されないことがあります．<br>
+ * 遮蔽物になるのは影生成属性が付いている不透明なモデルで，最も粗いLoDで描画されます．粗いLoDの形状は元の形状からはみ出さないようにしてください．
+ * 描画スレッドからのみ利用されることを想定しています */
+public class OcclusionCuller {
+    public static final int DEFAULT_READBACK_SIZE=64;
+    private static final int SLOTS=3; // 同時に読み戻し中にできる数
+
+    private GraphicEngine engine;
+    private DepthPyramid pyramid=new DepthPyramid();
+    private boolean enabled=false;
+    private int readbackSize=DEFAULT_READBACK_SIZE;
+    private Readback[] slots=new Readback[SLOTS];
+
+    // GPUでの判定用
+    private float[] pyramidMatrix=new float[16];
+
+    // CPUでの判定用(最後に読み戻した深度)
+    private float[] depth=null;
+    private int depthWidth;
+    private int depthHeight;
+    private int depthLevel; // 読み戻したレベル
+    private int depthBaseWidth; // 読み戻した時点のレベル0の大きさ
+    private int depthBaseHeight;
+    private float[] depthPvMatrix=new float[16];
+    private long depthFrame=-1;
+    private long frameCount=0;
+    private float[] reprojection=new float[16]; // ビュー座標系から読み戻した時点のクリップ座標への変換
+    private float[] work=new float[16];
+    private int occludedCount=0;
+
+    /** 読み戻し中のデータです */
+    private static class Readback{
+        private int pbo=-1;
+        private int capacity=0;
+        private long sync=0;
+        private boolean busy=false;
+        private int width;
+        private int height;
+        private int level;
+        private int baseWidth;
+        private int baseHeight;
+        private long frame; // 読み出しを始めたフレームの番号
+        private float[] pvMatrix=new float[16];
+    }
+
+    /** コンストラクタでエンジンを指定します */
+    public OcclusionCuller(GraphicEngine engine){
+        this.engine=engine;
+        this.pyramid.addParent(this); // 使いまわすので抹消されないようにする
+        this.pyramid.setName("Occlusion Pyramid");
+        for (int i=0;i<SLOTS;i++){
+            this.slots[i]=new Readback();
+        }
+    }
+
+    /** 遮蔽カリングを行うかどうかを取得します */
+    public boolean isEnabled(){
+        return this.enabled;
+    }
+
+    /** 遮蔽カリングを行うかどうかを設定します<br>
+     * 有効にすると，毎フレームの描画前にカメラの深度バッファと奥行きピラミッドを作成します */
+    public void setEnabled(boolean enabled){
+        this.enabled=enabled;
+        if (!enabled){
+            this.depth=null;
+        }
+    }
+
+    /** CPUでの判定のために読み戻す大きさ(ピクセル)を取得します */
+    public int getReadbackSize(){
+        return this.readbackSize;
+    }
+
+    /** CPUでの判定のために読み戻す大きさ(ピクセル)を設定します<br>
+     * 幅と高さがこの値以下になる最初のレベルが読み戻されます．大きいほど判定は正確になりますが，判定と転送の負荷が増えます */
+    public void setReadbackSize(int size){
+        this.readbackSize=Math.max(1, size);
+    }
+
+    /** 奥行きピラミッドを取得します */
+    public DepthPyramid getPyramid(){
+        return this.pyramid;
+    }
+
+    /** 直近のフレームでCPUでの判定により描画されなかった頂点パッケージの数を取得します */
+    public int getOccludedCount(){
+        return this.occludedCount;
+    }
+
+    /** VRAMが初期化されたことを通知します<br>
+     * 読み戻し中の結果は破棄されます */
+    public void vramFlushed(){
+        this.pyramid.vramFlushed();
+        for (Readback slot:this.slots){
+            slot.pbo=-1;
+            slot.capacity=0;
+            slot.sync=0;
+            slot.busy=false;
+        }
+        this.depth=null;
+        this.depthFrame=-1;
+    }
+
+    /** 完了した読み戻しを取り込み，このフレームの深度バッファと奥行きピラミッドを作成します<br>
+     * 描画スレッドで，描画リストを描画する前に呼び出します */
+    void render(GL3 gl, RenderList list){
+        this.occludedCount=0;
+        this.frameCount++;
+        MultiDrawIndirect multiDraw=this.engine.getMultiDrawIndirect();
+        if (!this.enabled){
+            if (multiDraw!=null){
+                multiDraw.setOcclusionPyramid(0, 0, 0, 0, null);
+            }
+            return;
+        }
+        if (!this.pyramid.isUploaded()){
+            this.pyramid.init(gl, this.engine);
+        }
+        this.poll(gl);
+
+        // このフレームの行列で深度を描画し，奥行きピラミッドを作る
+        float[] pvMatrix=list.getPVMatrix();
+        float[] inverseView=VectorManager.getInverse4(list.getViewMatrix());
+        CameraObject camera=this.engine.getCameraObject();
+        camera.drawDepthBuffer(gl, list); // 収集時点の遮蔽物だけを描画
+        this.pyramid.build(gl, camera.getDepthFbo().getTexture());
+        this.engine.getStateCache().viewport(gl, 0, 0, this.engine.getScreenWidth(), this.engine.getScreenHeight()); // ビューポートを戻しておく
+
+        if (multiDraw!=null && inverseView!=null){
+            VectorManager.multMatrix4(pvMatrix, inverseView, this.pyramidMatrix);
+            multiDraw.setOcclusionPyramid(this.pyramid.getTextureId(), this.pyramid.getWidth(), this.pyramid.getHeight(), this.pyramid.getLevels(), this.pyramidMatrix);
+        }
+
+        // 縮小したレベルを読み戻す(結果は後のフレームで取り込む)
+        Readback slot=this.freeSlot();
+        if (slot!=null){
+            System.arraycopy(pvMatrix, 0, slot.pvMatrix, 0, 16);
+            slot.frame=this.frameCount;
+            this.startReadback(gl, slot);
+        }
+
+        // 読み戻し済みの深度を，このフレームのビュー座標系から参照できるようにする
+        if (this.depth!=null){
+            if (inverseView==null){
+                this.depth=null;
+            }else{
+                VectorManager.multMatrix4(this.depthPvMatrix, inverseView, this.reprojection);
+            }
+        }
+    }
+
+    /** 頂点パッケージが読み戻した深度より完全に奥にあるかどうかを判定します<br>
+     * boundはモデル座標系の境界ボックス({最小点, 最大点})，mvMatrixはモデルビュー行列です．
+     * 判定できない場合はfalseを返します */
+    public boolean isOccluded(float[][] bound, float[] mvMatrix){
+        float[] d=this.depth;
+        if (!this.enabled || d==null){
+            return false;
+        }
+        float[] m=VectorManager.multMatrix4(this.reprojection, mvMatrix, this.work);
+        float minX=1, minY=1, maxX=0, maxY=0;
+        float nearest=1;
+        for (int k=0;k<8;k++){
+            float x=bound[k & 1][0];
+            float y=bound[(k>>1) & 1][1];
+            float z=bound[(k>>2) & 1][2];
+            float w=m[3]*x+m[7]*y+m[11]*z+m[15];
+            if (w<=0){
+                return false; // 視点の後ろにかかる場合は判定しない
+            }
+            float nx=(m[0]*x+m[4]*y+m[8]*z+m[12])/w*0.5f+0.5f;
+            float ny=(m[1]*x+m[5]*y+m[9]*z+m[13])/w*0.5f+0.5f;
+            float nz=(m[2]*x+m[6]*y+m[10]*z+m[14])/w*0.5f+0.5f;
+            minX=Math.min(minX, nx);
+            minY=Math.min(minY, ny);
+            maxX=Math.max(maxX, nx);
+            maxY=Math.max(maxY, ny);
+            nearest=Math.min(nearest, nz);
+        }
+        if (minX<0 || minY<0 || 1<maxX || 1<maxY){
+            return false; // 読み戻した時点の画面からはみ出す部分の深度は分からない
+        }
+
+        // 覆う範囲の最も奥の深度と比べる(各レベルの端の画素は余りの画素もまとめているので，レベル0の画素から求める)
+        int x0=Math.min((int)(minX*this.depthBaseWidth)>>this.depthLevel, this.depthWidth-1);
+        int x1=Math.min((int)(maxX*this.depthBaseWidth)>>this.depthLevel, this.depthWidth-1);
+        int y0=Math.min((int)(minY*this.depthBaseHeight)>>this.depthLevel, this.depthHeight-1);
+        int y1=Math.min((int)(maxY*this.depthBaseHeight)>>this.depthLevel, this.depthHeight-1);
+        for (int y=y0;y<=y1;y++){
+            int row=y*this.depthWidth;
+            for (int x=x0;x<=x1;x++){
+                if (nearest<=d[row+x]){
+                    return false;
+                }
+            }
+        }
+        this.occludedCount++;
+        return true;
+    }
+
+    /** 読み戻すレベルをPBOへ読み出し，フェンスを置きます */
+    private void startReadback(GL3 gl, Readback slot){
+        int level=0;
+        while (level<this.pyramid.getLevels()-1
+                && (this.readbackSize<this.pyramid.getLevelWidth(level) || this.readbackSize<this.pyramid.getLevelHeight(level))){
+            level++;
+        }
+        slot.width=this.pyramid.getLevelWidth(level);
+        slot.height=this.pyramid.getLevelHeight(level);
+        slot.level=level;
+        slot.baseWidth=this.pyramid.getWidth();
+        slot.baseHeight=this.pyramid.getHeight();
+        int bytes=slot.width*slot.height*Float.SIZE/8;
+        if (slot.pbo==-1){
+            int[] id=new int[1];
+            gl.glGenBuffers(1, id, 0);
+            slot.pbo=id[0];
+        }
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slot.pbo);
+        if (slot.capacity<bytes){
+            gl.glBufferData(GL3.GL_PIXEL_PACK_BUFFER, bytes, null, GL3.GL_STREAM_READ);
+            slot.capacity=bytes;
+        }
+        gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, this.pyramid.getLevelFbo(level));
+        gl.glReadPixels(0, 0, slot.width, slot.height, GL3.GL_RED, GL3.GL_FLOAT, 0L);
+        gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, 0);
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+        slot.sync=gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.busy=true;
+    }
+
+    /** 完了した読み戻しを取り込みます<br>
+     * 取り込み済みのものより古い読み戻しは捨てます */
+    private void poll(GL3 gl){
+        for (int i=0;i<SLOTS;i++){
+            Readback slot=this.slots[i];
+            if (!slot.busy){
+                continue;
+            }
+            int status=gl.glClientWaitSync(slot.sync, 0, 0); // 待たずに状態だけ確認する
+            if (status!=GL3.GL_ALREADY_SIGNALED && status!=GL3.GL_CONDITION_SATISFIED){
+                continue;
+            }
+            gl.glDeleteSync(slot.sync);
+            slot.sync=0;
+            int count=slot.width*slot.height;
+            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slot.pbo);
+            ByteBuffer mapped=(slot.frame<this.depthFrame) ? null : gl.glMapBufferRange(GL3.GL_PIXEL_PACK_BUFFER, 0, count*Float.SIZE/8, GL3.GL_MAP_READ_BIT);
+            if (mapped!=null){
+                FloatBuffer values=mapped.order(ByteOrder.nativeOrder()).asFloatBuffer();
+                if (this.depth==null || this.depth.length!=count){
+                    this.depth=new float[count];
+                }
+                values.get(this.depth);
+                this.depthWidth=slot.width;
+                this.depthHeight=slot.height;
+                this.depthLevel=slot.level;
+                this.depthBaseWidth=slot.baseWidth;
+                this.depthBaseHeight=slot.baseHeight;
+                this.depthFrame=slot.frame;
+                System.arraycopy(slot.pvMatrix, 0, this.depthPvMatrix, 0, 16);
+                gl.glUnmapBuffer(GL3.GL_PIXEL_PACK_BUFFER);
+            }
+            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+            slot.busy=false;
+        }
+    }
+
+    private Readback freeSlot(){
+        for (Readback slot:this.slots){
+            if (!slot.busy){
+                return slot;
+            }
+        }
+        return null; // 読み戻し待ちが詰まっている場合は次のフレームに回す
+    }
+}
@@ -0,0 +1,58 @@
+package k7system;
+
+import k7system.gpuobjects.VertexPackage;
+
+/** レイ判定の結果です<br>
+ * 交差したモデルと頂点パッケージ，三角形の番号，レイの始点からの距離，ワールド座標系での交点を保持します */
+public class RayHit {
+    private Model3D model;
+    private VertexPackage vertexPackage;
+    private int triangle;
+    private float distance;
+    private float[] point;
+    private float u, v; // 三角形内の重心座標
+
+    RayHit(Model3D model, VertexPackage vertexPackage, int triangle, float distance, float[] point, float u, float v) {
+        this.model=model;
+        this.vertexPackage=vertexPackage;
+        this.triangle=triangle;
+        this.distance=distance;
+        this.point=point;
+        this.u=u;
+        this.v=v;
+    }
+
+    /** 交差したモデルを取得します */
+    public Model3D getModel(){
+        return this.model;
+    }
+
+    /** 交差した頂点パッケージを取得します */
+    public VertexPackage getVertexPackage(){
+        return this.vertexPackage;
+    }
+
+    /** 交差した三角形の番号を取得します<br>
+     * インデックスを利用している場合は，インデックス配列の3つ組の番号です */
+    public int getTriangle(){
+        return this.triangle;
+    }
+
+    /** レイの始点から交点までの距離を取得します<br>
+     * 方向ベクトルの長さを1とした距離です */
+    public float getDistance(){
+        return this.distance;
+    }
+
+    /** ワールド座標系での交点を取得します<br>
+     * 返り値は{x, y, z}となります */
+    public float[] getPositionByArray(){
+        return this.point.clone();
+    }
+
+    /** 交点の三角形内での重心座標を取得します<br>
+     * 返り値は{u, v}で，交点は頂点0+(頂点1-頂点0)*u+(頂点2-頂点0)*vです */
+    public float[] getBarycentricByArray(){
+        return new float[]{this.u, this.v};
+    }
+}
@@ -0,0 +1,133 @@
+package k7system;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import k7system.gpuobjects.VertexPackage;
+
+/** レンダーリストの要素です<br>
+ * 描画対象のオブジェクトと，収集した時点でのワールド行列，モデルビュー行列，法線用の回転行列及びMVP行列を保持します．
+ * 合成方法やライティングの設定，収集時に選んだLoDの頂点パッケージも記録します．
+ * 描画時にはノードの状態を参照しないため，収集後にゲームスレッドがシーンを更新しても描画内容は変わりません．<br>
+ * 行列の配列は使いまわされるため，参照を保持し続けないでください． */
+public class RenderItem {
+    private Object3D object=null;
+    private float[] worldMatrix=new float[16]; // ワールド同次行列
+    private float[] mvMatrix=new float[16]; // モデルビュー行列
+    private float[] rotationMatrix=new float[9]; // 視点座標系での法線変換用の回転行列
+    private float[] mvpMatrix=new float[16]; // 透視変換まで含めた変換行列
+    private float[] viewMatrix=Node3D.UNIT_MAT4; // 収集時点のビュー行列(レンダーリストと共有)
+    private BlendType transparent=BlendType.NOT; // 収集時点の合成方法
+    private boolean useLight=true; // 収集時点のライティングの設定
+    private boolean shadowable=false; // 収集時点の影生成属性
+    private List<VertexPackage> packages=new ArrayList<VertexPackage>(); // 収集時点のLoDで描画する頂点パッケージ
+    private List<VertexPackage> occluderPackages=new ArrayList<VertexPackage>(); // 遮蔽物として深度を描画する頂点パッケージ
+
+    /** 描画対象のオブジェクトを取得します */
+    public Object3D getObject(){
+        return this.object;
+    }
+
+    /** 収集時点でのワールド同次行列を取得します */
+    public float[] getWorldMatrix(){
+        return this.worldMatrix;
+    }
+
+    /** 収集時点でのモデルビュー行列を取得します */
+    public float[] getMvMatrix(){
+        return this.mvMatrix;
+    }
+
+    /** 収集時点での視点座標系の法線変換用回転行列(3x3)を取得します */
+    public float[] getRotationMatrix(){
+        return this.rotationMatrix;
+    }
+
+    /** 収集時点でのビュー行列を取得します<br>
+     * レンダーリスト全体で共有されている配列です */
+    public float[] getViewMatrix(){
+        return this.viewMatrix;
+    }
+
+    /** 収集時点でのMVP行列を取得します */
+    public float[] getMvpMatrix(){
+        return this.mvpMatrix;
+    }
+
+    /** このアイテムが半透明描画の対象かどうかを取得します */
+    public boolean isTransparent(){
+        return this.transparent!=BlendType.NOT;
+    }
+
+    /** 収集時点での合成方法を取得します */
+    public BlendType getTransparent(){
+        return this.transparent;
+    }
+
+    /** 収集時点でライティングの対象だったかどうかを取得します */
+    public boolean isUseLight(){
+        return this.useLight;
+    }
+
+    /** 収集時点で影生成属性が付いていたかどうかを取得します */
+    public boolean isShadowable(){
+        return this.shadowable;
+    }
+
+    /** 収集時点で選ばれたLoDの頂点パッケージを取得します<br>
+     * 頂点パッケージを持たないオブジェクトでは空のリストです．内容を変更しないでください */
+    public List<VertexPackage> getPackages(){
+        return this.packages;
+    }
+
+    /** 遮蔽物として深度を描画する頂点パッケージを取得します<br>
+     * 影生成属性が付いた不透明なモデルの最も粗いLoDで，それ以外では空のリストです．内容を変更しないでください */
+    public List<VertexPackage> getOccluderPackages(){
+        return this.occluderPackages;
+    }
+
+    /** 描画する頂点パッケージを記録します<br>
+     * リストの内容がコピーされます */
+    void setPackages(List<VertexPackage> packs){
+        copy(packs, this.packages);
+    }
+
+    /** 遮蔽物として描画する頂点パッケージを記録します<br>
+     * リストの内容がコピーされます */
+    void setOccluderPackages(List<VertexPackage> packs){
+        copy(packs, this.occluderPackages);
+    }
+
+    /** 内容を設定します<br>
+     * ワールド行列はコピーされ，その他の行列はここで計算されます．
+     * オブジェクトの描画に必要な状態もここで記録します */
+    void set(Object3D obj, float[] world, float[] normalMatrix, float[] viewMatrix, float[] pvMatrix){
+        this.object=obj;
+        this.viewMatrix=viewMatrix;
+        System.arraycopy(world, 0, this.worldMatrix, 0, 16);
+        VectorManager.multMatrix4(viewMatrix, this.worldMatrix, this.mvMatrix);
+        VectorManager.multMatrix4x3(viewMatrix, normalMatrix, this.rotationMatrix);
+        VectorManager.multMatrix4(pvMatrix, this.worldMatrix, this.mvpMatrix);
+        this.transparent=obj.getTransparent();
+        this.useLight=obj.isUseLight();
+        this.shadowable=obj.isShadowable();
+        this.packages.clear();
+        this.occluderPackages.clear();
+        obj.snapshot(this);
+    }
+
+    /** 参照を解放します */
+    void clear(){
+        this.object=null;
+        this.packages.clear();
+        this.occluderPackages.clear();
+    }
+
+    /** リストの内容を別のリストにコピーします */
+    private static void copy(List<VertexPackage> src, List<VertexPackage> dst){
+        dst.clear();
+        for (int i=0;i<src.size();i++){
+            dst.add(src.get(i));
+        }
+    }
+}
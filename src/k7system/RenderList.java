@@ -0,0 +1,248 @@
+package k7system;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jogamp.opengl.GL3;
+
+import k7system.gpuobjects.GLStateCache;
+
+/** 描画対象を平坦なリストにまとめたものです<br>
+ * シーングラフを1回だけ走査して可視オブジェクトを収集し，描画は別の段階でまとめて発行します．
+ * カメラの行列と光源のパラメータも収集時点の値を複製して持つため，描画スレッドはシーンを参照せずに描画できます．<br>
+ * 要素のオブジェクトはフレーム間で使いまわされます． */
+public class RenderList {
+    public static final int NODE_CULLED=0; // 視錐台の外側なので収集しない
+    public static final int NODE_VISIBLE=1; // 収集する
+    public static final int NODE_INSIDE=2; // 完全に視錐台の内側なので子孫の判定は不要
+
+    private List<RenderItem> items=new ArrayList<RenderItem>(); // 確保済みの要素(プール)
+    private int size=0; // 有効な要素数
+
+    private DrawQueue queue=new DrawQueue(); // 状態ソートして描画するためのキュー
+    private List<Node3D> destroyedNodes=new ArrayList<Node3D>(); // 収集中に破棄フラグが見つかったノード
+
+    private float[] viewMatrix=Node3D.UNIT_MAT4.clone(); // 収集時点のビュー行列
+    private float[] pvMatrix=Node3D.UNIT_MAT4.clone(); // 収集時点のプロジェクション×ビュー行列
+    private float[] projectionMatrix=Node3D.UNIT_MAT4.clone(); // 収集時点のプロジェクション行列
+    private float[] lightParameters=new float[Params.MAXIMUM_LIGHT_NUM*16]; // 収集時点の光源パラメータ(ワールド座標系)
+    private int lightCount=0;
+
+    // 視錐台カリング
+    private Frustum frustum=new Frustum();
+    private boolean frustumCulling=false;
+    private int insideDepth=0; // 視錐台に完全に含まれている祖先の数です
+    private int culledCount=0; // カリングで除外した部分木の数です
+    private int testCount=0; // カリングの判定を行った回数です
+    private List<Object3D> candidates=new ArrayList<Object3D>(); // 空間インデックスの検索結果です
+
+    /** 収集結果を空にします<br>
+     * 破棄対象のノードは描画スレッドで処理されるまで残すため，ここでは消去しません */
+    public void clear(){
+        for (int i=0;i<this.size;i++){
+            this.items.get(i).clear();
+        }
+        this.size=0;
+        this.insideDepth=0;
+        this.culledCount=0;
+        this.testCount=0;
+    }
+
+    /** 収集に利用するカメラの行列を設定します<br>
+     * 行列は複製されるため，以降カメラが動いても収集済みの内容には影響しません */
+    public void setCameraMatrices(float[] viewMatrix, float[] pvMatrix){
+        System.arraycopy(viewMatrix, 0, this.viewMatrix, 0, 16);
+        System.arraycopy(pvMatrix, 0, this.pvMatrix, 0, 16);
+        this.frustum.setMatrix(this.pvMatrix);
+    }
+
+    /** 収集に利用するカメラの行列を，プロジェクション行列も含めて設定します<br>
+     * 行列は複製されます */
+    public void setCameraMatrices(float[] viewMatrix, float[] projectionMatrix, float[] pvMatrix){
+        System.arraycopy(projectionMatrix, 0, this.projectionMatrix, 0, 16);
+        this.setCameraMatrices(viewMatrix, pvMatrix);
+    }
+
+    /** 光源のパラメータを記録します<br>
+     * 各光源のgetLightParameters()の内容が複製されます．Params.MAXIMUM_LIGHT_NUMを超える光源は無視されます */
+    public void setLights(List<LightObject> lights){
+        int num=Math.min(lights.size(), Params.MAXIMUM_LIGHT_NUM);
+        for (int i=0;i<num;i++){
+            lights.get(i).getLightParameters(this.lightParameters, i*16);
+        }
+        this.lightCount=num;
+    }
+
+    /** 収集時点の光源パラメータを取得します<br>
+     * n番目の光源はn*16から始まる16要素です．内容を変更しないでください */
+    public float[] getLightParameters(){
+        return this.lightParameters;
+    }
+
+    /** 収集時点の光源の数を取得します */
+    public int getLightCount(){
+        return this.lightCount;
+    }
+
+    /** 収集時に視錐台カリングを行うかどうかを設定します<br>
+     * 有効な場合，部分木の境界が視錐台の完全に外側にあるノードは，子孫も含めて収集されません */
+    public void setFrustumCulling(boolean flag){
+        this.frustumCulling=flag;
+    }
+
+    /** 収集時に視錐台カリングを行うかどうかを取得します */
+    public boolean isFrustumCulling(){
+        return this.frustumCulling;
+    }
+
+    /** 収集に利用した視錐台を取得します */
+    public Frustum getFrustum(){
+        return this.frustum;
+    }
+
+    /** ノードの収集を開始します<br>
+     * 部分木が視錐台の外側にあればNODE_CULLEDを返し，そのノード以下は収集しません．
+     * それ以外の場合は，収集後に返り値をleaveNode()に渡してください */
+    public int enterNode(Node3D node){
+        if (!this.frustumCulling || 0<this.insideDepth || !node.isCullable()){
+            return NODE_VISIBLE;
+        }
+        this.testCount++;
+        int result=this.frustum.testSphere(node.getSubtreeSphere());
+        if (result==Frustum.INTERSECT){
+            result=this.frustum.testBound(node.getSubtreeBound()); // 球で判定できなければ箱で判定
+        }
+        if (result==Frustum.OUTSIDE){
+            this.culledCount++;
+            return NODE_CULLED;
+        }
+        if (result==Frustum.INSIDE){
+            this.insideDepth++; // 子孫は判定不要
+            return NODE_INSIDE;
+        }
+        return NODE_VISIBLE;
+    }
+
+    /** ノードの収集を終了します */
+    public void leaveNode(int state){
+        if (state==NODE_INSIDE){
+            this.insideDepth--;
+        }
+    }
+
+    /** 空間インデックスを検索して描画対象を収集します<br>
+     * シーングラフは走査せず，視錐台と交差する可能性のある物体だけを登録します．
+     * この場合，getCulledCount()は除外した物体の数になります */
+    public void collectFrom(LooseOctree index){
+        this.candidates.clear();
+        if (this.frustumCulling){
+            index.queryFrustum(this.frustum, this.candidates);
+        }else{
+            index.getAll(this.candidates);
+        }
+        for (int i=0;i<this.candidates.size();i++){
+            Object3D obj=this.candidates.get(i);
+            if (obj.isVisible() && !obj.isDestroyFlag()){
+                this.add(obj, obj.getWorldMatrix(), obj.getWorldNormalMatrix());
+            }
+        }
+        this.culledCount+=index.size()-this.candidates.size();
+        this.testCount++;
+        this.candidates.clear();
+    }
+
+    /** カリングで除外した部分木の数を取得します */
+    public int getCulledCount(){
+        return this.culledCount;
+    }
+
+    /** カリングの判定を行った回数を取得します */
+    public int getCullingTestCount(){
+        return this.testCount;
+    }
+
+    /** 描画対象として収集したオブジェクトの数を取得します */
+    public int getDrawnCount(){
+        return this.size;
+    }
+
+    /** 収集時点のビュー行列を取得します */
+    public float[] getViewMatrix(){
+        return this.viewMatrix;
+    }
+
+    /** 収集時点のプロジェクション行列を取得します */
+    public float[] getProjectionMatrix(){
+        return this.projectionMatrix;
+    }
+
+    /** 収集時点のプロジェクション×ビュー行列を取得します */
+    public float[] getPVMatrix(){
+        return this.pvMatrix;
+    }
+
+    /** 描画対象を追加します<br>
+     * ワールド行列は複製され，その他の行列は設定済みのカメラ行列との積として計算されます */
+    public RenderItem add(Object3D obj, float[] worldMatrix, float[] normalMatrix){
+        RenderItem item;
+        if (this.size<this.items.size()){
+            item=this.items.get(this.size);
+        }else{
+            item=new RenderItem();
+            this.items.add(item);
+        }
+        item.set(obj, worldMatrix, normalMatrix, this.viewMatrix, this.pvMatrix);
+        this.size++;
+        return item;
+    }
+
+    /** 要素数を取得します */
+    public int size(){
+        return this.size;
+    }
+
+    /** 要素を取得します */
+    public RenderItem get(int index){
+        return this.items.get(index);
+    }
+
+    /** 収集中に破棄フラグが見つかったノードを登録します */
+    public void addDestroyedNode(Node3D node){
+        this.destroyedNodes.add(node);
+    }
+
+    /** 収集中に破棄フラグが見つかったノードを取得します<br>
+     * これらはシーングラフから既に切り離されており，描画スレッドで破棄されることを想定しています */
+    public List<Node3D> getDestroyedNodes(){
+        return this.destroyedNodes;
+    }
+
+    /** 破棄対象のノードの登録を消去します<br>
+     * 描画スレッドが破棄を終えた後に呼び出します */
+    public void clearDestroyedNodes(){
+        this.destroyedNodes.clear();
+    }
+
+    /** 描画に利用する状態ソート用のキューを取得します<br>
+     * 直近の描画での状態切り替え回数の確認に利用できます */
+    public DrawQueue getDrawQueue(){
+        return this.queue;
+    }
+
+    /** 収集したオブジェクトを描画します<br>
+     * 各オブジェクトの描画要素を描画キューに展開し，状態ソートしてから描画します．
+     * 不透明なものは状態ごとに手前から奥へ，半透明のものは奥から手前へ描画されます */
+    public void submit(GL3 gl){
+        this.submit(gl, GLStateCache.DIRECT);
+    }
+
+    /** 状態キャッシュを利用して，収集したオブジェクトを描画します */
+    public void submit(GL3 gl, GLStateCache cache){
+        this.queue.clear();
+        for (int i=0;i<this.size;i++){
+            RenderItem item=this.items.get(i);
+            item.getObject().enqueueDraws(this.queue, item);
+        }
+        this.queue.draw(gl, cache);
+    }
+}
@@ -0,0 +1,50 @@
+package k7system;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** ゲームスレッドと描画スレッドの間でレンダーリストを受け渡すための三重バッファです<br>
+ * ゲームスレッドは裏のリストに次のフレームを収集してpublish()し，描画スレッドはacquire()で最新のリストを受け取ります．
+ * 受け渡しは中間のリストの番号を1つのAtomicIntegerで交換するだけなので，どちらのスレッドも相手を待つことはありません．<br>
+ * 描画スレッドが使っているリストをゲームスレッドが書き換えることはありません． */
+public class RenderListBuffer {
+    private static final int INDEX_MASK=0x3;
+    private static final int FRESH=0x4; // 中間のリストが未読であることを示すフラグです
+
+    private RenderList[] lists=new RenderList[]{new RenderList(), new RenderList(), new RenderList()};
+
+    private int backIndex=0; // ゲームスレッドが書き込むリストの番号です
+    private AtomicInteger middle=new AtomicInteger(1); // 受け渡し中のリストの番号です
+    private int frontIndex=2; // 描画スレッドが読み込むリストの番号です
+
+    /** ゲームスレッドが書き込むリストを取得します */
+    public RenderList getBackList(){
+        return this.lists[this.backIndex];
+    }
+
+    /** 書き込みの終わったリストを描画スレッドに公開します<br>
+     * 未読のリストが残っていた場合は，そのリストを次の書き込み先として再利用します */
+    public void publish(){
+        int old=this.middle.getAndSet(this.backIndex|FRESH);
+        this.backIndex=old&INDEX_MASK;
+    }
+
+    /** 描画スレッドが最新のリストを取得します<br>
+     * 新しいリストが公開されていなければ，前回と同じリストを返します */
+    public RenderList acquire(){
+        if ((this.middle.get()&FRESH)!=0){
+            int old=this.middle.getAndSet(this.frontIndex);
+            this.frontIndex=old&INDEX_MASK;
+        }
+        return this.lists[this.frontIndex];
+    }
+
+    /** 描画スレッドが直前に取得したリストを取得します */
+    public RenderList getFrontList(){
+        return this.lists[this.frontIndex];
+    }
+
+    /** 新しいリストが公開されているかどうかを取得します */
+    public boolean hasFresh(){
+        return (this.middle.get()&FRESH)!=0;
+    }
+}
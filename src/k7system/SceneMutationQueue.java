@@ -0,0 +1,83 @@
+package k7system;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** シーングラフの構成変更を溜めておき，フレームの先頭でまとめて反映するためのキューです<br>
+ * 追加，切り離し，破棄，付け替えの要求はどのスレッドからでも登録できます．
+ * 実際の変更はシーングラフを走査するスレッドがapply()を呼んだ時点で，登録順に行われます．<br>
+ * 走査中のchildNodesが他のスレッドから書き換えられることがなくなるため，大量のオブジェクトを出し入れする場合でも安全です．
+ * GraphicEngine.getMutationQueue()で取得して使います． */
+public class SceneMutationQueue {
+    private static final int ATTACH=0x1;
+    private static final int DETACH=0x2;
+    private static final int DESTROY=0x3;
+
+    private ConcurrentLinkedQueue<Mutation> queue=new ConcurrentLinkedQueue<Mutation>();
+
+    /** 子オブジェクトの追加を要求します<br>
+     * 既に他のノードの子である場合は付け替えになります */
+    public void attach(Node3D parent, Node3D child){
+        this.queue.add(new Mutation(ATTACH, parent, child));
+    }
+
+    /** 親オブジェクトからの切り離しを要求します */
+    public void detach(Node3D child){
+        this.queue.add(new Mutation(DETACH, null, child));
+    }
+
+    /** ノードの破棄を要求します<br>
+     * ノードは親から切り離され，描画スレッドでdispose()されます */
+    public void destroy(Node3D node){
+        this.queue.add(new Mutation(DESTROY, null, node));
+    }
+
+    /** 親オブジェクトの付け替えを要求します */
+    public void reparent(Node3D child, Node3D newParent){
+        this.attach(newParent, child);
+    }
+
+    /** 未反映の要求があるかどうかを取得します */
+    public boolean isEmpty(){
+        return this.queue.isEmpty();
+    }
+
+    /** 溜まっている要求を登録順にすべて反映します<br>
+     * 破棄されたノードはレンダーリストに破棄対象として登録されます．返り値は反映した要求の数です */
+    public int apply(RenderList list){
+        int count=0;
+        Mutation mutation;
+        while((mutation=this.queue.poll())!=null){
+            Node3D child=mutation.child;
+            switch(mutation.type){
+            case ATTACH:
+                mutation.parent.attach(child);
+                break;
+            case DETACH:
+                child.detachMe();
+                break;
+            case DESTROY:
+                if (!child.isDestroyFlag()){
+                    child.removeFromParent();
+                    child.setDestroyFlag(true);
+                    list.addDestroyedNode(child);
+                }
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /** 構成変更の要求1件分です */
+    private static class Mutation{
+        private int type;
+        private Node3D parent;
+        private Node3D child;
+
+        Mutation(int type, Node3D parent, Node3D child) {
+            this.type=type;
+            this.parent=parent;
+            this.child=child;
+        }
+    }
+}
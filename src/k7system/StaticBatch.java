@@ -0,0 +1,267 @@
+package k7system;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import k7system.gpuobjects.BasicMaterial;
+import k7system.gpuobjects.BatchedVertexArrayObject;
+import k7system.gpuobjects.VertexArrayObject;
+import k7system.gpuobjects.VertexPackage;
+
+/** 静的なモデルをマテリアルごとに1つの頂点配列オブジェクトにまとめたモデルです<br>
+ * build()で部分木の中の静的なモデルの頂点に座標変換を焼き込み，同じBasicMaterialを使う頂点パッケージを1つに結合します．
+ * 結合後は，元のモデルは非表示になり，このモデルが代わりに描画されます．描画命令の数はマテリアルの数まで減ります．<br>
+ * 元のモデルの形状は部品として残っているため，setPartVisible()で個別に表示/非表示を切り替えられます．
+ * 元のモデルを動かしても結合後の形状には反映されません． */
+public class StaticBatch extends Model3D{
+
+    /** 元のモデルごとの部品の位置です */
+    private Map<Model3D, List<Part>> parts=new HashMap<Model3D, List<Part>>();
+
+    /** 結合された頂点配列オブジェクトの中の部品です */
+    private static class Part{
+        private BatchedVertexArrayObject vao;
+        private int index;
+
+        private Part(BatchedVertexArrayObject vao, int index){
+            this.vao=vao;
+            this.index=index;
+        }
+    }
+
+    /** 結合元の頂点パッケージです */
+    private static class Source{
+        private Model3D model;
+        private VertexPackage vp;
+        private float[] matrix; // 部分木の根から見た同次行列
+
+        private Source(Model3D model, VertexPackage vp, float[] matrix){
+            this.model=model;
+            this.vp=vp;
+            this.matrix=matrix;
+        }
+    }
+
+    /** 同じマテリアルと頂点属性を持つ結合元の集まりです */
+    private static class Group{
+        private BasicMaterial material;
+        private boolean hasNormals;
+        private boolean hasTexCoords;
+        private boolean hasTangents;
+        private List<Source> sources=new ArrayList<Source>();
+
+        private boolean accepts(VertexPackage vp){
+            VertexArrayObject vao=vp.getVao();
+            return vp.getMaterial()==this.material
+                    && (vao.getNormals()!=null)==this.hasNormals
+                    && (vao.getTexCoords()!=null)==this.hasTexCoords
+                    && (vao.getTangents()!=null)==this.hasTangents;
+        }
+    }
+
+    private StaticBatch(){
+    }
+
+    /** 部分木の中の静的なモデルを結合します<br>
+     * setStatic(true)が設定されたノードと，その子孫のModel3Dが対象です．
+     * 結合したモデルはrootの子として追加され，元のモデルは非表示になります．<br>
+     * 不透明で，ライティングを利用するモデルのLoD0の頂点パッケージだけを結合します．それ以外のモデルはそのまま残ります．
+     * 座標変換はrootから見た相対的なものが焼き込まれるため，rootを動かせば結合後のモデルも一緒に動きます．<br>
+     * シーングラフを変更するため，描画スレッドと並行して呼び出さないでください */
+    public static StaticBatch build(Node3D root){
+        StaticBatch batch=new StaticBatch();
+        batch.setName(root.getName()+":static");
+
+        // 結合元をマテリアルと頂点属性ごとに分類
+        List<Model3D> models=new ArrayList<Model3D>();
+        List<Group> groups=new ArrayList<Group>();
+        collect(root, Node3D.UNIT_MAT4, root.isStatic(), models, groups);
+
+        for (Group group:groups){
+            batch.merge(group);
+        }
+
+        // 元のモデルを隠し，非表示だったものは部品も隠す
+        for (Model3D model:models){
+            if (!model.isVisible()){
+                batch.setPartVisible(model, false);
+            }
+            model.setVisible(false);
+        }
+        root.attach(batch);
+        return batch;
+    }
+
+    /** 部分木をたどって結合元を集めます */
+    private static void collect(Node3D node, float[] matrix, boolean isStatic, List<Model3D> models, List<Group> groups){
+        for (Node3D child:node.getChildObjects()){
+            if (child instanceof StaticBatch){
+                continue; // 結合済みのものは対象外
+            }
+            float[] childMatrix=VectorManager.multMatrix4(matrix, child.getScaledMatrix());
+            boolean childStatic=isStatic || child.isStatic();
+            if (childStatic && child instanceof Model3D){
+                Model3D model=(Model3D)child;
+                if (model.getTransparent()==BlendType.NOT && model.isUseLight()){
+                    models.add(model);
+                    for (VertexPackage vp:model.getVertexPackages(0)){
+                        addSource(groups, new Source(model, vp, childMatrix));
+                    }
+                }
+            }
+            collect(child, childMatrix, childStatic, models, groups);
+        }
+    }
+
+    /** 結合元を対応するグループに追加します */
+    private static void addSource(List<Group> groups, Source source){
+        for (Group group:groups){
+            if (group.accepts(source.vp)){
+                group.sources.add(source);
+                return;
+            }
+        }
+        VertexArrayObject vao=source.vp.getVao();
+        Group group=new Group();
+        group.material=source.vp.getMaterial();
+        group.hasNormals=vao.getNormals()!=null;
+        group.hasTexCoords=vao.getTexCoords()!=null;
+        group.hasTangents=vao.getTangents()!=null;
+        group.sources.add(source);
+        groups.add(group);
+    }
+
+    /** グループを1つの頂点配列オブジェクトに結合し，このモデルの頂点パッケージとして登録します */
+    private void merge(Group group){
+        // 全体の大きさを数える
+        int vertexNum=0;
+        int indexNum=0;
+        for (Source source:group.sources){
+            VertexArrayObject vao=source.vp.getVao();
+            vertexNum+=vao.getVertices().length/3;
+            indexNum+=(vao.getIndices()!=null) ? vao.getIndices().length : vao.getVertices().length/3;
+        }
+
+        float[] vertices=new float[vertexNum*3];
+        float[] normals=group.hasNormals ? new float[vertexNum*3] : null;
+        float[] texCoords=group.hasTexCoords ? new float[vertexNum*2] : null;
+        float[] tangents=group.hasTangents ? new float[vertexNum*3] : null;
+        int[] indices=new int[indexNum];
+        int[] partStart=new int[group.sources.size()];
+        int[] partCount=new int[group.sources.size()];
+        BatchedVertexArrayObject merged=new BatchedVertexArrayObject();
+
+        int baseVertex=0;
+        int baseIndex=0;
+        for (int p=0;p<group.sources.size();p++){
+            Source source=group.sources.get(p);
+            VertexArrayObject vao=source.vp.getVao();
+            float[] m=source.matrix;
+            float[] srcVertices=vao.getVertices();
+            int num=srcVertices.length/3;
+
+            // 頂点座標
+            for (int i=0;i<num;i++){
+                float x=srcVertices[i*3], y=srcVertices[i*3+1], z=srcVertices[i*3+2];
+                int d=(baseVertex+i)*3;
+                vertices[d]=m[0]*x+m[4]*y+m[8]*z+m[12];
+                vertices[d+1]=m[1]*x+m[5]*y+m[9]*z+m[13];
+                vertices[d+2]=m[2]*x+m[6]*y+m[10]*z+m[14];
+            }
+
+            // 法線は回転部分の逆転置行列で，接線は回転部分で変換します
+            float[] rotation=new float[]{
+                    m[0],m[1],m[2],
+                    m[4],m[5],m[6],
+                    m[8],m[9],m[10]
+            };
+            if (normals!=null){
+                float[] normalMatrix=VectorManager.getTransposed(VectorManager.getInverse3(rotation));
+                transformDirections(vao.getNormals(), num, normalMatrix, normals, baseVertex*3);
+            }
+            if (tangents!=null){
+                transformDirections(vao.getTangents(), num, rotation, tangents, baseVertex*3);
+            }
+            if (texCoords!=null){
+                System.arraycopy(vao.getTexCoords(), 0, texCoords, baseVertex*2, num*2);
+            }
+
+            // インデックス
+            int[] srcIndices=vao.getIndices();
+            int count=(srcIndices!=null) ? srcIndices.length : num;
+            for (int i=0;i<count;i++){
+                int index=(srcIndices!=null) ? srcIndices[i] : i;
+                indices[baseIndex+i]=baseVertex+index;
+            }
+            partStart[p]=baseIndex;
+            partCount[p]=count;
+
+            List<Part> modelParts=this.parts.get(source.model);
+            if (modelParts==null){
+                modelParts=new ArrayList<Part>();
+                this.parts.put(source.model, modelParts);
+            }
+            modelParts.add(new Part(merged, p));
+
+            baseVertex+=num;
+            baseIndex+=count;
+        }
+
+        merged.setVertices(vertices);
+        merged.setNormals(normals);
+        merged.setTexCoords(texCoords);
+        merged.setTangents(tangents);
+        merged.setIndices(indices);
+        merged.setParts(partStart, partCount);
+        this.addVertexPackage(new VertexPackage(merged, group.material));
+    }
+
+    /** 方向ベクトルを3x3行列で変換し，正規化して書き込みます */
+    private static void transformDirections(float[] src, int num, float[] mat, float[] dst, int offset){
+        for (int i=0;i<num;i++){
+            float x=src[i*3], y=src[i*3+1], z=src[i*3+2];
+            float tx=mat[0]*x+mat[3]*y+mat[6]*z;
+            float ty=mat[1]*x+mat[4]*y+mat[7]*z;
+            float tz=mat[2]*x+mat[5]*y+mat[8]*z;
+            float length=(float)Math.sqrt(tx*tx+ty*ty+tz*tz);
+            if (0<length){
+                tx/=length;
+                ty/=length;
+                tz/=length;
+            }
+            int d=offset+i*3;
+            dst[d]=tx;
+            dst[d+1]=ty;
+            dst[d+2]=tz;
+        }
+    }
+
+    /** 結合された元のモデルを取得します */
+    public List<Model3D> getSourceModels(){
+        return new ArrayList<Model3D>(this.parts.keySet());
+    }
+
+    /** 元のモデルの部品の表示/非表示を設定します<br>
+     * 結合されていないモデルを指定した場合は何もしません */
+    public void setPartVisible(Model3D source, boolean visible){
+        List<Part> modelParts=this.parts.get(source);
+        if (modelParts==null){
+            return;
+        }
+        for (Part part:modelParts){
+            part.vao.setPartVisible(part.index, visible);
+        }
+    }
+
+    /** 元のモデルの部品が表示されているかどうかを取得します<br>
+     * 結合されていないモデルを指定した場合はfalseを返します */
+    public boolean isPartVisible(Model3D source){
+        List<Part> modelParts=this.parts.get(source);
+        if (modelParts==null || modelParts.isEmpty()){
+            return false;
+        }
+        return modelParts.get(0).vao.isPartVisible(modelParts.get(0).index);
+    }
+}
@@ -0,0 +1,258 @@
+package k7system;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** シーングラフの変換行列を連続したプリミティブ配列にまとめて保持するクラスです<br>
+ * ノードは先行順(親が必ず子より前)に番号付けされるため，ワールド同次行列の更新は配列を先頭から1回なめるだけで済みます．<br>
+ * アリーナに登録されたノードのワールド同次行列はアリーナ側が正となり，ノードは番号を持つだけの窓口になります．
+ * ノードの追加や切り離しがあった場合は，次のupdate()で番号を振り直します．配列は足りなくなった時だけ倍々に拡張し，以降は使いまわします．<br>
+ * GraphicEngine.setUseTransformArena()で有効にして使います． */
+public class TransformArena {
+    private static final int MATRIX_SIZE=16;
+    private static final int DEFAULT_CAPACITY=64;
+
+    private Node3D root;
+
+    private int size=0;
+    private Node3D[] nodes=new Node3D[0];
+    private int[] parentIndices=new int[0]; // 親の番号です．ルートは-1
+    private float[] localMatrices=new float[0]; // scaleを反映した同次行列です
+    private float[] worldMatrices=new float[0]; // ワールド同次行列です
+    private long[] versions=new long[0]; // ワールド同次行列が更新されるたびに増える番号です
+    private boolean[] changed=new boolean[0]; // 今回の更新でワールド同次行列が変わったかどうかです(再計算した範囲だけ有効)
+
+    // 番号の振り直し用(振り直しの間は以前の並びとバージョンを参照するため，2組を交互に使います)
+    private Node3D[] spareNodes=new Node3D[0];
+    private long[] spareVersions=new long[0];
+    private List<Node3D> order=new ArrayList<Node3D>(); // 先行順に集めたノードです
+
+    private int[] dirtyIndices=new int[DEFAULT_CAPACITY]; // 同次行列が変更されたノードの番号です
+    private boolean[] dirtyFlags=new boolean[0];
+    private int dirtyCount=0;
+    private int firstDirty=Integer.MAX_VALUE; // 同次行列が変更されたノードの最小の番号です
+    private int firstBoundDirty=Integer.MAX_VALUE; // 境界の再計算が必要なノードの最小の番号です
+
+    private boolean structureChanged=true; // 番号の振り直しが必要かどうかです
+
+    /** コンストラクタでルートノードを指定します<br>
+     * 実際の登録は最初のupdate()で行われます */
+    public TransformArena(Node3D root) {
+        this.root=root;
+    }
+
+    /** 登録されているノード数を取得します */
+    public int size(){
+        return this.size;
+    }
+
+    /** ノードの構成が変わったことを通知します */
+    public void markStructureChanged(){
+        this.structureChanged=true;
+    }
+
+    /** ノードの同次行列が変わったことを通知します */
+    void markDirty(int index){
+        if (index<this.size && !this.dirtyFlags[index]){
+            this.dirtyFlags[index]=true;
+            if (this.dirtyCount==this.dirtyIndices.length){
+                int[] newIndices=new int[this.dirtyIndices.length*2];
+                System.arraycopy(this.dirtyIndices, 0, newIndices, 0, this.dirtyCount);
+                this.dirtyIndices=newIndices;
+            }
+            this.dirtyIndices[this.dirtyCount++]=index;
+            this.firstDirty=Math.min(this.firstDirty, index);
+        }
+    }
+
+    /** ノードの境界の再計算が必要になったことを通知します */
+    void markBoundDirty(int index){
+        this.firstBoundDirty=Math.min(this.firstBoundDirty, index);
+    }
+
+    /** ワールド同次行列のバージョンを取得します */
+    long getVersion(int index){
+        return this.versions[index];
+    }
+
+    /** ワールド同次行列を配列にコピーします */
+    void copyWorldMatrix(int index, float[] dest){
+        System.arraycopy(this.worldMatrices, index*MATRIX_SIZE, dest, 0, MATRIX_SIZE);
+    }
+
+    /** ワールド同次行列を格納している配列を取得します<br>
+     * n番目のノードの行列はn*16から始まる16要素です．内容を変更しないでください */
+    public float[] getWorldMatrices(){
+        return this.worldMatrices;
+    }
+
+    /** 親の番号を格納している配列を取得します<br>
+     * 親は必ず子より小さい番号を持ちます．内容を変更しないでください */
+    public int[] getParentIndices(){
+        return this.parentIndices;
+    }
+
+    /** 指定した番号のノードを取得します */
+    public Node3D getNode(int index){
+        return this.nodes[index];
+    }
+
+    /** 全てのワールド同次行列と境界を更新します<br>
+     * 構成が変わっていれば番号を振り直し，その後，変更のあったノードとその子孫だけを先頭から順に再計算します．
+     * 先行順では変更のあった最小の番号より前のノードは影響を受けないため，そこから後ろだけを処理します．
+     * 境界は末尾からその番号まで逆順に更新し，最後にその番号のノードの祖先を更新します */
+    public void update(){
+        if (this.structureChanged){
+            this.rebuild();
+        }
+
+        // 変更のあった同次行列を取り込み
+        for (int i=0;i<this.dirtyCount;i++){
+            int index=this.dirtyIndices[i];
+            System.arraycopy(this.nodes[index].getScaledMatrix(), 0, this.localMatrices, index*MATRIX_SIZE, MATRIX_SIZE);
+        }
+        this.dirtyCount=0;
+        int from=this.firstDirty;
+        this.firstDirty=Integer.MAX_VALUE;
+
+        // 親は必ず前にあるので，一方向に1回なめれば全て確定する
+        float[] local=this.localMatrices;
+        float[] world=this.worldMatrices;
+        for (int i=from;i<this.size;i++){
+            int parent=this.parentIndices[i];
+            boolean moved=this.dirtyFlags[i] || (from<=parent && this.changed[parent]); // fromより前の親は変わっていない
+            this.changed[i]=moved;
+            if (moved){
+                this.dirtyFlags[i]=false;
+                if (parent>=0){
+                    VectorManager.multMatrix4(world, parent*MATRIX_SIZE, local, i*MATRIX_SIZE, world, i*MATRIX_SIZE);
+                }else{
+                    System.arraycopy(local, i*MATRIX_SIZE, world, i*MATRIX_SIZE, MATRIX_SIZE);
+                }
+                this.versions[i]++;
+                this.nodes[i].markBoundDirty();
+            }
+        }
+
+        // 子は必ず後ろにあるので，逆向きに1回なめれば部分木の境界が確定する
+        // 先頭側の祖先は，先行順の性質により全てboundFrom番のノードの祖先になる
+        int boundFrom=Math.min(from, this.firstBoundDirty);
+        this.firstBoundDirty=Integer.MAX_VALUE;
+        if (boundFrom<this.size){
+            for (int i=this.size-1;boundFrom<=i;i--){
+                this.nodes[i].updateBound();
+            }
+            for (int i=this.parentIndices[boundFrom];0<=i;i=this.parentIndices[i]){
+                this.nodes[i].updateBound();
+            }
+        }
+    }
+
+    /** 全てのノードをアリーナから解放します<br>
+     * 各ノードは現在のワールド同次行列を引き継いで，自前で行列を管理する状態に戻ります */
+    public void releaseAll(){
+        for (int i=0;i<this.size;i++){
+            this.nodes[i].unbindTransformArena();
+        }
+        Arrays.fill(this.nodes, 0, this.size, null);
+        this.size=0;
+        this.dirtyCount=0;
+        this.firstDirty=Integer.MAX_VALUE;
+        this.firstBoundDirty=Integer.MAX_VALUE;
+        this.structureChanged=true;
+    }
+
+    /** ノードをアリーナから解放します<br>
+     * 子孫のノードもまとめて解放されます */
+    void release(Node3D node){
+        if (node.getTransformArena()==this){
+            node.unbindTransformArena();
+            for (Node3D child:node.getChildObjects()){
+                this.release(child);
+            }
+            this.structureChanged=true;
+        }
+    }
+
+    /** ルートノードから先行順に番号を振り直します<br>
+     * 配列は容量が足りる限り使いまわします */
+    private void rebuild(){
+        this.order.clear();
+        this.collect(this.root, this.order);
+        int newSize=this.order.size();
+        this.ensureCapacity(newSize);
+
+        Node3D[] oldNodes=this.nodes;
+        long[] oldVersions=this.versions;
+        Node3D[] newNodes=this.spareNodes;
+        long[] newVersions=this.spareVersions;
+        for (int i=0;i<newSize;i++){
+            Node3D node=this.order.get(i);
+            newNodes[i]=node;
+            newVersions[i]=node.getWorldVersion(); // 以前の番号を引き継ぐ(更新時に必ず増える)
+            Node3D parent=node.getParentObject();
+            this.parentIndices[i]=-1;
+            if (node!=this.root && parent!=null){
+                this.parentIndices[i]=parent.getTransformArenaIndex();
+            }
+            System.arraycopy(node.getScaledMatrix(), 0, this.localMatrices, i*MATRIX_SIZE, MATRIX_SIZE);
+            node.bindTransformArena(this, i);
+        }
+
+        // 以前登録されていて，今回含まれなかったノードを解放(以前のバージョンとワールド同次行列を引き継ぐ)
+        for (int i=0;i<this.size;i++){
+            Node3D node=oldNodes[i];
+            int index=node.getTransformArenaIndex();
+            if (node.getTransformArena()==this && (newSize<=index || newNodes[index]!=node)){
+                node.unbindTransformArena();
+            }
+        }
+        Arrays.fill(oldNodes, 0, this.size, null);
+        this.order.clear();
+
+        this.nodes=newNodes;
+        this.versions=newVersions;
+        this.spareNodes=oldNodes;
+        this.spareVersions=oldVersions;
+        this.dirtyCount=0;
+        this.size=newSize;
+
+        // 番号が変わったので全て再計算する
+        Arrays.fill(this.dirtyFlags, 0, newSize, true);
+        Arrays.fill(this.dirtyFlags, newSize, this.dirtyFlags.length, false);
+        this.firstDirty=0;
+        this.structureChanged=false;
+    }
+
+    /** 指定したノード数を格納できるように配列を拡張します<br>
+     * 足りない場合は倍々に拡張します．ワールド同次行列とバージョンは，解放するノードが引き継げるように内容を保ちます */
+    private void ensureCapacity(int required){
+        int capacity=Math.max(this.nodes.length, DEFAULT_CAPACITY);
+        while (capacity<required){
+            capacity*=2;
+        }
+        if (this.nodes.length<capacity){
+            this.nodes=Arrays.copyOf(this.nodes, capacity);
+            this.versions=Arrays.copyOf(this.versions, capacity);
+            this.parentIndices=new int[capacity];
+            this.localMatrices=new float[capacity*MATRIX_SIZE];
+            this.worldMatrices=Arrays.copyOf(this.worldMatrices, capacity*MATRIX_SIZE);
+            this.changed=new boolean[capacity];
+            this.dirtyFlags=new boolean[capacity];
+        }
+        if (this.spareNodes.length<capacity){
+            this.spareNodes=new Node3D[capacity];
+            this.spareVersions=new long[capacity];
+        }
+    }
+
+    /** 先行順でノードを集めます */
+    private void collect(Node3D node, List<Node3D> order){
+        order.add(node);
+        List<Node3D> children=node.getChildObjects();
+        for (int i=0;i<children.size();i++){
+            this.collect(children.get(i), order);
+        }
+    }
+}
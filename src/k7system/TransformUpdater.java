@@ -0,0 +1,148 @@
+package k7system;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** シーングラフのワールド同次行列をForkJoinPoolで並列に更新するクラスです<br>
+ * 兄弟ノードの部分木は互いに独立しているため，子ノードの並びを区間に分割して別々のスレッドで更新します．
+ * 分割はノードが持つ部分木のノード数で判断し，区間に含まれるノードの合計が閾値より少なければ分割せずにそのスレッドで順番に更新します．
+ * このため，少数のグループノードの下に大量の物体がある階層でも並列に処理されます．<br>
+ * 子ノードの更新が終わった後に，そのノードの部分木の境界も再計算します．
+ * 前回の更新から変更の無い部分木(自分も子孫も変更されておらず，親も動いていないもの)は走査しません．<br>
+ * 描画スレッドは更新結果を利用するだけになります． */
+public class TransformUpdater {
+    public static final int DEFAULT_THRESHOLD=256;
+
+    private ForkJoinPool pool;
+    private int threshold=DEFAULT_THRESHOLD;
+
+    /** 専用のForkJoinPoolを作成するコンストラクタです */
+    public TransformUpdater() {
+        this(new ForkJoinPool());
+    }
+
+    /** 利用するForkJoinPoolを指定するコンストラクタです */
+    public TransformUpdater(ForkJoinPool pool) {
+        this.pool=pool;
+    }
+
+    /** 並列化の閾値を取得します */
+    public int getThreshold(){
+        return this.threshold;
+    }
+
+    /** 並列化の閾値を設定します<br>
+     * 部分木のノード数の合計がこの値以上の区間だけが分割されます */
+    public void setThreshold(int threshold){
+        this.threshold=Math.max(1, threshold);
+    }
+
+    /** スレッドプールを終了します<br>
+     * 以降このオブジェクトは利用できません */
+    public void shutdown(){
+        this.pool.shutdown();
+    }
+
+    /** 指定したノード以下のワールド同次行列と境界を更新します<br>
+     * 処理は全てこのオブジェクトのForkJoinPool上で行われます */
+    public void update(Node3D root){
+        this.pool.invoke(new NodeUpdateTask(root, this.threshold));
+    }
+
+    /** 部分木のワールド同次行列と境界を呼び出したスレッドで順番に更新します */
+    static void updateSubtree(Node3D node){
+        updateSubtree(node, false);
+    }
+
+    /** 部分木のワールド同次行列と境界を呼び出したスレッドで順番に更新します<br>
+     * parentMovedがfalseで，部分木に変更が記録されていなければ何もしません */
+    static void updateSubtree(Node3D node, boolean parentMoved){
+        if (!node.clearSubtreeDirty() && !parentMoved){
+            return;
+        }
+        boolean moved=node.updateWorldMatrix(); // 動いたら子孫は全て再計算が必要
+        List<Node3D> children=node.getChildObjects();
+        for (int i=0;i<children.size();i++){
+            updateSubtree(children.get(i), moved);
+        }
+        node.updateBound(); // 子の境界が確定した後に自分の境界を計算
+    }
+
+    /** 部分木のワールド同次行列と境界を更新します<br>
+     * 部分木のノード数が閾値以上であれば，子ノードの並びを分割して並列に処理します．ForkJoinPoolのワーカースレッドから呼び出します */
+    static void updateNode(Node3D node, int threshold, boolean parentMoved){
+        if (node.getSubtreeSize()<threshold){
+            updateSubtree(node, parentMoved);
+            return;
+        }
+        if (!node.clearSubtreeDirty() && !parentMoved){
+            return;
+        }
+        boolean moved=node.updateWorldMatrix();
+        List<Node3D> children=node.getChildObjects();
+        new SubtreeUpdateTask(children, 0, children.size(), threshold, moved).compute();
+        node.updateBound();
+    }
+
+    /** 1つの部分木を更新するタスクです<br>
+     * 更新の入り口として利用します */
+    static class NodeUpdateTask extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+        private Node3D node;
+        private int threshold;
+
+        NodeUpdateTask(Node3D node, int threshold) {
+            this.node=node;
+            this.threshold=threshold;
+        }
+
+        @Override
+        protected void compute() {
+            updateNode(this.node, this.threshold, false);
+        }
+    }
+
+    /** 兄弟ノードの区間を更新するタスクです<br>
+     * 区間の部分木のノード数の合計がほぼ半分になる位置で分割します */
+    static class SubtreeUpdateTask extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+        private List<Node3D> nodes;
+        private int from;
+        private int to;
+        private int threshold;
+        private boolean parentMoved;
+
+        SubtreeUpdateTask(List<Node3D> nodes, int from, int to, int threshold, boolean parentMoved) {
+            this.nodes=nodes;
+            this.from=from;
+            this.to=to;
+            this.threshold=threshold;
+            this.parentMoved=parentMoved;
+        }
+
+        @Override
+        protected void compute() {
+            int total=0;
+            for (int i=this.from;i<this.to;i++){
+                total+=this.nodes.get(i).getSubtreeSize();
+            }
+            if (total<this.threshold){
+                for (int i=this.from;i<this.to;i++){
+                    updateSubtree(this.nodes.get(i), this.parentMoved);
+                }
+            }else if (this.to-this.from==1){
+                updateNode(this.nodes.get(this.from), this.threshold, this.parentMoved); // 大きな部分木1つなら，その子ノードで分割する
+            }else{
+                int middle=this.from+1;
+                int half=this.nodes.get(this.from).getSubtreeSize();
+                while (middle<this.to-1 && half*2<total){
+                    half+=this.nodes.get(middle).getSubtreeSize();
+                    middle++;
+                }
+                invokeAll(new SubtreeUpdateTask(this.nodes, this.from, middle, this.threshold, this.parentMoved),
+                        new SubtreeUpdateTask(this.nodes, middle, this.to, this.threshold, this.parentMoved));
+            }
+        }
+    }
+}
@@ -99,6 +99,17 @@ public class VectorManager {
         return resultMatrix;
     }
 
+    /** 4x4行列の回転部分(左上3x3)と3x3行列の掛け算です<br>
+     * 結果を第3引数の配列に書き込みます．resultはmat3と同じ配列であってはなりません */
+    public static float[] multMatrix4x3(float[] mat4,float[] mat3,float[] result){
+        for(int i=0;i<3;i++){
+            result[0+i*3]=mat4[0]*mat3[i*3]+mat4[4]*mat3[1+i*3]+mat4[8]*mat3[2+i*3];
+            result[1+i*3]=mat4[1]*mat3[i*3]+mat4[5]*mat3[1+i*3]+mat4[9]*mat3[2+i*3];
+            result[2+i*3]=mat4[2]*mat3[i*3]+mat4[6]*mat3[1+i*3]+mat4[10]*mat3[2+i*3];
+        }
+        return result;
+    }
+
     /** 行列とベクトルの掛け算です */
     public static float[] multMatrixVec3(float[] mat1,float[] vec){
         float[] resultMatrix=new float[3];
@@ -120,6 +131,32 @@ public class VectorManager {
         return resultMatrix;
     }
 
+    /** 行列と行列の掛け算です<br>
+     * 結果を第3引数の配列に書き込みます．配列を使いまわすためのメソッドであり，resultはmat1，mat2と同じ配列であってはなりません */
+    public static float[] multMatrix4(float[] mat1,float[] mat2,float[] result){
+        for(int i=0;i<4;i++){
+            result[0+i*4]=mat1[0]*mat2[i*4]+mat1[4]*mat2[1+i*4]+mat1[8]*mat2[2+i*4]+mat1[12]*mat2[3+i*4];
+            result[1+i*4]=mat1[1]*mat2[i*4]+mat1[5]*mat2[1+i*4]+mat1[9]*mat2[2+i*4]+mat1[13]*mat2[3+i*4];
+            result[2+i*4]=mat1[2]*mat2[i*4]+mat1[6]*mat2[1+i*4]+mat1[10]*mat2[2+i*4]+mat1[14]*mat2[3+i*4];
+            result[3+i*4]=mat1[3]*mat2[i*4]+mat1[7]*mat2[1+i*4]+mat1[11]*mat2[2+i*4]+mat1[15]*mat2[3+i*4];
+        }
+        return result;
+    }
+
+    /** 行列と行列の掛け算です<br>
+     * 大きな配列にまとめて格納された行列同士を，オフセットを指定して掛け合わせます．
+     * 結果の領域は入力の領域と重なってはなりません */
+    public static void multMatrix4(float[] mat1,int offset1,float[] mat2,int offset2,float[] result,int offsetR){
+        for(int i=0;i<4;i++){
+            int c=offset2+i*4;
+            int r=offsetR+i*4;
+            result[r]=mat1[offset1]*mat2[c]+mat1[offset1+4]*mat2[c+1]+mat1[offset1+8]*mat2[c+2]+mat1[offset1+12]*mat2[c+3];
+            result[r+1]=mat1[offset1+1]*mat2[c]+mat1[offset1+5]*mat2[c+1]+mat1[offset1+9]*mat2[c+2]+mat1[offset1+13]*mat2[c+3];
+            result[r+2]=mat1[offset1+2]*mat2[c]+mat1[offset1+6]*mat2[c+1]+mat1[offset1+10]*mat2[c+2]+mat1[offset1+14]*mat2[c+3];
+            result[r+3]=mat1[offset1+3]*mat2[c]+mat1[offset1+7]*mat2[c+1]+mat1[offset1+11]*mat2[c+2]+mat1[offset1+15]*mat2[c+3];
+        }
+    }
+
     /** 行列とベクトルの掛け算です */
     public static float[] multMatrixVec4(float[] mat1,float[] vec){
         float[] resultMatrix=new float[4];
@@ -147,6 +184,61 @@ public class VectorManager {
         return result;
     }
 
+    /** 4x4行列の回転部分(左上3x3)の逆転置行列を求めます<br>
+     * 法線ベクトルの変換に利用します．結果を第2引数の配列(要素数9)に書き込みます */
+    public static float[] getNormalMatrix(float[] mat,float[] result){
+        double m0=mat[0], m1=mat[1], m2=mat[2];
+        double m3=mat[4], m4=mat[5], m5=mat[6];
+        double m6=mat[8], m7=mat[9], m8=mat[10];
+        double det=m0*m4*m8+m1*m5*m6+m3*m7*m2-m0*m5*m7-m1*m3*m8-m2*m4*m6;
+        // 逆行列を転置した位置に書き込む
+        result[0]=(float)((m4*m8-m7*m5)/det);
+        result[3]=(float)((m7*m2-m1*m8)/det);
+        result[6]=(float)((m1*m5-m4*m2)/det);
+        result[1]=(float)((m6*m5-m3*m8)/det);
+        result[4]=(float)((m0*m8-m6*m2)/det);
+        result[7]=(float)((m3*m2-m0*m5)/det);
+        result[2]=(float)((m3*m7-m6*m4)/det);
+        result[5]=(float)((m6*m1-m0*m7)/det);
+        result[8]=(float)((m0*m4-m3*m1)/det);
+        return result;
+    }
+
+    /** 4x4行列の逆行列を求めます<br>
+     * 余因子展開で計算します．正則でない場合はnullを返します */
+    public static float[] getInverse4(float[] mat){
+        double[] m=new double[16];
+        for (int i=0;i<16;i++){
+            m[i]=mat[i];
+        }
+        double[] inv=new double[16];
+        inv[0]=m[5]*m[10]*m[15]-m[5]*m[11]*m[14]-m[9]*m[6]*m[15]+m[9]*m[7]*m[14]+m[13]*m[6]*m[11]-m[13]*m[7]*m[10];
+        inv[4]=-m[4]*m[10]*m[15]+m[4]*m[11]*m[14]+m[8]*m[6]*m[15]-m[8]*m[7]*m[14]-m[12]*m[6]*m[11]+m[12]*m[7]*m[10];
+        inv[8]=m[4]*m[9]*m[15]-m[4]*m[11]*m[13]-m[8]*m[5]*m[15]+m[8]*m[7]*m[13]+m[12]*m[5]*m[11]-m[12]*m[7]*m[9];
+        inv[12]=-m[4]*m[9]*m[14]+m[4]*m[10]*m[13]+m[8]*m[5]*m[14]-m[8]*m[6]*m[13]-m[12]*m[5]*m[10]+m[12]*m[6]*m[9];
+        inv[1]=-m[1]*m[10]*m[15]+m[1]*m[11]*m[14]+m[9]*m[2]*m[15]-m[9]*m[3]*m[14]-m[13]*m[2]*m[11]+m[13]*m[3]*m[10];
+        inv[5]=m[0]*m[10]*m[15]-m[0]*m[11]*m[14]-m[8]*m[2]*m[15]+m[8]*m[3]*m[14]+m[12]*m[2]*m[11]-m[12]*m[3]*m[10];
+        inv[9]=-m[0]*m[9]*m[15]+m[0]*m[11]*m[13]+m[8]*m[1]*m[15]-m[8]*m[3]*m[13]-m[12]*m[1]*m[11]+m[12]*m[3]*m[9];
+        inv[13]=m[0]*m[9]*m[14]-m[0]*m[10]*m[13]-m[8]*m[1]*m[14]+m[8]*m[2]*m[13]+m[12]*m[1]*m[10]-m[12]*m[2]*m[9];
+        inv[2]=m[1]*m[6]*m[15]-m[1]*m[7]*m[14]-m[5]*m[2]*m[15]+m[5]*m[3]*m[14]+m[13]*m[2]*m[7]-m[13]*m[3]*m[6];
+        inv[6]=-m[0]*m[6]*m[15]+m[0]*m[7]*m[14]+m[4]*m[2]*m[15]-m[4]*m[3]*m[14]-m[12]*m[2]*m[7]+m[12]*m[3]*m[6];
+        inv[10]=m[0]*m[5]*m[15]-m[0]*m[7]*m[13]-m[4]*m[1]*m[15]+m[4]*m[3]*m[13]+m[12]*m[1]*m[7]-m[12]*m[3]*m[5];
+        inv[14]=-m[0]*m[5]*m[14]+m[0]*m[6]*m[13]+m[4]*m[1]*m[14]-m[4]*m[2]*m[13]-m[12]*m[1]*m[6]+m[12]*m[2]*m[5];
+        inv[3]=-m[1]*m[6]*m[11]+m[1]*m[7]*m[10]+m[5]*m[2]*m[11]-m[5]*m[3]*m[10]-m[9]*m[2]*m[7]+m[9]*m[3]*m[6];
+        inv[7]=m[0]*m[6]*m[11]-m[0]*m[7]*m[10]-m[4]*m[2]*m[11]+m[4]*m[3]*m[10]+m[8]*m[2]*m[7]-m[8]*m[3]*m[6];
+        inv[11]=-m[0]*m[5]*m[11]+m[0]*m[7]*m[9]+m[4]*m[1]*m[11]-m[4]*m[3]*m[9]-m[8]*m[1]*m[7]+m[8]*m[3]*m[5];
+        inv[15]=m[0]*m[5]*m[10]-m[0]*m[6]*m[9]-m[4]*m[1]*m[10]+m[4]*m[2]*m[9]+m[8]*m[1]*m[6]-m[8]*m[2]*m[5];
+        double det=m[0]*inv[0]+m[1]*inv[4]+m[2]*inv[8]+m[3]*inv[12];
+        if (det==0){
+            return null;
+        }
+        float[] result=new float[16];
+        for (int i=0;i<16;i++){
+            result[i]=(float)(inv[i]/det);
+        }
+        return result;
+    }
+
     /** 行列の転置行列を求めます<br>
      * 正方行列であることが前提となります */
     public static float[] getTransposed(float[] mat){
@@ -162,6 +254,71 @@ public class VectorManager {
         return result;
     }
 
+    /** AABBを同次行列で変換し，変換後の形を包むAABBを求めます<br>
+     * 引数と返り値は{minX, minY, minZ, maxX, maxY, maxZ}の並びです．8頂点を変換する代わりに，中心と半径を行列の絶対値で変換します */
+    public static float[] transformBound(float[] aabb,float[] mat,float[] result){
+        float cx=(aabb[0]+aabb[3])*0.5f;
+        float cy=(aabb[1]+aabb[4])*0.5f;
+        float cz=(aabb[2]+aabb[5])*0.5f;
+        float ex=(aabb[3]-aabb[0])*0.5f;
+        float ey=(aabb[4]-aabb[1])*0.5f;
+        float ez=(aabb[5]-aabb[2])*0.5f;
+        for (int i=0;i<3;i++){
+            float c=mat[i]*cx+mat[4+i]*cy+mat[8+i]*cz+mat[12+i];
+            float e=Math.abs(mat[i])*ex+Math.abs(mat[4+i])*ey+Math.abs(mat[8+i])*ez;
+            result[i]=c-e;
+            result[3+i]=c+e;
+        }
+        return result;
+    }
+
+    /** AABBを包む球を同次行列で変換します<br>
+     * 返り値は{centerX, centerY, centerZ, radius}です．半径は行列の最大の拡大率で拡大されます */
+    public static float[] transformSphere(float[] aabb,float[] mat,float[] result){
+        float cx=(aabb[0]+aabb[3])*0.5f;
+        float cy=(aabb[1]+aabb[4])*0.5f;
+        float cz=(aabb[2]+aabb[5])*0.5f;
+        float ex=aabb[3]-cx;
+        float ey=aabb[4]-cy;
+        float ez=aabb[5]-cz;
+        float radius=(float)Math.sqrt(ex*ex+ey*ey+ez*ez);
+        float scale2=0;
+        for (int i=0;i<3;i++){
+            float len2=mat[i*4]*mat[i*4]+mat[i*4+1]*mat[i*4+1]+mat[i*4+2]*mat[i*4+2];
+            if (scale2<len2){
+                scale2=len2;
+            }
+        }
+        result[0]=mat[0]*cx+mat[4]*cy+mat[8]*cz+mat[12];
+        result[1]=mat[1]*cx+mat[5]*cy+mat[9]*cz+mat[13];
+        result[2]=mat[2]*cx+mat[6]*cy+mat[10]*cz+mat[14];
+        result[3]=radius*(float)Math.sqrt(scale2);
+        return result;
+    }
+
+    /** 2つの球を包む球を求め，第1引数に書き込みます<br>
+     * 球は{centerX, centerY, centerZ, radius}の並びです */
+    public static float[] mergeSphere(float[] sphere,float[] other){
+        float dx=other[0]-sphere[0];
+        float dy=other[1]-sphere[1];
+        float dz=other[2]-sphere[2];
+        float dist=(float)Math.sqrt(dx*dx+dy*dy+dz*dz);
+        if (dist+other[3]<=sphere[3]){ // otherが内側にある
+            return sphere;
+        }
+        if (dist+sphere[3]<=other[3]){ // sphereが内側にある
+            System.arraycopy(other, 0, sphere, 0, 4);
+            return sphere;
+        }
+        float radius=(dist+sphere[3]+other[3])*0.5f;
+        float t=(radius-sphere[3])/dist;
+        sphere[0]+=dx*t;
+        sphere[1]+=dy*t;
+        sphere[2]+=dz*t;
+        sphere[3]=radius;
+        return sphere;
+    }
+
     /** 単位行列を生成します */
     public static float[] createIdentityMatrix(int size){
         float[] mat=new float[size*size];
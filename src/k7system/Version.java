@@ -32,6 +32,11 @@ public class Version {
         }else{
             availableFeature.put(Feature.VERTEX_BUFFER_OBJECT,false);
         }
+        if(this.newerThan(new int[]{4,3,0})){ // 4.3以上なら間接描画(glMultiDrawElementsIndirect)有効
+            availableFeature.put(Feature.MULTI_DRAW_INDIRECT,true);
+        }else{
+            availableFeature.put(Feature.MULTI_DRAW_INDIRECT,false);
+        }
     }
 
     /** 機能を有しているかを判定します */
@@ -0,0 +1,34 @@
+package k7system.collision;
+
+/** 衝突判定のブロードフェーズのインターフェースです<br>
+ * 登録したオブジェクトにはハンドル(int)が割り当てられ，衝突候補はハンドルのペアとして出力されます．
+ * シーンの性質に合わせて，CollisionManager(線形8分木)とSweepAndPrune(軸ソート)を使い分けられます． */
+public interface BroadPhase {
+    /** オブジェクトを登録します<br>
+     * 返り値は割り当てたハンドルです．既に登録されていれば，そのハンドルを返します */
+    public int addCollisionObject(CollisionObject co);
+
+    /** オブジェクトの登録を削除します */
+    public void removeCollisionObject(CollisionObject co);
+
+    /** 全てのオブジェクトのAABBを取り込み直します */
+    public void update();
+
+    /** 衝突可能性のあるペアを全て出力します<br>
+     * バッファは最初に空にされます．返り値はペア数です */
+    public int findCollisionPairs(CollisionPairBuffer result);
+
+    /** ハンドルからオブジェクトを取得します */
+    public CollisionObject getObject(int handle);
+
+    /** オブジェクトのハンドルを取得します<br>
+     * 登録されていなければ-1を返します */
+    public int getHandle(CollisionObject co);
+
+    /** ハンドル順にAABBを詰めた配列を取得します<br>
+     * ハンドルhのAABBはh*6から始まる6要素です．内容を変更しないでください */
+    public float[] getBounds();
+
+    /** 登録されているオブジェクト数を取得します */
+    public int size();
+}
@@ -12,10 +12,34 @@ public class CollisionElementSphere extends CollisionElement{
         this.position=position;
     }
 
+    /** 球同士の衝突判定を実施します<br>
+     * 位置はMV行列で変換してから比較します．球以外の形状との判定はNarrowPhaseを利用してください */
     @Override
     public boolean colidesTo(CollisionElement target) {
-        // TODO 自動生成されたメソッド・スタブ
-        return false;
+        if (!(target instanceof CollisionElementSphere)){
+            return false;
+        }
+        CollisionElementSphere other=(CollisionElementSphere)target;
+        double[] a=this.getTransformedPosition();
+        double[] b=other.getTransformedPosition();
+        double dx=b[0]-a[0];
+        double dy=b[1]-a[1];
+        double dz=b[2]-a[2];
+        double r=this.size+other.size;
+        return dx*dx+dy*dy+dz*dz<=r*r;
+    }
+
+    /** MV行列で変換した中心位置を取得します<br>
+     * MV行列が設定されていなければローカル座標をそのまま返します */
+    private double[] getTransformedPosition(){
+        float[] m=this.getMvMatrix();
+        if (m==null){
+            return this.position;
+        }
+        double x=this.position[0];
+        double y=this.position[1];
+        double z=this.position[2];
+        return new double[]{m[0]*x+m[4]*y+m[8]*z+m[12], m[1]*x+m[5]*y+m[9]*z+m[13], m[2]*x+m[6]*y+m[10]*z+m[14]};
     }
 
     @Override
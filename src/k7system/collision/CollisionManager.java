@@ -1,48 +1,500 @@
 package k7system.collision;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
-import k7system.Model3D;
 import k7system.Node3D;
 
-/** 衝突判定のための8分木空間を管理します */
-public class CollisionManager {
-    private Map<Long, CollisionSpace> octTree=new HashMap<Long, CollisionSpace>();
-    private double minX=Double.MAX_VALUE;
-    private double minY=Double.MAX_VALUE;
-    private double minZ=Double.MAX_VALUE;
-    private double maxX=Double.MIN_VALUE;
-    private double maxY=Double.MIN_VALUE;
-    private double maxZ=Double.MIN_VALUE;
-
-    /** 木空間を構成します */
-    public void createTreeSpace(Node3D rootNode){
-        this.octTree.clear();
+/** 衝突判定のための8分木空間を管理します<br>
+ * 空間を最下層で2^level分割し，オブジェクトのAABBの最小点と最大点のモートン番号から，AABBがちょうど収まる空間を求めます．
+ * 空間IDはレベルごとのオフセット(8^l-1)/7とモートン番号の和で，long型のキーのハッシュマップで管理します．<br>
+ * 登録したオブジェクトにはハンドル(int)が割り当てられ，AABBはハンドル順に詰めた配列で保持します．
+ * update()で動いたオブジェクトだけを移し替え，findCollisionPairs()で衝突候補のペアを再利用可能なバッファに出力します．<br>
+ * 動きの小さい物体が多い場合は，同じBroadPhaseを実装したSweepAndPruneも利用できます． */
+public class CollisionManager implements BroadPhase {
+    public static final int DEFAULT_LEVEL=6;
+    public static final int MAX_LEVEL=10; // モートン番号は1軸10bitまで
+
+    private static final long[] LEVEL_OFFSETS=new long[MAX_LEVEL+2];
+    static{
+        for (int i=1;i<LEVEL_OFFSETS.length;i++){
+            LEVEL_OFFSETS[i]=LEVEL_OFFSETS[i-1]*8+1;
+        }
+    }
+
+    private LongObjectMap<CollisionSpace> octTree=new LongObjectMap<CollisionSpace>();
+    private int level=DEFAULT_LEVEL;
+    private float minX=0;
+    private float minY=0;
+    private float minZ=0;
+    private float maxX=1;
+    private float maxY=1;
+    private float maxZ=1;
+    private float unitX=1; // 最下層の空間1つ分の大きさ
+    private float unitY=1;
+    private float unitZ=1;
+
+    // ハンドルごとの情報
+    private CollisionObject[] objects=new CollisionObject[64];
+    private CollisionSpace[] spaces=new CollisionSpace[64]; // 登録先の空間
+    private int[] slots=new int[64]; // 空間内での位置
+    private float[] bounds=new float[64*6]; // AABBを詰めた配列
+    private int handleCount=0; // 使用済みのハンドルの最大値+1
+    private int[] freeHandles=new int[16];
+    private int freeCount=0;
+    private IdentityIntMap<CollisionObject> handleMap=new IdentityIntMap<CollisionObject>(-1);
+
+    private int[] ancestorStack=new int[64]; // ペア探索用の作業領域
+
+    /** 分割レベルを指定して作成します<br>
+     * 空間の範囲はcreateTreeSpace()で決まります */
+    public CollisionManager(int level) {
+        this.level=Math.max(1, Math.min(MAX_LEVEL, level));
+    }
+
+    /** 標準の分割レベルで作成します */
+    public CollisionManager() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /** 分割レベルを取得します */
+    public int getLevel(){
+        return this.level;
+    }
+
+    /** 登録されているオブジェクト数を取得します */
+    public int size(){
+        return this.handleMap.size();
+    }
 
+    /** 木空間を構成します<br>
+     * ノード以下の衝突対象オブジェクトをすべて登録し直します．空間の範囲はノードの部分木の境界になります */
+    public void createTreeSpace(Node3D rootNode){
+        this.clear();
+        this.collect(rootNode);
+        if (rootNode.hasBound()){
+            float[] b=rootNode.getSubtreeBoundByArray();
+            this.setSpaceBound(b[0], b[1], b[2], b[3], b[4], b[5]);
+        }else{
+            this.createTreeSpace();
+        }
     }
 
     /** 木空間を構成します<br>
-     * 衝突対象オブジェクトを登録してから実施してください */
+     * 衝突対象オブジェクトを登録してから実施してください．空間の範囲は登録済みオブジェクトのAABBを包む範囲になります */
     public void createTreeSpace(){
+        float[] b=new float[]{Float.MAX_VALUE,Float.MAX_VALUE,Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE};
+        for (int h=0;h<this.handleCount;h++){
+            if (this.objects[h]==null){
+                continue;
+            }
+            float[] aabb=this.objects[h].getBoundByArray();
+            for (int i=0;i<3;i++){
+                b[i]=Math.min(b[i], aabb[i]);
+                b[i+3]=Math.max(b[i+3], aabb[i+3]);
+            }
+        }
+        if (this.handleMap.isEmpty()){
+            b=new float[]{0,0,0,1,1,1};
+        }
+        this.setSpaceBound(b[0], b[1], b[2], b[3], b[4], b[5]);
+    }
+
+    /** 空間の範囲を指定します<br>
+     * 範囲外のオブジェクトは端の空間に登録されるため，判定漏れは起きません．登録済みのオブジェクトは再配置されます */
+    public void setSpaceBound(float minX, float minY, float minZ, float maxX, float maxY, float maxZ){
+        this.minX=minX;
+        this.minY=minY;
+        this.minZ=minZ;
+        this.maxX=Math.max(maxX, minX+Float.MIN_NORMAL);
+        this.maxY=Math.max(maxY, minY+Float.MIN_NORMAL);
+        this.maxZ=Math.max(maxZ, minZ+Float.MIN_NORMAL);
+        int div=1<<this.level;
+        this.unitX=(this.maxX-this.minX)/div;
+        this.unitY=(this.maxY-this.minY)/div;
+        this.unitZ=(this.maxZ-this.minZ)/div;
+        this.relocateAll();
+    }
 
+    /** 全ての登録を削除します */
+    public void clear(){
+        this.octTree.clear();
+        for (int h=0;h<this.handleCount;h++){
+            this.objects[h]=null;
+            this.spaces[h]=null;
+        }
+        this.handleCount=0;
+        this.freeCount=0;
+        this.handleMap.clear();
+    }
+
+    /** オブジェクトを木空間に追加します<br>
+     * 返り値は割り当てたハンドルです．既に登録されていれば，そのハンドルを返します */
+    public int addCollisionObject(CollisionObject co){
+        int registered=this.handleMap.get(co);
+        if (0<=registered){
+            return registered;
+        }
+        int handle;
+        if (0<this.freeCount){
+            handle=this.freeHandles[--this.freeCount];
+        }else{
+            handle=this.handleCount++;
+            this.ensureHandleCapacity(this.handleCount);
+        }
+        this.objects[handle]=co;
+        this.handleMap.put(co, handle);
+        this.updateObject(handle);
+        return handle;
+    }
+
+    /** オブジェクトを木空間から削除します */
+    public void removeCollisionObject(CollisionObject co){
+        int handle=this.handleMap.remove(co);
+        if (handle<0){
+            return;
+        }
+        this.unlink(handle);
+        this.objects[handle]=null;
+        if (this.freeHandles.length<=this.freeCount){
+            int[] newFree=new int[this.freeHandles.length*2];
+            System.arraycopy(this.freeHandles, 0, newFree, 0, this.freeCount);
+            this.freeHandles=newFree;
+        }
+        this.freeHandles[this.freeCount++]=handle;
+    }
+
+    /** ハンドルからオブジェクトを取得します */
+    public CollisionObject getObject(int handle){
+        return this.objects[handle];
+    }
+
+    /** オブジェクトのハンドルを取得します<br>
+     * 登録されていなければ-1を返します */
+    public int getHandle(CollisionObject co){
+        return this.handleMap.get(co);
+    }
+
+    /** ハンドル順にAABBを詰めた配列を取得します<br>
+     * ハンドルhのAABBはh*6から始まる6要素です．内容を変更しないでください */
+    public float[] getBounds(){
+        return this.bounds;
+    }
+
+    /** ハンドルの最大値+1を取得します */
+    public int getHandleCount(){
+        return this.handleCount;
+    }
+
+    /** 全てのオブジェクトのAABBを取り込み直し，空間が変わったものだけを移し替えます */
+    public void update(){
+        for (int h=0;h<this.handleCount;h++){
+            if (this.objects[h]!=null){
+                this.updateObject(h);
+            }
+        }
     }
 
-    /** ノードを木空間に追加します */
-    private void addCollisionObject(CollisionObject co){
+    /** 1つのオブジェクトのAABBを取り込み直します */
+    public void update(CollisionObject co){
+        int handle=this.handleMap.get(co);
+        if (0<=handle){
+            this.updateObject(handle);
+        }
+    }
+
+    /** 指定した空間を取得します<br>
+     * 登録がない空間はnullになります */
+    public CollisionSpace getCollisionSpace(long id){
+        return this.octTree.get(id);
+    }
 
+    /** 衝突可能性のあるペアを全て出力します<br>
+     * 同じ空間か祖先の空間に登録されていて，AABBが重なっているペアだけが出力されます．
+     * バッファは最初に空にされます．返り値はペア数です */
+    public int findCollisionPairs(CollisionPairBuffer result){
+        result.clear();
+        CollisionSpace root=this.octTree.get(0);
+        if (root!=null){
+            this.findPairs(root, 0, result);
+        }
+        return result.size();
     }
 
-    /** 指定されたモデルと衝突可能性のあるモデルを返します */
+    /** 指定されたモデルと衝突可能性のあるモデルを返します<br>
+     * 呼び出しごとにリストを作成します．毎フレーム呼び出す場合は，リストを渡す版を利用してください */
     public List<CollisionObject> getCollisionCandidates(CollisionObject obj){
-        return null;
+        return this.getCollisionCandidates(obj, new ArrayList<CollisionObject>());
+    }
+
+    /** 指定されたモデルと衝突可能性のあるモデルを第2引数のリストに追加します<br>
+     * 登録されていないモデルの場合は，AABBから空間を求めて検索します．
+     * 登録済みのモデルはハンドル順のAABB配列をそのまま参照するため，検索でオブジェクトは生成されません */
+    public List<CollisionObject> getCollisionCandidates(CollisionObject obj, List<CollisionObject> result){
+        int handle=this.handleMap.get(obj);
+        if (0<=handle){
+            this.collectCandidates(this.spaces[handle].getId(), this.bounds, handle*6, handle, result);
+        }else{
+            float[] aabb=obj.getBoundByArray();
+            this.collectCandidates(this.computeId(aabb, 0), aabb, 0, -1, result);
+        }
+        return result;
     }
 
-    /** 指定されたエリアと衝突可能性のあるモデルを返します */
+    /** 指定されたエリアと衝突可能性のあるモデルを返します<br>
+     * その空間，祖先の空間，子孫の空間に登録されているモデルが対象になります */
     public List<CollisionObject> getCollisionCandidates(long id){
-        return null;
+        return this.getCollisionCandidates(id, new ArrayList<CollisionObject>());
+    }
+
+    /** 指定されたエリアと衝突可能性のあるモデルを第2引数のリストに追加します */
+    public List<CollisionObject> getCollisionCandidates(long id, List<CollisionObject> result){
+        this.collectCandidates(id, null, 0, -1, result);
+        return result;
+    }
+
+    /** AABBが収まる空間IDを計算します<br>
+     * 第2引数は配列内の開始位置です */
+    public long computeId(float[] aabb, int offset){
+        long m1=this.mortonOf(aabb[offset], aabb[offset+1], aabb[offset+2]);
+        long m2=this.mortonOf(aabb[offset+3], aabb[offset+4], aabb[offset+5]);
+        long xor=m1^m2;
+        int shift=0;
+        while(xor!=0){
+            xor>>=3;
+            shift++;
+        }
+        int cellLevel=this.level-shift;
+        return LEVEL_OFFSETS[cellLevel]+(m2>>(3*shift));
+    }
+
+    /** 空間IDからレベルを求めます */
+    public static int levelOf(long id){
+        int l=0;
+        while(LEVEL_OFFSETS[l+1]<=id){
+            l++;
+        }
+        return l;
+    }
+
+    /** 座標から最下層のモートン番号を求めます */
+    private long mortonOf(float x, float y, float z){
+        int max=(1<<this.level)-1;
+        int ix=clamp((int)Math.floor((x-this.minX)/this.unitX), max);
+        int iy=clamp((int)Math.floor((y-this.minY)/this.unitY), max);
+        int iz=clamp((int)Math.floor((z-this.minZ)/this.unitZ), max);
+        return spread(ix)|(spread(iy)<<1)|(spread(iz)<<2);
+    }
+
+    private static int clamp(int value, int max){
+        return value<0 ? 0 : (max<value ? max : value);
+    }
+
+    /** 10bitの値を3bitおきに並べ替えます */
+    private static long spread(long v){
+        v&=0x3ff;
+        v=(v|(v<<16))&0x30000ffL;
+        v=(v|(v<<8))&0x300f00fL;
+        v=(v|(v<<4))&0x30c30c3L;
+        v=(v|(v<<2))&0x9249249L;
+        return v;
+    }
+
+    /** オブジェクトのAABBを取り込み，必要なら空間を移し替えます */
+    private void updateObject(int handle){
+        float[] aabb=this.objects[handle].getBoundByArray();
+        System.arraycopy(aabb, 0, this.bounds, handle*6, 6);
+        long id=this.computeId(this.bounds, handle*6);
+        CollisionSpace current=this.spaces[handle];
+        if (current!=null && current.getId()==id){
+            return; // 同じ空間に収まっている
+        }
+        this.unlink(handle);
+        CollisionSpace space=this.getOrCreateSpace(id);
+        this.slots[handle]=space.add(this.objects[handle], handle);
+        this.spaces[handle]=space;
+        for (CollisionSpace s=space;s!=null;s=this.getParentSpace(s)){
+            s.addTotal(1);
+        }
     }
-}
 
+    /** オブジェクトを今の空間から外します<br>
+     * 登録がなくなった空間は削除します */
+    private void unlink(int handle){
+        CollisionSpace space=this.spaces[handle];
+        if (space==null){
+            return;
+        }
+        int moved=space.remove(this.slots[handle]);
+        if (0<=moved){
+            this.slots[moved]=this.slots[handle];
+        }
+        this.spaces[handle]=null;
+        while(space!=null){
+            space.addTotal(-1);
+            CollisionSpace parent=this.getParentSpace(space);
+            if (space.getTotal()==0){
+                this.octTree.remove(space.getId());
+            }
+            space=parent;
+        }
+    }
+
+    /** 空間を取得します．無ければ祖先も含めて作成します */
+    private CollisionSpace getOrCreateSpace(long id){
+        CollisionSpace space=this.octTree.get(id);
+        if (space==null){
+            int l=levelOf(id);
+            long morton=id-LEVEL_OFFSETS[l];
+            space=new CollisionSpace(id, l, morton);
+            this.octTree.put(id, space);
+            if (0<l){
+                this.getOrCreateSpace(LEVEL_OFFSETS[l-1]+(morton>>3));
+            }
+        }
+        return space;
+    }
+
+    /** 親の空間を取得します */
+    private CollisionSpace getParentSpace(CollisionSpace space){
+        if (space.getLevel()==0){
+            return null;
+        }
+        return this.octTree.get(LEVEL_OFFSETS[space.getLevel()-1]+(space.getMorton()>>3));
+    }
 
+    /** 全オブジェクトを配置し直します */
+    private void relocateAll(){
+        this.octTree.clear();
+        for (int h=0;h<this.handleCount;h++){
+            this.spaces[h]=null;
+        }
+        for (int h=0;h<this.handleCount;h++){
+            if (this.objects[h]!=null){
+                this.updateObject(h);
+            }
+        }
+    }
+
+    /** ノード以下の衝突対象オブジェクトを登録します */
+    private void collect(Node3D node){
+        if (node instanceof CollisionObject && !node.isDestroyFlag()){
+            this.addCollisionObject((CollisionObject)node);
+        }
+        for (Node3D child:node.getChildObjects()){
+            this.collect(child);
+        }
+    }
+
+    /** 空間を深さ優先でたどり，同じ空間同士と祖先の空間とのペアを出力します */
+    private void findPairs(CollisionSpace space, int depth, CollisionPairBuffer result){
+        int count=space.size();
+        for (int i=0;i<count;i++){
+            int a=space.getHandle(i);
+            for (int j=i+1;j<count;j++){
+                this.addIfOverlap(a, space.getHandle(j), result);
+            }
+            for (int k=0;k<depth;k++){
+                this.addIfOverlap(this.ancestorStack[k], a, result);
+            }
+        }
+
+        if (space.getLevel()==this.level || space.getTotal()==count){
+            return; // 子孫に登録がない
+        }
+
+        // 自分の登録を祖先として積む
+        if (this.ancestorStack.length<depth+count){
+            int[] newStack=new int[Math.max(this.ancestorStack.length*2, depth+count)];
+            System.arraycopy(this.ancestorStack, 0, newStack, 0, depth);
+            this.ancestorStack=newStack;
+        }
+        for (int i=0;i<count;i++){
+            this.ancestorStack[depth+i]=space.getHandle(i);
+        }
+        long childBase=LEVEL_OFFSETS[space.getLevel()+1]+(space.getMorton()<<3);
+        for (int i=0;i<8;i++){
+            CollisionSpace child=this.octTree.get(childBase+i);
+            if (child!=null){
+                this.findPairs(child, depth+count, result);
+            }
+        }
+    }
+
+    /** AABBが重なっていればペアを出力します */
+    private void addIfOverlap(int a, int b, CollisionPairBuffer result){
+        float[] bd=this.bounds;
+        int oa=a*6;
+        int ob=b*6;
+        if (bd[oa]<=bd[ob+3] && bd[ob]<=bd[oa+3] && bd[oa+1]<=bd[ob+4] && bd[ob+1]<=bd[oa+4] && bd[oa+2]<=bd[ob+5] && bd[ob+2]<=bd[oa+5]){
+            result.add(a, b);
+        }
+    }
+
+    /** 空間の祖先と子孫から候補を集めます */
+    private void collectCandidates(long id, float[] aabb, int offset, int self, List<CollisionObject> result){
+        int l=levelOf(id);
+        long morton=id-LEVEL_OFFSETS[l];
+        // 祖先と自分
+        for (int i=l;0<=i;i--){
+            CollisionSpace space=this.octTree.get(LEVEL_OFFSETS[i]+(morton>>(3*(l-i))));
+            if (space!=null){
+                this.addCandidates(space, aabb, offset, self, result);
+            }
+        }
+        // 子孫
+        CollisionSpace space=this.octTree.get(id);
+        if (space!=null && l<this.level){
+            this.collectDescendants(l+1, morton<<3, aabb, offset, self, result);
+        }
+    }
+
+    private void collectDescendants(int l, long mortonBase, float[] aabb, int offset, int self, List<CollisionObject> result){
+        for (int i=0;i<8;i++){
+            CollisionSpace space=this.octTree.get(LEVEL_OFFSETS[l]+mortonBase+i);
+            if (space!=null){
+                this.addCandidates(space, aabb, offset, self, result);
+                if (l<this.level && space.size()<space.getTotal()){
+                    this.collectDescendants(l+1, (mortonBase+i)<<3, aabb, offset, self, result);
+                }
+            }
+        }
+    }
+
+    /** 空間に登録されているモデルのうち，aabbのoffsetから始まる6要素と重なるものを追加します<br>
+     * aabbがnullなら全て追加します */
+    private void addCandidates(CollisionSpace space, float[] aabb, int offset, int self, List<CollisionObject> result){
+        for (int i=0;i<space.size();i++){
+            int h=space.getHandle(i);
+            if (h==self){
+                continue;
+            }
+            if (aabb!=null){
+                int o=h*6;
+                if (aabb[offset+3]<this.bounds[o] || this.bounds[o+3]<aabb[offset] || aabb[offset+4]<this.bounds[o+1] || this.bounds[o+4]<aabb[offset+1] || aabb[offset+5]<this.bounds[o+2] || this.bounds[o+5]<aabb[offset+2]){
+                    continue;
+                }
+            }
+            result.add(space.getObject(i));
+        }
+    }
+
+    private void ensureHandleCapacity(int capacity){
+        if (capacity<=this.objects.length){
+            return;
+        }
+        int newCap=Math.max(this.objects.length*2, capacity);
+        CollisionObject[] newObjects=new CollisionObject[newCap];
+        System.arraycopy(this.objects, 0, newObjects, 0, this.objects.length);
+        this.objects=newObjects;
+        CollisionSpace[] newSpaces=new CollisionSpace[newCap];
+        System.arraycopy(this.spaces, 0, newSpaces, 0, this.spaces.length);
+        this.spaces=newSpaces;
+        int[] newSlots=new int[newCap];
+        System.arraycopy(this.slots, 0, newSlots, 0, this.slots.length);
+        this.slots=newSlots;
+        float[] newBounds=new float[newCap*6];
+        System.arraycopy(this.bounds, 0, newBounds, 0, this.bounds.length);
+        this.bounds=newBounds;
+    }
+}
@@ -0,0 +1,59 @@
+package k7system.collision;
+
+/** 衝突候補のペアを格納する再利用可能なバッファです<br>
+ * ペアはオブジェクトの参照ではなく，ブロードフェーズが割り当てたハンドル(int)の組として連続した配列に格納されます．
+ * clear()しても配列は保持されるため，毎フレーム同じバッファを使えばペアの出力でオブジェクトは生成されません． */
+public class CollisionPairBuffer {
+    private static final int DEFAULT_CAPACITY=256;
+
+    private int[] pairs;
+    private int size=0;
+
+    /** 標準の容量で作成します */
+    public CollisionPairBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** ペア数の初期容量を指定して作成します */
+    public CollisionPairBuffer(int capacity) {
+        this.pairs=new int[Math.max(capacity, 1)*2];
+    }
+
+    /** ペアを全て削除します */
+    public void clear(){
+        this.size=0;
+    }
+
+    /** ペアを追加します */
+    public void add(int handleA, int handleB){
+        if (this.pairs.length<=this.size*2+1){
+            int[] newPairs=new int[this.pairs.length*2];
+            System.arraycopy(this.pairs, 0, newPairs, 0, this.size*2);
+            this.pairs=newPairs;
+        }
+        this.pairs[this.size*2]=handleA;
+        this.pairs[this.size*2+1]=handleB;
+        this.size++;
+    }
+
+    /** ペア数を取得します */
+    public int size(){
+        return this.size;
+    }
+
+    /** n番目のペアの1つ目のハンドルを取得します */
+    public int getFirst(int index){
+        return this.pairs[index*2];
+    }
+
+    /** n番目のペアの2つ目のハンドルを取得します */
+    public int getSecond(int index){
+        return this.pairs[index*2+1];
+    }
+
+    /** ペアを格納している配列を取得します<br>
+     * n番目のペアは2n,2n+1番目の要素です．有効なのはsize()*2個までで，内容を変更しないでください */
+    public int[] getArray(){
+        return this.pairs;
+    }
+}
@@ -0,0 +1,165 @@
+package k7system.collision;
+
+/** 衝突判定用の形状をハンドルごとに詰めて保持するバッファです<br>
+ * ハンドルはブロードフェーズが割り当てたものをそのまま使います．
+ * 形状の種類はint配列に，パラメータはハンドルごとにSTRIDE個ずつ並べたfloat配列に格納されます．<br>
+ * 三角形メッシュはワールド座標系の頂点を三角形ごとに9個ずつ並べた配列として別に保持します．
+ * 値はすべてワールド座標系です． */
+public class CollisionShapeBuffer {
+    public static final int NONE=-1;
+    public static final int SPHERE=0; // 中心x,y,z，半径
+    public static final int AABB=1; // minX,minY,minZ,maxX,maxY,maxZ
+    public static final int OBB=2; // 中心x,y,z，軸u0,u1,u2(各3要素)，各軸の半分の長さ3要素
+    public static final int CAPSULE=3; // 端点p0(3要素)，端点p1(3要素)，半径
+    public static final int MESH=4; // メッシュ全体のAABB
+
+    public static final int STRIDE=16;
+
+    private int[] types=new int[64];
+    private float[] params=new float[64*STRIDE];
+    private float[][] meshes=new float[64][]; // 三角形ごとに9要素
+    private int[] triangleCounts=new int[64];
+
+    /** 形状の種類を取得します */
+    public int getType(int handle){
+        if (this.types.length<=handle){
+            return NONE;
+        }
+        return this.types[handle];
+    }
+
+    /** パラメータを詰めた配列を取得します<br>
+     * ハンドルhのパラメータはh*STRIDEから始まります．内容を変更しないでください */
+    public float[] getParams(){
+        return this.params;
+    }
+
+    /** メッシュの三角形配列を取得します */
+    public float[] getMesh(int handle){
+        return this.meshes[handle];
+    }
+
+    /** メッシュの三角形数を取得します */
+    public int getTriangleCount(int handle){
+        return this.triangleCounts[handle];
+    }
+
+    /** 形状を削除します */
+    public void clear(int handle){
+        if (handle<this.types.length){
+            this.types[handle]=NONE;
+            this.meshes[handle]=null;
+            this.triangleCounts[handle]=0;
+        }
+    }
+
+    /** 球を設定します */
+    public void setSphere(int handle, float x, float y, float z, float radius){
+        int o=this.prepare(handle, SPHERE);
+        this.params[o]=x;
+        this.params[o+1]=y;
+        this.params[o+2]=z;
+        this.params[o+3]=radius;
+    }
+
+    /** AABBを設定します<br>
+     * 引数は{minX, minY, minZ, maxX, maxY, maxZ}です */
+    public void setAabb(int handle, float[] aabb){
+        int o=this.prepare(handle, AABB);
+        System.arraycopy(aabb, 0, this.params, o, 6);
+    }
+
+    /** OBBを設定します<br>
+     * axesは正規直交な3軸を続けて並べた9要素，halfSizesは各軸方向の半分の長さです */
+    public void setObb(int handle, float[] center, float[] axes, float[] halfSizes){
+        int o=this.prepare(handle, OBB);
+        System.arraycopy(center, 0, this.params, o, 3);
+        System.arraycopy(axes, 0, this.params, o+3, 9);
+        System.arraycopy(halfSizes, 0, this.params, o+12, 3);
+    }
+
+    /** モデル座標系のAABBを同次行列で変換したOBBを設定します<br>
+     * 行列の拡大率は軸の長さとして反映されます */
+    public void setObb(int handle, float[] localAabb, float[] worldMatrix){
+        int o=this.prepare(handle, OBB);
+        float cx=(localAabb[0]+localAabb[3])*0.5f;
+        float cy=(localAabb[1]+localAabb[4])*0.5f;
+        float cz=(localAabb[2]+localAabb[5])*0.5f;
+        float[] m=worldMatrix;
+        this.params[o]=m[0]*cx+m[4]*cy+m[8]*cz+m[12];
+        this.params[o+1]=m[1]*cx+m[5]*cy+m[9]*cz+m[13];
+        this.params[o+2]=m[2]*cx+m[6]*cy+m[10]*cz+m[14];
+        for (int i=0;i<3;i++){
+            float len=(float)Math.sqrt(m[i*4]*m[i*4]+m[i*4+1]*m[i*4+1]+m[i*4+2]*m[i*4+2]);
+            float inv=0<len ? 1/len : 0;
+            this.params[o+3+i*3]=m[i*4]*inv;
+            this.params[o+3+i*3+1]=m[i*4+1]*inv;
+            this.params[o+3+i*3+2]=m[i*4+2]*inv;
+            this.params[o+12+i]=(localAabb[i+3]-localAabb[i])*0.5f*len;
+        }
+    }
+
+    /** カプセルを設定します */
+    public void setCapsule(int handle, float[] p0, float[] p1, float radius){
+        int o=this.prepare(handle, CAPSULE);
+        System.arraycopy(p0, 0, this.params, o, 3);
+        System.arraycopy(p1, 0, this.params, o+3, 3);
+        this.params[o+6]=radius;
+    }
+
+    /** 三角形メッシュを設定します<br>
+     * モデル座標系の頂点(3要素ずつ)とインデックス(3つで1三角形)を同次行列で変換して保持します．
+     * 以前の配列に収まる場合は再利用します */
+    public void setMesh(int handle, float[] vertices, int[] indices, float[] worldMatrix){
+        int o=this.prepare(handle, MESH);
+        int count=indices.length/3;
+        float[] tri=this.meshes[handle];
+        if (tri==null || tri.length<count*9){
+            tri=new float[count*9];
+            this.meshes[handle]=tri;
+        }
+        float[] m=worldMatrix;
+        float[] bound=this.params;
+        for (int k=0;k<3;k++){
+            bound[o+k]=Float.MAX_VALUE;
+            bound[o+k+3]=-Float.MAX_VALUE;
+        }
+        for (int i=0;i<count*3;i++){
+            int v=indices[i]*3;
+            float x=vertices[v];
+            float y=vertices[v+1];
+            float z=vertices[v+2];
+            for (int k=0;k<3;k++){
+                float w=m[k]*x+m[4+k]*y+m[8+k]*z+m[12+k];
+                tri[i*3+k]=w;
+                bound[o+k]=Math.min(bound[o+k], w);
+                bound[o+k+3]=Math.max(bound[o+k+3], w);
+            }
+        }
+        this.triangleCounts[handle]=count;
+    }
+
+    /** ハンドルの領域を確保して種類を設定し，パラメータの開始位置を返します */
+    private int prepare(int handle, int type){
+        if (this.types.length<=handle){
+            int newCap=Math.max(this.types.length*2, handle+1);
+            int[] newTypes=new int[newCap];
+            System.arraycopy(this.types, 0, newTypes, 0, this.types.length);
+            for (int i=this.types.length;i<newCap;i++){
+                newTypes[i]=NONE;
+            }
+            this.types=newTypes;
+            float[] newParams=new float[newCap*STRIDE];
+            System.arraycopy(this.params, 0, newParams, 0, this.params.length);
+            this.params=newParams;
+            float[][] newMeshes=new float[newCap][];
+            System.arraycopy(this.meshes, 0, newMeshes, 0, this.meshes.length);
+            this.meshes=newMeshes;
+            int[] newCounts=new int[newCap];
+            System.arraycopy(this.triangleCounts, 0, newCounts, 0, this.triangleCounts.length);
+            this.triangleCounts=newCounts;
+        }
+        this.types[handle]=type;
+        return handle*STRIDE;
+    }
+}
@@ -3,10 +3,96 @@ package k7system.collision;
 import java.util.ArrayList;
 import java.util.List;
 
-/** 衝突空間です */
+/** 衝突空間です<br>
+ * 線形8分木の1つのセルで，そのセルにちょうど収まる衝突対象オブジェクトを保持します．
+ * IDはレベルごとのオフセットとモートン番号の和です． */
 public class CollisionSpace {
     private List<CollisionObject> objects=new ArrayList<CollisionObject>();
+    private int[] handles=new int[4]; // objectsと同じ並びのハンドルです
 
+    private long id;
+    private int level;
+    private long morton;
+    private int total=0; // 子孫の空間も含めた登録数です
 
+    /** 空間IDとレベル，そのレベルでのモートン番号を指定して作成します */
+    public CollisionSpace(long id, int level, long morton) {
+        this.id=id;
+        this.level=level;
+        this.morton=morton;
+    }
 
+    /** 空間IDを取得します */
+    public long getId(){
+        return this.id;
+    }
+
+    /** 分割レベルを取得します<br>
+     * ルート空間が0です */
+    public int getLevel(){
+        return this.level;
+    }
+
+    /** そのレベルでのモートン番号を取得します */
+    public long getMorton(){
+        return this.morton;
+    }
+
+    /** この空間に登録されているオブジェクト数を取得します */
+    public int size(){
+        return this.objects.size();
+    }
+
+    /** この空間に登録されているオブジェクトを取得します */
+    public CollisionObject getObject(int index){
+        return this.objects.get(index);
+    }
+
+    /** この空間に登録されているオブジェクトのハンドルを取得します */
+    public int getHandle(int index){
+        return this.handles[index];
+    }
+
+    /** この空間に登録されているオブジェクトの一覧を取得します<br>
+     * 内容を変更しないでください */
+    public List<CollisionObject> getObjects(){
+        return this.objects;
+    }
+
+    /** 子孫の空間も含めた登録数を取得します */
+    public int getTotal(){
+        return this.total;
+    }
+
+    /** 子孫の空間も含めた登録数を増減します */
+    void addTotal(int delta){
+        this.total+=delta;
+    }
+
+    /** オブジェクトを追加します<br>
+     * 返り値は空間内での位置です */
+    int add(CollisionObject obj, int handle){
+        int slot=this.objects.size();
+        if (this.handles.length<=slot){
+            int[] newHandles=new int[this.handles.length*2];
+            System.arraycopy(this.handles, 0, newHandles, 0, slot);
+            this.handles=newHandles;
+        }
+        this.objects.add(obj);
+        this.handles[slot]=handle;
+        return slot;
+    }
+
+    /** 指定した位置のオブジェクトを取り除きます<br>
+     * 末尾のオブジェクトを空いた位置に移し，移したオブジェクトのハンドルを返します．移動がなければ-1を返します */
+    int remove(int slot){
+        int last=this.objects.size()-1;
+        CollisionObject lastObj=this.objects.remove(last);
+        if (slot==last){
+            return -1;
+        }
+        this.objects.set(slot, lastObj);
+        this.handles[slot]=this.handles[last];
+        return this.handles[slot];
+    }
 }
@@ -0,0 +1,112 @@
+package k7system.collision;
+
+/** 狭域判定(ナローフェーズ)の結果を格納する再利用可能なバッファです<br>
+ * 接触ごとにハンドルの組と，法線(1つ目から2つ目へ向かう単位ベクトル)，めり込み量，接触点を連続した配列に格納します．
+ * clear()しても配列は保持されるため，毎フレーム同じバッファを使えば結果の出力でオブジェクトは生成されません． */
+public class ContactBuffer {
+    public static final int STRIDE=7; // 法線x,y,z，めり込み量，接触点x,y,z
+    private static final int DEFAULT_CAPACITY=256;
+
+    private int[] handles;
+    private float[] data;
+    private int size=0;
+
+    /** 標準の容量で作成します */
+    public ContactBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** 接触数の初期容量を指定して作成します */
+    public ContactBuffer(int capacity) {
+        int cap=Math.max(capacity, 1);
+        this.handles=new int[cap*2];
+        this.data=new float[cap*STRIDE];
+    }
+
+    /** 接触を全て削除します */
+    public void clear(){
+        this.size=0;
+    }
+
+    /** 接触を追加します */
+    public void add(int handleA, int handleB, float nx, float ny, float nz, float depth, float px, float py, float pz){
+        this.ensureCapacity(this.size+1);
+        this.handles[this.size*2]=handleA;
+        this.handles[this.size*2+1]=handleB;
+        int o=this.size*STRIDE;
+        this.data[o]=nx;
+        this.data[o+1]=ny;
+        this.data[o+2]=nz;
+        this.data[o+3]=depth;
+        this.data[o+4]=px;
+        this.data[o+5]=py;
+        this.data[o+6]=pz;
+        this.size++;
+    }
+
+    /** 別のバッファの接触を末尾に追加します */
+    public void addAll(ContactBuffer other){
+        this.ensureCapacity(this.size+other.size);
+        System.arraycopy(other.handles, 0, this.handles, this.size*2, other.size*2);
+        System.arraycopy(other.data, 0, this.data, this.size*STRIDE, other.size*STRIDE);
+        this.size+=other.size;
+    }
+
+    /** 接触数を取得します */
+    public int size(){
+        return this.size;
+    }
+
+    /** n番目の接触の1つ目のハンドルを取得します */
+    public int getFirst(int index){
+        return this.handles[index*2];
+    }
+
+    /** n番目の接触の2つ目のハンドルを取得します */
+    public int getSecond(int index){
+        return this.handles[index*2+1];
+    }
+
+    /** n番目の接触のめり込み量を取得します */
+    public float getDepth(int index){
+        return this.data[index*STRIDE+3];
+    }
+
+    /** n番目の接触の法線を取得します<br>
+     * 1つ目のオブジェクトから2つ目のオブジェクトへ向かう向きです */
+    public float[] getNormalByArray(int index){
+        int o=index*STRIDE;
+        return new float[]{this.data[o], this.data[o+1], this.data[o+2]};
+    }
+
+    /** n番目の接触点を取得します */
+    public float[] getPointByArray(int index){
+        int o=index*STRIDE;
+        return new float[]{this.data[o+4], this.data[o+5], this.data[o+6]};
+    }
+
+    /** 接触データを格納している配列を取得します<br>
+     * n番目の接触はn*STRIDEから始まります．有効なのはsize()*STRIDE個までで，内容を変更しないでください */
+    public float[] getArray(){
+        return this.data;
+    }
+
+    /** ハンドルの組を格納している配列を取得します<br>
+     * n番目の接触は2n,2n+1番目の要素です．内容を変更しないでください */
+    public int[] getHandleArray(){
+        return this.handles;
+    }
+
+    private void ensureCapacity(int capacity){
+        if (capacity*2<=this.handles.length){
+            return;
+        }
+        int newCap=Math.max(this.handles.length, capacity*2);
+        int[] newHandles=new int[newCap*2];
+        System.arraycopy(this.handles, 0, newHandles, 0, this.size*2);
+        this.handles=newHandles;
+        float[] newData=new float[newCap*STRIDE];
+        System.arraycopy(this.data, 0, newData, 0, this.size*STRIDE);
+        this.data=newData;
+    }
+}
@@ -0,0 +1,133 @@
+package k7system.collision;
+
+/** オブジェクトの同一性をキーとし，int型の値を箱詰めせずに扱うハッシュマップです<br>
+ * LongObjectMapと同じくオープンアドレス法(線形探索)で実装しており，検索や追加でオブジェクトを生成しません．
+ * キーはequals()ではなく==で比較します．ブロードフェーズでオブジェクトからハンドルを引くために利用します． */
+public class IdentityIntMap<K> {
+    private static final int DEFAULT_CAPACITY=64;
+    private static final float LOAD_FACTOR=0.5f;
+
+    private Object[] keys;
+    private int[] values;
+    private int size=0;
+    private int mask;
+    private int missing;
+
+    /** 登録されていないキーに対してmissingを返すマップを作成します */
+    public IdentityIntMap(int missing) {
+        this.missing=missing;
+        this.allocate(DEFAULT_CAPACITY);
+    }
+
+    /** 要素数を取得します */
+    public int size(){
+        return this.size;
+    }
+
+    /** 要素が無いかどうかを取得します */
+    public boolean isEmpty(){
+        return this.size==0;
+    }
+
+    /** 値を取得します<br>
+     * 登録されていなければ作成時に指定した値を返します */
+    public int get(K key){
+        int index=this.indexOf(key);
+        return index<0 ? this.missing : this.values[index];
+    }
+
+    /** キーが登録されているかどうかを取得します */
+    public boolean containsKey(K key){
+        return 0<=this.indexOf(key);
+    }
+
+    /** 値を登録します<br>
+     * 以前の値を返します．登録されていなかった場合は作成時に指定した値を返します */
+    public int put(K key, int value){
+        if (this.keys.length*LOAD_FACTOR<=this.size+1){
+            this.rehash(this.keys.length*2);
+        }
+        int index=hash(key)&this.mask;
+        while(this.keys[index]!=null){
+            if (this.keys[index]==key){
+                int old=this.values[index];
+                this.values[index]=value;
+                return old;
+            }
+            index=(index+1)&this.mask;
+        }
+        this.keys[index]=key;
+        this.values[index]=value;
+        this.size++;
+        return this.missing;
+    }
+
+    /** 値を削除します<br>
+     * 削除した値を返します．登録されていなかった場合は作成時に指定した値を返します */
+    public int remove(K key){
+        int index=this.indexOf(key);
+        if (index<0){
+            return this.missing;
+        }
+        int old=this.values[index];
+        this.size--;
+
+        // 後ろに続く要素を，本来の位置を越えない範囲で前に詰める
+        int hole=index;
+        int next=(hole+1)&this.mask;
+        while(this.keys[next]!=null){
+            int home=hash(this.keys[next])&this.mask;
+            if (((next-home)&this.mask)>=((next-hole)&this.mask)){
+                this.keys[hole]=this.keys[next];
+                this.values[hole]=this.values[next];
+                hole=next;
+            }
+            next=(next+1)&this.mask;
+        }
+        this.keys[hole]=null;
+        return old;
+    }
+
+    /** 全ての要素を削除します */
+    public void clear(){
+        for (int i=0;i<this.keys.length;i++){
+            this.keys[i]=null;
+        }
+        this.size=0;
+    }
+
+    private int indexOf(Object key){
+        int index=hash(key)&this.mask;
+        while(this.keys[index]!=null){
+            if (this.keys[index]==key){
+                return index;
+            }
+            index=(index+1)&this.mask;
+        }
+        return -1;
+    }
+
+    private void allocate(int capacity){
+        this.keys=new Object[capacity];
+        this.values=new int[capacity];
+        this.mask=capacity-1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rehash(int capacity){
+        Object[] oldKeys=this.keys;
+        int[] oldValues=this.values;
+        this.allocate(capacity);
+        this.size=0;
+        for (int i=0;i<oldKeys.length;i++){
+            if (oldKeys[i]!=null){
+                this.put((K)oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int hash(Object key){
+        int h=System.identityHashCode(key)*0x9E3779B9;
+        return h^(h>>>16);
+    }
+}
@@ -0,0 +1,167 @@
+package k7system.collision;
+
+/** long型のキーを箱詰めせずに扱うハッシュマップです<br>
+ * オープンアドレス法(線形探索)で実装しており，検索や追加でオブジェクトを生成しません．
+ * 空間IDから衝突空間を引くために利用します．<br>
+ * 要素の列挙はcapacity()までの添字についてisUsed()を確認しながら行います． */
+public class LongObjectMap<V> {
+    private static final int DEFAULT_CAPACITY=64;
+    private static final float LOAD_FACTOR=0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private boolean[] used;
+    private int size=0;
+    private int mask;
+
+    /** 標準の容量で作成します */
+    public LongObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** 初期容量を指定して作成します<br>
+     * 容量は2のべき乗に切り上げられます */
+    public LongObjectMap(int capacity) {
+        int cap=Integer.highestOneBit(Math.max(capacity, 4)-1)<<1;
+        this.allocate(cap);
+    }
+
+    /** 要素数を取得します */
+    public int size(){
+        return this.size;
+    }
+
+    /** 内部配列の大きさを取得します */
+    public int capacity(){
+        return this.keys.length;
+    }
+
+    /** 指定した添字に要素があるかどうかを取得します */
+    public boolean isUsed(int index){
+        return this.used[index];
+    }
+
+    /** 指定した添字のキーを取得します */
+    public long keyAt(int index){
+        return this.keys[index];
+    }
+
+    /** 指定した添字の値を取得します */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index){
+        return (V)this.values[index];
+    }
+
+    /** 値を取得します<br>
+     * 登録されていなければnullを返します */
+    @SuppressWarnings("unchecked")
+    public V get(long key){
+        int index=this.indexOf(key);
+        if (index<0){
+            return null;
+        }
+        return (V)this.values[index];
+    }
+
+    /** キーが登録されているかどうかを取得します */
+    public boolean containsKey(long key){
+        return 0<=this.indexOf(key);
+    }
+
+    /** 値を登録します<br>
+     * 以前の値を返します */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value){
+        if (this.keys.length*LOAD_FACTOR<=this.size+1){
+            this.rehash(this.keys.length*2);
+        }
+        int index=hash(key)&this.mask;
+        while(this.used[index]){
+            if (this.keys[index]==key){
+                V old=(V)this.values[index];
+                this.values[index]=value;
+                return old;
+            }
+            index=(index+1)&this.mask;
+        }
+        this.used[index]=true;
+        this.keys[index]=key;
+        this.values[index]=value;
+        this.size++;
+        return null;
+    }
+
+    /** 値を削除します<br>
+     * 削除した値を返します．後続の要素を詰めるため，墓標は残りません */
+    @SuppressWarnings("unchecked")
+    public V remove(long key){
+        int index=this.indexOf(key);
+        if (index<0){
+            return null;
+        }
+        V old=(V)this.values[index];
+        this.size--;
+
+        // 後ろに続く要素を，本来の位置を越えない範囲で前に詰める
+        int hole=index;
+        int next=(hole+1)&this.mask;
+        while(this.used[next]){
+            int home=hash(this.keys[next])&this.mask;
+            if (((next-home)&this.mask)>=((next-hole)&this.mask)){
+                this.keys[hole]=this.keys[next];
+                this.values[hole]=this.values[next];
+                hole=next;
+            }
+            next=(next+1)&this.mask;
+        }
+        this.used[hole]=false;
+        this.values[hole]=null;
+        return old;
+    }
+
+    /** 全ての要素を削除します */
+    public void clear(){
+        for (int i=0;i<this.keys.length;i++){
+            this.used[i]=false;
+            this.values[i]=null;
+        }
+        this.size=0;
+    }
+
+    private int indexOf(long key){
+        int index=hash(key)&this.mask;
+        while(this.used[index]){
+            if (this.keys[index]==key){
+                return index;
+            }
+            index=(index+1)&this.mask;
+        }
+        return -1;
+    }
+
+    private void allocate(int capacity){
+        this.keys=new long[capacity];
+        this.values=new Object[capacity];
+        this.used=new boolean[capacity];
+        this.mask=capacity-1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rehash(int capacity){
+        long[] oldKeys=this.keys;
+        Object[] oldValues=this.values;
+        boolean[] oldUsed=this.used;
+        this.allocate(capacity);
+        this.size=0;
+        for (int i=0;i<oldKeys.length;i++){
+            if (oldUsed[i]){
+                this.put(oldKeys[i], (V)oldValues[i]);
+            }
+        }
+    }
+
+    private static int hash(long key){
+        long h=key*0x9E3779B97F4A7C15L;
+        return (int)(h^(h>>>32));
+    }
+}
@@ -0,0 +1,1032 @@
+package k7system.collision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** 衝突判定の狭域判定(ナローフェーズ)をまとめて行うクラスです<br>
+ * ブロードフェーズが出力したハンドルのペアをCollisionPairBufferで受け取り，CollisionShapeBufferに詰めた形状で判定して，
+ * 接触をContactBufferに出力します．ペアごとに仮想メソッドを呼ぶことはせず，形状の種類の組み合わせで判定関数を選びます．<br>
+ * 対応している組み合わせは球，AABB，OBB，カプセル，三角形メッシュの相互の判定です．ただしメッシュ同士は判定しません．<br>
+ * processParallel()ではペアの並びを一定数ずつに区切り，区間ごとに別々のバッファへ出力してから順番に連結します．
+ * そのため出力される接触の順番は逐次処理と同じになります． */
+public class NarrowPhase {
+    public static final int DEFAULT_CHUNK_SIZE=256;
+
+    private ForkJoinPool pool;
+    private int chunkSize=DEFAULT_CHUNK_SIZE;
+    private Solver solver=new Solver(); // 逐次処理用
+    private List<Solver> chunkSolvers=new ArrayList<Solver>(); // 並列処理の区間ごとの作業領域
+
+    /** 共通のForkJoinPoolを利用するコンストラクタです */
+    public NarrowPhase() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** 利用するForkJoinPoolを指定するコンストラクタです */
+    public NarrowPhase(ForkJoinPool pool) {
+        this.pool=pool;
+    }
+
+    /** 並列処理で1つのタスクが受け持つペア数を取得します */
+    public int getChunkSize(){
+        return this.chunkSize;
+    }
+
+    /** 並列処理で1つのタスクが受け持つペア数を設定します */
+    public void setChunkSize(int chunkSize){
+        this.chunkSize=Math.max(1, chunkSize);
+    }
+
+    /** 全てのペアを呼び出したスレッドで判定します<br>
+     * 結果のバッファは最初に空にされます．返り値は接触数です */
+    public int process(CollisionPairBuffer pairs, CollisionShapeBuffer shapes, ContactBuffer result){
+        result.clear();
+        this.solver.run(pairs.getArray(), 0, pairs.size(), shapes, result);
+        return result.size();
+    }
+
+    /** ペアを区間に分けて並列に判定します<br>
+     * ペア数が区間2つ分に満たない場合は逐次処理します．結果のバッファは最初に空にされます．返り値は接触数です */
+    public int processParallel(CollisionPairBuffer pairs, CollisionShapeBuffer shapes, ContactBuffer result){
+        int size=pairs.size();
+        if (size<this.chunkSize*2){
+            return this.process(pairs, shapes, result);
+        }
+        int chunks=(size+this.chunkSize-1)/this.chunkSize;
+        while(this.chunkSolvers.size()<chunks){
+            this.chunkSolvers.add(new Solver());
+        }
+        this.pool.invoke(new ChunkTask(pairs.getArray(), size, shapes, 0, chunks));
+
+        result.clear();
+        for (int i=0;i<chunks;i++){
+            result.addAll(this.chunkSolvers.get(i).contacts);
+        }
+        return result.size();
+    }
+
+    /** 区間の範囲を分割しながら判定するタスクです */
+    private class ChunkTask extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+        private int[] pairs;
+        private int size;
+        private CollisionShapeBuffer shapes;
+        private int from; // 区間の番号
+        private int to;
+
+        ChunkTask(int[] pairs, int size, CollisionShapeBuffer shapes, int from, int to) {
+            this.pairs=pairs;
+            this.size=size;
+            this.shapes=shapes;
+            this.from=from;
+            this.to=to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to-this.from==1){
+                Solver s=NarrowPhase.this.chunkSolvers.get(this.from);
+                s.contacts.clear();
+                int begin=this.from*NarrowPhase.this.chunkSize;
+                int end=Math.min(this.size, begin+NarrowPhase.this.chunkSize);
+                s.run(this.pairs, begin, end, this.shapes, s.contacts);
+            }else{
+                int middle=(this.from+this.to)>>>1;
+                invokeAll(new ChunkTask(this.pairs, this.size, this.shapes, this.from, middle),
+                        new ChunkTask(this.pairs, this.size, this.shapes, middle, this.to));
+            }
+        }
+    }
+
+    /** 判定関数と作業領域をまとめたクラスです<br>
+     * スレッドごとに別のインスタンスを使います */
+    static class Solver{
+        private static final float EPSILON=1e-6f;
+
+        ContactBuffer contacts=new ContactBuffer();
+
+        // 判定結果(法線は1つ目から2つ目へ向かう向き)
+        private float nx, ny, nz, depth, px, py, pz;
+
+        // 作業領域
+        private float[] centerA=new float[3];
+        private float[] axesA=new float[9];
+        private float[] halfA=new float[3];
+        private float[] centerB=new float[3];
+        private float[] axesB=new float[9];
+        private float[] halfB=new float[3];
+        private float[] rotation=new float[9]; // Aの軸とBの軸の内積
+        private float[] absRotation=new float[9];
+        private float[] shapeBound=new float[6];
+        private float[] point=new float[3]; // 最近点の出力
+        private float[] segment=new float[6]; // 最近点の出力(線分同士)
+        private float[] local=new float[6]; // 箱の座標系に変換した線分
+        private float segmentS, segmentT; // 線分同士の最近点の媒介変数
+
+        /** 指定した範囲のペアを判定して結果を出力します */
+        void run(int[] pairs, int from, int to, CollisionShapeBuffer shapes, ContactBuffer out){
+            for (int i=from;i<to;i++){
+                int a=pairs[i*2];
+                int b=pairs[i*2+1];
+                int typeA=shapes.getType(a);
+                int typeB=shapes.getType(b);
+                if (typeA<0 || typeB<0){
+                    continue;
+                }
+                boolean hit;
+                if (typeA<=typeB){
+                    hit=this.test(shapes, a, typeA, b, typeB);
+                }else{
+                    hit=this.test(shapes, b, typeB, a, typeA);
+                    this.nx=-this.nx;
+                    this.ny=-this.ny;
+                    this.nz=-this.nz;
+                }
+                if (hit){
+                    out.add(a, b, this.nx, this.ny, this.nz, this.depth, this.px, this.py, this.pz);
+                }
+            }
+        }
+
+        /** 形状の組み合わせで判定関数を選びます<br>
+         * typeA<=typeBである必要があります */
+        private boolean test(CollisionShapeBuffer shapes, int a, int typeA, int b, int typeB){
+            float[] p=shapes.getParams();
+            int oa=a*CollisionShapeBuffer.STRIDE;
+            int ob=b*CollisionShapeBuffer.STRIDE;
+            switch(typeA){
+            case CollisionShapeBuffer.SPHERE:
+                switch(typeB){
+                case CollisionShapeBuffer.SPHERE:
+                    return this.sphereSphere(p[oa], p[oa+1], p[oa+2], p[oa+3], p[ob], p[ob+1], p[ob+2], p[ob+3]);
+                case CollisionShapeBuffer.AABB:
+                case CollisionShapeBuffer.OBB:
+                    loadBox(p, ob, typeB, this.centerB, this.axesB, this.halfB);
+                    return this.sphereBox(p[oa], p[oa+1], p[oa+2], p[oa+3], this.centerB, this.axesB, this.halfB);
+                case CollisionShapeBuffer.CAPSULE:
+                    this.closestOnSegment(p, ob, p[oa], p[oa+1], p[oa+2]);
+                    return this.sphereSphere(p[oa], p[oa+1], p[oa+2], p[oa+3], this.point[0], this.point[1], this.point[2], p[ob+6]);
+                case CollisionShapeBuffer.MESH:
+                    return this.sphereMesh(p[oa], p[oa+1], p[oa+2], p[oa+3], p, ob, shapes.getMesh(b), shapes.getTriangleCount(b));
+                }
+                break;
+            case CollisionShapeBuffer.AABB:
+            case CollisionShapeBuffer.OBB:
+                switch(typeB){
+                case CollisionShapeBuffer.AABB:
+                case CollisionShapeBuffer.OBB:
+                    if (typeB==CollisionShapeBuffer.AABB){ // typeA<=typeBなので両方AABB
+                        return this.aabbAabb(p, oa, ob);
+                    }
+                    loadBox(p, oa, typeA, this.centerA, this.axesA, this.halfA);
+                    loadBox(p, ob, typeB, this.centerB, this.axesB, this.halfB);
+                    return this.boxBox(this.centerA, this.axesA, this.halfA, this.centerB, this.axesB, this.halfB);
+                case CollisionShapeBuffer.CAPSULE:
+                    loadBox(p, oa, typeA, this.centerA, this.axesA, this.halfA);
+                    return this.flip(this.capsuleBox(p, ob, this.centerA, this.axesA, this.halfA));
+                case CollisionShapeBuffer.MESH:
+                    loadBox(p, oa, typeA, this.centerA, this.axesA, this.halfA);
+                    return this.boxMesh(this.centerA, this.axesA, this.halfA, p, ob, shapes.getMesh(b), shapes.getTriangleCount(b));
+                }
+                break;
+            case CollisionShapeBuffer.CAPSULE:
+                switch(typeB){
+                case CollisionShapeBuffer.CAPSULE:
+                    this.closestSegmentSegment(p, oa, ob);
+                    float[] s=this.segment;
+                    return this.sphereSphere(s[0], s[1], s[2], p[oa+6], s[3], s[4], s[5], p[ob+6]);
+                case CollisionShapeBuffer.MESH:
+                    return this.capsuleMesh(p, oa, ob, shapes.getMesh(b), shapes.getTriangleCount(b));
+                }
+                break;
+            }
+            return false; // メッシュ同士は判定しない
+        }
+
+        /** 判定結果の法線を反転します */
+        private boolean flip(boolean hit){
+            this.nx=-this.nx;
+            this.ny=-this.ny;
+            this.nz=-this.nz;
+            return hit;
+        }
+
+        /** AABBまたはOBBを中心，軸，半分の長さの形に展開します */
+        private static void loadBox(float[] p, int o, int type, float[] center, float[] axes, float[] half){
+            if (type==CollisionShapeBuffer.AABB){
+                for (int i=0;i<3;i++){
+                    center[i]=(p[o+i]+p[o+i+3])*0.5f;
+                    half[i]=(p[o+i+3]-p[o+i])*0.5f;
+                }
+                axes[0]=1; axes[1]=0; axes[2]=0;
+                axes[3]=0; axes[4]=1; axes[5]=0;
+                axes[6]=0; axes[7]=0; axes[8]=1;
+            }else{
+                System.arraycopy(p, o, center, 0, 3);
+                System.arraycopy(p, o+3, axes, 0, 9);
+                System.arraycopy(p, o+12, half, 0, 3);
+            }
+        }
+
+        /** 球同士の判定です */
+        private boolean sphereSphere(float ax, float ay, float az, float ar, float bx, float by, float bz, float br){
+            float dx=bx-ax;
+            float dy=by-ay;
+            float dz=bz-az;
+            float d2=dx*dx+dy*dy+dz*dz;
+            float r=ar+br;
+            if (r*r<d2){
+                return false;
+            }
+            float d=(float)Math.sqrt(d2);
+            if (EPSILON<d){
+                this.nx=dx/d;
+                this.ny=dy/d;
+                this.nz=dz/d;
+            }else{
+                this.nx=0;
+                this.ny=1;
+                this.nz=0;
+            }
+            this.depth=r-d;
+            float s=ar-this.depth*0.5f;
+            this.px=ax+this.nx*s;
+            this.py=ay+this.ny*s;
+            this.pz=az+this.nz*s;
+            return true;
+        }
+
+        /** 球と箱の判定です<br>
+         * 球の中心が箱の内部にある場合は，最も浅い面の方向に押し出します */
+        private boolean sphereBox(float cx, float cy, float cz, float r, float[] center, float[] axes, float[] half){
+            float dx=cx-center[0];
+            float dy=cy-center[1];
+            float dz=cz-center[2];
+            float wx=center[0];
+            float wy=center[1];
+            float wz=center[2];
+            boolean inside=true;
+            float minPen=Float.MAX_VALUE;
+            int minAxis=0;
+            float minSign=1;
+            for (int i=0;i<3;i++){
+                float ux=axes[i*3];
+                float uy=axes[i*3+1];
+                float uz=axes[i*3+2];
+                float q=dx*ux+dy*uy+dz*uz;
+                float h=half[i];
+                float c=q;
+                if (h<c){
+                    c=h;
+                    inside=false;
+                }else if (c<-h){
+                    c=-h;
+                    inside=false;
+                }
+                wx+=ux*c;
+                wy+=uy*c;
+                wz+=uz*c;
+                float pen=h-Math.abs(q);
+                if (pen<minPen){
+                    minPen=pen;
+                    minAxis=i;
+                    minSign=q<0 ? -1 : 1;
+                }
+            }
+            if (!inside){
+                float vx=wx-cx;
+                float vy=wy-cy;
+                float vz=wz-cz;
+                float d2=vx*vx+vy*vy+vz*vz;
+                if (r*r<d2){
+                    return false;
+                }
+                float d=(float)Math.sqrt(d2);
+                if (EPSILON<d){
+                    this.nx=vx/d;
+                    this.ny=vy/d;
+                    this.nz=vz/d;
+                    this.depth=r-d;
+                    this.px=wx;
+                    this.py=wy;
+                    this.pz=wz;
+                    return true;
+                }
+            }
+            this.nx=-minSign*axes[minAxis*3];
+            this.ny=-minSign*axes[minAxis*3+1];
+            this.nz=-minSign*axes[minAxis*3+2];
+            this.depth=r+Math.max(0, minPen);
+            this.px=cx;
+            this.py=cy;
+            this.pz=cz;
+            return true;
+        }
+
+        /** AABB同士の判定です<br>
+         * 重なりが最も小さい軸を法線とします */
+        private boolean aabbAabb(float[] p, int oa, int ob){
+            float minOverlap=Float.MAX_VALUE;
+            int minAxis=0;
+            for (int i=0;i<3;i++){
+                float lo=Math.max(p[oa+i], p[ob+i]);
+                float hi=Math.min(p[oa+i+3], p[ob+i+3]);
+                float overlap=hi-lo;
+                if (overlap<0){
+                    return false;
+                }
+                if (overlap<minOverlap){
+                    minOverlap=overlap;
+                    minAxis=i;
+                }
+                this.point[i]=(lo+hi)*0.5f;
+            }
+            float centerA=p[oa+minAxis]+p[oa+minAxis+3];
+            float centerB=p[ob+minAxis]+p[ob+minAxis+3];
+            float sign=centerA<=centerB ? 1 : -1;
+            this.nx=minAxis==0 ? sign : 0;
+            this.ny=minAxis==1 ? sign : 0;
+            this.nz=minAxis==2 ? sign : 0;
+            this.depth=minOverlap;
+            this.px=this.point[0];
+            this.py=this.point[1];
+            this.pz=this.point[2];
+            return true;
+        }
+
+        /** 箱同士の判定です<br>
+         * 分離軸判定で15軸を調べ，重なりが最も小さい軸を法線とします */
+        private boolean boxBox(float[] ca, float[] ua, float[] a, float[] cb, float[] ub, float[] b){
+            float[] r=this.rotation;
+            float[] absR=this.absRotation;
+            for (int i=0;i<3;i++){
+                for (int j=0;j<3;j++){
+                    float d=ua[i*3]*ub[j*3]+ua[i*3+1]*ub[j*3+1]+ua[i*3+2]*ub[j*3+2];
+                    r[i*3+j]=d;
+                    absR[i*3+j]=Math.abs(d)+EPSILON;
+                }
+            }
+            float tx=cb[0]-ca[0];
+            float ty=cb[1]-ca[1];
+            float tz=cb[2]-ca[2];
+            float t0=tx*ua[0]+ty*ua[1]+tz*ua[2];
+            float t1=tx*ua[3]+ty*ua[4]+tz*ua[5];
+            float t2=tx*ua[6]+ty*ua[7]+tz*ua[8];
+            float[] t=this.point;
+            t[0]=t0;
+            t[1]=t1;
+            t[2]=t2;
+
+            float best=Float.MAX_VALUE;
+            float bx=0, by=0, bz=0;
+
+            // Aの軸
+            for (int i=0;i<3;i++){
+                float rb=b[0]*absR[i*3]+b[1]*absR[i*3+1]+b[2]*absR[i*3+2];
+                float overlap=a[i]+rb-Math.abs(t[i]);
+                if (overlap<0){
+                    return false;
+                }
+                if (overlap<best){
+                    best=overlap;
+                    bx=ua[i*3];
+                    by=ua[i*3+1];
+                    bz=ua[i*3+2];
+                }
+            }
+            // Bの軸
+            for (int j=0;j<3;j++){
+                float ra=a[0]*absR[j]+a[1]*absR[3+j]+a[2]*absR[6+j];
+                float dist=Math.abs(t[0]*r[j]+t[1]*r[3+j]+t[2]*r[6+j]);
+                float overlap=ra+b[j]-dist;
+                if (overlap<0){
+                    return false;
+                }
+                if (overlap<best){
+                    best=overlap;
+                    bx=ub[j*3];
+                    by=ub[j*3+1];
+                    bz=ub[j*3+2];
+                }
+            }
+            // Aの軸とBの軸の外積
+            for (int i=0;i<3;i++){
+                int i1=(i+1)%3;
+                int i2=(i+2)%3;
+                for (int j=0;j<3;j++){
+                    int j1=(j+1)%3;
+                    int j2=(j+2)%3;
+                    float ra=a[i1]*absR[i2*3+j]+a[i2]*absR[i1*3+j];
+                    float rb=b[j1]*absR[i*3+j2]+b[j2]*absR[i*3+j1];
+                    float dist=Math.abs(t[i2]*r[i1*3+j]-t[i1]*r[i2*3+j]);
+                    float overlap=ra+rb-dist;
+                    if (overlap<0){
+                        return false;
+                    }
+                    float cx=ua[i*3+1]*ub[j*3+2]-ua[i*3+2]*ub[j*3+1];
+                    float cy=ua[i*3+2]*ub[j*3]-ua[i*3]*ub[j*3+2];
+                    float cz=ua[i*3]*ub[j*3+1]-ua[i*3+1]*ub[j*3];
+                    float len=(float)Math.sqrt(cx*cx+cy*cy+cz*cz);
+                    if (len<EPSILON){
+                        continue; // 平行な軸は面の軸で判定済み
+                    }
+                    overlap/=len;
+                    if (overlap<best){
+                        best=overlap;
+                        bx=cx/len;
+                        by=cy/len;
+                        bz=cz/len;
+                    }
+                }
+            }
+            if (bx*tx+by*ty+bz*tz<0){
+                bx=-bx;
+                by=-by;
+                bz=-bz;
+            }
+            this.nx=bx;
+            this.ny=by;
+            this.nz=bz;
+            this.depth=best;
+
+            // 法線方向の両者の面の中間を接触点とする
+            float raN=0;
+            float rbN=0;
+            for (int i=0;i<3;i++){
+                raN+=a[i]*Math.abs(ua[i*3]*bx+ua[i*3+1]*by+ua[i*3+2]*bz);
+                rbN+=b[i]*Math.abs(ub[i*3]*bx+ub[i*3+1]*by+ub[i*3+2]*bz);
+            }
+            this.px=(ca[0]+bx*raN+cb[0]-bx*rbN)*0.5f;
+            this.py=(ca[1]+by*raN+cb[1]-by*rbN)*0.5f;
+            this.pz=(ca[2]+bz*raN+cb[2]-bz*rbN)*0.5f;
+            return true;
+        }
+
+        /** カプセルと箱の判定です<br>
+         * 線分上で箱に最も近い点を求め，その点を中心とした球として判定します．
+         * 法線はカプセルから箱へ向かう向きです */
+        private boolean capsuleBox(float[] p, int oc, float[] center, float[] axes, float[] half){
+            float t=this.closestOnSegmentToBox(p, oc, center, axes, half);
+            float sx=p[oc]+(p[oc+3]-p[oc])*t;
+            float sy=p[oc+1]+(p[oc+4]-p[oc+1])*t;
+            float sz=p[oc+2]+(p[oc+5]-p[oc+2])*t;
+            return this.sphereBox(sx, sy, sz, p[oc+6], center, axes, half);
+        }
+
+        /** 球と三角形メッシュの判定です<br>
+         * 最も近い三角形との接触を1つ出力します */
+        private boolean sphereMesh(float cx, float cy, float cz, float r, float[] p, int om, float[] tri, int count){
+            float[] bound=this.shapeBound;
+            bound[0]=cx-r; bound[1]=cy-r; bound[2]=cz-r;
+            bound[3]=cx+r; bound[4]=cy+r; bound[5]=cz+r;
+            if (!overlaps(bound, p, om)){
+                return false;
+            }
+            int hitTriangle=this.closestTriangle(tri, count, cx, cy, cz, r*r);
+            if (hitTriangle<0){
+                return false;
+            }
+            return this.sphereTriangleContact(cx, cy, cz, r, tri, hitTriangle);
+        }
+
+        /** カプセルと三角形メッシュの判定です<br>
+         * 三角形ごとに線分との最近点を求め，最も近い三角形との接触を1つ出力します */
+        private boolean capsuleMesh(float[] p, int oc, int om, float[] tri, int count){
+            float r=p[oc+6];
+            float[] bound=this.shapeBound;
+            for (int i=0;i<3;i++){
+                bound[i]=Math.min(p[oc+i], p[oc+3+i])-r;
+                bound[i+3]=Math.max(p[oc+i], p[oc+3+i])+r;
+            }
+            if (!overlaps(bound, p, om)){
+                return false;
+            }
+            float bestD2=r*r;
+            int hitTriangle=-1;
+            float bestT=0;
+            for (int t=0;t<count;t++){
+                int o=t*9;
+                if (!overlapsTriangle(bound, tri, o)){
+                    continue;
+                }
+                float d2=this.segmentTriangle(p, oc, tri, o);
+                if (d2<=bestD2){
+                    bestD2=d2;
+                    hitTriangle=t;
+                    bestT=this.segmentS;
+                }
+            }
+            if (hitTriangle<0){
+                return false;
+            }
+            float hx=p[oc]+(p[oc+3]-p[oc])*bestT;
+            float hy=p[oc+1]+(p[oc+4]-p[oc+1])*bestT;
+            float hz=p[oc+2]+(p[oc+5]-p[oc+2])*bestT;
+            return this.sphereTriangleContact(hx, hy, hz, r, tri, hitTriangle);
+        }
+
+        /** 箱と三角形メッシュの判定です<br>
+         * 三角形ごとに13軸の分離軸判定を行い，最もめり込みの深い三角形との接触を1つ出力します */
+        private boolean boxMesh(float[] center, float[] axes, float[] half, float[] p, int om, float[] tri, int count){
+            float[] bound=this.shapeBound;
+            for (int i=0;i<3;i++){
+                float e=half[0]*Math.abs(axes[i])+half[1]*Math.abs(axes[3+i])+half[2]*Math.abs(axes[6+i]);
+                bound[i]=center[i]-e;
+                bound[i+3]=center[i]+e;
+            }
+            if (!overlaps(bound, p, om)){
+                return false;
+            }
+            float deepest=-1;
+            float hx=0, hy=0, hz=0;
+            int hitTriangle=-1;
+            for (int t=0;t<count;t++){
+                int o=t*9;
+                if (!overlapsTriangle(bound, tri, o)){
+                    continue;
+                }
+                if (!this.boxTriangle(center, axes, half, tri, o)){
+                    continue;
+                }
+                if (deepest<this.depth){
+                    deepest=this.depth;
+                    hx=this.nx;
+                    hy=this.ny;
+                    hz=this.nz;
+                    hitTriangle=t;
+                }
+            }
+            if (hitTriangle<0){
+                return false;
+            }
+            this.nx=hx;
+            this.ny=hy;
+            this.nz=hz;
+            this.depth=deepest;
+            closestOnTriangle(tri, hitTriangle*9, center[0], center[1], center[2], this.point);
+            this.px=this.point[0];
+            this.py=this.point[1];
+            this.pz=this.point[2];
+            return true;
+        }
+
+        /** 箱と三角形1つの分離軸判定です<br>
+         * 重なっていれば法線とめり込み量だけを設定します */
+        private boolean boxTriangle(float[] center, float[] axes, float[] half, float[] tri, int o){
+            float e0x=tri[o+3]-tri[o];
+            float e0y=tri[o+4]-tri[o+1];
+            float e0z=tri[o+5]-tri[o+2];
+            float e1x=tri[o+6]-tri[o+3];
+            float e1y=tri[o+7]-tri[o+4];
+            float e1z=tri[o+8]-tri[o+5];
+            float best=Float.MAX_VALUE;
+            boolean found=false;
+
+            // 箱の3軸と三角形の法線
+            for (int k=0;k<4;k++){
+                float lx, ly, lz;
+                if (k<3){
+                    lx=axes[k*3];
+                    ly=axes[k*3+1];
+                    lz=axes[k*3+2];
+                }else{
+                    lx=e0y*e1z-e0z*e1y;
+                    ly=e0z*e1x-e0x*e1z;
+                    lz=e0x*e1y-e0y*e1x;
+                }
+                float overlap=this.axisOverlap(lx, ly, lz, center, axes, half, tri, o, best);
+                if (overlap<0){
+                    return false;
+                }
+                found|=overlap<best;
+                best=Math.min(best, overlap);
+            }
+            // 箱の軸と三角形の辺の外積
+            for (int i=0;i<3;i++){
+                float ux=axes[i*3];
+                float uy=axes[i*3+1];
+                float uz=axes[i*3+2];
+                for (int e=0;e<3;e++){
+                    float ex=tri[o+((e+1)%3)*3]-tri[o+e*3];
+                    float ey=tri[o+((e+1)%3)*3+1]-tri[o+e*3+1];
+                    float ez=tri[o+((e+1)%3)*3+2]-tri[o+e*3+2];
+                    float overlap=this.axisOverlap(uy*ez-uz*ey, uz*ex-ux*ez, ux*ey-uy*ex, center, axes, half, tri, o, best);
+                    if (overlap<0){
+                        return false;
+                    }
+                    found|=overlap<best;
+                    best=Math.min(best, overlap);
+                }
+            }
+            if (!found){
+                return false;
+            }
+            this.depth=best;
+            return true;
+        }
+
+        /** 1つの軸について箱と三角形の投影の重なりを求めます<br>
+         * 分離していれば負の値を返します．重なりがbestより小さい場合は法線を更新します．
+         * 長さが0の軸は判定せずにFloat.MAX_VALUEを返します */
+        private float axisOverlap(float lx, float ly, float lz, float[] center, float[] axes, float[] half, float[] tri, int o, float best){
+            float len=(float)Math.sqrt(lx*lx+ly*ly+lz*lz);
+            if (len<EPSILON){
+                return Float.MAX_VALUE;
+            }
+            lx/=len;
+            ly/=len;
+            lz/=len;
+            float r=half[0]*Math.abs(axes[0]*lx+axes[1]*ly+axes[2]*lz)
+                    +half[1]*Math.abs(axes[3]*lx+axes[4]*ly+axes[5]*lz)
+                    +half[2]*Math.abs(axes[6]*lx+axes[7]*ly+axes[8]*lz);
+            float min=Float.MAX_VALUE;
+            float max=-Float.MAX_VALUE;
+            for (int v=0;v<3;v++){
+                float d=(tri[o+v*3]-center[0])*lx+(tri[o+v*3+1]-center[1])*ly+(tri[o+v*3+2]-center[2])*lz;
+                min=Math.min(min, d);
+                max=Math.max(max, d);
+            }
+            if (r<min || max<-r){
+                return -1;
+            }
+            // 三角形が軸の正側にあれば箱を負側へ，負側にあれば正側へ押し出す
+            float positive=r-min;
+            float negative=max+r;
+            float overlap=Math.min(positive, negative);
+            if (overlap<best){
+                float sign=positive<=negative ? 1 : -1;
+                this.nx=lx*sign;
+                this.ny=ly*sign;
+                this.nz=lz*sign;
+            }
+            return overlap;
+        }
+
+        /** 半径の2乗がmaxD2以内で最も近い三角形の番号を返します<br>
+         * 見つからなければ-1を返します */
+        private int closestTriangle(float[] tri, int count, float cx, float cy, float cz, float maxD2){
+            float bestD2=maxD2;
+            int result=-1;
+            for (int t=0;t<count;t++){
+                int o=t*9;
+                if (!overlapsTriangle(this.shapeBound, tri, o)){
+                    continue;
+                }
+                closestOnTriangle(tri, o, cx, cy, cz, this.point);
+                float dx=this.point[0]-cx;
+                float dy=this.point[1]-cy;
+                float dz=this.point[2]-cz;
+                float d2=dx*dx+dy*dy+dz*dz;
+                if (d2<=bestD2){
+                    bestD2=d2;
+                    result=t;
+                }
+            }
+            return result;
+        }
+
+        /** 球と三角形の接触を設定します<br>
+         * 法線は球から三角形へ向かう向きで，中心が三角形上にある場合は面の法線を使います */
+        private boolean sphereTriangleContact(float cx, float cy, float cz, float r, float[] tri, int t){
+            int o=t*9;
+            closestOnTriangle(tri, o, cx, cy, cz, this.point);
+            float dx=this.point[0]-cx;
+            float dy=this.point[1]-cy;
+            float dz=this.point[2]-cz;
+            float d=(float)Math.sqrt(dx*dx+dy*dy+dz*dz);
+            if (EPSILON<d){
+                this.nx=dx/d;
+                this.ny=dy/d;
+                this.nz=dz/d;
+            }else{
+                float e0x=tri[o+3]-tri[o];
+                float e0y=tri[o+4]-tri[o+1];
+                float e0z=tri[o+5]-tri[o+2];
+                float e1x=tri[o+6]-tri[o];
+                float e1y=tri[o+7]-tri[o+1];
+                float e1z=tri[o+8]-tri[o+2];
+                float fx=e0y*e1z-e0z*e1y;
+                float fy=e0z*e1x-e0x*e1z;
+                float fz=e0x*e1y-e0y*e1x;
+                float len=(float)Math.sqrt(fx*fx+fy*fy+fz*fz);
+                if (len<EPSILON){
+                    return false; // 潰れた三角形
+                }
+                this.nx=-fx/len;
+                this.ny=-fy/len;
+                this.nz=-fz/len;
+            }
+            this.depth=r-d;
+            this.px=this.point[0];
+            this.py=this.point[1];
+            this.pz=this.point[2];
+            return true;
+        }
+
+        /** 線分上で点に最も近い点を求めてpointに設定します */
+        private void closestOnSegment(float[] p, int o, float x, float y, float z){
+            float dx=p[o+3]-p[o];
+            float dy=p[o+4]-p[o+1];
+            float dz=p[o+5]-p[o+2];
+            float len2=dx*dx+dy*dy+dz*dz;
+            float t=0;
+            if (EPSILON<len2){
+                t=((x-p[o])*dx+(y-p[o+1])*dy+(z-p[o+2])*dz)/len2;
+                t=Math.max(0, Math.min(1, t));
+            }
+            this.point[0]=p[o]+dx*t;
+            this.point[1]=p[o+1]+dy*t;
+            this.point[2]=p[o+2]+dz*t;
+        }
+
+        /** 2つの線分の最近点を求めてsegmentに設定します<br>
+         * 0～2番目が1つ目の線分上の点，3～5番目が2つ目の線分上の点です */
+        private void closestSegmentSegment(float[] p, int oa, int ob){
+            this.segmentSegment(p[oa], p[oa+1], p[oa+2], p[oa+3], p[oa+4], p[oa+5], p[ob], p[ob+1], p[ob+2], p[ob+3], p[ob+4], p[ob+5]);
+            float s=this.segmentS;
+            float t=this.segmentT;
+            float[] out=this.segment;
+            out[0]=p[oa]+(p[oa+3]-p[oa])*s;
+            out[1]=p[oa+1]+(p[oa+4]-p[oa+1])*s;
+            out[2]=p[oa+2]+(p[oa+5]-p[oa+2])*s;
+            out[3]=p[ob]+(p[ob+3]-p[ob])*t;
+            out[4]=p[ob+1]+(p[ob+4]-p[ob+1])*t;
+            out[5]=p[ob+2]+(p[ob+5]-p[ob+2])*t;
+        }
+
+        /** 線分(a0,a1)と線分(b0,b1)の最近点を求めます<br>
+         * 最近点の媒介変数をsegmentS，segmentTに設定し，距離の2乗を返します */
+        private float segmentSegment(float a0x, float a0y, float a0z, float a1x, float a1y, float a1z,
+                float b0x, float b0y, float b0z, float b1x, float b1y, float b1z){
+            float d1x=a1x-a0x, d1y=a1y-a0y, d1z=a1z-a0z;
+            float d2x=b1x-b0x, d2y=b1y-b0y, d2z=b1z-b0z;
+            float rx=a0x-b0x, ry=a0y-b0y, rz=a0z-b0z;
+            float a=d1x*d1x+d1y*d1y+d1z*d1z;
+            float e=d2x*d2x+d2y*d2y+d2z*d2z;
+            float f=d2x*rx+d2y*ry+d2z*rz;
+            float s, t;
+            if (a<=EPSILON && e<=EPSILON){
+                s=0;
+                t=0;
+            }else if (a<=EPSILON){
+                s=0;
+                t=Math.max(0, Math.min(1, f/e));
+            }else{
+                float c=d1x*rx+d1y*ry+d1z*rz;
+                if (e<=EPSILON){
+                    t=0;
+                    s=Math.max(0, Math.min(1, -c/a));
+                }else{
+                    float b=d1x*d2x+d1y*d2y+d1z*d2z;
+                    float denom=a*e-b*b;
+                    s=denom!=0 ? Math.max(0, Math.min(1, (b*f-c*e)/denom)) : 0;
+                    t=(b*s+f)/e;
+                    if (t<0){
+                        t=0;
+                        s=Math.max(0, Math.min(1, -c/a));
+                    }else if (1<t){
+                        t=1;
+                        s=Math.max(0, Math.min(1, (b-c)/a));
+                    }
+                }
+            }
+            this.segmentS=s;
+            this.segmentT=t;
+            float dx=rx+d1x*s-d2x*t;
+            float dy=ry+d1y*s-d2y*t;
+            float dz=rz+d1z*s-d2z*t;
+            return dx*dx+dy*dy+dz*dz;
+        }
+
+        /** 線分上で箱に最も近い点の媒介変数(0～1)を求めます<br>
+         * 線分を箱の座標系に移し，箱を貫く場合は箱の中にある区間の中点を返します．
+         * 貫かない場合は，両端の点と箱の最近点，および箱の12辺と線分の最近点のうち最も近いものを返します．
+         * 線分と箱の最近点は必ずこのいずれかになります */
+        private float closestOnSegmentToBox(float[] p, int oc, float[] center, float[] axes, float[] half){
+            float[] q=this.local; // 0～2番目が始点，3～5番目が終点
+            for (int e=0;e<2;e++){
+                float dx=p[oc+e*3]-center[0];
+                float dy=p[oc+e*3+1]-center[1];
+                float dz=p[oc+e*3+2]-center[2];
+                for (int i=0;i<3;i++){
+                    q[e*3+i]=dx*axes[i*3]+dy*axes[i*3+1]+dz*axes[i*3+2];
+                }
+            }
+
+            // 箱を貫くかどうか(スラブ法)
+            float tMin=0;
+            float tMax=1;
+            for (int i=0;i<3;i++){
+                float d=q[3+i]-q[i];
+                if (Math.abs(d)<EPSILON){
+                    if (q[i]<-half[i] || half[i]<q[i]){
+                        tMin=1;
+                        tMax=0;
+                        break;
+                    }
+                }else{
+                    float t1=(-half[i]-q[i])/d;
+                    float t2=(half[i]-q[i])/d;
+                    tMin=Math.max(tMin, Math.min(t1, t2));
+                    tMax=Math.min(tMax, Math.max(t1, t2));
+                }
+            }
+            if (tMin<=tMax){
+                return (tMin+tMax)*0.5f;
+            }
+
+            // 両端の点
+            float bestT=0;
+            float bestD2=Float.MAX_VALUE;
+            for (int e=0;e<2;e++){
+                float d2=0;
+                for (int i=0;i<3;i++){
+                    float v=q[e*3+i];
+                    float c=Math.max(-half[i], Math.min(half[i], v));
+                    d2+=(v-c)*(v-c);
+                }
+                if (d2<bestD2){
+                    bestD2=d2;
+                    bestT=e;
+                }
+            }
+            // 箱の辺(軸iに平行な4本)
+            for (int i=0;i<3;i++){
+                int j=(i+1)%3;
+                int k=(i+2)%3;
+                for (int corner=0;corner<4;corner++){
+                    float cj=(corner&1)==0 ? -half[j] : half[j];
+                    float ck=(corner&2)==0 ? -half[k] : half[k];
+                    float[] edge=this.segment; // 辺の始点と終点
+                    edge[i]=-half[i];
+                    edge[3+i]=half[i];
+                    edge[j]=edge[3+j]=cj;
+                    edge[k]=edge[3+k]=ck;
+                    float d2=this.segmentSegment(q[0], q[1], q[2], q[3], q[4], q[5], edge[0], edge[1], edge[2], edge[3], edge[4], edge[5]);
+                    if (d2<bestD2){
+                        bestD2=d2;
+                        bestT=this.segmentS;
+                    }
+                }
+            }
+            return bestT;
+        }
+
+        /** 線分と三角形の最近点を求めます<br>
+         * 線分上の最近点の媒介変数をsegmentSに設定し，距離の2乗を返します．
+         * 線分が三角形を貫く場合は0を返します．貫かない場合は，両端の点を三角形に射影した点と，
+         * 三角形の3辺と線分の最近点のうち最も近いものになります */
+        private float segmentTriangle(float[] p, int oc, float[] tri, int o){
+            float p0x=p[oc], p0y=p[oc+1], p0z=p[oc+2];
+            float dx=p[oc+3]-p0x, dy=p[oc+4]-p0y, dz=p[oc+5]-p0z;
+
+            // 貫くかどうか(Moller-Trumbore法)
+            float e1x=tri[o+3]-tri[o], e1y=tri[o+4]-tri[o+1], e1z=tri[o+5]-tri[o+2];
+            float e2x=tri[o+6]-tri[o], e2y=tri[o+7]-tri[o+1], e2z=tri[o+8]-tri[o+2];
+            float hx=dy*e2z-dz*e2y;
+            float hy=dz*e2x-dx*e2z;
+            float hz=dx*e2y-dy*e2x;
+            float det=e1x*hx+e1y*hy+e1z*hz;
+            if (EPSILON<Math.abs(det)){
+                float inv=1/det;
+                float sx=p0x-tri[o], sy=p0y-tri[o+1], sz=p0z-tri[o+2];
+                float u=(sx*hx+sy*hy+sz*hz)*inv;
+                if (0<=u && u<=1){
+                    float qx=sy*e1z-sz*e1y;
+                    float qy=sz*e1x-sx*e1z;
+                    float qz=sx*e1y-sy*e1x;
+                    float v=(dx*qx+dy*qy+dz*qz)*inv;
+                    float t=(e2x*qx+e2y*qy+e2z*qz)*inv;
+                    if (0<=v && u+v<=1 && 0<=t && t<=1){
+                        this.segmentS=t;
+                        return 0;
+                    }
+                }
+            }
+
+            // 両端の点
+            float bestT=0;
+            float bestD2=Float.MAX_VALUE;
+            for (int e=0;e<2;e++){
+                float x=p[oc+e*3], y=p[oc+e*3+1], z=p[oc+e*3+2];
+                closestOnTriangle(tri, o, x, y, z, this.point);
+                float vx=this.point[0]-x;
+                float vy=this.point[1]-y;
+                float vz=this.point[2]-z;
+                float d2=vx*vx+vy*vy+vz*vz;
+                if (d2<bestD2){
+                    bestD2=d2;
+                    bestT=e;
+                }
+            }
+            // 三角形の辺
+            for (int e=0;e<3;e++){
+                int a=o+e*3;
+                int b=o+((e+1)%3)*3;
+                float d2=this.segmentSegment(p0x, p0y, p0z, p[oc+3], p[oc+4], p[oc+5], tri[a], tri[a+1], tri[a+2], tri[b], tri[b+1], tri[b+2]);
+                if (d2<bestD2){
+                    bestD2=d2;
+                    bestT=this.segmentS;
+                }
+            }
+            this.segmentS=bestT;
+            return bestD2;
+        }
+
+        /** 箱の上で点に最も近い点を求めます */
+        private static void closestOnBox(float[] center, float[] axes, float[] half, float x, float y, float z, float[] result){
+            float dx=x-center[0];
+            float dy=y-center[1];
+            float dz=z-center[2];
+            result[0]=center[0];
+            result[1]=center[1];
+            result[2]=center[2];
+            for (int i=0;i<3;i++){
+                float q=dx*axes[i*3]+dy*axes[i*3+1]+dz*axes[i*3+2];
+                q=Math.max(-half[i], Math.min(half[i], q));
+                result[0]+=axes[i*3]*q;
+                result[1]+=axes[i*3+1]*q;
+                result[2]+=axes[i*3+2]*q;
+            }
+        }
+
+        /** 三角形の上で点に最も近い点を求めます<br>
+         * 頂点，辺，面のどの領域に射影されるかを重心座標で判定します */
+        private static void closestOnTriangle(float[] tri, int o, float x, float y, float z, float[] result){
+            float ax=tri[o], ay=tri[o+1], az=tri[o+2];
+            float abx=tri[o+3]-ax, aby=tri[o+4]-ay, abz=tri[o+5]-az;
+            float acx=tri[o+6]-ax, acy=tri[o+7]-ay, acz=tri[o+8]-az;
+            float apx=x-ax, apy=y-ay, apz=z-az;
+            float d1=abx*apx+aby*apy+abz*apz;
+            float d2=acx*apx+acy*apy+acz*apz;
+            if (d1<=0 && d2<=0){
+                setPoint(result, ax, ay, az);
+                return;
+            }
+            float bpx=x-tri[o+3], bpy=y-tri[o+4], bpz=z-tri[o+5];
+            float d3=abx*bpx+aby*bpy+abz*bpz;
+            float d4=acx*bpx+acy*bpy+acz*bpz;
+            if (0<=d3 && d4<=d3){
+                setPoint(result, tri[o+3], tri[o+4], tri[o+5]);
+                return;
+            }
+            float vc=d1*d4-d3*d2;
+            if (vc<=0 && 0<=d1 && d3<=0){
+                float v=d1/(d1-d3);
+                setPoint(result, ax+abx*v, ay+aby*v, az+abz*v);
+                return;
+            }
+            float cpx=x-tri[o+6], cpy=y-tri[o+7], cpz=z-tri[o+8];
+            float d5=abx*cpx+aby*cpy+abz*cpz;
+            float d6=acx*cpx+acy*cpy+acz*cpz;
+            if (0<=d6 && d5<=d6){
+                setPoint(result, tri[o+6], tri[o+7], tri[o+8]);
+                return;
+            }
+            float vb=d5*d2-d1*d6;
+            if (vb<=0 && 0<=d2 && d6<=0){
+                float w=d2/(d2-d6);
+                setPoint(result, ax+acx*w, ay+acy*w, az+acz*w);
+                return;
+            }
+            float va=d3*d6-d5*d4;
+            if (va<=0 && 0<=d4-d3 && 0<=d5-d6){
+                float w=(d4-d3)/((d4-d3)+(d5-d6));
+                float bx=tri[o+3], by=tri[o+4], bz=tri[o+5];
+                setPoint(result, bx+(tri[o+6]-bx)*w, by+(tri[o+7]-by)*w, bz+(tri[o+8]-bz)*w);
+                return;
+            }
+            float denom=1/(va+vb+vc);
+            float v=vb*denom;
+            float w=vc*denom;
+            setPoint(result, ax+abx*v+acx*w, ay+aby*v+acy*w, az+abz*v+acz*w);
+        }
+
+        private static void setPoint(float[] result, float x, float y, float z){
+            result[0]=x;
+            result[1]=y;
+            result[2]=z;
+        }
+
+        /** AABBと，パラメータ配列のo番目から始まるAABBが重なるかどうかを判定します */
+        private static boolean overlaps(float[] bound, float[] p, int o){
+            return bound[0]<=p[o+3] && p[o]<=bound[3]
+                    && bound[1]<=p[o+4] && p[o+1]<=bound[4]
+                    && bound[2]<=p[o+5] && p[o+2]<=bound[5];
+        }
+
+        /** AABBと三角形の外接AABBが重なるかどうかを判定します */
+        private static boolean overlapsTriangle(float[] bound, float[] tri, int o){
+            for (int i=0;i<3;i++){
+                float min=Math.min(tri[o+i], Math.min(tri[o+3+i], tri[o+6+i]));
+                float max=Math.max(tri[o+i], Math.max(tri[o+3+i], tri[o+6+i]));
+                if (bound[i+3]<min || max<bound[i]){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
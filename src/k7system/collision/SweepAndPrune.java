@@ -0,0 +1,273 @@
+package k7system.collision;
+
+/** 軸ソート(Sweep and Prune)による衝突判定のブロードフェーズです<br>
+ * X,Y,Zの各軸について，AABBの始点と終点を並べた配列をフレームをまたいで保持します．
+ * 毎フレームの更新では挿入ソートで並べ直すため，物体が少しずつしか動かない場合はほぼ線形時間で済みます．<br>
+ * ペアの探索は重心の分散が最も大きい軸で掃引し，残りの2軸はAABBで判定します．
+ * 木構造を作り直す必要がないので，動きの小さい物体が多いシーンではCollisionManagerより有利です． */
+public class SweepAndPrune implements BroadPhase {
+    private static final int AXES=3;
+
+    // ハンドルごとの情報
+    private CollisionObject[] objects=new CollisionObject[64];
+    private float[] bounds=new float[64*6]; // AABBを詰めた配列
+    private int handleCount=0;
+    private int[] freeHandles=new int[16];
+    private int freeCount=0;
+    private IdentityIntMap<CollisionObject> handleMap=new IdentityIntMap<CollisionObject>(-1);
+    private boolean[] removed=new boolean[64]; // 削除済みで端点が残っているハンドル
+    private boolean hasRemoved=false;
+
+    // 軸ごとの端点(handle<<1|終点なら1)と値
+    private int[][] endpoints=new int[AXES][128];
+    private float[][] values=new float[AXES][128];
+    private int endpointCount=0;
+
+    private boolean unsorted=false; // 更新後に端点が追加されたかどうか
+    private float[] centerSum=new float[AXES]; // 軸選択用の作業領域
+    private float[] centerSum2=new float[AXES];
+
+    private int sweepAxis=0; // 掃引に使う軸
+    private int[] active=new int[64]; // 掃引中に区間が開いているハンドル
+    private int[] activeIndex=new int[64];
+
+    /** 登録されているオブジェクト数を取得します */
+    @Override
+    public int size(){
+        return this.handleMap.size();
+    }
+
+    /** オブジェクトを登録します */
+    @Override
+    public int addCollisionObject(CollisionObject co){
+        int registered=this.handleMap.get(co);
+        if (0<=registered){
+            return registered;
+        }
+        if (this.hasRemoved){
+            this.compact(); // 再利用するハンドルの端点を先に消しておく
+        }
+        int handle;
+        if (0<this.freeCount){
+            handle=this.freeHandles[--this.freeCount];
+        }else{
+            handle=this.handleCount++;
+            this.ensureHandleCapacity(this.handleCount);
+        }
+        this.objects[handle]=co;
+        this.handleMap.put(co, handle);
+        System.arraycopy(co.getBoundByArray(), 0, this.bounds, handle*6, 6);
+
+        // 端点を末尾に追加(次の更新で挿入ソートされる)
+        this.ensureEndpointCapacity(this.endpointCount+2);
+        for (int axis=0;axis<AXES;axis++){
+            this.endpoints[axis][this.endpointCount]=handle<<1;
+            this.values[axis][this.endpointCount]=this.bounds[handle*6+axis];
+            this.endpoints[axis][this.endpointCount+1]=(handle<<1)|1;
+            this.values[axis][this.endpointCount+1]=this.bounds[handle*6+3+axis];
+        }
+        this.endpointCount+=2;
+        this.unsorted=true;
+        return handle;
+    }
+
+    /** オブジェクトの登録を削除します<br>
+     * 端点は次の更新でまとめて取り除かれます */
+    @Override
+    public void removeCollisionObject(CollisionObject co){
+        int handle=this.handleMap.remove(co);
+        if (handle<0){
+            return;
+        }
+        this.objects[handle]=null;
+        this.removed[handle]=true;
+        this.hasRemoved=true;
+    }
+
+    @Override
+    public CollisionObject getObject(int handle){
+        return this.objects[handle];
+    }
+
+    @Override
+    public int getHandle(CollisionObject co){
+        return this.handleMap.get(co);
+    }
+
+    @Override
+    public float[] getBounds(){
+        return this.bounds;
+    }
+
+    /** 掃引に使っている軸を取得します<br>
+     * 0がX軸，1がY軸，2がZ軸です */
+    public int getSweepAxis(){
+        return this.sweepAxis;
+    }
+
+    /** 全てのオブジェクトのAABBを取り込み直し，各軸の端点を挿入ソートで並べ直します */
+    @Override
+    public void update(){
+        if (this.hasRemoved){
+            this.compact();
+        }
+        for (int h=0;h<this.handleCount;h++){
+            if (this.objects[h]!=null){
+                System.arraycopy(this.objects[h].getBoundByArray(), 0, this.bounds, h*6, 6);
+            }
+        }
+
+        float[] sum=this.centerSum;
+        float[] sum2=this.centerSum2;
+        for (int axis=0;axis<AXES;axis++){
+            sum[axis]=0;
+            sum2[axis]=0;
+        }
+        for (int axis=0;axis<AXES;axis++){
+            int[] ep=this.endpoints[axis];
+            float[] val=this.values[axis];
+            for (int i=0;i<this.endpointCount;i++){
+                int handle=ep[i]>>1;
+                val[i]=this.bounds[handle*6+axis+((ep[i]&1)*3)];
+                if ((ep[i]&1)==0){
+                    float center=(this.bounds[handle*6+axis]+this.bounds[handle*6+axis+3])*0.5f;
+                    sum[axis]+=center;
+                    sum2[axis]+=center*center;
+                }
+            }
+            insertionSort(ep, val, this.endpointCount);
+        }
+        this.unsorted=false;
+
+        // 重心の分散が最も大きい軸で掃引する
+        int n=Math.max(1, this.handleMap.size());
+        float best=-1;
+        for (int axis=0;axis<AXES;axis++){
+            float variance=sum2[axis]/n-(sum[axis]/n)*(sum[axis]/n);
+            if (best<variance){
+                best=variance;
+                this.sweepAxis=axis;
+            }
+        }
+    }
+
+    /** 衝突可能性のあるペアを全て出力します<br>
+     * 掃引軸で区間が重なり，残りの2軸でもAABBが重なるペアだけが出力されます．
+     * 前回の更新から登録や削除があった場合は，先に更新を行います */
+    @Override
+    public int findCollisionPairs(CollisionPairBuffer result){
+        if (this.unsorted || this.hasRemoved){
+            this.update();
+        }
+        result.clear();
+        int[] ep=this.endpoints[this.sweepAxis];
+        int axis1=(this.sweepAxis+1)%AXES;
+        int axis2=(this.sweepAxis+2)%AXES;
+        float[] bd=this.bounds;
+        int activeCount=0;
+        for (int i=0;i<this.endpointCount;i++){
+            int handle=ep[i]>>1;
+            if ((ep[i]&1)==0){
+                int o=handle*6;
+                for (int k=0;k<activeCount;k++){
+                    int other=this.active[k];
+                    int p=other*6;
+                    if (bd[o+axis1]<=bd[p+axis1+3] && bd[p+axis1]<=bd[o+axis1+3] && bd[o+axis2]<=bd[p+axis2+3] && bd[p+axis2]<=bd[o+axis2+3]){
+                        result.add(other, handle);
+                    }
+                }
+                this.active[activeCount]=handle;
+                this.activeIndex[handle]=activeCount;
+                activeCount++;
+            }else{
+                // 末尾と入れ替えて閉じる
+                int index=this.activeIndex[handle];
+                int last=this.active[--activeCount];
+                this.active[index]=last;
+                this.activeIndex[last]=index;
+            }
+        }
+        return result.size();
+    }
+
+    /** 端点の値で挿入ソートします<br>
+     * 同じ値では始点を先にするため，接しているだけのAABBも重なりとして扱われます */
+    private static void insertionSort(int[] ep, float[] val, int count){
+        for (int i=1;i<count;i++){
+            int e=ep[i];
+            float v=val[i];
+            int j=i-1;
+            while(0<=j && (v<val[j] || (v==val[j] && (e&1)<(ep[j]&1)))){
+                ep[j+1]=ep[j];
+                val[j+1]=val[j];
+                j--;
+            }
+            ep[j+1]=e;
+            val[j+1]=v;
+        }
+    }
+
+    /** 削除済みのハンドルの端点を取り除き，ハンドルを再利用できるようにします */
+    private void compact(){
+        for (int axis=0;axis<AXES;axis++){
+            int[] ep=this.endpoints[axis];
+            float[] val=this.values[axis];
+            int n=0;
+            for (int i=0;i<this.endpointCount;i++){
+                if (!this.removed[ep[i]>>1]){
+                    ep[n]=ep[i];
+                    val[n]=val[i];
+                    n++;
+                }
+            }
+            if (axis==AXES-1){
+                this.endpointCount=n;
+            }
+        }
+        for (int h=0;h<this.handleCount;h++){
+            if (this.removed[h]){
+                this.removed[h]=false;
+                if (this.freeHandles.length<=this.freeCount){
+                    int[] newFree=new int[this.freeHandles.length*2];
+                    System.arraycopy(this.freeHandles, 0, newFree, 0, this.freeCount);
+                    this.freeHandles=newFree;
+                }
+                this.freeHandles[this.freeCount++]=h;
+            }
+        }
+        this.hasRemoved=false;
+    }
+
+    private void ensureHandleCapacity(int capacity){
+        if (capacity<=this.objects.length){
+            return;
+        }
+        int newCap=Math.max(this.objects.length*2, capacity);
+        CollisionObject[] newObjects=new CollisionObject[newCap];
+        System.arraycopy(this.objects, 0, newObjects, 0, this.objects.length);
+        this.objects=newObjects;
+        float[] newBounds=new float[newCap*6];
+        System.arraycopy(this.bounds, 0, newBounds, 0, this.bounds.length);
+        this.bounds=newBounds;
+        boolean[] newRemoved=new boolean[newCap];
+        System.arraycopy(this.removed, 0, newRemoved, 0, this.removed.length);
+        this.removed=newRemoved;
+        this.active=new int[newCap];
+        this.activeIndex=new int[newCap];
+    }
+
+    private void ensureEndpointCapacity(int capacity){
+        if (capacity<=this.endpoints[0].length){
+            return;
+        }
+        int newCap=Math.max(this.endpoints[0].length*2, capacity);
+        for (int axis=0;axis<AXES;axis++){
+            int[] newEp=new int[newCap];
+            System.arraycopy(this.endpoints[axis], 0, newEp, 0, this.endpointCount);
+            this.endpoints[axis]=newEp;
+            float[] newVal=new float[newCap];
+            System.arraycopy(this.values[axis], 0, newVal, 0, this.endpointCount);
+            this.values[axis]=newVal;
+        }
+    }
+}
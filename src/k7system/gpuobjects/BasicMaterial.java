@@ -8,7 +8,6 @@ import com.jogamp.opengl.GL3;
 import k7system.GraphicEngine;
 import k7system.LightObject;
 import k7system.Params;
-import k7system.VectorManager;
 
 /** 基本マテリアルです<br>
  *  固定機能時代のシェーダー機能を再現します<br>
@@ -22,8 +21,9 @@ public class BasicMaterial extends Material{
 
     public static final int MAXIMUM_LIGHT_NUM=Params.MAXIMUM_LIGHT_NUM;
 
-    public static final String LIGHTS_NAME="lights";
+    public static final String LIGHTS_NAME=FrameUniformBuffer.LIGHTS_NAME; // 光源はフレームデータのユニフォームブロックから参照します
     public static final String USE_LIGHT_FLAG_NAME="isUseLight";
+    public static final String INSTANCED_FLAG_NAME="isInstanced";
     public static final String SHINESS_NAME="shinnes";
 
     // テクスチャ関係
@@ -46,15 +46,16 @@ public class BasicMaterial extends Material{
     private TextureK7[] textures=new TextureK7[4];
 
     // ユニフォーム変数関係
-    private Uniform mvpMatrix;
-    private Uniform mvMatrix;
-    private Uniform rotationMatrix;
-    private Uniform lights;
-    private Uniform useLight; // ライティングを実施するかどうかです
-    private Uniform appMatrix;    // アピアランスの行列です．4x4行列であり，それぞれ(Diffuse, Specular, Ambient, Emission)を表します．
-    private Uniform shinness; // スペキュラ反射の鋭さです
-    private Uniform[] useTexture=new Uniform[4]; // 各テクスチャを利用するかどうかです
-    private Uniform[] textureUnit=new Uniform[4]; // 拡散反射テクスチャのテクスチャユニットです
+    private Mat4Uniform mvpMatrix;
+    private Mat4Uniform mvMatrix;
+    private Mat3Uniform rotationMatrix;
+    private IntUniform useLight; // ライティングを実施するかどうかです
+    private Mat4Uniform appMatrix;    // アピアランスの行列です．4x4行列であり，それぞれ(Diffuse, Specular, Ambient, Emission)を表します．
+    private FloatUniform shinness; // スペキュラ反射の鋭さです
+    private IntUniform instanced; // インスタンス属性から行列を読み込むかどうかです
+    private Shader defaultShader; // 組み込みのシェーダーです
+    private IntUniform[] useTexture=new IntUniform[4]; // 各テクスチャを利用するかどうかです
+    private IntUniform[] textureUnit=new IntUniform[4]; // 拡散反射テクスチャのテクスチャユニットです
 
     private List<TextureK7> removeTextures=new ArrayList<TextureK7>();
 
@@ -69,18 +70,33 @@ public class BasicMaterial extends Material{
             "uniform mat4 "+MV_MATRIX_NAME+";\n"+
             "uniform mat3 "+ROTATION_MATRIX_NAME+";\n"+
             "uniform mat4 "+APPEARANCE_MATRIX_NAME+";\n"+
+            "uniform int "+INSTANCED_FLAG_NAME+";\n"+
+            "layout(location = "+VertexArrayObject.LOCATION_INSTANCE_MV_MATRIX+") in mat4 instanceMv;\n"+
+            "layout(location = "+VertexArrayObject.LOCATION_INSTANCE_ROTATION_MATRIX+") in mat3 instanceRotation;\n"+
+            FrameUniformBuffer.BLOCK_SOURCE+
+            "invariant gl_Position;\n"+ // 深度プリパスと同じ深度になるようにします
             "out vec4 vPosition;\n"+
             "out vec3 normal;\n"+
             "out vec3 tangent;\n"+
             "out vec3 binormal;\n"+
             "out vec2 texCoordPixel;\n"+
             "void main(){\n"+
-            "    normal = normalize("+ROTATION_MATRIX_NAME+"*norm);\n"+ // 法線ベクトルを視点座標系に
-            "    tangent = normalize("+ROTATION_MATRIX_NAME+"*tang);\n"+ // 接線ベクトルを視点座標系に
+            "    mat4 mv="+MV_MATRIX_NAME+";\n"+
+            "    mat3 rotation="+ROTATION_MATRIX_NAME+";\n"+
+            "    if ("+INSTANCED_FLAG_NAME+"!=0){\n"+ // インスタンス描画では行列をインスタンス属性から読み込む
+            "        mv=instanceMv;\n"+
+            "        rotation=instanceRotation;\n"+
+            "    }\n"+
+            "    normal = normalize(rotation*norm);\n"+ // 法線ベクトルを視点座標系に
+            "    tangent = normalize(rotation*tang);\n"+ // 接線ベクトルを視点座標系に
             "    binormal = cross(normal,tangent);\n"+ // 従法線ベクトルを取得
-            "    vPosition = "+MV_MATRIX_NAME+"*vec4(vertex,1.0);\n"+ // 視点座標系での位置
+            "    vPosition = mv*vec4(vertex,1.0);\n"+ // 視点座標系での位置
             "    texCoordPixel=texCoord;\n"+ // テクスチャ座標
-            "    gl_Position = "+MVP_MATRIX_NAME+"*vec4(vertex,1.0);\n"+ // 画面座標での位置
+            "    if ("+INSTANCED_FLAG_NAME+"!=0){\n"+
+            "        gl_Position = "+FrameUniformBuffer.PROJECTION_MATRIX_NAME+"*vPosition;\n"+ // 画面座標での位置
+            "    }else{\n"+
+            "        gl_Position = "+MVP_MATRIX_NAME+"*vec4(vertex,1.0);\n"+ // 画面座標での位置
+            "    }\n"+
             "}\n"
     };
 
@@ -91,7 +107,7 @@ public class BasicMaterial extends Material{
             "uniform mat3 "+ROTATION_MATRIX_NAME+";\n"+
             "uniform mat4 "+APPEARANCE_MATRIX_NAME+";\n"+
             "uniform int "+USE_LIGHT_FLAG_NAME+";\n"+
-            "uniform mat4 "+LIGHTS_NAME+"["+MAXIMUM_LIGHT_NUM+"];\n"+
+            FrameUniformBuffer.BLOCK_SOURCE+
             "uniform float "+SHINESS_NAME+";\n"+
             "uniform int "+USE_DIFFUSE_TEXTURE_NAME+";\n"+
             "uniform int "+USE_NORMAL_TEXTURE_NAME+";\n"+
@@ -117,7 +133,7 @@ public class BasicMaterial extends Material{
             "            mat3 matN=mat3(tangent[0], tangent[1],tangent[2], binormal[0], binormal[1],binormal[2], normal[0], normal[1], normal[2]);\n"+
             "            currentNormal=matN*texNormal;"+
             "        }\n"+
-            "        for(int i=0;i<"+MAXIMUM_LIGHT_NUM+";i++){\n"+
+            "        for(int i=0;i<"+FrameUniformBuffer.LIGHT_COUNT_NAME+".x;i++){\n"+
             "            mat4 light="+LIGHTS_NAME+"[i];\n"+
             "            if (light[0][0]!=0.0 || light[0][1]!=0.0 || light[0][2]!=0.0 || light[0][3]!=0.0){ \n"+ // ライト計算
             "                vec3 lightVec=vec3(light[0][0],light[0][1],light[0][2]);\n"+
@@ -168,44 +184,46 @@ public class BasicMaterial extends Material{
         shader.setVertexShaderSource(vShader);
         shader.setFragmentShaderSource(fShader);
         this.setShader(shader);
+        this.defaultShader=shader;
 
         // ユニフォーム変数を登録
         // 座標変換行列関係の登録
-        this.mvpMatrix=new Uniform(MVP_MATRIX_NAME,VectorManager.createIdentityMatrix(4)); // モデルビュープロジェクション変換行列ユニフォーム
+        this.mvpMatrix=new Mat4Uniform(MVP_MATRIX_NAME); // モデルビュープロジェクション変換行列ユニフォーム
         this.addUniform(this.mvpMatrix);
-        this.mvMatrix=new Uniform(MV_MATRIX_NAME,VectorManager.createIdentityMatrix(4)); // モデルビュー変換行列ユニフォーム
+        this.mvMatrix=new Mat4Uniform(MV_MATRIX_NAME); // モデルビュー変換行列ユニフォーム
         this.addUniform(this.mvMatrix);
-        this.rotationMatrix=new Uniform(ROTATION_MATRIX_NAME,VectorManager.createIdentityMatrix(3)); // 回転行列ユニフォーム
+        this.rotationMatrix=new Mat3Uniform(ROTATION_MATRIX_NAME); // 回転行列ユニフォーム
         this.addUniform(this.rotationMatrix);
 
         // アピアランス行列の登録
-        this.appMatrix=new Uniform(APPEARANCE_MATRIX_NAME,DEFAULT_APPEARANCE.clone()); // 質感行列ユニフォーム
+        this.appMatrix=new Mat4Uniform(APPEARANCE_MATRIX_NAME,DEFAULT_APPEARANCE); // 質感行列ユニフォーム
         this.addUniform(this.appMatrix);
 
         // テクスチャ利用関係変数の登録
         // 拡散反射テクスチャ
-        this.useTexture[DIFFUSE_TEXTURE]=new Uniform(USE_DIFFUSE_TEXTURE_NAME, UNUSE); // 初期状態では非使用
+        this.useTexture[DIFFUSE_TEXTURE]=new IntUniform(USE_DIFFUSE_TEXTURE_NAME, UNUSE); // 初期状態では非使用
         this.addUniform(this.useTexture[DIFFUSE_TEXTURE]);
-        this.textureUnit[DIFFUSE_TEXTURE]=new Uniform(DIFFUSE_TEXTURE_UNIT_NAME, DIFFUSE_TEXTURE); // テクスチャユニット番号を登録する
+        this.textureUnit[DIFFUSE_TEXTURE]=new IntUniform(DIFFUSE_TEXTURE_UNIT_NAME, DIFFUSE_TEXTURE); // テクスチャユニット番号を登録する
         this.addUniform(this.textureUnit[DIFFUSE_TEXTURE]);
 
         // 法線テクスチャ
-        this.useTexture[NORMAL_TEXTURE]=new Uniform(USE_NORMAL_TEXTURE_NAME, UNUSE);
+        this.useTexture[NORMAL_TEXTURE]=new IntUniform(USE_NORMAL_TEXTURE_NAME, UNUSE);
         this.addUniform(this.useTexture[NORMAL_TEXTURE]);
-        this.textureUnit[NORMAL_TEXTURE]=new Uniform(NORMAL_TEXTURE_UNIT_NAME, NORMAL_TEXTURE); // テクスチャユニット番号を登録する
+        this.textureUnit[NORMAL_TEXTURE]=new IntUniform(NORMAL_TEXTURE_UNIT_NAME, NORMAL_TEXTURE); // テクスチャユニット番号を登録する
         this.addUniform(this.textureUnit[NORMAL_TEXTURE]);
 
 
-        // ライト関係変数の登録
-        float[][] lightsArray=new float[MAXIMUM_LIGHT_NUM][16];
-        this.lights=new Uniform(LIGHTS_NAME, lightsArray); // 照明配列ユニフォーム
-        this.addUniform(this.lights);
-        this.shinness=new Uniform(SHINESS_NAME,1.0f);
+        // ライト関係変数の登録(光源そのものはフレームデータのユニフォームブロックで共有します)
+        this.shinness=new FloatUniform(SHINESS_NAME,1.0f);
         this.addUniform(this.shinness);
 
-        this.useLight=new Uniform(USE_LIGHT_FLAG_NAME,1);
+        this.useLight=new IntUniform(USE_LIGHT_FLAG_NAME,1);
         this.addUniform(this.useLight);
 
+        // インスタンス描画の切り替え(通常は使わない)
+        this.instanced=new IntUniform(INSTANCED_FLAG_NAME, UNUSE);
+        this.addUniform(this.instanced);
+
     }
 
     /** 初期化します<br>
@@ -250,12 +268,12 @@ public class BasicMaterial extends Material{
         // テクスチャの更新処理
         if (tex!=null){
             tex.addParent(this);
-            this.useTexture[type].setValue(USE);
+            this.useTexture[type].set(USE);
             if (!tex.isUploaded()){
                 this.disableUploadedFlag();
             }
         }else{
-            this.useTexture[type].setValue(UNUSE);
+            this.useTexture[type].set(UNUSE);
         }
         this.textures[type]=tex;
     }
@@ -275,7 +293,7 @@ public class BasicMaterial extends Material{
     /** 色を設定します<br>
      * 拡散反射，鏡面反射，環境光の全てに係ります */
     public void setColor(float [] color){
-        float[] apps=(float[])this.appMatrix.getValue();
+        float[] apps=this.appMatrix.get();
         apps[0]=color[0];
         apps[1]=color[1];
         apps[2]=color[2];
@@ -288,6 +306,7 @@ public class BasicMaterial extends Material{
         apps[9]=color[1];
         apps[10]=color[2];
         apps[11]=color[3];
+        this.appMatrix.markChanged();
     }
 
     /** 拡散反射色を設定します */
@@ -302,11 +321,12 @@ public class BasicMaterial extends Material{
 
     /** 拡散反射色を設定します */
     public void setDiffuseColor(float [] color){
-        float[] appear=(float[])this.appMatrix.getValue();
+        float[] appear=this.appMatrix.get();
         appear[0]=color[0];
         appear[1]=color[1];
         appear[2]=color[2];
         appear[3]=color[3];
+        this.appMatrix.markChanged();
     }
 
     /** 鏡面反射色を設定します */
@@ -321,11 +341,12 @@ public class BasicMaterial extends Material{
 
     /** 鏡面反射色を設定します */
     public void setSpecularColor(float [] color){
-        float[] appear=(float[])this.appMatrix.getValue();
+        float[] appear=this.appMatrix.get();
         appear[4]=color[0];
         appear[5]=color[1];
         appear[6]=color[2];
         appear[7]=color[3];
+        this.appMatrix.markChanged();
     }
 
     /** 環境反射色を設定します */
@@ -340,11 +361,12 @@ public class BasicMaterial extends Material{
 
     /** 環境反射色を設定します */
     public void setAmbientColor(float [] color){
-        float[] appear=(float[])this.appMatrix.getValue();
+        float[] appear=this.appMatrix.get();
         appear[8]=color[0];
         appear[9]=color[1];
         appear[10]=color[2];
         appear[11]=color[3];
+        this.appMatrix.markChanged();
     }
 
     /** 放射光を設定します */
@@ -359,17 +381,17 @@ public class BasicMaterial extends Material{
 
     /** 放射光を設定します */
     public void setEmissionColor(float [] color){
-        float[] appear=(float[])this.appMatrix.getValue();
+        float[] appear=this.appMatrix.get();
         appear[12]=color[0];
         appear[13]=color[1];
         appear[14]=color[2];
         appear[15]=color[3];
-
+        this.appMatrix.markChanged();
     }
 
     /** 透明度を設定します */
     public void setAlpha(float alpha){
-        float[] apps=(float[])this.appMatrix.getValue();
+        float[] apps=this.appMatrix.get();
         if (alpha<0){
             alpha=0;
         }else if(alpha>1){
@@ -378,46 +400,41 @@ public class BasicMaterial extends Material{
         apps[3]=alpha;
         apps[7]=alpha;
         apps[11]=alpha;
+        this.appMatrix.markChanged();
     }
 
     /** 拡散反射の鋭さを指定します */
     public void setShinness(float shine){
-        this.shinness.setValue(shine);
+        this.shinness.set(shine);
     }
 
     /** このマテリアルが参照するライト情報を設定します<br>
-     * このメソッドによって，ライト座標がワールド座標から視点座標に変換されシェーダーに投入される準備をします．
-     * 通常，Model3Dクラスから呼び出されます．ビュー行列はシステムで一意なのと，このクラスではここでしか利用しないのでローカル変数として設定しません． */
+     * 光源はGraphicEngineがフレームごとにFrameUniformBufferへ転送し，全てのマテリアルで共有するため，何もしません．
+     * @deprecated 互換性のために残しています */
+    @Deprecated
     public void refleshLights(List<LightObject> lightList, float[] viewMat){
-        Uniform lightsUni=this.getUniform(LIGHTS_NAME);
-        float[][] lightsData=(float[][])lightsUni.getValue();
-
-        if (lightList!=null){
-            for (int i=0;i<lightList.size();i++){
-                lightsData[i]=lightList.get(i).getLightParameters().clone(); // 値をいじるので，ライトパラメーターをコピーしてから代入する
-
-                // ライト座標をワールド座標系から視点座標系に変換
-                // シェーダー内でもライティングに関しては視点座標系で実施
-                float[] lightPos=VectorManager.multMatrixVector(viewMat,new float[]{lightsData[i][0],lightsData[i][1],lightsData[i][2],lightsData[i][3]});
-                lightsData[i][0]=lightPos[0];
-                lightsData[i][1]=lightPos[1];
-                lightsData[i][2]=lightPos[2];
-                lightsData[i][3]=lightPos[3];
-            }
-        }
-        lightsUni.setValue(lightsData);
     }
 
     /** ライティングを実施するかどうかを設定します */
     public void setUseLights(boolean isUse){
-        Uniform uni=this.getUniform(USE_LIGHT_FLAG_NAME);
-        uni.setValue(isUse);
+        this.useLight.set(isUse);
     }
 
-    @Override
-    public void bind(GL3 gl) {
-        super.bind(gl);
+    /** インスタンス描画に対応しているかどうかを取得します<br>
+     * シェーダーを差し替えた場合，インスタンス属性を読み込むかどうか分からないため対応しません */
+    public boolean isInstancingSupported(){
+        return this.getShader()==this.defaultShader;
+    }
 
+    /** 行列をインスタンス属性から読み込むかどうかを設定します<br>
+     * 通常，描画キューがインスタンス描画の前後に呼び出します */
+    public void setInstanced(boolean isInstanced){
+        this.instanced.set(isInstanced);
+    }
+
+    /** テクスチャをバインドします */
+    @Override
+    public void bindTextures(GL3 gl) {
         // テクスチャ変更があった場合に古いのを捨てておく
         for (TextureK7 tex:this.removeTextures){
             tex.removeParent(this);
@@ -425,15 +442,38 @@ public class BasicMaterial extends Material{
         this.removeTextures.clear();
 
         // テクスチャをバインド
-        if ((Integer)this.useTexture[DIFFUSE_TEXTURE].getValue()!=0){ // もし拡散反射テクスチャを使っているのなら
+        if (this.useTexture[DIFFUSE_TEXTURE].get()!=0){ // もし拡散反射テクスチャを使っているのなら
             this.textures[DIFFUSE_TEXTURE].bind(gl, DIFFUSE_TEXTURE, GL3.GL_TEXTURE0);
         }
-        if ((Integer)this.useTexture[NORMAL_TEXTURE].getValue()!=0){ // もし法線テクスチャを使っているのなら
+        if (this.useTexture[NORMAL_TEXTURE].get()!=0){ // もし法線テクスチャを使っているのなら
             this.textures[NORMAL_TEXTURE].bind(gl, NORMAL_TEXTURE, GL3.GL_TEXTURE3);
         }
 
     }
 
+    /** 拡散反射テクスチャと法線テクスチャの名前から識別値を作成します<br>
+     * 上位32bitが拡散反射テクスチャ，下位32bitが法線テクスチャの名前です */
+    @Override
+    public long getTextureKey() {
+        int diffuse=0;
+        int normal=0;
+        if (this.useTexture[DIFFUSE_TEXTURE].get()!=0){
+            TextureK7 tex=this.textures[DIFFUSE_TEXTURE];
+            if (!tex.isUploaded() || tex.isTextureChanged()){
+                return -1;
+            }
+            diffuse=tex.getTextureId();
+        }
+        if (this.useTexture[NORMAL_TEXTURE].get()!=0){
+            TextureK7 tex=this.textures[NORMAL_TEXTURE];
+            if (!tex.isUploaded() || tex.isTextureChanged()){
+                return -1;
+            }
+            normal=tex.getTextureId();
+        }
+        return ((long)diffuse<<32) | (normal & 0xFFFFFFFFL);
+    }
+
     @Override
     public void vramFlushed() {
         super.vramFlushed();
@@ -0,0 +1,92 @@
+package k7system.gpuobjects;
+
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+/** 複数の部品をまとめた頂点配列オブジェクトです<br>
+ * インデックス配列を部品ごとの連続した範囲に分けて管理し，部品ごとに表示/非表示を切り替えられます．
+ * 全ての部品が表示されている場合は1回の描画命令で描画し，
+ * 非表示の部品がある場合は表示されている連続した範囲ごとに描画します．<br>
+ * インデックスの利用が前提です． */
+public class BatchedVertexArrayObject extends VertexArrayObject{
+    private int[] partStart=new int[0]; // 部品の開始位置(インデックス配列での位置)
+    private int[] partCount=new int[0]; // 部品のインデックス数
+    private boolean[] partVisible=new boolean[0];
+    private int hiddenCount=0;
+
+    /** 部品の範囲を設定します<br>
+     * 範囲はインデックス配列での開始位置と個数で，インデックス配列の先頭から順に並んでいる必要があります．
+     * 全ての部品は表示状態になります */
+    public void setParts(int[] start, int[] count){
+        this.partStart=start.clone();
+        this.partCount=count.clone();
+        this.partVisible=new boolean[start.length];
+        Arrays.fill(this.partVisible, true);
+        this.hiddenCount=0;
+    }
+
+    /** 部品の数を取得します */
+    public int getPartCount(){
+        return this.partStart.length;
+    }
+
+    /** 部品が表示されているかどうかを取得します */
+    public boolean isPartVisible(int part){
+        return this.partVisible[part];
+    }
+
+    /** 非表示の部品があるかどうかを取得します */
+    public boolean hasHiddenParts(){
+        return this.hiddenCount!=0;
+    }
+
+    /** 部品の表示/非表示を設定します */
+    public void setPartVisible(int part, boolean visible){
+        if (this.partVisible[part]==visible){
+            return;
+        }
+        this.partVisible[part]=visible;
+        if (visible){
+            this.hiddenCount--;
+        }else{
+            this.hiddenCount++;
+        }
+    }
+
+    /** 表示されている部品を描画します */
+    @Override
+    public void draw(GL3 gl){
+        if (this.hiddenCount==0){
+            super.draw(gl); // 全て表示されていれば1回で描画できます
+            return;
+        }
+        int parts=this.partStart.length;
+        if (this.hiddenCount==parts){
+            return;
+        }
+
+        this.getStateCache().bindVertexArray(gl, this.getVaoId());
+        int i=0;
+        while (i<parts){
+            if (!this.partVisible[i]){
+                i++;
+                continue;
+            }
+            // 表示されている部品が連続する範囲をまとめて描画します
+            int start=this.partStart[i];
+            int count=0;
+            while (i<parts && this.partVisible[i]){
+                count+=this.partCount[i];
+                i++;
+            }
+            gl.glDrawElements(GL3.GL_TRIANGLES, count, GL3.GL_UNSIGNED_INT, (long)start*Integer.SIZE/8);
+        }
+
+        int error=gl.glGetError();
+        if (error!=GL.GL_NO_ERROR){
+            logger.severe("Failed to draw batched VAO <"+this+"> :"+error);
+        }
+    }
+}
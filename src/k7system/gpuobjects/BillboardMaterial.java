@@ -7,7 +7,6 @@ import com.jogamp.opengl.GL3;
 
 import k7system.Billboard;
 import k7system.GraphicEngine;
-import k7system.VectorManager;
 
 /** ビルボード用のマテリアルです<br>
  * ビルボードはカメラに対してカメラ座標系ではZ座標でしか回転しません．<br>
@@ -29,11 +28,12 @@ public class BillboardMaterial extends Material{
     public static final String MIRROR_Y="mirrorY";
 
     // ユニフォーム変数関係
-    private Uniform mvpMatrix;
-    private Uniform appMatrix;    // アピアランスの行列です．4x4行列であり，それぞれ(Diffuse, Specular, Ambient, Emission)を表します．
-    private Uniform textureUnit; // テクスチャユニットです
-    private Uniform coordSystem; // 座標系です
-    private Uniform mirrorY; // Y軸反転用フラグです
+    private Mat4Uniform mvpMatrix;
+    private Mat4Uniform appMatrix;    // アピアランスの行列です．4x4行列であり，それぞれ(Diffuse, Specular, Ambient, Emission)を表します．
+    private IntUniform textureUnit; // テクスチャユニットです
+    private IntUniform coordSystem; // 座標系です
+    private IntUniform mirrorY; // Y軸反転用フラグです
+    private Vec4Uniform screenTexSize=null; // スクリーンとテクスチャのサイズです(初期化時に登録)
     private float scale=1.0f;
 
     private TextureK7 texture=new TextureK7(new BufferedImage(128, 128, BufferedImage.TYPE_4BYTE_ABGR)); // デフォルトである程度の大きさを設定
@@ -93,23 +93,23 @@ public class BillboardMaterial extends Material{
 
         // ユニフォーム変数を登録
         // 座標変換行列関係の登録
-        this.mvpMatrix=new Uniform(MVP_MATRIX_NAME,VectorManager.createIdentityMatrix(4)); // モデルビュープロジェクション変換行列ユニフォーム
+        this.mvpMatrix=new Mat4Uniform(MVP_MATRIX_NAME); // モデルビュープロジェクション変換行列ユニフォーム
         this.addUniform(this.mvpMatrix);
 
         // 座標系変数の登録
-        this.coordSystem=new Uniform(COORDINATE_SYSTEM, Billboard.WORLD_COORDINATES); // デフォルトは世界座標系
+        this.coordSystem=new IntUniform(COORDINATE_SYSTEM, Billboard.WORLD_COORDINATES); // デフォルトは世界座標系
         this.addUniform(this.coordSystem);
 
         // アピアランス行列の登録
-        this.appMatrix=new Uniform(APPEARANCE_MATRIX_NAME,DEFAULT_APPEARANCE.clone()); // 質感行列ユニフォーム
+        this.appMatrix=new Mat4Uniform(APPEARANCE_MATRIX_NAME,DEFAULT_APPEARANCE); // 質感行列ユニフォーム
         this.addUniform(this.appMatrix);
 
         // テクスチャ利用関係変数の登録
-        this.textureUnit=new Uniform(DIFFUSE_TEXTURE_UNIT_NAME,0); // テクスチャユニット番号を登録する
+        this.textureUnit=new IntUniform(DIFFUSE_TEXTURE_UNIT_NAME,0); // テクスチャユニット番号を登録する
         this.addUniform(this.textureUnit);
 
         // Y軸反転変数の登録
-        this.mirrorY=new Uniform(MIRROR_Y,0);
+        this.mirrorY=new IntUniform(MIRROR_Y,0);
         this.addUniform(this.mirrorY);
 
         Uniform myPos=new Uniform(POSITION, this.getPosition());
@@ -143,13 +143,13 @@ public class BillboardMaterial extends Material{
 
     /** このビルボードの座標系を取得します */
     public int getCoordinatesSystem(){
-        return (Integer)this.coordSystem.getValue();
+        return this.coordSystem.get();
     }
 
     /** このビルボードの座標系を設定します<br>
      * 世界座標系かスクリーン座標系を指定します */
     public void setCoordinatesSystem(int WorldOrScreen){
-        this.coordSystem.setValue(WorldOrScreen);
+        this.coordSystem.set(WorldOrScreen);
     }
 
     /** ビルボードのスクリーン座標を設定します<br>
@@ -164,11 +164,7 @@ public class BillboardMaterial extends Material{
 
     /** Y軸反転属性を設定します */
     public void setMirrorY(boolean flag){
-        if (flag){
-            this.mirrorY.setValue(1);
-        }else{
-            this.mirrorY.setValue(0);
-        }
+        this.mirrorY.set(flag);
     }
 
 
@@ -185,10 +181,10 @@ public class BillboardMaterial extends Material{
 
         // エンジン情報が必要なユニフォーム設定
         if (eng!=null){
-            Uniform scrTexSize=new Uniform(SCREEN_AND_TEX_SIZE, new float[]{eng.getScreenWidth(), eng.getScreenHeight(), this.texture.getImageWidth()*this.scale, this.texture.getImageHeight()*this.scale});
-            this.addUniform(scrTexSize);
+            this.screenTexSize=new Vec4Uniform(SCREEN_AND_TEX_SIZE, eng.getScreenWidth(), eng.getScreenHeight(), this.texture.getImageWidth()*this.scale, this.texture.getImageHeight()*this.scale);
+            this.addUniform(this.screenTexSize);
 
-            Uniform screenSize=new Uniform(SCREEN_SIZE, (float)eng.getPerspectiveMatrix()[5]);
+            FloatUniform screenSize=new FloatUniform(SCREEN_SIZE, eng.getPerspectiveMatrix()[5]);
             this.addUniform(screenSize);
         }
 
@@ -201,9 +197,8 @@ public class BillboardMaterial extends Material{
         GraphicEngine eng=this.getEngine();
 
         // ユニフォーム更新
-        if (eng!=null){
-            Uniform scrTexSize=this.getUniform(SCREEN_AND_TEX_SIZE);
-            scrTexSize.setValue(new float[]{eng.getScreenWidth(), eng.getScreenHeight(), this.texture.getImageWidth()*this.scale, this.texture.getImageHeight()*this.scale});
+        if (eng!=null && this.screenTexSize!=null){
+            this.screenTexSize.set(eng.getScreenWidth(), eng.getScreenHeight(), this.texture.getImageWidth()*this.scale, this.texture.getImageHeight()*this.scale);
         }
         Uniform myPos=this.getUniform(POSITION);
         myPos.setValue(this.screenCoord);
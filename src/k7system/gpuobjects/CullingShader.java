@@ -0,0 +1,195 @@
+package k7system.gpuobjects;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.logging.Logger;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import k7system.GraphicEngine;
+
+/** 間接描画のコマンドをGPUで視界判定するコンピュートシェーダーです<br>
+ * OpenGL 4.3以上で利用できます．
+ * 描画ごとのモデルビュー行列(InstanceBufferの形式)とモデル座標系の境界ボックスから，
+ * 視錐台の外側にある描画と，奥行きピラミッド(Hi-Z)より完全に奥にある描画のinstanceCountを0に書き換えます．<br>
+ * 奥行きピラミッドは各画素がその範囲の最も奥の深度を持つミップマップ付きテクスチャで，
+ * 前のフレームの深度から作られたものを想定しています． */
+public class CullingShader extends GPUResource{
+    public static final int LOCAL_SIZE=64;
+    public static final int COMMAND_BINDING=0;
+    public static final int DRAW_DATA_BINDING=1;
+    public static final int BOUNDS_BINDING=2;
+    public static final int PYRAMID_UNIT=15; // 奥行きピラミッドを割り当てるテクスチャユニット
+
+    private static final String SOURCE=
+            "#version 430 core\n"+
+            "layout(local_size_x = "+LOCAL_SIZE+") in;\n"+
+            FrameUniformBuffer.BLOCK_SOURCE+
+            "struct Command { uint count; uint instanceCount; uint firstIndex; int baseVertex; uint baseInstance; };\n"+
+            "layout(std430, binding = "+COMMAND_BINDING+") buffer Commands { Command commands[]; };\n"+
+            "layout(std430, binding = "+DRAW_DATA_BINDING+") readonly buffer DrawData { float drawData[]; };\n"+
+            "layout(std430, binding = "+BOUNDS_BINDING+") readonly buffer Bounds { vec4 bounds[]; };\n"+ // 描画ごとに最小点と最大点
+            "uniform uint drawCount;\n"+
+            "uniform int useOcclusion;\n"+
+            "uniform sampler2D pyramid;\n"+
+            "uniform vec2 pyramidSize;\n"+
+            "uniform int pyramidLevels;\n"+
+            "uniform mat4 pyramidMatrix;\n"+ // ビュー座標系から奥行きピラミッドを作った時点のクリップ座標への変換
+            "void main(){\n"+
+            "    uint i = gl_GlobalInvocationID.x;\n"+
+            "    if (i >= drawCount) { return; }\n"+
+            "    uint o = commands[i].baseInstance*"+InstanceBuffer.STRIDE+"u+"+InstanceBuffer.MV_OFFSET+"u;\n"+
+            "    mat4 mv = mat4(drawData[o], drawData[o+1], drawData[o+2], drawData[o+3],\n"+
+            "                   drawData[o+4], drawData[o+5], drawData[o+6], drawData[o+7],\n"+
+            "                   drawData[o+8], drawData[o+9], drawData[o+10], drawData[o+11],\n"+
+            "                   drawData[o+12], drawData[o+13], drawData[o+14], drawData[o+15]);\n"+
+            "    vec3 bmin = bounds[i*2u].xyz;\n"+
+            "    vec3 bmax = bounds[i*2u+1u].xyz;\n"+
+            // 視錐台判定(8頂点が全て同じ平面の外側にあれば視界外)
+            "    mat4 mvp = "+FrameUniformBuffer.PROJECTION_MATRIX_NAME+"*mv;\n"+
+            "    uint outside = 63u;\n"+
+            "    for (int k = 0; k < 8; k++) {\n"+
+            "        vec3 p = vec3((k & 1) != 0 ? bmax.x : bmin.x, (k & 2) != 0 ? bmax.y : bmin.y, (k & 4) != 0 ? bmax.z : bmin.z);\n"+
+            "        vec4 c = mvp*vec4(p, 1.0);\n"+
+            "        uint m = 0u;\n"+
+            "        if (c.x < -c.w) m |= 1u;\n"+
+            "        if (c.x > c.w) m |= 2u;\n"+
+            "        if (c.y < -c.w) m |= 4u;\n"+
+            "        if (c.y > c.w) m |= 8u;\n"+
+            "        if (c.z < -c.w) m |= 16u;\n"+
+            "        if (c.z > c.w) m |= 32u;\n"+
+            "        outside &= m;\n"+
+            "    }\n"+
+            "    bool visible = (outside == 0u);\n"+
+            // 奥行きピラミッドによる遮蔽判定
+            "    if (visible && useOcclusion != 0) {\n"+
+            "        mat4 pm = pyramidMatrix*mv;\n"+
+            "        vec2 lo = vec2(1.0);\n"+
+            "        vec2 hi = vec2(0.0);\n"+
+            "        float nearest = 1.0;\n"+
+            "        bool valid = true;\n"+
+            "        for (int k = 0; k < 8; k++) {\n"+
+            "            vec3 p = vec3((k & 1) != 0 ? bmax.x : bmin.x, (k & 2) != 0 ? bmax.y : bmin.y, (k & 4) != 0 ? bmax.z : bmin.z);\n"+
+            "            vec4 c = pm*vec4(p, 1.0);\n"+
+            "            if (c.w <= 0.0) { valid = false; break; }\n"+ // 視点の後ろにかかる場合は判定しない
+            "            vec3 n = c.xyz/c.w*0.5+0.5;\n"+
+            "            lo = min(lo, n.xy);\n"+
+            "            hi = max(hi, n.xy);\n"+
+            "            nearest = min(nearest, n.z);\n"+
+            "        }\n"+
+            "        if (valid) {\n"+
+            "            lo = clamp(lo, 0.0, 1.0);\n"+
+            "            hi = clamp(hi, 0.0, 1.0);\n"+
+            "            vec2 extent = (hi-lo)*pyramidSize;\n"+
+            "            int level = int(clamp(ceil(log2(max(max(extent.x, extent.y), 1.0))), 0.0, float(pyramidLevels-1)));\n"+
+            // 各レベルの大きさは切り捨てで，奇数の端の画素は3画素分をまとめているため，レベル0の画素から求めます
+            "            ivec2 size = max(ivec2(pyramidSize) >> level, ivec2(1));\n"+
+            "            ivec2 p0 = min(ivec2(lo*pyramidSize) >> level, size-1);\n"+
+            "            ivec2 p1 = min(ivec2(hi*pyramidSize) >> level, size-1);\n"+
+            "            float farthest = max(max(texelFetch(pyramid, p0, level).r, texelFetch(pyramid, ivec2(p1.x, p0.y), level).r),\n"+
+            "                                 max(texelFetch(pyramid, ivec2(p0.x, p1.y), level).r, texelFetch(pyramid, p1, level).r));\n"+
+            "            visible = nearest <= farthest;\n"+
+            "        }\n"+
+            "    }\n"+
+            "    commands[i].instanceCount = visible ? 1u : 0u;\n"+
+            "}\n";
+
+    private int programId=-1;
+    private int drawCountLocation=-1;
+    private int useOcclusionLocation=-1;
+    private int pyramidLocation=-1;
+    private int pyramidSizeLocation=-1;
+    private int pyramidLevelsLocation=-1;
+    private int pyramidMatrixLocation=-1;
+
+    private Logger logger=Logger.getGlobal();
+
+    /** コンピュートシェーダーをコンパイルします */
+    @Override
+    public int init(GL3 gl, GraphicEngine eng){
+        super.init(gl, eng);
+        if (this.isUploaded()){
+            return this.programId;
+        }
+        int cs=gl.glCreateShader(GL3.GL_COMPUTE_SHADER);
+        gl.glShaderSource(cs, 1, new String[]{SOURCE}, null);
+        gl.glCompileShader(cs);
+        int[] status=new int[1];
+        gl.glGetShaderiv(cs, GL3.GL_COMPILE_STATUS, status, 0);
+        if (status[0]!=GL.GL_TRUE){
+            IntBuffer length=IntBuffer.wrap(new int[1]);
+            ByteBuffer message=ByteBuffer.wrap(new byte[Shader.MESSAGE_LENGTH]);
+            gl.glGetShaderInfoLog(cs, Shader.MESSAGE_LENGTH, length, message);
+            logger.severe("Failed to compile culling shader <"+this+">\n"+new String(message.array(), 0, length.get(0)));
+        }
+
+        this.programId=gl.glCreateProgram();
+        gl.glAttachShader(this.programId, cs);
+        gl.glLinkProgram(this.programId);
+        gl.glDeleteShader(cs);
+
+        int blockIndex=gl.glGetUniformBlockIndex(this.programId, FrameUniformBuffer.BLOCK_NAME);
+        if (blockIndex!=GL3.GL_INVALID_INDEX){
+            gl.glUniformBlockBinding(this.programId, blockIndex, FrameUniformBuffer.BINDING_POINT);
+        }
+        this.drawCountLocation=gl.glGetUniformLocation(this.programId, "drawCount");
+        this.useOcclusionLocation=gl.glGetUniformLocation(this.programId, "useOcclusion");
+        this.pyramidLocation=gl.glGetUniformLocation(this.programId, "pyramid");
+        this.pyramidSizeLocation=gl.glGetUniformLocation(this.programId, "pyramidSize");
+        this.pyramidLevelsLocation=gl.glGetUniformLocation(this.programId, "pyramidLevels");
+        this.pyramidMatrixLocation=gl.glGetUniformLocation(this.programId, "pyramidMatrix");
+
+        int error=gl.glGetError();
+        if (error!=GL.GL_NO_ERROR){
+            logger.severe("Fail to link culling shader <"+this+"> :"+error);
+        }
+        this.enableUploadedFlag();
+        return this.programId;
+    }
+
+    /** コマンドバッファのinstanceCountを視界判定の結果で書き換えます<br>
+     * pyramidが0の場合は視錐台判定だけを行います．pyramidMatrixはビュー座標系から奥行きピラミッドを作った時点のクリップ座標への変換です．
+     * 書き換えたコマンドが間接描画で読み込まれるよう，メモリバリアを発行します */
+    public void dispatch(GL3 gl, int commandBuffer, int drawDataBuffer, int boundsBuffer, int drawCount,
+            int pyramid, int pyramidWidth, int pyramidHeight, int pyramidLevels, float[] pyramidMatrix){
+        if (!this.isUploaded()){
+            this.init(gl, this.getEngine());
+        }
+        GLStateCache cache=this.getStateCache();
+        cache.useProgram(gl, this.programId);
+        gl.glUniform1ui(this.drawCountLocation, drawCount);
+        if (pyramid!=0){
+            cache.bindTexture(gl, PYRAMID_UNIT, pyramid);
+            cache.bindSampler(gl, PYRAMID_UNIT, 0);
+            gl.glUniform1i(this.useOcclusionLocation, 1);
+            gl.glUniform1i(this.pyramidLocation, PYRAMID_UNIT);
+            gl.glUniform2f(this.pyramidSizeLocation, pyramidWidth, pyramidHeight);
+            gl.glUniform1i(this.pyramidLevelsLocation, pyramidLevels);
+            gl.glUniformMatrix4fv(this.pyramidMatrixLocation, 1, false, pyramidMatrix, 0);
+        }else{
+            gl.glUniform1i(this.useOcclusionLocation, 0);
+        }
+
+        gl.glBindBufferBase(GL3.GL_SHADER_STORAGE_BUFFER, COMMAND_BINDING, commandBuffer);
+        gl.glBindBufferBase(GL3.GL_SHADER_STORAGE_BUFFER, DRAW_DATA_BINDING, drawDataBuffer);
+        gl.glBindBufferBase(GL3.GL_SHADER_STORAGE_BUFFER, BOUNDS_BINDING, boundsBuffer);
+        gl.glDispatchCompute((drawCount+LOCAL_SIZE-1)/LOCAL_SIZE, 1, 1);
+        gl.glMemoryBarrier(GL3.GL_COMMAND_BARRIER_BIT);
+    }
+
+    @Override
+    public void vramFlushed(){
+        this.disableUploadedFlag();
+    }
+
+    @Override
+    public void dispose(GL3 gl){
+        if (this.programId!=-1){
+            gl.glDeleteProgram(this.programId);
+            this.getStateCache().programDeleted(this.programId);
+            this.programId=-1;
+        }
+        this.disableUploadedFlag();
+    }
+}
@@ -3,18 +3,19 @@ package k7system.gpuobjects;
 import com.jogamp.opengl.GL3;
 
 import k7system.GraphicEngine;
-import k7system.VectorManager;
 
-/** 深度値を出力するマテリアルです */
+/** 深度値を出力するマテリアルです<br>
+ * 頂点の位置はBasicMaterialと同じ式で計算するため，深度プリパスにも利用できます */
 public class DepthMaterial extends Material{
 
     public static final int UNUSE=0;
     public static final int USE=1;
 
     // ユニフォーム変数関係
-    private Uniform mvpMatrix;
-    private Uniform mvMatrix;
-    private Uniform rotationMatrix;
+    private Mat4Uniform mvpMatrix;
+    private Mat4Uniform mvMatrix;
+    private Mat3Uniform rotationMatrix;
+    private IntUniform instanced;
 
     // 頂点シェーダー
     private String[] vShader=new String[]{
@@ -23,9 +24,23 @@ public class DepthMaterial extends Material{
             "uniform mat4 "+MVP_MATRIX_NAME+";\n"+
             "uniform mat4 "+MV_MATRIX_NAME+";\n"+
             "uniform mat3 "+ROTATION_MATRIX_NAME+";\n"+
+            "uniform int "+BasicMaterial.INSTANCED_FLAG_NAME+";\n"+
+            "layout(location = "+VertexArrayObject.LOCATION_INSTANCE_MV_MATRIX+") in mat4 instanceMv;\n"+
+            FrameUniformBuffer.BLOCK_SOURCE+
+            "invariant gl_Position;\n"+ // 同じ入力ならBasicMaterialと同じ深度になるようにします
             "out vec4 vPosition;"+
             "void main(){\n"+
-            "    gl_Position = "+MVP_MATRIX_NAME+"*vec4(vertex,1.0);\n"+ // 画面座標での位置
+            // 位置の計算はBasicMaterialの頂点シェーダーと同じ式にしておきます
+            "    mat4 mv="+MV_MATRIX_NAME+";\n"+
+            "    if ("+BasicMaterial.INSTANCED_FLAG_NAME+"!=0){\n"+ // インスタンス描画では行列をインスタンス属性から読み込む
+            "        mv=instanceMv;\n"+
+            "    }\n"+
+            "    vec4 viewPosition = mv*vec4(vertex,1.0);\n"+
+            "    if ("+BasicMaterial.INSTANCED_FLAG_NAME+"!=0){\n"+
+            "        gl_Position = "+FrameUniformBuffer.PROJECTION_MATRIX_NAME+"*viewPosition;\n"+ // 画面座標での位置
+            "    }else{\n"+
+            "        gl_Position = "+MVP_MATRIX_NAME+"*vec4(vertex,1.0);\n"+ // 画面座標での位置
+            "    }\n"+
             "    vPosition=gl_Position;"+
             "}\n"
     };
@@ -38,7 +53,7 @@ public class DepthMaterial extends Material{
             "in vec4 vPosition;"+
             "out float depth;\n"+
             "void main(){\n"+
-            "    depth=vPosition[2];\n"+ // Z値を出力する(-1~1に正規化されているはず)
+            "    depth=vPosition[2]/vPosition[3];\n"+ // Z値を出力する(-1~1に正規化する)
             "}\n"
    };
 
@@ -52,13 +67,20 @@ public class DepthMaterial extends Material{
 
         // ユニフォーム変数を登録
         // 座標変換行列関係の登録
-        this.mvpMatrix=new Uniform(MVP_MATRIX_NAME,VectorManager.createIdentityMatrix(4)); // モデルビュープロジェクション変換行列ユニフォーム
+        this.mvpMatrix=new Mat4Uniform(MVP_MATRIX_NAME); // モデルビュープロジェクション変換行列ユニフォーム
         this.addUniform(this.mvpMatrix);
-        this.mvMatrix=new Uniform(MV_MATRIX_NAME,VectorManager.createIdentityMatrix(4)); // モデルビュー変換行列ユニフォーム
+        this.mvMatrix=new Mat4Uniform(MV_MATRIX_NAME); // モデルビュー変換行列ユニフォーム
         this.addUniform(this.mvMatrix);
-        this.rotationMatrix=new Uniform(ROTATION_MATRIX_NAME,VectorManager.createIdentityMatrix(3)); // 回転行列ユニフォーム
+        this.rotationMatrix=new Mat3Uniform(ROTATION_MATRIX_NAME); // 回転行列ユニフォーム
         this.addUniform(this.rotationMatrix);
+        this.instanced=new IntUniform(BasicMaterial.INSTANCED_FLAG_NAME, UNUSE); // インスタンス描画かどうか
+        this.addUniform(this.instanced);
+    }
 
+    /** 行列をインスタンス属性から読み込むかどうかを設定します<br>
+     * インスタンス描画と間接描画で，BasicMaterialと同じバッファを使って深度を描画するときに利用します */
+    public void setInstanced(boolean isInstanced){
+        this.instanced.set(isInstanced);
     }
 
     /** 初期化します<br>
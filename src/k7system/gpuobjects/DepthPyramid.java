@@ -0,0 +1,268 @@
+package k7system.gpuobjects;
+
+import java.nio.IntBuffer;
+import java.util.logging.Logger;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import k7system.GraphicEngine;
+
+/** 深度画像から作る奥行きピラミッド(Hi-Z)です<br>
+ * 各レベルの画素は，1つ下のレベルの2x2画素のうち最も奥の深度を持ちます．
+ * レベル0は元の深度画像と同じ大きさで，正規化デバイス座標の深度(-1～1)を0～1の深度に変換して格納します．<br>
+ * 画素の範囲より手前にある物体は，その範囲のどの画素よりも奥の深度を持つことはないため，
+ * 境界ボックスの最も手前の深度が，覆う範囲の最も奥の深度より奥であれば完全に隠れていると判定できます．<br>
+ * OpenGL 3.3で作成できます．各レベルはフラグメントシェーダーで1つずつ縮小します */
+public class DepthPyramid extends GPUResource{
+    private static final String[] V_SHADER=new String[]{
+            "#version 330 core\n"+
+            "void main(){\n"+
+            "    vec2 p = vec2((gl_VertexID & 1)*4-1, (gl_VertexID & 2)*2-1);\n"+ // 画面全体を覆う三角形
+            "    gl_Position = vec4(p, 0.0, 1.0);\n"+
+            "}\n"
+    };
+
+    private static final String[] F_SHADER=new String[]{
+            "#version 330 core\n"+
+            "uniform sampler2D source;\n"+
+            "uniform int convert;\n"+
+            "out float depth;\n"+
+            "void main(){\n"+
+            "    ivec2 dst = ivec2(gl_FragCoord.xy);\n"+
+            "    if (convert != 0) {\n"+
+            "        depth = texelFetch(source, dst, 0).r*0.5+0.5;\n"+ // 正規化デバイス座標の深度を0～1にします
+            "        return;\n"+
+            "    }\n"+
+            "    ivec2 size = textureSize(source, 0);\n"+ // 読み込むレベルは基準レベルとして設定されています
+            "    ivec2 src = dst*2;\n"+
+            "    ivec2 last = size-1;\n"+ // 幅(高さ)が1の場合に範囲外を読まないようにします
+            "    float d = max(max(texelFetch(source, src, 0).r, texelFetch(source, min(src+ivec2(1,0), last), 0).r),\n"+
+            "                  max(texelFetch(source, min(src+ivec2(0,1), last), 0).r, texelFetch(source, min(src+ivec2(1,1), last), 0).r));\n"+
+            // 奇数の大きさの場合，端の画素は3列(3行)分をまとめます
+            "    bool extraX = (size.x & 1) != 0 && src.x+3 == size.x;\n"+
+            "    bool extraY = (size.y & 1) != 0 && src.y+3 == size.y;\n"+
+            "    if (extraX) {\n"+
+            "        d = max(d, max(texelFetch(source, src+ivec2(2,0), 0).r, texelFetch(source, src+ivec2(2,1), 0).r));\n"+
+            "    }\n"+
+            "    if (extraY) {\n"+
+            "        d = max(d, max(texelFetch(source, src+ivec2(0,2), 0).r, texelFetch(source, src+ivec2(1,2), 0).r));\n"+
+            "    }\n"+
+            "    if (extraX && extraY) {\n"+
+            "        d = max(d, texelFetch(source, src+ivec2(2,2), 0).r);\n"+
+            "    }\n"+
+            "    depth = d;\n"+
+            "}\n"
+    };
+
+    private static final int SOURCE_UNIT=0;
+
+    private Shader shader=new Shader();
+    private int sourceLocation=-1;
+    private int convertLocation=-1;
+
+    private int width=0;
+    private int height=0;
+    private int levels=0;
+    private int textureId=-1;
+    private int[] fboIds=new int[0];
+    private int vaoId=-1; // 頂点属性を持たない描画用の空のVAO
+
+    private Logger logger=Logger.getGlobal();
+
+    /** 作成します */
+    public DepthPyramid(){
+        this.shader.setVertexShaderSource(V_SHADER);
+        this.shader.setFragmentShaderSource(F_SHADER);
+        this.shader.addParent(this);
+    }
+
+    /** レベル0の幅を取得します */
+    public int getWidth(){
+        return this.width;
+    }
+
+    /** レベル0の高さを取得します */
+    public int getHeight(){
+        return this.height;
+    }
+
+    /** レベル数を取得します */
+    public int getLevels(){
+        return this.levels;
+    }
+
+    /** 奥行きピラミッドのテクスチャを取得します<br>
+     * まだ作成されていなければ0を返します */
+    public int getTextureId(){
+        return (this.textureId==-1) ? 0 : this.textureId;
+    }
+
+    /** 指定したレベルの幅を取得します<br>
+     * 大きさは切り捨てで半分になり，奇数の場合は端の画素が3画素分をまとめます．
+     * レベル0の画素xを含むレベルLの画素はmin(x&gt;&gt;L, 幅-1)です */
+    public int getLevelWidth(int level){
+        return Math.max(1, this.width>>level);
+    }
+
+    /** 指定したレベルの高さを取得します */
+    public int getLevelHeight(int level){
+        return Math.max(1, this.height>>level);
+    }
+
+    /** 指定したレベルを描画対象にしたFBOを取得します<br>
+     * 読み戻しに利用します */
+    public int getLevelFbo(int level){
+        return this.fboIds[level];
+    }
+
+    /** シェーダーを準備します<br>
+     * テクスチャは最初のbuild()で深度画像の大きさに合わせて作成します */
+    @Override
+    public int init(GL3 gl, GraphicEngine eng){
+        super.init(gl, eng);
+        if (!this.shader.isUploaded()){
+            this.shader.init(gl, eng);
+            this.shader.setName("Depth Pyramid Shader");
+        }
+        int program=this.shader.getProgramHandle();
+        this.sourceLocation=gl.glGetUniformLocation(program, "source");
+        this.convertLocation=gl.glGetUniformLocation(program, "convert");
+        if (this.vaoId==-1){
+            int[] vao=new int[1];
+            gl.glGenVertexArrays(1, vao, 0);
+            this.vaoId=vao[0];
+        }
+        this.enableUploadedFlag();
+        return this.getTextureId();
+    }
+
+    /** 深度画像から奥行きピラミッドを作成します<br>
+     * sourceは正規化デバイス座標の深度を赤成分に持つ浮動小数点テクスチャです．
+     * 深度テスト，合成，ビューポートの状態は変更されます */
+    public void build(GL3 gl, TextureK7 source){
+        if (!this.isUploaded()){
+            this.init(gl, this.getEngine());
+        }
+        int w=source.getImageWidth();
+        int h=source.getImageHeight();
+        if (w!=this.width || h!=this.height || this.textureId==-1){
+            this.createTexture(gl, w, h);
+        }
+
+        GLStateCache cache=this.getStateCache();
+        gl.glDisable(GL.GL_DEPTH_TEST);
+        cache.setBlend(gl, false);
+        cache.setCullFace(gl, false);
+        cache.useProgram(gl, this.shader.getProgramHandle());
+        cache.bindVertexArray(gl, this.vaoId);
+        gl.glUniform1i(this.sourceLocation, SOURCE_UNIT);
+
+        // レベル0は変換しながら写します(ミップマップを持たないため，元のテクスチャのサンプラーを使います)
+        gl.glUniform1i(this.convertLocation, 1);
+        cache.bindTexture(gl, SOURCE_UNIT, source.getTextureId());
+        cache.bindSampler(gl, SOURCE_UNIT, source.getSamplerId());
+        this.drawLevel(gl, cache, 0);
+
+        // 以降は1つ下のレベルを縮小します(読み込むレベルだけを参照可能にして，書き込むレベルと重ならないようにします)
+        gl.glUniform1i(this.convertLocation, 0);
+        cache.bindTexture(gl, SOURCE_UNIT, this.textureId);
+        cache.bindSampler(gl, SOURCE_UNIT, 0);
+        cache.activeTexture(gl, SOURCE_UNIT); // 以降のglTexParameteriの対象にします
+        for (int level=1;level<this.levels;level++){
+            gl.glTexParameteri(GL.GL_TEXTURE_2D, GL3.GL_TEXTURE_BASE_LEVEL, level-1);
+            gl.glTexParameteri(GL.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAX_LEVEL, level-1);
+            this.drawLevel(gl, cache, level);
+        }
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL3.GL_TEXTURE_BASE_LEVEL, 0);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAX_LEVEL, this.levels-1);
+
+        gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, 0);
+        cache.setCullFace(gl, true);
+        cache.setBlend(gl, true);
+        gl.glEnable(GL.GL_DEPTH_TEST);
+
+        int error=gl.glGetError();
+        if (error!=GL.GL_NO_ERROR){
+            logger.severe("Failed to build depth pyramid <"+this+"> :"+error);
+        }
+    }
+
+    /** 1つのレベルを描画します */
+    private void drawLevel(GL3 gl, GLStateCache cache, int level){
+        gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, this.fboIds[level]);
+        cache.viewport(gl, 0, 0, this.getLevelWidth(level), this.getLevelHeight(level));
+        gl.glDrawArrays(GL.GL_TRIANGLES, 0, 3);
+    }
+
+    /** ミップマップ付きのテクスチャと，レベルごとのFBOを作成します */
+    private void createTexture(GL3 gl, int w, int h){
+        this.deleteTexture(gl);
+        this.width=w;
+        this.height=h;
+        this.levels=1;
+        while ((1<<this.levels)<=Math.max(w, h)){
+            this.levels++;
+        }
+
+        GLStateCache cache=this.getStateCache();
+        int[] id=new int[1];
+        gl.glGenTextures(1, id, 0);
+        this.textureId=id[0];
+        cache.bindTexture(gl, this.textureId);
+        for (int level=0;level<this.levels;level++){
+            gl.glTexImage2D(GL.GL_TEXTURE_2D, level, GL3.GL_R32F, this.getLevelWidth(level), this.getLevelHeight(level), 0, GL3.GL_RED, GL.GL_FLOAT, null);
+        }
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST_MIPMAP_NEAREST);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL3.GL_TEXTURE_BASE_LEVEL, 0);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAX_LEVEL, this.levels-1);
+
+        this.fboIds=new int[this.levels];
+        gl.glGenFramebuffers(this.levels, this.fboIds, 0);
+        for (int level=0;level<this.levels;level++){
+            gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, this.fboIds[level]);
+            gl.glFramebufferTexture2D(GL3.GL_FRAMEBUFFER, GL3.GL_COLOR_ATTACHMENT0, GL.GL_TEXTURE_2D, this.textureId, level);
+        }
+        gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, 0);
+    }
+
+    /** テクスチャとFBOを削除します */
+    private void deleteTexture(GL3 gl){
+        if (this.textureId!=-1){
+            gl.glDeleteTextures(1, IntBuffer.wrap(new int[]{this.textureId}));
+            this.getStateCache().textureDeleted(this.textureId);
+            this.textureId=-1;
+        }
+        if (0<this.fboIds.length){
+            gl.glDeleteFramebuffers(this.fboIds.length, IntBuffer.wrap(this.fboIds));
+            this.fboIds=new int[0];
+        }
+    }
+
+    @Override
+    public void vramFlushed(){
+        this.shader.vramFlushed();
+        this.textureId=-1;
+        this.fboIds=new int[0];
+        this.vaoId=-1;
+        this.width=0;
+        this.height=0;
+        this.levels=0;
+        this.disableUploadedFlag();
+    }
+
+    @Override
+    public void dispose(GL3 gl){
+        this.deleteTexture(gl);
+        if (this.vaoId!=-1){
+            gl.glDeleteVertexArrays(1, IntBuffer.wrap(new int[]{this.vaoId}));
+            this.getStateCache().vertexArrayDeleted(this.vaoId);
+            this.vaoId=-1;
+        }
+        this.shader.dispose(gl);
+        this.disableUploadedFlag();
+    }
+}
@@ -60,7 +60,22 @@ public class FloatTextureK7 extends TextureK7{
 
         FloatBuffer buff=FloatBuffer.allocate(this.width*this.height*this.numOfElements);
         // テクスチャを作成してVRAMに登録
-        gl.glBindTexture (GL.GL_TEXTURE_2D, texId);
-        gl.glTexImage2D (GL.GL_TEXTURE_2D, 0, this.getTextureType(), this.width, this.height, 0, this.getTextureType(), this.getTextureDataUnit(), buff);
+        this.getStateCache().bindTexture(gl, texId);
+        gl.glTexImage2D (GL.GL_TEXTURE_2D, 0, this.getInternalFormat(), this.width, this.height, 0, this.getTextureType(), this.getTextureDataUnit(), buff);
+    }
+
+    /** VRAM上の形式を取得します<br>
+     * 形式を明示しないと8bitの形式が選ばれることがあるため，要素ごとに32bit浮動小数点の形式を指定します */
+    private int getInternalFormat(){
+        switch (this.numOfElements){
+        case 1:
+            return GL3.GL_R32F;
+        case 3:
+            return GL3.GL_RGB32F;
+        case 4:
+            return GL3.GL_RGBA32F;
+        default:
+            return this.getTextureType();
+        }
     }
 }
@@ -0,0 +1,43 @@
+package k7system.gpuobjects;
+
+import com.jogamp.opengl.GL3;
+
+/** 浮動小数点数のユニフォーム変数です<br>
+ * 値はボクシングされずに保持されます */
+public class FloatUniform extends Uniform{
+    private float value;
+
+    /** 名前と初期値を指定して作成します */
+    public FloatUniform(String name, float value) {
+        super(name, Uniform.FLOAT);
+        this.value=value;
+    }
+
+    /** 値を設定します */
+    public void set(float value){
+        if (this.value!=value){
+            this.value=value;
+            this.markChanged();
+        }
+    }
+
+    /** 値を取得します */
+    public float get(){
+        return this.value;
+    }
+
+    @Override
+    public Object getValue(){
+        return this.value;
+    }
+
+    @Override
+    public void setValue(Object value){
+        this.set(((Number)value).floatValue());
+    }
+
+    @Override
+    protected void upload(GL3 gl, int location){
+        gl.glUniform1f(location, this.value);
+    }
+}
@@ -39,7 +39,7 @@ public class FrameBufferObject extends GPUResource{
     /**このメソッドを呼ぶことで描画対象がこのFBOになります*/
     public void bind(GL3 gl){
         gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, this.fboId);
-        gl.glViewport(0, 0, this.texture.getImageWidth(), this.texture.getImageHeight()); // 描画領域をテクスチャサイズに合わせます
+        this.getStateCache().viewport(gl, 0, 0, this.texture.getImageWidth(), this.texture.getImageHeight()); // 描画領域をテクスチャサイズに合わせます
     }
 
     /**このメソッドを呼ぶことで描画対象がこのFBOから解除されます<br>
@@ -0,0 +1,121 @@
+package k7system.gpuobjects;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jogamp.opengl.GL3;
+
+import k7system.GraphicEngine;
+import k7system.Params;
+
+/** フレーム単位で共有するユニフォームバッファ(UBO)です<br>
+ * ビュー行列，プロジェクション行列，PV行列と全ての光源の情報をフレームごとに1回だけ計算して転送し，
+ * 決まったバインディングポイントに割り当てます．<br>
+ * シェーダーにBLOCK_SOURCEを含めると，リンク時にこのバインディングポイントが割り当てられます(Shader参照)．
+ * 光源の位置はここで視点座標系に変換されます． */
+public class FrameUniformBuffer extends GPUResource{
+    public static final int BINDING_POINT=0; // フレームデータのバインディングポイント
+    public static final String BLOCK_NAME="FrameData";
+    public static final String VIEW_MATRIX_NAME="frameView";
+    public static final String PROJECTION_MATRIX_NAME="frameProjection";
+    public static final String PV_MATRIX_NAME="framePV";
+    public static final String LIGHT_COUNT_NAME="frameLightCount";
+    public static final String LIGHTS_NAME="frameLights";
+    public static final int MAXIMUM_LIGHT_NUM=Params.MAXIMUM_LIGHT_NUM;
+
+    /** シェーダーに埋め込むユニフォームブロックの宣言です<br>
+     * std140レイアウトなので，オフセットはこのクラスの定数と一致します */
+    public static final String BLOCK_SOURCE=
+            "layout(std140) uniform "+BLOCK_NAME+" {\n"+
+            "    mat4 "+VIEW_MATRIX_NAME+";\n"+
+            "    mat4 "+PROJECTION_MATRIX_NAME+";\n"+
+            "    mat4 "+PV_MATRIX_NAME+";\n"+
+            "    ivec4 "+LIGHT_COUNT_NAME+";\n"+ // xが光源の数
+            "    mat4 "+LIGHTS_NAME+"["+MAXIMUM_LIGHT_NUM+"];\n"+
+            "};\n";
+
+    // float単位のオフセット
+    private static final int VIEW_OFFSET=0;
+    private static final int PROJECTION_OFFSET=16;
+    private static final int PV_OFFSET=32;
+    private static final int LIGHT_COUNT_OFFSET=48;
+    private static final int LIGHTS_OFFSET=52;
+    private static final int SIZE=LIGHTS_OFFSET+MAXIMUM_LIGHT_NUM*16;
+
+    private int bufferId=-1;
+    private float[] data=new float[SIZE];
+    private FloatBuffer buffer=FloatBuffer.wrap(this.data);
+
+    /** バッファを作成します */
+    @Override
+    public int init(GL3 gl, GraphicEngine eng){
+        super.init(gl, eng);
+        if (!this.isUploaded()){
+            int[] id=new int[1];
+            gl.glGenBuffers(1, id, 0);
+            this.bufferId=id[0];
+            gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, this.bufferId);
+            gl.glBufferData(GL3.GL_UNIFORM_BUFFER, SIZE*4, null, GL3.GL_DYNAMIC_DRAW);
+            gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+            this.enableUploadedFlag();
+        }
+        return this.bufferId;
+    }
+
+    /** バッファの名前を取得します */
+    public int getBufferId(){
+        return this.bufferId;
+    }
+
+    /** フレームのデータを計算して転送し，バインディングポイントに割り当てます<br>
+     * lightsには光源ごとにLightObject.getLightParameters()の16要素を並べたもの(レンダーリストが収集時点で複製したもの)を渡します．
+     * 描画スレッドでフレームの描画前に1回だけ呼び出します */
+    public void update(GL3 gl, float[] view, float[] projection, float[] pv, float[] lights, int lightCount){
+        if (!this.isUploaded()){
+            this.init(gl, this.getEngine());
+        }
+        float[] d=this.data;
+        System.arraycopy(view, 0, d, VIEW_OFFSET, 16);
+        System.arraycopy(projection, 0, d, PROJECTION_OFFSET, 16);
+        System.arraycopy(pv, 0, d, PV_OFFSET, 16);
+
+        int num=0;
+        if (lights!=null){
+            num=Math.min(lightCount, MAXIMUM_LIGHT_NUM);
+        }
+        d[LIGHT_COUNT_OFFSET]=Float.intBitsToFloat(num); // ivec4なのでビット列として格納
+        for (int i=0;i<num;i++){
+            int o=LIGHTS_OFFSET+i*16;
+            System.arraycopy(lights, i*16, d, o, 16);
+
+            // ライト座標をワールド座標系から視点座標系に変換
+            float x=d[o], y=d[o+1], z=d[o+2], w=d[o+3];
+            d[o]=view[0]*x+view[4]*y+view[8]*z+view[12]*w;
+            d[o+1]=view[1]*x+view[5]*y+view[9]*z+view[13]*w;
+            d[o+2]=view[2]*x+view[6]*y+view[10]*z+view[14]*w;
+            d[o+3]=view[3]*x+view[7]*y+view[11]*z+view[15]*w;
+        }
+
+        // 光源の数までを転送します
+        int size=LIGHTS_OFFSET+num*16;
+        this.buffer.rewind();
+        gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, this.bufferId);
+        gl.glBufferSubData(GL3.GL_UNIFORM_BUFFER, 0, size*4, this.buffer);
+        gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+        gl.glBindBufferBase(GL3.GL_UNIFORM_BUFFER, BINDING_POINT, this.bufferId);
+    }
+
+    @Override
+    public void vramFlushed(){
+        this.disableUploadedFlag();
+    }
+
+    @Override
+    public void dispose(GL3 gl){
+        if (this.bufferId!=-1){
+            gl.glDeleteBuffers(1, IntBuffer.wrap(new int[]{this.bufferId}));
+            this.bufferId=-1;
+        }
+        this.disableUploadedFlag();
+    }
+}
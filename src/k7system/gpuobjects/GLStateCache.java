@@ -0,0 +1,318 @@
+package k7system.gpuobjects;
+
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import k7system.GraphicEngine;
+
+/** OpenGLの状態を記憶し，状態が変わらない呼び出しを省略する薄いラッパーです<br>
+ * 利用中のプログラム，VAO，エレメントバッファ，テクスチャユニットごとのテクスチャとサンプラー，
+ * 合成の有効/無効と合成関数，背面カリング，ビューポートを記憶します．<br>
+ * エンジン内の描画はこのクラスを通して状態を変更してください．
+ * 外部のコードが直接状態を変更した可能性がある場合は，invalidate()で記憶を破棄してください．<br>
+ * 描画スレッドからのみ利用されることを想定しているため，スレッドセーフではありません． */
+public class GLStateCache {
+    public static final int MAX_TEXTURE_UNITS=32;
+
+    /** 状態を記憶せず，全ての呼び出しをそのまま発行するキャッシュです<br>
+     * エンジンに登録されていないリソースが利用します */
+    public static final GLStateCache DIRECT=new GLStateCache(false);
+
+    private static final int UNKNOWN=-1;
+
+    private final boolean tracking;
+
+    private int program=UNKNOWN;
+    private int vertexArray=UNKNOWN;
+    private int elementBuffer=UNKNOWN;
+    private int activeUnit=UNKNOWN;
+    private int[] textures=new int[MAX_TEXTURE_UNITS];
+    private int[] samplers=new int[MAX_TEXTURE_UNITS];
+    private int blend=UNKNOWN; // 0:無効 1:有効
+    private int blendSrc=UNKNOWN;
+    private int blendDst=UNKNOWN;
+    private int cullFace=UNKNOWN; // 0:無効 1:有効
+    private int cullMode=UNKNOWN;
+    private int depthFunc=UNKNOWN;
+    private int depthMask=UNKNOWN; // 0:書き込まない 1:書き込む
+    private int[] viewport=new int[]{UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN};
+
+    // 統計情報
+    private long issuedCount=0;
+    private long skippedCount=0;
+
+    /** 状態を記憶するキャッシュを作成します */
+    public GLStateCache() {
+        this(true);
+    }
+
+    private GLStateCache(boolean tracking) {
+        this.tracking=tracking;
+        this.invalidate();
+    }
+
+    /** エンジンの状態キャッシュを取得します<br>
+     * エンジンがnullの場合はDIRECTを返します */
+    public static GLStateCache get(GraphicEngine engine){
+        if (engine==null){
+            return DIRECT;
+        }
+        return engine.getStateCache();
+    }
+
+    /** 記憶している状態を全て破棄します<br>
+     * 次の呼び出しは必ず発行されます．コンテキストの作り直しや，外部のコードが状態を変更した後に呼び出してください */
+    public void invalidate(){
+        this.program=UNKNOWN;
+        this.vertexArray=UNKNOWN;
+        this.elementBuffer=UNKNOWN;
+        this.activeUnit=UNKNOWN;
+        Arrays.fill(this.textures, UNKNOWN);
+        Arrays.fill(this.samplers, UNKNOWN);
+        this.blend=UNKNOWN;
+        this.blendSrc=UNKNOWN;
+        this.blendDst=UNKNOWN;
+        this.cullFace=UNKNOWN;
+        this.cullMode=UNKNOWN;
+        this.depthFunc=UNKNOWN;
+        this.depthMask=UNKNOWN;
+        Arrays.fill(this.viewport, UNKNOWN);
+    }
+
+    /** 発行した呼び出しの数を取得します */
+    public long getIssuedCount(){
+        return this.issuedCount;
+    }
+
+    /** 省略した呼び出しの数を取得します */
+    public long getSkippedCount(){
+        return this.skippedCount;
+    }
+
+    /** 統計情報を消去します */
+    public void resetCount(){
+        this.issuedCount=0;
+        this.skippedCount=0;
+    }
+
+    /** 値が記憶と一致していれば省略を記録してtrueを返します */
+    private boolean isSame(int current, int value){
+        if (!this.tracking){
+            return false;
+        }
+        if (current==value){
+            this.skippedCount++;
+            return true;
+        }
+        this.issuedCount++;
+        return false;
+    }
+
+    /** 記憶と比較せずに発行する呼び出しを記録します */
+    private void issued(){
+        if (this.tracking){
+            this.issuedCount++;
+        }
+    }
+
+    /** シェーダープログラムを利用状態にします */
+    public void useProgram(GL3 gl, int program){
+        if (this.isSame(this.program, program)){
+            return;
+        }
+        gl.glUseProgram(program);
+        this.program=program;
+    }
+
+    /** VAOをバインドします<br>
+     * エレメントバッファはVAOの状態なので，VAOが変わると記憶を破棄します */
+    public void bindVertexArray(GL3 gl, int vao){
+        if (this.isSame(this.vertexArray, vao)){
+            return;
+        }
+        gl.glBindVertexArray(vao);
+        this.vertexArray=vao;
+        this.elementBuffer=UNKNOWN;
+    }
+
+    /** バインド中のVAOにエレメントバッファをバインドします */
+    public void bindElementBuffer(GL3 gl, int buffer){
+        if (this.isSame(this.elementBuffer, buffer)){
+            return;
+        }
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, buffer);
+        this.elementBuffer=buffer;
+    }
+
+    /** アクティブなテクスチャユニットを切り替えます<br>
+     * ユニットは0から始まる番号で指定します */
+    public void activeTexture(GL3 gl, int unit){
+        if (this.isSame(this.activeUnit, unit)){
+            return;
+        }
+        gl.glActiveTexture(GL.GL_TEXTURE0+unit);
+        this.activeUnit=unit;
+    }
+
+    /** 指定したテクスチャユニットに2Dテクスチャをバインドします */
+    public void bindTexture(GL3 gl, int unit, int texture){
+        if (this.tracking && this.textures[unit]==texture){
+            this.skippedCount++;
+            return;
+        }
+        this.activeTexture(gl, unit);
+        this.bindTexture(gl, texture);
+    }
+
+    /** アクティブなテクスチャユニットに2Dテクスチャをバインドします<br>
+     * テクスチャの作成時など，ユニットを問わない場合に利用します */
+    public void bindTexture(GL3 gl, int texture){
+        if (this.activeUnit==UNKNOWN){
+            this.issued();
+            gl.glBindTexture(GL.GL_TEXTURE_2D, texture);
+            Arrays.fill(this.textures, UNKNOWN); // どのユニットか分からない
+            return;
+        }
+        if (this.isSame(this.textures[this.activeUnit], texture)){
+            return;
+        }
+        gl.glBindTexture(GL.GL_TEXTURE_2D, texture);
+        this.textures[this.activeUnit]=texture;
+    }
+
+    /** 指定したテクスチャユニットにサンプラーをバインドします */
+    public void bindSampler(GL3 gl, int unit, int sampler){
+        if (this.isSame(this.samplers[unit], sampler)){
+            return;
+        }
+        gl.glBindSampler(unit, sampler);
+        this.samplers[unit]=sampler;
+    }
+
+    /** 合成の有効/無効を設定します */
+    public void setBlend(GL3 gl, boolean enable){
+        int value=enable ? 1 : 0;
+        if (this.isSame(this.blend, value)){
+            return;
+        }
+        if (enable){
+            gl.glEnable(GL.GL_BLEND);
+        }else{
+            gl.glDisable(GL.GL_BLEND);
+        }
+        this.blend=value;
+    }
+
+    /** 合成関数を設定します */
+    public void blendFunc(GL3 gl, int src, int dst){
+        if (this.tracking && this.blendSrc==src && this.blendDst==dst){
+            this.skippedCount++;
+            return;
+        }
+        this.issued();
+        gl.glBlendFunc(src, dst);
+        this.blendSrc=src;
+        this.blendDst=dst;
+    }
+
+    /** 背面カリングの有効/無効を設定します */
+    public void setCullFace(GL3 gl, boolean enable){
+        int value=enable ? 1 : 0;
+        if (this.isSame(this.cullFace, value)){
+            return;
+        }
+        if (enable){
+            gl.glEnable(GL.GL_CULL_FACE);
+        }else{
+            gl.glDisable(GL.GL_CULL_FACE);
+        }
+        this.cullFace=value;
+    }
+
+    /** カリングする面を設定します */
+    public void cullFace(GL3 gl, int mode){
+        if (this.isSame(this.cullMode, mode)){
+            return;
+        }
+        gl.glCullFace(mode);
+        this.cullMode=mode;
+    }
+
+    /** 深度テストの比較関数を設定します */
+    public void depthFunc(GL3 gl, int func){
+        if (this.isSame(this.depthFunc, func)){
+            return;
+        }
+        gl.glDepthFunc(func);
+        this.depthFunc=func;
+    }
+
+    /** 深度バッファへの書き込みの有無を設定します<br>
+     * 書き込みを無効にしたままでは深度バッファを消去できないため，描画後は有効に戻してください */
+    public void depthMask(GL3 gl, boolean enable){
+        int value=enable ? 1 : 0;
+        if (this.isSame(this.depthMask, value)){
+            return;
+        }
+        gl.glDepthMask(enable);
+        this.depthMask=value;
+    }
+
+    /** ビューポートを設定します */
+    public void viewport(GL3 gl, int x, int y, int width, int height){
+        int[] v=this.viewport;
+        if (this.tracking && v[0]==x && v[1]==y && v[2]==width && v[3]==height){
+            this.skippedCount++;
+            return;
+        }
+        this.issued();
+        gl.glViewport(x, y, width, height);
+        v[0]=x;
+        v[1]=y;
+        v[2]=width;
+        v[3]=height;
+    }
+
+    /** プログラムの削除を通知します<br>
+     * 削除されたオブジェクトの名前は再利用されるため，記憶から取り除きます */
+    public void programDeleted(int program){
+        if (this.program==program){
+            this.program=UNKNOWN;
+        }
+    }
+
+    /** VAOの削除を通知します */
+    public void vertexArrayDeleted(int vao){
+        if (this.vertexArray==vao){
+            this.vertexArray=UNKNOWN;
+            this.elementBuffer=UNKNOWN;
+        }
+    }
+
+    /** バッファの削除を通知します */
+    public void bufferDeleted(int buffer){
+        if (this.elementBuffer==buffer){
+            this.elementBuffer=UNKNOWN;
+        }
+    }
+
+    /** テクスチャの削除を通知します */
+    public void textureDeleted(int texture){
+        for (int i=0;i<MAX_TEXTURE_UNITS;i++){
+            if (this.textures[i]==texture){
+                this.textures[i]=UNKNOWN;
+            }
+        }
+    }
+
+    /** サンプラーの削除を通知します */
+    public void samplerDeleted(int sampler){
+        for (int i=0;i<MAX_TEXTURE_UNITS;i++){
+            if (this.samplers[i]==sampler){
+                this.samplers[i]=UNKNOWN;
+            }
+        }
+    }
+}
@@ -41,6 +41,12 @@ public abstract class GPUResource{
         return this.gEngine;
     }
 
+    /** このオブジェクトが状態変更に利用するGL状態キャッシュを取得します<br>
+     * エンジンに登録されていない場合は，状態を記憶しないキャッシュが返ります */
+    protected GLStateCache getStateCache(){
+        return GLStateCache.get(this.gEngine);
+    }
+
     /** このオブジェクトがVRAMに載っているかどうかを取得します*/
     public boolean isUploaded(){
         return isUploaded;
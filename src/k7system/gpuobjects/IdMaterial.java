@@ -0,0 +1,64 @@
+package k7system.gpuobjects;
+
+import com.jogamp.opengl.GL3;
+
+import k7system.GraphicEngine;
+
+/** オブジェクトIDを出力するマテリアルです<br>
+ * 符号なし整数のカラーバッファ(IntegerTextureK7)を持つFBOに描画して，ピクセルごとの物体を調べるために使います */
+public class IdMaterial extends Material{
+    public static final String OBJECT_ID_NAME="objectId";
+
+    // ユニフォーム変数関係
+    private Mat4Uniform mvpMatrix;
+    private IntUniform objectId;
+
+    // 頂点シェーダー
+    private String[] vShader=new String[]{
+            "#version 330 core\n"+
+            "layout(location = "+VertexArrayObject.LOCATION_VERTEX_POSITION+") in vec3 vertex;\n"+
+            "uniform mat4 "+MVP_MATRIX_NAME+";\n"+
+            "void main(){\n"+
+            "    gl_Position = "+MVP_MATRIX_NAME+"*vec4(vertex,1.0);\n"+ // 画面座標での位置
+            "}\n"
+    };
+
+    // フラグメントシェーダー
+    private String[] fShader=new String[]{
+            "#version 330 core\n"+
+            "uniform int "+OBJECT_ID_NAME+";\n"+
+            "out uint id;\n"+
+            "void main(){\n"+
+            "    id=uint("+OBJECT_ID_NAME+");\n"+ // IDをそのまま出力する
+            "}\n"
+   };
+
+    /** 初期化します */
+    public IdMaterial() {
+        // シェーダーの設定
+        Shader shader=new Shader();
+        shader.setVertexShaderSource(vShader);
+        shader.setFragmentShaderSource(fShader);
+        this.setShader(shader);
+
+        // ユニフォーム変数を登録
+        this.mvpMatrix=new Mat4Uniform(MVP_MATRIX_NAME); // モデルビュープロジェクション変換行列ユニフォーム
+        this.addUniform(this.mvpMatrix);
+        this.objectId=new IntUniform(OBJECT_ID_NAME, 0); // オブジェクトID(0は何も無い)
+        this.addUniform(this.objectId);
+    }
+
+    /** 出力するオブジェクトIDを設定します */
+    public void setObjectId(int id){
+        this.objectId.set(id);
+    }
+
+    /** 初期化します<br>
+     * 返り値は特に使用しないため，値は不定です */
+    @Override
+    public int init(GL3 gl, GraphicEngine eng) {
+        super.init(gl,eng);
+        this.getShader().setName("ID Shader");
+        return 0;
+    }
+}
@@ -0,0 +1,96 @@
+package k7system.gpuobjects;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import k7system.GraphicEngine;
+
+/** インスタンス描画でインスタンスごとに与える属性のバッファです<br>
+ * 1インスタンスあたり，モデルビュー行列(4x4)と法線の回転行列(3x3)を詰め込みます．
+ * 画面座標への変換はシェーダーでフレームデータのプロジェクション行列を掛けて行います．<br>
+ * 描画のたびにバッファを作り直して(オーファン化して)転送するため，直前の描画の完了を待ちません．
+ * 配列はフレーム間で使いまわされます． */
+public class InstanceBuffer extends GPUResource{
+    public static final int MV_OFFSET=0;
+    public static final int ROTATION_OFFSET=16;
+    public static final int STRIDE=25; // 1インスタンスあたりのfloat数
+
+    private static final int DEFAULT_CAPACITY=64;
+
+    private int bufferId=-1;
+    private float[] data=new float[DEFAULT_CAPACITY*STRIDE];
+    private FloatBuffer buffer=FloatBuffer.wrap(this.data);
+    private int count=0;
+
+    /** バッファを作成します */
+    @Override
+    public int init(GL3 gl, GraphicEngine eng){
+        super.init(gl, eng);
+        if (!this.isUploaded()){
+            int[] id=new int[1];
+            gl.glGenBuffers(1, id, 0);
+            this.bufferId=id[0];
+            this.enableUploadedFlag();
+        }
+        return this.bufferId;
+    }
+
+    /** バッファの名前を取得します */
+    public int getBufferId(){
+        return this.bufferId;
+    }
+
+    /** 登録されたインスタンスの数を取得します */
+    public int size(){
+        return this.count;
+    }
+
+    /** 登録されたインスタンスを消去します */
+    public void clear(){
+        this.count=0;
+    }
+
+    /** インスタンスを追加します<br>
+     * mvはモデルビュー行列，rotationは法線の回転行列(3x3)です */
+    public void add(float[] mv, float[] rotation){
+        int offset=this.count*STRIDE;
+        if (this.data.length<offset+STRIDE){
+            this.data=Arrays.copyOf(this.data, this.data.length*2);
+            this.buffer=FloatBuffer.wrap(this.data);
+        }
+        System.arraycopy(mv, 0, this.data, offset+MV_OFFSET, 16);
+        System.arraycopy(rotation, 0, this.data, offset+ROTATION_OFFSET, 9);
+        this.count++;
+    }
+
+    /** 登録されたインスタンスをVRAMに転送します<br>
+     * 転送後，バッファはGL_ARRAY_BUFFERにバインドされたままになります */
+    public void upload(GL3 gl){
+        if (!this.isUploaded()){
+            this.init(gl, this.getEngine());
+        }
+        int size=this.count*STRIDE*Float.SIZE/8;
+        this.buffer.rewind();
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, this.bufferId);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, this.data.length*Float.SIZE/8, null, GL3.GL_STREAM_DRAW); // 以前の内容を捨てます
+        gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, size, this.buffer);
+    }
+
+    @Override
+    public void vramFlushed(){
+        this.disableUploadedFlag();
+    }
+
+    @Override
+    public void dispose(GL3 gl){
+        if (this.bufferId!=-1){
+            gl.glDeleteBuffers(1, IntBuffer.wrap(new int[]{this.bufferId}));
+            this.bufferId=-1;
+        }
+        this.disableUploadedFlag();
+    }
+}
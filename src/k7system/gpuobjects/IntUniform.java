@@ -0,0 +1,54 @@
+package k7system.gpuobjects;
+
+import com.jogamp.opengl.GL3;
+
+/** 整数のユニフォーム変数です<br>
+ * 真偽値やテクスチャユニットの番号にも利用します．値はボクシングされずに保持されます */
+public class IntUniform extends Uniform{
+    private int value;
+
+    /** 名前と初期値を指定して作成します */
+    public IntUniform(String name, int value) {
+        super(name, Uniform.INTEGER);
+        this.value=value;
+    }
+
+    /** 値を設定します */
+    public void set(int value){
+        if (this.value!=value){
+            this.value=value;
+            this.markChanged();
+        }
+    }
+
+    /** 真偽値を1または0として設定します */
+    public void set(boolean flag){
+        this.set(flag ? 1 : 0);
+    }
+
+    /** 値を取得します */
+    public int get(){
+        return this.value;
+    }
+
+    @Override
+    public Object getValue(){
+        return this.value;
+    }
+
+    /** 値を設定します<br>
+     * IntegerまたはBooleanを受け付けます */
+    @Override
+    public void setValue(Object value){
+        if (value instanceof Boolean){
+            this.set(((Boolean)value).booleanValue());
+        }else{
+            this.set(((Integer)value).intValue());
+        }
+    }
+
+    @Override
+    protected void upload(GL3 gl, int location){
+        gl.glUniform1i(location, this.value);
+    }
+}
@@ -0,0 +1,38 @@
+package k7system.gpuobjects;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+/** 符号なし整数テクスチャです<br>
+ * 1テクセルに32bitの符号なし整数を1つ持ちます(GL_R32UI)．オブジェクトIDの書き出しなどに利用します．<br>
+ * 実体としてのイメージクラスと関連付けられていません */
+public class IntegerTextureK7 extends TextureK7{
+    private int width;
+    private int height;
+
+    /** コンストラクタでテクスチャの大きさを指定します */
+    public IntegerTextureK7(int width, int height) {
+        this.width=width;
+        this.height=height;
+        this.setTextureDataType(GL3.GL_RED_INTEGER, GL3.GL_UNSIGNED_INT);
+        this.setSamplerConfig(GL3.GL_CLAMP_TO_EDGE, GL3.GL_CLAMP_TO_EDGE, GL3.GL_NEAREST, GL3.GL_NEAREST); // 整数テクスチャは補間できない
+    }
+
+    @Override
+    public int getImageHeight() {
+        return this.height;
+    }
+
+    @Override
+    public int getImageWidth() {
+        return this.width;
+    }
+
+    /** 整数バッファ作成<br>
+     * 内容は初期化しません */
+    @Override
+    protected void createBuffer(GL3 gl) {
+        this.getStateCache().bindTexture(gl, this.getTextureId());
+        gl.glTexImage2D (GL.GL_TEXTURE_2D, 0, GL3.GL_R32UI, this.width, this.height, 0, this.getTextureType(), this.getTextureDataUnit(), null);
+    }
+}
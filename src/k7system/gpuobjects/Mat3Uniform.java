@@ -0,0 +1,51 @@
+package k7system.gpuobjects;
+
+import com.jogamp.opengl.GL3;
+
+/** 3x3行列のユニフォーム変数です<br>
+ * 値は確保済みの配列に書き込まれるため，更新時にオブジェクトは生成されず，型の判定も行いません．
+ * 初期値は単位行列です */
+public class Mat3Uniform extends Uniform{
+    private final float[] matrix=new float[9];
+
+    /** 名前を指定して作成します */
+    public Mat3Uniform(String name) {
+        super(name, Uniform.MATRIX_3);
+        this.matrix[0]=1;
+        this.matrix[4]=1;
+        this.matrix[8]=1;
+    }
+
+    /** 名前と初期値を指定して作成します */
+    public Mat3Uniform(String name, float[] value) {
+        this(name);
+        this.set(value);
+    }
+
+    /** 値を設定します<br>
+     * 配列の中身がコピーされます */
+    public void set(float[] value){
+        this.copyValue(this.matrix, 0, value);
+    }
+
+    /** 値を格納している配列を取得します<br>
+     * 中身を直接書き換えた場合はmarkChanged()を呼び出してください */
+    public float[] get(){
+        return this.matrix;
+    }
+
+    @Override
+    public Object getValue(){
+        return this.matrix;
+    }
+
+    @Override
+    public void setValue(Object value){
+        this.set((float[])value);
+    }
+
+    @Override
+    protected void upload(GL3 gl, int location){
+        gl.glUniformMatrix3fv(location, 1, false, this.matrix, 0);
+    }
+}
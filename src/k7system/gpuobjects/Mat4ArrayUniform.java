@@ -0,0 +1,70 @@
+package k7system.gpuobjects;
+
+import com.jogamp.opengl.GL3;
+
+/** 4x4行列の配列のユニフォーム変数です<br>
+ * 全ての行列を1次元の確保済み配列に連続して格納し，そのまま転送します．
+ * n番目の行列はn*16番目の要素から始まります */
+public class Mat4ArrayUniform extends Uniform{
+    private final float[] data;
+    private final int count;
+
+    /** 名前と行列の数を指定して作成します<br>
+     * 初期値は全て0です */
+    public Mat4ArrayUniform(String name, int count) {
+        super(name, Uniform.MATRIX_4_ARRAY);
+        this.count=count;
+        this.data=new float[count*16];
+    }
+
+    /** 行列の数を取得します */
+    public int getCount(){
+        return this.count;
+    }
+
+    /** n番目の行列を設定します<br>
+     * 配列の中身がコピーされます */
+    public void set(int index, float[] matrix){
+        this.copyValue(this.data, index*16, matrix);
+    }
+
+    /** 値を格納している配列を取得します<br>
+     * 中身を直接書き換えた場合はmarkChanged()を呼び出してください */
+    public float[] getArray(){
+        return this.data;
+    }
+
+    @Override
+    public Object getValue(){
+        return this.data;
+    }
+
+    @Override
+    public Object getArrayValue(){
+        return this.data;
+    }
+
+    @Override
+    public int getNumOfElements(){
+        return this.count;
+    }
+
+    /** 値を設定します<br>
+     * 行列の配列(float[][])または1次元の配列(float[])を受け付けます */
+    @Override
+    public void setValue(Object value){
+        if (value instanceof float[][]){
+            float[][] matrices=(float[][])value;
+            for (int i=0;i<matrices.length && i<this.count;i++){
+                this.set(i, matrices[i]);
+            }
+        }else{
+            this.copyValue(this.data, 0, (float[])value);
+        }
+    }
+
+    @Override
+    protected void upload(GL3 gl, int location){
+        gl.glUniformMatrix4fv(location, this.count, false, this.data, 0);
+    }
+}
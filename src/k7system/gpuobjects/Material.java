@@ -211,9 +211,17 @@ public abstract class Material extends GPUResource{
     /** マテリアルをバインドします<br>
      * VAOを描画する前にこのメソッドを呼ぶと，そのVAOの描画にこのマテリアルが使われます */
     public void bind(GL3 gl){
+        this.bindProgram(gl);
+        this.bindUniforms(gl);
+        this.bindTextures(gl);
+    }
+
+    /** このマテリアルのシェーダープログラムだけを利用状態にします<br>
+     * 状態ソートされた描画では，直前と異なるプログラムの場合にだけ呼び出されます */
+    public void bindProgram(GL3 gl){
         // これから使うシェーダーを設定
         int pHandle=this.shader.getProgramHandle();
-        gl.glUseProgram(pHandle);
+        this.getStateCache().useProgram(gl, pHandle);
         int error=gl.glGetError();
         if (error!=GL.GL_NO_ERROR){
             String errorMess="";
@@ -223,59 +231,68 @@ public abstract class Material extends GPUResource{
             logger.severe("Failed to bind shader <"+this.shader+":"+this.shader.getProgramHandle()+"> :"+error+"\n "+errorMess);
         }
 
-        // マテリアルユニフォームをシェーダーに設定
+    }
+
+    /** マテリアルユニフォームを利用中のシェーダーに設定します<br>
+     * bindProgram()でこのマテリアルのプログラムが利用状態になっている必要があります */
+    public void bindUniforms(GL3 gl){
         for(Uniform uni:this.uniforms.values()){
             this.setUniform(uni, gl);
         }
     }
 
+    /** このマテリアルが利用するテクスチャをテクスチャユニットにバインドします<br>
+     * 標準では何もしません．テクスチャを利用するマテリアルはオーバーライドしてください */
+    public void bindTextures(GL3 gl){
+    }
+
+    /** このマテリアルが利用するテクスチャの組を識別する値を取得します<br>
+     * 値が等しいマテリアル同士はbindTextures()を省略できます．
+     * テクスチャを利用しない場合は0，まだVRAMに載っていないなど識別できない場合は-1を返します */
+    public long getTextureKey(){
+        return 0;
+    }
+
     /** マテリアルのバインドを解除します<br>
      * VAOの描画が終わった後はこのメソッドを呼ぶことを推奨します． */
     public void unbind(GL3 gl){
-        gl.glUseProgram(0);
+        this.getStateCache().useProgram(gl, 0);
         int error=gl.glGetError();
         if (error!=GL.GL_NO_ERROR){
             logger.severe("Fail to unbind shader <"+this.shader+":"+this.shader.getProgramHandle()+"> :"+error);
         }
     }
 
-    /** シェーダーにユニフォーム変数を設定します */
+    /** シェーダーにユニフォーム変数を設定します<br>
+     * 場所はリンクされたプログラムごとに一度だけ問い合わせてユニフォーム変数に記憶します．
+     * 前回の転送から値が変わっていなければ転送しません．
+     * ただし，共有しているシェーダーに他のマテリアルが転送した後は，このマテリアルのユニフォーム変数を全て転送し直します */
     protected void setUniform(Uniform uni, GL3 gl){
-        int location=gl.glGetUniformLocation(this.shader.getProgramHandle(), uni.getName()); // 場所を取得
-        int error=gl.glGetError();
-        if (error!=GL.GL_NO_ERROR){
-            logger.severe("Can not get uniform location of <"+uni.getName()+"> on shader <"+this.shader+":"+this.shader.getProgramHandle()+"> :"+error);
+        if (this.shader.getUniformOwner()!=this){
+            this.shader.setUniformOwner(this);
+            for (Uniform own:this.uniforms.values()){
+                own.invalidate();
+            }
+            uni.invalidate();
         }
-        int type=uni.getType();
-        if (type==Uniform.MATRIX_4){
-            gl.glUniformMatrix4fv(location, 1, false,(float[])uni.getValue() , 0);
-        }else if (type==Uniform.MATRIX_3){
-            gl.glUniformMatrix3fv(location, 1, false,(float[])uni.getValue() , 0);
-        }else if (type==Uniform.VECTOR_4){
-            gl.glUniform4fv(location, 1, (float[])uni.getValue() , 0);
-        }else if (type==Uniform.VECTOR_3){
-            gl.glUniform3fv(location, 1, (float[])uni.getValue() , 0);
-        }else if (type==Uniform.VECTOR_2){
-            gl.glUniform2fv(location, 1, (float[])uni.getValue() , 0);
-        }else if (type==Uniform.FLOAT){
-            float value=(Float)uni.getValue();
-            gl.glUniform1f(location, value);
-        }else if (type==Uniform.INTEGER){
-            gl.glUniform1i(location, (Integer)uni.getValue());
-        }else if (type==Uniform.MATRIX_4_ARRAY){
-            float[] value=(float[])uni.getArrayValue() ;
-            gl.glUniformMatrix4fv(location, uni.getNumOfElements(), false,value, 0);
-        }else if (type==Uniform.BOOLEAN){
-            int value=0;
-            if ((Boolean)uni.getValue()){
-                value=1;
+        int link=this.shader.getLinkId();
+        if (!uni.isLocationResolved(link)){
+            int location=gl.glGetUniformLocation(this.shader.getProgramHandle(), uni.getName()); // 場所を取得
+            int error=gl.glGetError();
+            if (error!=GL.GL_NO_ERROR){
+                logger.severe("Can not get uniform location of <"+uni.getName()+"> on shader <"+this.shader+":"+this.shader.getProgramHandle()+"> :"+error);
             }
-            gl.glUniform1i(location, value);
+            uni.setLocation(link, location);
         }
-        error=gl.glGetError();
-        if (error!=GL.GL_NO_ERROR){
-            logger.severe("Can not set uniform <"+uni.getName()+":"+uni.getType()+"> for shader <"+this.shader+":"+this.shader.getProgramHandle()+"> :"+error);
+        if (!uni.isChanged()){
+            return;
+        }
+        uni.uploaded();
+        int location=uni.getLocation();
+        if (location==-1){
+            return; // シェーダー内で使われていない変数
         }
+        uni.upload(gl, location);
     }
 
     /** このマテリアルの構成要素をVRAMから除去します */
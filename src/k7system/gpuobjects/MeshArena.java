@@ -0,0 +1,317 @@
+package k7system.gpuobjects;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import k7system.GraphicEngine;
+
+/** 複数の頂点配列オブジェクトの頂点とインデックスを1つにまとめたバッファです<br>
+ * 間接描画(glMultiDrawElementsIndirect)で異なるメッシュを1回の命令で描画するために利用します．
+ * 頂点は位置，法線，テクスチャ座標，接線を全て持つ形式に揃えて格納し，持っていない属性は0で埋めます．<br>
+ * インスタンス属性はinstancesのバッファから読み込むように設定されます．間接描画命令のbaseInstanceで描画ごとのデータを選びます．<br>
+ * VRAMから削除されたメッシュはrelease()で登録が消され，その範囲は空き領域として次に登録するメッシュに再利用されます．
+ * バッファを拡張した後は，次のcompact()で削除済みのメッシュを取り除いて詰め直します．
+ * 詰め直すと登録済みの位置が変わるため，描画命令を作り始める前に呼び出してください． */
+public class MeshArena extends GPUResource{
+    public static final int STRIDE=11; // 1頂点あたりのfloat数
+    private static final int NORMAL_OFFSET=3;
+    private static final int TEX_COORD_OFFSET=6;
+    private static final int TANGENT_OFFSET=8;
+    private static final int DEFAULT_VERTICES=4096;
+
+    /** メッシュごとの{baseVertex, firstIndex, count, 頂点数}です(登録順) */
+    private Map<VertexArrayObject, int[]> entries=new LinkedHashMap<VertexArrayObject, int[]>();
+
+    private float[] vertexData=new float[DEFAULT_VERTICES*STRIDE];
+    private int[] indexData=new int[DEFAULT_VERTICES*3];
+    private int vertexCount=0;
+    private int indexCount=0;
+    private int[] freeVertices=new int[16]; // 空き領域の{先頭, 長さ}の組です
+    private int freeVertexCount=0;
+    private int[] freeIndices=new int[16];
+    private int freeIndexCount=0;
+    private boolean dirty=false;
+    private boolean grown=false; // 拡張後にまだ詰め直していないかどうかです
+
+    private InstanceBuffer instances;
+    private int vboId=-1;
+    private int indexId=-1;
+    private int vaoId=-1;
+
+    /** インスタンス属性を読み込むバッファを指定して作成します */
+    public MeshArena(InstanceBuffer instances){
+        this.instances=instances;
+    }
+
+    /** メッシュを登録し，{baseVertex, firstIndex, count, 頂点数}を返します<br>
+     * 既に登録されていれば，登録済みの値を返します */
+    public int[] register(VertexArrayObject vao){
+        int[] entry=this.entries.get(vao);
+        if (entry!=null){
+            return entry;
+        }
+        float[] vertices=vao.getVertices();
+        int[] indices=vao.getIndices();
+        int num=vertices.length/3;
+        int count=(indices!=null) ? indices.length : num;
+
+        // 空き領域に収まればそこに書き込みます
+        int baseVertex=takeFree(this.freeVertices, this.freeVertexCount, num);
+        int firstIndex=takeFree(this.freeIndices, this.freeIndexCount, count);
+        if (baseVertex<0){
+            baseVertex=this.vertexCount;
+            if (this.vertexData.length<(this.vertexCount+num)*STRIDE){
+                this.grown=true;
+                this.vertexData=Arrays.copyOf(this.vertexData, Math.max(this.vertexData.length*2, (this.vertexCount+num)*STRIDE));
+            }
+            this.vertexCount+=num;
+        }else{
+            this.freeVertexCount=removeEmptyFree(this.freeVertices, this.freeVertexCount);
+        }
+        if (firstIndex<0){
+            firstIndex=this.indexCount;
+            if (this.indexData.length<this.indexCount+count){
+                this.grown=true;
+                this.indexData=Arrays.copyOf(this.indexData, Math.max(this.indexData.length*2, this.indexCount+count));
+            }
+            this.indexCount+=count;
+        }else{
+            this.freeIndexCount=removeEmptyFree(this.freeIndices, this.freeIndexCount);
+        }
+        entry=this.write(vao, baseVertex, firstIndex);
+        this.entries.put(vao, entry);
+        return entry;
+    }
+
+    /** メッシュの登録を消し，その範囲を空き領域にします<br>
+     * 頂点配列オブジェクトがVRAMから削除された時に呼び出されます．登録されていなければ何もしません */
+    public void release(VertexArrayObject vao){
+        int[] entry=this.entries.remove(vao);
+        if (entry==null){
+            return;
+        }
+        int num=entry[3];
+        if (entry[0]+num==this.vertexCount){
+            this.vertexCount=entry[0]; // 末尾なら縮めます
+        }else{
+            this.freeVertices=addFree(this.freeVertices, this.freeVertexCount, entry[0], num);
+            this.freeVertexCount+=2;
+        }
+        if (entry[1]+entry[2]==this.indexCount){
+            this.indexCount=entry[1];
+        }else{
+            this.freeIndices=addFree(this.freeIndices, this.freeIndexCount, entry[1], entry[2]);
+            this.freeIndexCount+=2;
+        }
+    }
+
+    /** 指定した長さが収まる空き領域を先頭から探して切り出し，その先頭を返します<br>
+     * 見つからなければ-1を返します．使い切った組は長さが0のまま残ります */
+    private static int takeFree(int[] free, int freeCount, int length){
+        for (int i=0;i<freeCount;i+=2){
+            if (length<=free[i+1]){
+                int start=free[i];
+                free[i]+=length;
+                free[i+1]-=length;
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /** 長さが0になった空き領域の組を取り除き，新しい要素数を返します */
+    private static int removeEmptyFree(int[] free, int freeCount){
+        int n=0;
+        for (int i=0;i<freeCount;i+=2){
+            if (0<free[i+1]){
+                free[n]=free[i];
+                free[n+1]=free[i+1];
+                n+=2;
+            }
+        }
+        return n;
+    }
+
+    /** 空き領域の組を追加します<br>
+     * 配列を拡張した場合は新しい配列を返します */
+    private static int[] addFree(int[] free, int freeCount, int start, int length){
+        if (free.length<freeCount+2){
+            free=Arrays.copyOf(free, free.length*2);
+        }
+        free[freeCount]=start;
+        free[freeCount+1]=length;
+        return free;
+    }
+
+    /** メッシュを末尾に書き込みます */
+    private int[] append(VertexArrayObject vao){
+        int num=vao.getVertices().length/3;
+        int[] indices=vao.getIndices();
+        int count=(indices!=null) ? indices.length : num;
+        int[] entry=this.write(vao, this.vertexCount, this.indexCount);
+        this.vertexCount+=num;
+        this.indexCount+=count;
+        return entry;
+    }
+
+    /** メッシュを指定した位置に書き込みます */
+    private int[] write(VertexArrayObject vao, int baseVertex, int firstIndex){
+        float[] vertices=vao.getVertices();
+        float[] normals=vao.getNormals();
+        float[] texCoords=vao.getTexCoords();
+        float[] tangents=vao.getTangents();
+        int[] indices=vao.getIndices();
+        int num=vertices.length/3;
+        int count=(indices!=null) ? indices.length : num;
+
+        float[] d=this.vertexData;
+        int base=baseVertex*STRIDE;
+        Arrays.fill(d, base, base+num*STRIDE, 0);
+        for (int i=0;i<num;i++){
+            int o=base+i*STRIDE;
+            d[o]=vertices[i*3];
+            d[o+1]=vertices[i*3+1];
+            d[o+2]=vertices[i*3+2];
+            if (normals!=null){
+                d[o+NORMAL_OFFSET]=normals[i*3];
+                d[o+NORMAL_OFFSET+1]=normals[i*3+1];
+                d[o+NORMAL_OFFSET+2]=normals[i*3+2];
+            }
+            if (texCoords!=null){
+                d[o+TEX_COORD_OFFSET]=texCoords[i*2];
+                d[o+TEX_COORD_OFFSET+1]=texCoords[i*2+1];
+            }
+            if (tangents!=null){
+                d[o+TANGENT_OFFSET]=tangents[i*3];
+                d[o+TANGENT_OFFSET+1]=tangents[i*3+1];
+                d[o+TANGENT_OFFSET+2]=tangents[i*3+2];
+            }
+        }
+        for (int i=0;i<count;i++){
+            this.indexData[firstIndex+i]=(indices!=null) ? indices[i] : i; // baseVertexで底上げされます
+        }
+        this.dirty=true;
+        return new int[]{baseVertex, firstIndex, count, num};
+    }
+
+    /** バッファを拡張した後であれば，VRAMから削除されたメッシュと空き領域を取り除いて詰め直します<br>
+     * 登録済みの位置が変わる可能性があるため，描画命令を作り始める前に呼び出してください */
+    public void compact(){
+        if (!this.grown){
+            return;
+        }
+        this.grown=false;
+        List<VertexArrayObject> alive=new ArrayList<VertexArrayObject>();
+        for (VertexArrayObject vao:this.entries.keySet()){
+            if (vao.isUploaded()){
+                alive.add(vao);
+            }
+        }
+        if (alive.size()==this.entries.size() && this.freeVertexCount==0 && this.freeIndexCount==0){
+            return;
+        }
+        this.entries.clear();
+        this.vertexCount=0;
+        this.indexCount=0;
+        this.freeVertexCount=0;
+        this.freeIndexCount=0;
+        for (VertexArrayObject vao:alive){
+            this.entries.put(vao, this.append(vao));
+        }
+    }
+
+    /** バッファを作成します */
+    @Override
+    public int init(GL3 gl, GraphicEngine eng){
+        super.init(gl, eng);
+        if (!this.isUploaded()){
+            if (!this.instances.isUploaded()){
+                this.instances.init(gl, eng);
+            }
+            int[] ids=new int[2];
+            gl.glGenBuffers(2, ids, 0);
+            this.vboId=ids[0];
+            this.indexId=ids[1];
+            int[] vao=new int[1];
+            gl.glGenVertexArrays(1, vao, 0);
+            this.vaoId=vao[0];
+
+            GLStateCache cache=this.getStateCache();
+            cache.bindVertexArray(gl, this.vaoId);
+            cache.bindElementBuffer(gl, this.indexId);
+
+            // 頂点属性
+            int stride=STRIDE*Float.SIZE/8;
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, this.vboId);
+            gl.glEnableVertexAttribArray(VertexArrayObject.LOCATION_VERTEX_POSITION);
+            gl.glVertexAttribPointer(VertexArrayObject.LOCATION_VERTEX_POSITION, 3, GL.GL_FLOAT, false, stride, 0L);
+            gl.glEnableVertexAttribArray(VertexArrayObject.LOCATION_NORMAL_VECTOR);
+            gl.glVertexAttribPointer(VertexArrayObject.LOCATION_NORMAL_VECTOR, 3, GL.GL_FLOAT, false, stride, NORMAL_OFFSET*Float.SIZE/8);
+            gl.glEnableVertexAttribArray(VertexArrayObject.LOCATION_TEX_COORDS);
+            gl.glVertexAttribPointer(VertexArrayObject.LOCATION_TEX_COORDS, 2, GL.GL_FLOAT, false, stride, TEX_COORD_OFFSET*Float.SIZE/8);
+            gl.glEnableVertexAttribArray(VertexArrayObject.LOCATION_TANGENT_VECTOR);
+            gl.glVertexAttribPointer(VertexArrayObject.LOCATION_TANGENT_VECTOR, 3, GL.GL_FLOAT, false, stride, TANGENT_OFFSET*Float.SIZE/8);
+
+            // インスタンス属性(baseInstanceで描画ごとのデータを選びます)
+            int instanceStride=InstanceBuffer.STRIDE*Float.SIZE/8;
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, this.instances.getBufferId());
+            for (int i=0;i<4;i++){
+                int location=VertexArrayObject.LOCATION_INSTANCE_MV_MATRIX+i;
+                gl.glEnableVertexAttribArray(location);
+                gl.glVertexAttribPointer(location, 4, GL.GL_FLOAT, false, instanceStride, (InstanceBuffer.MV_OFFSET+i*4)*Float.SIZE/8);
+                gl.glVertexAttribDivisor(location, 1);
+            }
+            for (int i=0;i<3;i++){
+                int location=VertexArrayObject.LOCATION_INSTANCE_ROTATION_MATRIX+i;
+                gl.glEnableVertexAttribArray(location);
+                gl.glVertexAttribPointer(location, 3, GL.GL_FLOAT, false, instanceStride, (InstanceBuffer.ROTATION_OFFSET+i*3)*Float.SIZE/8);
+                gl.glVertexAttribDivisor(location, 1);
+            }
+
+            this.dirty=true;
+            this.enableUploadedFlag();
+        }
+        return this.vaoId;
+    }
+
+    /** 登録されたメッシュの変更をVRAMに転送し，VAOをバインドします */
+    public void bind(GL3 gl){
+        if (!this.isUploaded()){
+            this.init(gl, this.getEngine());
+        }
+        GLStateCache cache=this.getStateCache();
+        cache.bindVertexArray(gl, this.vaoId);
+        if (this.dirty){
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, this.vboId);
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, this.vertexCount*STRIDE*Float.SIZE/8, FloatBuffer.wrap(this.vertexData, 0, this.vertexCount*STRIDE), GL.GL_STATIC_DRAW);
+            gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, this.indexCount*Integer.SIZE/8, IntBuffer.wrap(this.indexData, 0, this.indexCount), GL.GL_STATIC_DRAW);
+            this.dirty=false;
+        }
+    }
+
+    @Override
+    public void vramFlushed(){
+        this.disableUploadedFlag();
+    }
+
+    @Override
+    public void dispose(GL3 gl){
+        if (this.vaoId!=-1){
+            GLStateCache cache=this.getStateCache();
+            gl.glDeleteBuffers(2, IntBuffer.wrap(new int[]{this.vboId, this.indexId}));
+            gl.glDeleteVertexArrays(1, IntBuffer.wrap(new int[]{this.vaoId}));
+            cache.bufferDeleted(this.indexId);
+            cache.vertexArrayDeleted(this.vaoId);
+            this.vaoId=-1;
+        }
+        this.disableUploadedFlag();
+    }
+}
@@ -2,6 +2,7 @@ package k7system.gpuobjects;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import com.jogamp.opengl.GL;
@@ -17,6 +18,10 @@ public class Shader extends GPUResource{
     private String vsSource[];
     private String fsSource[];
     private int programId=NOT_COMPILED;
+    private int linkId=NOT_COMPILED; // リンクごとに振られる番号です
+    private Material uniformOwner=null; // このプログラムに最後にユニフォーム変数を転送したマテリアルです
+
+    private static AtomicInteger linkCounter=new AtomicInteger(); // リンク番号の採番用
 
     private Logger logger=Logger.getGlobal();
 
@@ -35,6 +40,24 @@ public class Shader extends GPUResource{
         return programId;
     }
 
+    /** このシェーダーがリンクされるたびに振られる番号を取得します<br>
+     * プログラムの名前はVRAMフラッシュ後に再利用されることがあるため，ユニフォーム変数の場所のキャッシュにはこの番号を利用します．
+     * まだリンクされていなければNOT_COMPILEDを返します */
+    public int getLinkId(){
+        return this.linkId;
+    }
+
+    /** このプログラムに最後にユニフォーム変数を転送したマテリアルを取得します<br>
+     * ユニフォーム変数の値はプログラムごとに保持されるため，シェーダーを共有するマテリアルが切り替わった場合は全て転送し直します */
+    Material getUniformOwner(){
+        return this.uniformOwner;
+    }
+
+    /** このプログラムに最後にユニフォーム変数を転送したマテリアルを記録します */
+    void setUniformOwner(Material owner){
+        this.uniformOwner=owner;
+    }
+
     /** VRAMフラッシュを通知します */
     @Override
     public void vramFlushed(){
@@ -87,6 +110,14 @@ public class Shader extends GPUResource{
         gl.glAttachShader (programId, fs);
         gl.glAttachShader (programId, vs);
         gl.glLinkProgram (programId);
+        this.linkId=linkCounter.incrementAndGet();
+        this.uniformOwner=null;
+
+        // フレームデータのユニフォームブロックを使っていれば，共通のバインディングポイントに割り当てる
+        int blockIndex=gl.glGetUniformBlockIndex(programId, FrameUniformBuffer.BLOCK_NAME);
+        if (blockIndex!=GL3.GL_INVALID_INDEX){
+            gl.glUniformBlockBinding(programId, blockIndex, FrameUniformBuffer.BINDING_POINT);
+        }
         //System.out.println("DEBUG: シェーダーコンパイル完了:"+this.programId);
 
         error=gl.glGetError();
@@ -159,6 +159,7 @@ public class TextureK7 extends GPUResource{
             // 登録したテクスチャをVRAMから剥がし，改めて登録する
             IntBuffer id=IntBuffer.wrap(new int[]{this.texId});
             gl.glDeleteTextures(1, id);
+            this.getStateCache().textureDeleted(this.texId);
             this.registerTexture(gl);
             this.changeTexFlag=false;
         }
@@ -225,7 +226,7 @@ public class TextureK7 extends GPUResource{
 
             IntBuffer buff=IntBuffer.wrap(abgr);
             // テクスチャを作成してVRAMに登録
-            gl.glBindTexture (GL.GL_TEXTURE_2D, this.texId);
+            this.getStateCache().bindTexture(gl, this.texId);
             gl.glTexImage2D (GL.GL_TEXTURE_2D, 0, this.texType, this.image.getWidth(), this.image.getHeight(), 0, this.texType, this.texDataUnit, buff);
         }
     }
@@ -234,10 +235,12 @@ public class TextureK7 extends GPUResource{
     private void deleteTexture(GL3 gl){
         IntBuffer texIdBuff=IntBuffer.wrap(new int[]{texId});
         gl.glDeleteTextures(1,texIdBuff);
+        this.getStateCache().textureDeleted(this.texId);
         this.texId=NOT_REGISTERD;
 
         IntBuffer sampIdBuff=IntBuffer.wrap(new int[]{samperId});
         gl.glDeleteSamplers(1, sampIdBuff);
+        this.getStateCache().samplerDeleted(this.samperId);
         this.samperId=NOT_REGISTERD;
     }
 
@@ -251,14 +254,15 @@ public class TextureK7 extends GPUResource{
         return this.samperId;
     }
 
-    /** これから利用するシェーダーに対してこのテクスチャをバインドします */
+    /** これから利用するシェーダーに対してこのテクスチャをバインドします<br>
+     * 既に同じユニットにバインドされている場合，テクスチャとサンプラーのバインドは省略されます */
     protected void bind(GL3 gl, int texUnitName, int texUnit){
         if (this.changeTexFlag || !this.isUploaded()){ // もしテクスチャに変更があれば初期化を行う
             this.init(gl, this.getEngine());
         }
-        gl.glActiveTexture(texUnit);
-        gl.glBindTexture(GL3.GL_TEXTURE_2D, this.texId);
-        gl.glBindSampler(texUnitName, this.samperId);
+        GLStateCache cache=this.getStateCache();
+        cache.bindTexture(gl, texUnit-GL3.GL_TEXTURE0, this.texId);
+        cache.bindSampler(gl, texUnitName, this.samperId);
     }
 
     @Override
@@ -0,0 +1,321 @@
+package k7system.gpuobjects;
+
+/** 三角形ポリゴンの境界ボリューム階層(BVH)です<br>
+ * 頂点配列オブジェクトの頂点とインデックスから一度だけ構築し，レイとの交差判定に利用します．
+ * ノードは深さ優先の順に連続した配列に格納し，左の子は常に親の直後に置きます．<br>
+ * 三角形の頂点座標は葉の順に並べ替えて別の配列に持つため，判定中に元の頂点配列を参照しません．
+ * 座標はすべてモデル座標系です． */
+public class TriangleBVH {
+    public static final int LEAF_SIZE=4; // 葉に入れる三角形の最大数
+    public static final int STACK_SIZE=64; // 探索用のスタックの大きさ(木の深さはこの半分までに制限されます)
+    private static final float EPSILON=1e-7f;
+
+    // intersect()の探索用スタック(BVHは頂点配列オブジェクトを共有するモデル間で共有されるため，スレッドごとに持ちます)
+    private static final ThreadLocal<int[]> STACKS=new ThreadLocal<int[]>(){
+        @Override
+        protected int[] initialValue(){
+            return new int[STACK_SIZE];
+        }
+    };
+
+    private float[] nodeBounds; // ノードごとのAABB(6要素)
+    private int[] nodeLinks; // 内部ノードなら右の子，葉なら最初の三角形の位置
+    private int[] nodeCounts; // 葉の三角形数．内部ノードは0
+    private int nodeCount=0;
+
+    private float[] positions; // 並べ替えた三角形の頂点座標(9要素)
+    private int[] triangles; // 並べ替えた三角形の元の番号
+
+    // 構築用の作業領域
+    private float[] centroids;
+    private float[] triBounds;
+
+    /** 頂点(x,y,z)とインデックスからBVHを構築します<br>
+     * インデックスがnullの場合は，頂点を3つずつ三角形として扱います */
+    public TriangleBVH(float[] vertices, int[] indices) {
+        int count=(indices!=null) ? indices.length/3 : vertices.length/9;
+        this.triangles=new int[count];
+        this.centroids=new float[count*3];
+        this.triBounds=new float[count*6];
+        float[] source=new float[count*9];
+        for (int t=0;t<count;t++){
+            this.triangles[t]=t;
+            for (int v=0;v<3;v++){
+                int index=(indices!=null) ? indices[t*3+v] : t*3+v;
+                for (int k=0;k<3;k++){
+                    source[t*9+v*3+k]=vertices[index*3+k];
+                }
+            }
+            for (int k=0;k<3;k++){
+                float a=source[t*9+k];
+                float b=source[t*9+3+k];
+                float c=source[t*9+6+k];
+                this.triBounds[t*6+k]=Math.min(a, Math.min(b, c));
+                this.triBounds[t*6+3+k]=Math.max(a, Math.max(b, c));
+                this.centroids[t*3+k]=(a+b+c)/3;
+            }
+        }
+
+        int capacity=Math.max(1, count*2/LEAF_SIZE+1);
+        this.nodeBounds=new float[capacity*6];
+        this.nodeLinks=new int[capacity];
+        this.nodeCounts=new int[capacity];
+        this.build(0, count, 0);
+
+        // 葉の順に頂点座標を並べ替える
+        this.positions=new float[count*9];
+        for (int i=0;i<count;i++){
+            System.arraycopy(source, this.triangles[i]*9, this.positions, i*9, 9);
+        }
+        this.centroids=null;
+        this.triBounds=null;
+    }
+
+    /** 三角形数を取得します */
+    public int getTriangleCount(){
+        return this.triangles.length;
+    }
+
+    /** ノード数を取得します */
+    public int getNodeCount(){
+        return this.nodeCount;
+    }
+
+    /** 全体のAABBを取得します<br>
+     * 返り値は{minX, minY, minZ, maxX, maxY, maxZ}となります */
+    public float[] getBoundByArray(){
+        float[] result=new float[6];
+        System.arraycopy(this.nodeBounds, 0, result, 0, 6);
+        return result;
+    }
+
+    /** レイと交差する最も近い三角形を求めます<br>
+     * 交点はorigin+direction*tで表され，0&lt;=t&lt;=maxDistanceの範囲で探索します．方向ベクトルは正規化されていなくても構いません．<br>
+     * 交差した場合は元の三角形の番号を返し，resultに{t, u, v}(uとvは重心座標)を書き込みます．交差しなければ-1を返します．
+     * 裏面とも交差します．探索用のスタックは呼び出したスレッドのものを使い回します */
+    public int intersect(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, float[] result){
+        return this.intersect(ox, oy, oz, dx, dy, dz, maxDistance, result, STACKS.get());
+    }
+
+    /** 探索用のスタックを指定して，レイと交差する最も近い三角形を求めます<br>
+     * stackは大きさがSTACK_SIZE以上の作業領域で，呼び出し元が使い回します．それ以外は引数が1つ少ない版と同じです */
+    public int intersect(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, float[] result, int[] stack){
+        if (this.triangles.length==0){
+            return -1;
+        }
+        float ix=1/dx;
+        float iy=1/dy;
+        float iz=1/dz;
+        float best=maxDistance;
+        int hit=-1;
+        int top=0;
+        stack[top++]=0;
+        while(0<top){
+            int node=stack[--top];
+            float entry=slab(this.nodeBounds, node*6, ox, oy, oz, ix, iy, iz, best);
+            if (entry<0){
+                continue; // 積んだ後により近い交点が見つかった
+            }
+            int count=this.nodeCounts[node];
+            if (0<count){
+                int first=this.nodeLinks[node];
+                for (int i=first;i<first+count;i++){
+                    float t=this.intersectTriangle(i*9, ox, oy, oz, dx, dy, dz, best, result);
+                    if (0<=t){
+                        best=t;
+                        hit=i;
+                    }
+                }
+            }else{
+                // 近い方の子を先に調べる
+                int left=node+1;
+                int right=this.nodeLinks[node];
+                float tLeft=slab(this.nodeBounds, left*6, ox, oy, oz, ix, iy, iz, best);
+                float tRight=slab(this.nodeBounds, right*6, ox, oy, oz, ix, iy, iz, best);
+                if (tLeft<0){
+                    if (0<=tRight){
+                        stack[top++]=right;
+                    }
+                }else if (tRight<0){
+                    stack[top++]=left;
+                }else if (tLeft<=tRight){
+                    stack[top++]=right;
+                    stack[top++]=left;
+                }else{
+                    stack[top++]=left;
+                    stack[top++]=right;
+                }
+            }
+        }
+        if (hit<0){
+            return -1;
+        }
+        this.intersectTriangle(hit*9, ox, oy, oz, dx, dy, dz, Float.MAX_VALUE, result); // 重心座標を書き戻す
+        return this.triangles[hit];
+    }
+
+    /** 並べ替えた三角形の頂点座標を取得します<br>
+     * 元の三角形番号との対応はgetTriangleOrder()で取得します．内容を変更しないでください */
+    public float[] getPositions(){
+        return this.positions;
+    }
+
+    /** 並べ替えた三角形の元の番号を取得します */
+    public int[] getTriangleOrder(){
+        return this.triangles;
+    }
+
+    /** 三角形の範囲[start, end)のノードを構築します */
+    private int build(int start, int end, int depth){
+        int node=this.allocateNode();
+        int o=node*6;
+        for (int k=0;k<3;k++){
+            this.nodeBounds[o+k]=Float.MAX_VALUE;
+            this.nodeBounds[o+3+k]=-Float.MAX_VALUE;
+        }
+        float cMinX=Float.MAX_VALUE, cMinY=Float.MAX_VALUE, cMinZ=Float.MAX_VALUE;
+        float cMaxX=-Float.MAX_VALUE, cMaxY=-Float.MAX_VALUE, cMaxZ=-Float.MAX_VALUE;
+        for (int i=start;i<end;i++){
+            int t=this.triangles[i];
+            for (int k=0;k<3;k++){
+                this.nodeBounds[o+k]=Math.min(this.nodeBounds[o+k], this.triBounds[t*6+k]);
+                this.nodeBounds[o+3+k]=Math.max(this.nodeBounds[o+3+k], this.triBounds[t*6+3+k]);
+            }
+            cMinX=Math.min(cMinX, this.centroids[t*3]);
+            cMinY=Math.min(cMinY, this.centroids[t*3+1]);
+            cMinZ=Math.min(cMinZ, this.centroids[t*3+2]);
+            cMaxX=Math.max(cMaxX, this.centroids[t*3]);
+            cMaxY=Math.max(cMaxY, this.centroids[t*3+1]);
+            cMaxZ=Math.max(cMaxZ, this.centroids[t*3+2]);
+        }
+
+        // 重心の広がりが最も大きい軸の中央値で分割する
+        float ex=cMaxX-cMinX;
+        float ey=cMaxY-cMinY;
+        float ez=cMaxZ-cMinZ;
+        int axis=(ey<ex) ? (ez<ex ? 0 : 2) : (ez<ey ? 1 : 2);
+        float extent=Math.max(ex, Math.max(ey, ez));
+        if (end-start<=LEAF_SIZE || extent<=0 || STACK_SIZE/2<=depth){
+            this.nodeLinks[node]=start;
+            this.nodeCounts[node]=end-start;
+            return node;
+        }
+        int middle=(start+end)>>>1;
+        this.select(start, end-1, middle, axis);
+        this.nodeCounts[node]=0;
+        this.build(start, middle, depth+1); // 左の子は直後に置かれる
+        int right=this.build(middle, end, depth+1); // 構築中に配列が作り直されるので，代入は後で行う
+        this.nodeLinks[node]=right;
+        return node;
+    }
+
+    /** 重心の座標がk番目に小さい三角形がk番目に来るように並べ替えます */
+    private void select(int left, int right, int k, int axis){
+        int[] tri=this.triangles;
+        while(left<right){
+            float pivot=this.centroids[tri[(left+right)>>>1]*3+axis];
+            int i=left;
+            int j=right;
+            while(i<=j){
+                while(this.centroids[tri[i]*3+axis]<pivot){
+                    i++;
+                }
+                while(pivot<this.centroids[tri[j]*3+axis]){
+                    j--;
+                }
+                if (i<=j){
+                    int temp=tri[i];
+                    tri[i]=tri[j];
+                    tri[j]=temp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k<=j){
+                right=j;
+            }else if (i<=k){
+                left=i;
+            }else{
+                return;
+            }
+        }
+    }
+
+    private int allocateNode(){
+        if (this.nodeLinks.length<=this.nodeCount){
+            int newCap=this.nodeLinks.length*2;
+            float[] newBounds=new float[newCap*6];
+            System.arraycopy(this.nodeBounds, 0, newBounds, 0, this.nodeCount*6);
+            this.nodeBounds=newBounds;
+            int[] newLinks=new int[newCap];
+            System.arraycopy(this.nodeLinks, 0, newLinks, 0, this.nodeCount);
+            this.nodeLinks=newLinks;
+            int[] newCounts=new int[newCap];
+            System.arraycopy(this.nodeCounts, 0, newCounts, 0, this.nodeCount);
+            this.nodeCounts=newCounts;
+        }
+        return this.nodeCount++;
+    }
+
+    /** 三角形とレイの交差判定です(Moller-Trumbore法)<br>
+     * maxDistance以内で交差すればtを返し，resultに{t, u, v}を書き込みます．交差しなければ-1を返します */
+    private float intersectTriangle(int o, float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, float[] result){
+        float[] p=this.positions;
+        float e1x=p[o+3]-p[o], e1y=p[o+4]-p[o+1], e1z=p[o+5]-p[o+2];
+        float e2x=p[o+6]-p[o], e2y=p[o+7]-p[o+1], e2z=p[o+8]-p[o+2];
+        float hx=dy*e2z-dz*e2y;
+        float hy=dz*e2x-dx*e2z;
+        float hz=dx*e2y-dy*e2x;
+        float det=e1x*hx+e1y*hy+e1z*hz;
+        if (-EPSILON<det && det<EPSILON){
+            return -1; // レイと平行
+        }
+        float inv=1/det;
+        float sx=ox-p[o], sy=oy-p[o+1], sz=oz-p[o+2];
+        float u=(sx*hx+sy*hy+sz*hz)*inv;
+        if (u<0 || 1<u){
+            return -1;
+        }
+        float qx=sy*e1z-sz*e1y;
+        float qy=sz*e1x-sx*e1z;
+        float qz=sx*e1y-sy*e1x;
+        float v=(dx*qx+dy*qy+dz*qz)*inv;
+        if (v<0 || 1<u+v){
+            return -1;
+        }
+        float t=(e2x*qx+e2y*qy+e2z*qz)*inv;
+        if (t<0 || maxDistance<t){
+            return -1;
+        }
+        result[0]=t;
+        result[1]=u;
+        result[2]=v;
+        return t;
+    }
+
+    /** レイとAABBの交差判定です(スラブ法)<br>
+     * 交差すればレイに入る位置のtを返し，交差しなければ-1を返します */
+    private static float slab(float[] b, int o, float ox, float oy, float oz, float ix, float iy, float iz, float maxDistance){
+        float t1=(b[o]-ox)*ix;
+        float t2=(b[o+3]-ox)*ix;
+        float tMin=Math.min(t1, t2);
+        float tMax=Math.max(t1, t2);
+        t1=(b[o+1]-oy)*iy;
+        t2=(b[o+4]-oy)*iy;
+        tMin=Math.max(tMin, Math.min(t1, t2));
+        tMax=Math.min(tMax, Math.max(t1, t2));
+        t1=(b[o+2]-oz)*iz;
+        t2=(b[o+5]-oz)*iz;
+        tMin=Math.max(tMin, Math.min(t1, t2));
+        tMax=Math.min(tMax, Math.max(t1, t2));
+        if (tMin!=tMin || tMax!=tMax){
+            return 0; // 軸に平行なレイが面上にある場合(NaN)は交差するとみなす
+        }
+        tMin=Math.max(tMin, 0);
+        tMax=Math.min(tMax, maxDistance);
+        if (tMax<tMin){
+            return -1;
+        }
+        return tMin;
+    }
+}
@@ -1,10 +1,13 @@
 package k7system.gpuobjects;
 
 import java.lang.reflect.Array;
-import java.util.ArrayList;
+
+import com.jogamp.opengl.GL3;
 
 /** シェーダーに与えるユニフォーム変数クラスです<br>
- * 通常使用する範囲の型に対応しています */
+ * 通常使用する範囲の型に対応しています<br>
+ * このクラスは値の型をリフレクションで判定します．毎フレーム更新する変数には，
+ * 確保済みの配列に値を書き込むMat4UniformやIntUniformなどの型付きのサブクラスを利用してください． */
 public class Uniform {
     public static final int NULL=0x0000;
     public static final int BOOLEAN=0x0001;
@@ -26,6 +29,13 @@ public class Uniform {
     private Object value;
     private int type=Uniform.NULL;
     private int elemNum=1;
+    private float[] arrayBuffer=null; // 配列の配列を1次元にした値です
+
+    // 転送の管理
+    private int version=0; // 値が変更されるたびに増える番号です
+    private int linkId=Shader.NOT_COMPILED; // 場所を取得したプログラムのリンク番号です
+    private int location=-1; // そのプログラムでのユニフォーム変数の場所です
+    private int uploadedVersion=-1; // そのプログラムに最後に転送した値の番号です
 
     /** コンストラクタで名前だけを設定し，後から値を設定する */
     public Uniform(String name) {
@@ -38,6 +48,13 @@ public class Uniform {
         this.setValue(value);
     }
 
+    /** 型付きのサブクラス用に，名前と型を設定します<br>
+     * 値はサブクラスが保持します */
+    protected Uniform(String name, int type) {
+        this.name=name;
+        this.type=type;
+    }
+
     /** ユニフォーム名を取得します */
     public String getName(){
         return this.name;
@@ -52,32 +69,128 @@ public class Uniform {
     /** 値がベクトルや行列の配列だった場合に，1次元配列の形で値を取得します<br>
      * これは，OpenGLのAPIが二次元配列を扱うことができないからです．値が配列の場合のみ有効です<br>
      * 返り値の型はデータ型に依存するため，Object型となっています．それぞれのプリミティブ型の配列にキャストして利用してください．<br>
-     * 現在，浮動小数点型にしか対応していません． */
+     * 現在，浮動小数点型にしか対応していません．返り値の配列は使いまわされるため，参照を保持し続けないでください． */
     public Object getArrayValue(){
-        ArrayList<Object> list=new ArrayList<Object>();
-        Object result=null;
         if (this.type==VECTOR_2_ARRAY || this.type==VECTOR_3_ARRAY || this.type==VECTOR_4_ARRAY || this.type==MATRIX_3_ARRAY || this.type==MATRIX_4_ARRAY){
-            int length=Array.getLength(this.value); // 配列の長さです
-            this.elemNum=length;
-            for (int i=0;i<length;i++){
-                float[] array=(float[])Array.get(this.value, i);
-                for (float element:array){
-                    list.add(element);
-                }
+            float[][] arrays=(float[][])this.value;
+            this.elemNum=arrays.length;
+            int total=0;
+            for (float[] array:arrays){
+                total+=array.length;
+            }
+            if (this.arrayBuffer==null || this.arrayBuffer.length!=total){
+                this.arrayBuffer=new float[total];
             }
-            result=new float[list.size()];
-            for(int i=0;i<list.size();i++){
-                ((float[])result)[i]=(Float)list.get(i);
+            int offset=0;
+            for (float[] array:arrays){
+                System.arraycopy(array, 0, this.arrayBuffer, offset, array.length);
+                offset+=array.length;
             }
+            return this.arrayBuffer;
         }
-        return result;
+        return null;
     }
 
     /** 値を設定します<br>
      * 配列を設定する場合，必ずプリミティブ型の配列にしてください． */
     public void setValue(Object value){
+        if ((value instanceof Number || value instanceof Boolean) && value.equals(this.value)){
+            return; // 値が同じなら転送し直す必要はない
+        }
         this.value=value;
         this.type=this.checkType(this.value);
+        this.version++;
+    }
+
+    /** 値が変更されたことを通知します<br>
+     * getValue()で取得した配列の中身を直接書き換えた場合は，このメソッドを呼び出してください．
+     * 呼び出さない場合，変更はシェーダーに転送されません */
+    public void markChanged(){
+        this.version++;
+    }
+
+    /** 確保済みの配列に値を書き込み，中身が変わった場合に変更を通知します<br>
+     * 型付きのサブクラスが利用します */
+    protected void copyValue(float[] storage, int offset, float[] src){
+        if (src==storage){
+            this.markChanged(); // 中身を直接書き換えた配列がそのまま設定された
+            return;
+        }
+        boolean changed=false;
+        for (int i=0;i<src.length;i++){
+            if (storage[offset+i]!=src[i]){
+                storage[offset+i]=src[i];
+                changed=true;
+            }
+        }
+        if (changed){
+            this.markChanged();
+        }
+    }
+
+    /** 値が変更されるたびに増える番号を取得します */
+    public int getVersion(){
+        return this.version;
+    }
+
+    /** 値をシェーダーに転送します<br>
+     * 利用中のプログラムでのユニフォーム変数の場所が与えられます．
+     * 型付きのサブクラスは，型の判定を行わずに転送するようにオーバーライドしています */
+    protected void upload(GL3 gl, int location){
+        int type=this.type;
+        if (type==Uniform.MATRIX_4){
+            gl.glUniformMatrix4fv(location, 1, false,(float[])this.value , 0);
+        }else if (type==Uniform.MATRIX_3){
+            gl.glUniformMatrix3fv(location, 1, false,(float[])this.value , 0);
+        }else if (type==Uniform.VECTOR_4){
+            gl.glUniform4fv(location, 1, (float[])this.value , 0);
+        }else if (type==Uniform.VECTOR_3){
+            gl.glUniform3fv(location, 1, (float[])this.value , 0);
+        }else if (type==Uniform.VECTOR_2){
+            gl.glUniform2fv(location, 1, (float[])this.value , 0);
+        }else if (type==Uniform.FLOAT){
+            gl.glUniform1f(location, (Float)this.value);
+        }else if (type==Uniform.INTEGER){
+            gl.glUniform1i(location, (Integer)this.value);
+        }else if (type==Uniform.MATRIX_4_ARRAY){
+            float[] value=(float[])this.getArrayValue();
+            gl.glUniformMatrix4fv(location, this.elemNum, false, value, 0);
+        }else if (type==Uniform.BOOLEAN){
+            gl.glUniform1i(location, (Boolean)this.value ? 1 : 0);
+        }
+    }
+
+    /** 指定したリンク番号のプログラムでの場所が取得済みかどうかを返します */
+    boolean isLocationResolved(int link){
+        return this.linkId==link;
+    }
+
+    /** プログラムでの場所を記憶します<br>
+     * プログラムが変わった場合，値は次回必ず転送されます */
+    void setLocation(int link, int location){
+        this.linkId=link;
+        this.location=location;
+        this.uploadedVersion=-1;
+    }
+
+    /** 記憶しているプログラムでの場所を取得します */
+    int getLocation(){
+        return this.location;
+    }
+
+    /** 前回の転送から値が変更されているかどうかを取得します */
+    boolean isChanged(){
+        return this.uploadedVersion!=this.version;
+    }
+
+    /** 転送済みの記録を消し，次回必ず転送されるようにします */
+    void invalidate(){
+        this.uploadedVersion=-1;
+    }
+
+    /** 現在の値を転送済みとして記録します */
+    void uploaded(){
+        this.uploadedVersion=this.version;
     }
 
     /** 値が配列だった場合，要素数を取得します */
@@ -0,0 +1,59 @@
+package k7system.gpuobjects;
+
+import com.jogamp.opengl.GL3;
+
+/** 4要素ベクトルのユニフォーム変数です<br>
+ * 値は確保済みの配列に書き込まれるため，更新時にオブジェクトは生成されず，型の判定も行いません */
+public class Vec4Uniform extends Uniform{
+    private final float[] vector=new float[4];
+
+    /** 名前を指定して作成します */
+    public Vec4Uniform(String name) {
+        super(name, Uniform.VECTOR_4);
+    }
+
+    /** 名前と初期値を指定して作成します */
+    public Vec4Uniform(String name, float x, float y, float z, float w) {
+        this(name);
+        this.set(x, y, z, w);
+    }
+
+    /** 値を設定します */
+    public void set(float x, float y, float z, float w){
+        float[] v=this.vector;
+        if (v[0]!=x || v[1]!=y || v[2]!=z || v[3]!=w){
+            v[0]=x;
+            v[1]=y;
+            v[2]=z;
+            v[3]=w;
+            this.markChanged();
+        }
+    }
+
+    /** 値を設定します<br>
+     * 配列の中身がコピーされます */
+    public void set(float[] value){
+        this.copyValue(this.vector, 0, value);
+    }
+
+    /** 値を格納している配列を取得します<br>
+     * 中身を直接書き換えた場合はmarkChanged()を呼び出してください */
+    public float[] get(){
+        return this.vector;
+    }
+
+    @Override
+    public Object getValue(){
+        return this.vector;
+    }
+
+    @Override
+    public void setValue(Object value){
+        this.set((float[])value);
+    }
+
+    @Override
+    protected void upload(GL3 gl, int location){
+        gl.glUniform4fv(location, 1, this.vector, 0);
+    }
+}
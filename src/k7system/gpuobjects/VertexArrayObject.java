@@ -15,6 +15,7 @@ import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
 import k7system.GraphicEngine;
+import k7system.MultiDrawIndirect;
 import k7system.VectorManager;
 
 /** 頂点配列オブジェクトです<br>
@@ -27,6 +28,8 @@ public class VertexArrayObject extends GPUResource{
     public static final int LOCATION_NORMAL_VECTOR=1; // 法線ベクトルの位置
     public static final int LOCATION_TEX_COORDS=2; // テクスチャ座標の位置
     public static final int LOCATION_TANGENT_VECTOR=3; // 接線ベクトルの位置
+    public static final int LOCATION_INSTANCE_MV_MATRIX=4; // インスタンスごとのモデルビュー行列の位置(4から7の4つ)
+    public static final int LOCATION_INSTANCE_ROTATION_MATRIX=8; // インスタンスごとの回転行列の位置(8から10の3つ)
 
     private float[] vertices=null; // 頂点情報
     private float[] normals=null; // 法線情報
@@ -35,6 +38,7 @@ public class VertexArrayObject extends GPUResource{
     private int stride; //頂点要素間の距離
 
     private int[] indices=null;
+    private volatile TriangleBVH bvh=null; // レイ判定用の境界ボリューム階層
     private int vboId=-1;
     private int indexId=-1;
     private int vaoId=-1;
@@ -48,6 +52,24 @@ public class VertexArrayObject extends GPUResource{
      * この頂点データの個数が全ての頂点情報の基本になります */
     public void setVertices(float[] verteces){
         this.vertices=verteces;
+        this.bvh=null;
+    }
+
+    /** レイ判定用の境界ボリューム階層を取得します<br>
+     * 最初に呼ばれたときに頂点とインデックスから構築し，以降は同じものを返します．
+     * 頂点やインデックスを設定し直すと作り直されます */
+    public TriangleBVH getBvh(){
+        TriangleBVH result=this.bvh;
+        if (result==null){
+            synchronized(this){
+                result=this.bvh;
+                if (result==null){
+                    result=new TriangleBVH(this.vertices, this.indices);
+                    this.bvh=result;
+                }
+            }
+        }
+        return result;
     }
 
     /** 頂点vtx0の法線を返します */
@@ -57,6 +79,12 @@ public class VertexArrayObject extends GPUResource{
         return VectorManager.cross(vec0, vec1);
     }
 
+    /** 頂点ごとの法線データを取得します<br>
+     * 設定されていなければnullが返ります */
+    public float[] getNormals(){
+        return this.normals;
+    }
+
     /** 頂点ごとの法線データ(x,y,z)を設定します */
     public void setNormals(float[] normals){
         this.normals=normals;
@@ -118,6 +146,12 @@ public class VertexArrayObject extends GPUResource{
         }
     }
 
+    /** 頂点ごとのテクスチャデータを取得します<br>
+     * 設定されていなければnullが返ります */
+    public float[] getTexCoords(){
+        return this.texCoords;
+    }
+
     /** 頂点ごとのテクスチャデータ(u,v)を設定します */
     public void setTexCoords(float[] texCoords){
         this.texCoords=texCoords;
@@ -132,6 +166,7 @@ public class VertexArrayObject extends GPUResource{
      * ここでnull以外の値を指定した場合，引数の頂点インデックスを使用する設定になります． */
     public void setIndices(int[] ind){
         this.indices=ind;
+        this.bvh=null;
     }
 
     /** 頂点インデックスを整数型のリストで設定します */
@@ -141,6 +176,7 @@ public class VertexArrayObject extends GPUResource{
             tempInd[i]=ind.get(i);
         }
         this.indices=tempInd;
+        this.bvh=null;
     }
 
     /** 接線ベクトルデータを頂点情報から生成します
@@ -150,6 +186,12 @@ public class VertexArrayObject extends GPUResource{
         logger.severe("Create tangents is on construction");
     }
 
+    /** 接線ベクトルを取得します<br>
+     * 設定されていなければnullが返ります */
+    public float[] getTangents(){
+        return this.tangents;
+    }
+
     /** 接線ベクトルを設定します */
     public void setTangents(float[] tangents){
         this.tangents=tangents;
@@ -232,19 +274,21 @@ public class VertexArrayObject extends GPUResource{
             this.vboId=vbo.get(0);
             //System.out.println("DEBUG: VBO設定完了 :"+vbo.get(0));
 
+            // VAOの設定
+            GLStateCache cache=this.getStateCache();
+            IntBuffer vao=IntBuffer.wrap(new int[1]);
+            gl.glGenVertexArrays (1, vao);
+            cache.bindVertexArray(gl, vao.get(0));
+
             // インデックス
+            // エレメントバッファの割り当てはVAOの状態なので，VAOをバインドした後に行うことで描画時の再バインドを不要にします
             IntBuffer idx=IntBuffer.wrap(new int[1]);
             if (this.indices!=null){
                 gl.glGenBuffers(1, idx);
                 this.indexId=idx.get(0);
-                gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, this.indexId);
+                cache.bindElementBuffer(gl, this.indexId);
                 gl.glBufferData(GL3.GL_ELEMENT_ARRAY_BUFFER, Integer.SIZE/8*this.indices.length, IntBuffer.wrap(this.indices), GL3.GL_STATIC_DRAW);
             }
-
-            // VAOの設定
-            IntBuffer vao=IntBuffer.wrap(new int[1]);
-            gl.glGenVertexArrays (1, vao);
-            gl.glBindVertexArray(vao.get(0));
             // 頂点情報の読み込み
             gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo.get(0));
             gl.glEnableVertexAttribArray (LOCATION_VERTEX_POSITION);
@@ -280,15 +324,12 @@ public class VertexArrayObject extends GPUResource{
 
     /** 頂点配列オブジェクトを描画します */
     public void draw(GL3 gl){
+        // エレメントバッファはVAOが保持しているので，VAOのバインドだけで描画できます
+        this.getStateCache().bindVertexArray(gl, this.vaoId);
         if (this.indices==null){ // インデックスを使わない描画
-            gl.glBindVertexArray (this.vaoId);
             gl.glDrawArrays (GL.GL_TRIANGLES, 0, this.vertices.length/3);
-            gl.glBindVertexArray (0);
         }else{ // インデックスを使う描画
-            gl.glBindVertexArray (this.vaoId);
-            gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, this.indexId);
             gl.glDrawElements(GL3.GL_TRIANGLES, this.indices.length, GL3.GL_UNSIGNED_INT, 0);
-            gl.glBindVertexArray (0);
         }
 
         int error=gl.glGetError();
@@ -298,15 +339,61 @@ public class VertexArrayObject extends GPUResource{
 
     }
 
+    /** 頂点配列オブジェクトをインスタンス描画します<br>
+     * インスタンスごとの属性は，転送済みのインスタンスバッファから読み込みます．
+     * インスタンス属性は描画後に無効にするため，通常の描画には影響しません */
+    public void drawInstanced(GL3 gl, InstanceBuffer instances){
+        this.getStateCache().bindVertexArray(gl, this.vaoId);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instances.getBufferId());
+        int stride=InstanceBuffer.STRIDE*Float.SIZE/8;
+        for (int i=0;i<4;i++){
+            int location=LOCATION_INSTANCE_MV_MATRIX+i;
+            gl.glEnableVertexAttribArray(location);
+            gl.glVertexAttribPointer(location, 4, GL.GL_FLOAT, false, stride, (InstanceBuffer.MV_OFFSET+i*4)*Float.SIZE/8);
+            gl.glVertexAttribDivisor(location, 1);
+        }
+        for (int i=0;i<3;i++){
+            int location=LOCATION_INSTANCE_ROTATION_MATRIX+i;
+            gl.glEnableVertexAttribArray(location);
+            gl.glVertexAttribPointer(location, 3, GL.GL_FLOAT, false, stride, (InstanceBuffer.ROTATION_OFFSET+i*3)*Float.SIZE/8);
+            gl.glVertexAttribDivisor(location, 1);
+        }
+
+        if (this.indices==null){ // インデックスを使わない描画
+            gl.glDrawArraysInstanced(GL.GL_TRIANGLES, 0, this.vertices.length/3, instances.size());
+        }else{ // インデックスを使う描画
+            gl.glDrawElementsInstanced(GL3.GL_TRIANGLES, this.indices.length, GL3.GL_UNSIGNED_INT, 0, instances.size());
+        }
+
+        for (int i=0;i<4;i++){
+            gl.glDisableVertexAttribArray(LOCATION_INSTANCE_MV_MATRIX+i);
+        }
+        for (int i=0;i<3;i++){
+            gl.glDisableVertexAttribArray(LOCATION_INSTANCE_ROTATION_MATRIX+i);
+        }
+
+        int error=gl.glGetError();
+        if (error!=GL.GL_NO_ERROR){
+            logger.severe("Failed to draw instanced VAO <"+this+"> :"+error);
+        }
+    }
+
     /** 頂点配列オブジェクトを削除します */
     @Override
     public void dispose(GL3 gl){
         // VBOの後始末
+        GLStateCache cache=this.getStateCache();
         if (this.indices!=null){
             gl.glDeleteBuffers(1, IntBuffer.wrap(new int[]{this.indexId}));
+            cache.bufferDeleted(this.indexId);
         }
         gl.glDeleteBuffers(1, IntBuffer.wrap(new int[]{this.vboId}));
         gl.glDeleteVertexArrays(1, IntBuffer.wrap(new int[]{this.vaoId}));
+        cache.vertexArrayDeleted(this.vaoId);
+        MultiDrawIndirect multiDraw=(this.getEngine()!=null) ? this.getEngine().getMultiDrawIndirect() : null;
+        if (multiDraw!=null){
+            multiDraw.getArena().release(this); // 間接描画用の共有バッファの範囲を空けます
+        }
         System.out.println("DEBUG: Vao is dispose!");
         this.disableUploadedFlag();
     }
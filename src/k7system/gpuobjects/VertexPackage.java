@@ -2,8 +2,8 @@ package k7system.gpuobjects;
 
 import com.jogamp.opengl.GL3;
 
+import k7system.Frustum;
 import k7system.GraphicEngine;
-import k7system.VectorManager;
 
 /** エンジンの描画単位です<br>
  * 頂点情報とマテリアルと座標がパッケージになっています．<br>
@@ -149,54 +149,19 @@ public class VertexPackage extends GPUResource{
     }
 
     /** この頂点パッケージが視界に含まれるかをチェックします<br>
-     * バウンディングボックスの頂点が一つでも視界に入っていれば描画します． */
+     * MVP行列から取り出したモデル座標系の視錐台平面とバウンディングボックスを比較します．
+     * いずれかの平面の完全に外側にあれば描画しません． */
     public boolean isInSight(){
-        boolean result=true;
-        float[] mvpMatrix=this.getMvpMatrix();
-        if (this.boundingBox!=null){
-            //スクリーン座標系で再度バウンディングボックスを生成
-            float xMax=Float.NEGATIVE_INFINITY;
-            float yMax=Float.NEGATIVE_INFINITY;
-            float zMax=Float.NEGATIVE_INFINITY;
-            float xMin=Float.POSITIVE_INFINITY;
-            float yMin=Float.POSITIVE_INFINITY;
-            float zMin=Float.POSITIVE_INFINITY;
-            for (int i=0;i<8;i++){
-                float[] vertex={this.boundingBox[(i & 0x4)>>2][0],this.boundingBox[(i & 0x2)>>1][1],this.boundingBox[i & 0x1][2], 1};
-                vertex=VectorManager.multMatrixVector(mvpMatrix, vertex); // スクリーン座標系にする
-                float screenX=vertex[0]/vertex[3];
-                float screenY=vertex[1]/vertex[3];
-                float screenZ=vertex[2]/vertex[3];
-
-                if (xMax<screenX){
-                    xMax=screenX;
-                }
-                if (screenX<xMin){
-                    xMin=screenX;
-                }
-                if (yMax<screenY){
-                    yMax=screenY;
-                }
-                if (screenY<yMin){
-                    yMin=screenY;
-                }
-                if (zMax<screenZ){
-                    zMax=screenZ;
-                }
-                if (screenZ<zMin){
-                    zMin=screenZ;
-                }
-            }
+        return this.isInSight(this.getMvpMatrix());
+    }
 
-            // カメラがパッケージのバウンディングボックスの外側にあった場合
-            if (1<xMin || xMax<-1 || 1<yMin || yMax<-1 || 1<zMin || zMax<-1 ){
-                result=false;
-            }else{
-                //System.out.println("DEBUG: Draw!  minX:"+xMin+" maxX:"+xMax+" minY:"+yMin+" maxY:"+yMax);
-            }
+    /** 与えられたMVP行列でこの頂点パッケージが視界に含まれるかをチェックします<br>
+     * マテリアルに行列を設定する前に判定する場合に利用します */
+    public boolean isInSight(float[] mvp){
+        if (this.boundingBox==null){
+            return true;
         }
-
-        return result;
+        return Frustum.isBoundInSight(mvp, this.boundingBox[0], this.boundingBox[1]);
     }
 
     /** この頂点パッケージがVRAMに載っているかどうかを取得します<br>
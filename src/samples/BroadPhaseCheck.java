@@ -0,0 +1,186 @@
+package samples;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import k7system.collision.BroadPhase;
+import k7system.collision.CollisionElement;
+import k7system.collision.CollisionManager;
+import k7system.collision.CollisionObject;
+import k7system.collision.CollisionPairBuffer;
+import k7system.collision.SweepAndPrune;
+
+/** ブロードフェーズの出力を総当たりのAABB判定と比べるプログラムです<br>
+ * ランダムに動く箱を登録し，毎フレーム一部を削除・再登録しながら，出力されたペアが総当たりの結果と一致するかを確認します．
+ * 画面は使いません．不一致があれば内容を表示して終了コード1で終わります */
+public class BroadPhaseCheck {
+    private static final int BOXES=2000;
+    private static final int FRAMES=100;
+    private static final float WORLD=100f;
+
+    private Random random=new Random(1);
+    private Box[] boxes=new Box[BOXES];
+    private boolean[] registered=new boolean[BOXES];
+
+    public static void main(String[] argv){
+        boolean ok=new BroadPhaseCheck().check("CollisionManager", new CollisionManager());
+        ok&=new BroadPhaseCheck().check("SweepAndPrune", new SweepAndPrune());
+        if (!ok){
+            System.exit(1);
+        }
+    }
+
+    /** 1つのブロードフェーズを検査します */
+    private boolean check(String name, BroadPhase broadPhase){
+        for (int i=0;i<BOXES;i++){
+            this.boxes[i]=new Box(i, this.random);
+            broadPhase.addCollisionObject(this.boxes[i]);
+            this.registered[i]=true;
+        }
+        if (broadPhase instanceof CollisionManager){
+            ((CollisionManager)broadPhase).setSpaceBound(0, 0, 0, WORLD, WORLD, WORLD);
+        }
+
+        CollisionPairBuffer buffer=new CollisionPairBuffer();
+        List<CollisionObject> candidates=new ArrayList<CollisionObject>();
+        int totalPairs=0;
+        for (int frame=0;frame<FRAMES;frame++){
+            // 動かして，一部を出し入れします
+            for (int i=0;i<BOXES;i++){
+                this.boxes[i].move(this.random);
+                if (this.random.nextInt(50)==0){
+                    if (this.registered[i]){
+                        broadPhase.removeCollisionObject(this.boxes[i]);
+                    }else{
+                        broadPhase.addCollisionObject(this.boxes[i]);
+                    }
+                    this.registered[i]=!this.registered[i];
+                }
+            }
+            broadPhase.update();
+
+            // ペアの比較
+            broadPhase.findCollisionPairs(buffer);
+            Set<Long> found=new HashSet<Long>();
+            for (int i=0;i<buffer.size();i++){
+                int a=this.indexOf(broadPhase.getObject(buffer.getFirst(i)));
+                int b=this.indexOf(broadPhase.getObject(buffer.getSecond(i)));
+                if (!found.add(key(a, b))){
+                    return this.fail(name, frame, "duplicated pair "+a+"-"+b);
+                }
+            }
+            Set<Long> expected=this.bruteForce();
+            if (!found.equals(expected)){
+                Set<Long> missed=new HashSet<Long>(expected);
+                missed.removeAll(found);
+                Set<Long> extra=new HashSet<Long>(found);
+                extra.removeAll(expected);
+                return this.fail(name, frame, "missed "+missed.size()+" pairs, "+extra.size()+" extra pairs");
+            }
+            totalPairs+=found.size();
+
+            // 1つのモデルに対する候補の比較(候補にはAABBが重なるものが全て含まれている必要があります)
+            if (broadPhase instanceof CollisionManager){
+                for (int i=0;i<BOXES;i+=97){
+                    if (!this.registered[i]){
+                        continue;
+                    }
+                    candidates.clear();
+                    ((CollisionManager)broadPhase).getCollisionCandidates(this.boxes[i], candidates);
+                    for (int j=0;j<BOXES;j++){
+                        if (j!=i && this.registered[j] && this.boxes[i].overlaps(this.boxes[j]) && !candidates.contains(this.boxes[j])){
+                            return this.fail(name, frame, "candidate "+j+" of "+i+" is missing");
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println(name+": OK ("+FRAMES+" frames, "+totalPairs+" pairs)");
+        return true;
+    }
+
+    /** 登録中の箱について総当たりでペアを求めます */
+    private Set<Long> bruteForce(){
+        Set<Long> result=new HashSet<Long>();
+        for (int i=0;i<BOXES;i++){
+            if (!this.registered[i]){
+                continue;
+            }
+            for (int j=i+1;j<BOXES;j++){
+                if (this.registered[j] && this.boxes[i].overlaps(this.boxes[j])){
+                    result.add(key(i, j));
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean fail(String name, int frame, String message){
+        System.out.println(name+": NG at frame "+frame+": "+message);
+        return false;
+    }
+
+    private int indexOf(CollisionObject co){
+        return ((Box)co).index;
+    }
+
+    private static long key(int a, int b){
+        return ((long)Math.min(a, b)<<32)|Math.max(a, b);
+    }
+
+    /** ランダムに動く箱です */
+    private static class Box implements CollisionObject{
+        private int index;
+        private float[] bound=new float[6];
+        private float[] velocity=new float[3];
+
+        Box(int index, Random random) {
+            this.index=index;
+            for (int i=0;i<3;i++){
+                float size=0.5f+random.nextFloat()*3;
+                this.bound[i]=random.nextFloat()*(WORLD-size);
+                this.bound[i+3]=this.bound[i]+size;
+                this.velocity[i]=(random.nextFloat()-0.5f)*0.8f;
+            }
+        }
+
+        /** 少し動かします．空間の外に出そうなら向きを変えます */
+        void move(Random random){
+            for (int i=0;i<3;i++){
+                if (this.bound[i]+this.velocity[i]<0 || WORLD<this.bound[i+3]+this.velocity[i]){
+                    this.velocity[i]=-this.velocity[i];
+                }
+                this.bound[i]+=this.velocity[i];
+                this.bound[i+3]+=this.velocity[i];
+            }
+            if (random.nextInt(200)==0){
+                int axis=random.nextInt(3);
+                this.velocity[axis]=Math.max(-5, Math.min(5, this.velocity[axis]*10)); // たまに大きく動かします
+            }
+        }
+
+        boolean overlaps(Box other){
+            float[] a=this.bound;
+            float[] b=other.bound;
+            return a[0]<=b[3] && b[0]<=a[3] && a[1]<=b[4] && b[1]<=a[4] && a[2]<=b[5] && b[2]<=a[5];
+        }
+
+        @Override
+        public float[] getPositionByArray(){
+            return new float[]{(this.bound[0]+this.bound[3])/2, (this.bound[1]+this.bound[4])/2, (this.bound[2]+this.bound[5])/2};
+        }
+
+        @Override
+        public float[] getBoundByArray(){
+            return this.bound;
+        }
+
+        @Override
+        public List<CollisionElement> getCollisionElements(){
+            return null;
+        }
+    }
+}
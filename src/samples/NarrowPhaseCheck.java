@@ -0,0 +1,202 @@
+package samples;
+
+import java.util.Random;
+
+import k7system.collision.CollisionPairBuffer;
+import k7system.collision.CollisionShapeBuffer;
+import k7system.collision.ContactBuffer;
+import k7system.collision.NarrowPhase;
+
+/** カプセルと箱，カプセルと三角形の判定を，線分を細かく区切った参照値と比べるプログラムです<br>
+ * 線分上のSAMPLES個の点について箱(三角形)との距離を求め，その最小値を参照値とします．
+ * 本当の距離は参照値から線分の長さ/(2*SAMPLES)を引いた値より小さくならないため，
+ * 半径が参照値以上なら必ず接触し，参照値から誤差を引いた値より小さければ接触しないはずです．
+ * 画面は使いません．食い違いがあれば件数を表示して終了コード1で終わります */
+public class NarrowPhaseCheck {
+    private static final int PAIRS=20000;
+    private static final int SAMPLES=2000;
+    private static final float TOLERANCE=1e-4f; // 浮動小数点の丸め誤差の分
+
+    private Random random=new Random(1);
+    private NarrowPhase narrowPhase=new NarrowPhase();
+    private CollisionShapeBuffer shapes=new CollisionShapeBuffer();
+    private CollisionPairBuffer pairs=new CollisionPairBuffer();
+    private ContactBuffer contacts=new ContactBuffer();
+
+    public static void main(String[] argv){
+        NarrowPhaseCheck check=new NarrowPhaseCheck();
+        boolean ok=check.checkBox();
+        ok&=check.checkTriangle();
+        if (!ok){
+            System.exit(1);
+        }
+    }
+
+    public NarrowPhaseCheck() {
+        this.pairs.add(0, 1);
+    }
+
+    /** カプセルとOBBを比べます */
+    private boolean checkBox(){
+        int missed=0, extra=0, tested=0;
+        float[] center=new float[3];
+        float[] axes=new float[9];
+        float[] half=new float[3];
+        float[] p0=new float[3];
+        float[] p1=new float[3];
+        for (int n=0;n<PAIRS;n++){
+            for (int i=0;i<3;i++){
+                center[i]=this.range(-1, 1);
+                half[i]=this.range(0.1f, 1.5f);
+            }
+            this.randomAxes(axes);
+            this.randomSegment(p0, p1);
+            float reference=Float.MAX_VALUE;
+            for (int k=0;k<=SAMPLES;k++){
+                float t=(float)k/SAMPLES;
+                reference=Math.min(reference, boxDistance(center, axes, half, p0[0]+(p1[0]-p0[0])*t, p0[1]+(p1[1]-p0[1])*t, p0[2]+(p1[2]-p0[2])*t));
+            }
+            float radius=reference*this.range(0.5f, 1.5f);
+            this.shapes.setCapsule(0, p0, p1, radius);
+            this.shapes.setObb(1, center, axes, half);
+            int result=this.compare(reference, radius, length(p0, p1));
+            if (result==1){
+                missed++;
+            }else if (result==2){
+                extra++;
+            }
+            tested+=result<0 ? 0 : 1;
+        }
+        return this.report("capsule-box", tested, missed, extra);
+    }
+
+    /** カプセルと三角形1つのメッシュを比べます */
+    private boolean checkTriangle(){
+        int missed=0, extra=0, tested=0;
+        float[] vertices=new float[9];
+        int[] indices=new int[]{0, 1, 2};
+        float[] identity=new float[]{1,0,0,0, 0,1,0,0, 0,0,1,0, 0,0,0,1};
+        float[] p0=new float[3];
+        float[] p1=new float[3];
+        for (int n=0;n<PAIRS;n++){
+            for (int i=0;i<9;i++){
+                vertices[i]=this.range(-2, 2);
+            }
+            this.randomSegment(p0, p1);
+            float reference=Float.MAX_VALUE;
+            for (int k=0;k<=SAMPLES;k++){
+                float t=(float)k/SAMPLES;
+                reference=Math.min(reference, triangleDistance(vertices, p0[0]+(p1[0]-p0[0])*t, p0[1]+(p1[1]-p0[1])*t, p0[2]+(p1[2]-p0[2])*t));
+            }
+            float radius=reference*this.range(0.5f, 1.5f);
+            this.shapes.setCapsule(0, p0, p1, radius);
+            this.shapes.setMesh(1, vertices, indices, identity);
+            int result=this.compare(reference, radius, length(p0, p1));
+            if (result==1){
+                missed++;
+            }else if (result==2){
+                extra++;
+            }
+            tested+=result<0 ? 0 : 1;
+        }
+        return this.report("capsule-triangle", tested, missed, extra);
+    }
+
+    /** 判定して参照値と比べます<br>
+     * 一致すれば0，見逃せば1，余計に接触すれば2，参照値の誤差の範囲内なら-1を返します */
+    private int compare(float reference, float radius, float length){
+        float error=length/(2*SAMPLES)+TOLERANCE;
+        boolean hit=0<this.narrowPhase.process(this.pairs, this.shapes, this.contacts);
+        if (reference+TOLERANCE<=radius){
+            return hit ? 0 : 1;
+        }
+        if (radius<reference-error){
+            return hit ? 2 : 0;
+        }
+        return -1;
+    }
+
+    private boolean report(String name, int tested, int missed, int extra){
+        boolean ok=missed==0 && extra==0;
+        System.out.println(name+": "+(ok ? "OK" : "NG")+" ("+tested+" pairs, "+missed+" missed, "+extra+" extra)");
+        return ok;
+    }
+
+    private float range(float min, float max){
+        return min+this.random.nextFloat()*(max-min);
+    }
+
+    /** 箱の周りにランダムな線分を作ります */
+    private void randomSegment(float[] p0, float[] p1){
+        for (int i=0;i<3;i++){
+            p0[i]=this.range(-4, 4);
+            p1[i]=this.range(-4, 4);
+        }
+    }
+
+    /** ランダムな正規直交軸を作ります */
+    private void randomAxes(float[] axes){
+        float ax=this.range(-1, 1), ay=this.range(-1, 1), az=this.range(-1, 1);
+        float len=(float)Math.sqrt(ax*ax+ay*ay+az*az)+1e-6f;
+        ax/=len; ay/=len; az/=len;
+        float angle=this.range(0, (float)Math.PI*2);
+        float c=(float)Math.cos(angle), s=(float)Math.sin(angle), t=1-c;
+        float[] m=new float[]{
+                t*ax*ax+c, t*ax*ay+s*az, t*ax*az-s*ay,
+                t*ax*ay-s*az, t*ay*ay+c, t*ay*az+s*ax,
+                t*ax*az+s*ay, t*ay*az-s*ax, t*az*az+c};
+        System.arraycopy(m, 0, axes, 0, 9);
+    }
+
+    private static float length(float[] a, float[] b){
+        float dx=b[0]-a[0], dy=b[1]-a[1], dz=b[2]-a[2];
+        return (float)Math.sqrt(dx*dx+dy*dy+dz*dz);
+    }
+
+    /** 点とOBBの距離です */
+    private static float boxDistance(float[] center, float[] axes, float[] half, float x, float y, float z){
+        float d2=0;
+        for (int i=0;i<3;i++){
+            float q=(x-center[0])*axes[i*3]+(y-center[1])*axes[i*3+1]+(z-center[2])*axes[i*3+2];
+            float over=Math.max(0, Math.abs(q)-half[i]);
+            d2+=over*over;
+        }
+        return (float)Math.sqrt(d2);
+    }
+
+    /** 点と三角形の距離です<br>
+     * 平面への射影が三角形の内側にあれば平面との距離，外側なら3辺との距離の最小値です */
+    private static float triangleDistance(float[] v, float x, float y, float z){
+        float e1x=v[3]-v[0], e1y=v[4]-v[1], e1z=v[5]-v[2];
+        float e2x=v[6]-v[0], e2y=v[7]-v[1], e2z=v[8]-v[2];
+        float nx=e1y*e2z-e1z*e2y, ny=e1z*e2x-e1x*e2z, nz=e1x*e2y-e1y*e2x;
+        float len=(float)Math.sqrt(nx*nx+ny*ny+nz*nz);
+        if (1e-6f<len){
+            nx/=len; ny/=len; nz/=len;
+            float dist=(x-v[0])*nx+(y-v[1])*ny+(z-v[2])*nz;
+            float px=x-nx*dist, py=y-ny*dist, pz=z-nz*dist;
+            boolean inside=true;
+            for (int e=0;e<3 && inside;e++){
+                int a=e*3, b=((e+1)%3)*3;
+                float ex=v[b]-v[a], ey=v[b+1]-v[a+1], ez=v[b+2]-v[a+2];
+                float wx=px-v[a], wy=py-v[a+1], wz=pz-v[a+2];
+                float cx=ey*wz-ez*wy, cy=ez*wx-ex*wz, cz=ex*wy-ey*wx;
+                inside=0<=cx*nx+cy*ny+cz*nz;
+            }
+            if (inside){
+                return Math.abs(dist);
+            }
+        }
+        float best=Float.MAX_VALUE;
+        for (int e=0;e<3;e++){
+            int a=e*3, b=((e+1)%3)*3;
+            float ex=v[b]-v[a], ey=v[b+1]-v[a+1], ez=v[b+2]-v[a+2];
+            float wx=x-v[a], wy=y-v[a+1], wz=z-v[a+2];
+            float l2=ex*ex+ey*ey+ez*ez;
+            float t=0<l2 ? Math.max(0, Math.min(1, (wx*ex+wy*ey+wz*ez)/l2)) : 0;
+            float dx=wx-ex*t, dy=wy-ey*t, dz=wz-ez*t;
+            best=Math.min(best, (float)Math.sqrt(dx*dx+dy*dy+dz*dz));
+        }
+        return best;
+    }
+}